@@ -0,0 +1,125 @@
+package io.github.lucaseasedup.logit.common;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares {@link ConcurrentQueuedMap} with {@link QueuedMap} as the account
+ * buffer, under the load {@code AccountManager} puts on it: mostly lookups
+ * of buffered accounts, with some accounts being buffered and evicted.
+ * 
+ * <p> Each benchmark thread runs a random mix of 90% lookups,
+ * 5% puts and 5% removals over {@code keyCount} usernames, half of which
+ * are buffered at the start. Compound operations take the locks that
+ * {@code AccountManager} takes: the {@code QueuedMap} monitor, standing in
+ * for the {@code AccountManager} monitor that used to guard the buffer,
+ * or the stripe lock of the username.
+ * 
+ * <p> The benchmarks are built with the {@code bench} profile:
+ * 
+ * <pre>
+ * mvn -P bench compile dependency:build-classpath -Dmdep.outputFile=target/bench.cp
+ * java -cp target/classes:$(cat target/bench.cp) org.openjdk.jmh.Main AccountBufferBenchmark
+ * </pre>
+ * 
+ * <p> The number of threads can be changed with JMH's {@code -t} option.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class AccountBufferBenchmark
+{
+    @Setup
+    public void setUp()
+    {
+        usernames = new String[keyCount];
+        queuedMap = new QueuedMap<>();
+        concurrentQueuedMap = new ConcurrentQueuedMap<>();
+        
+        for (int i = 0; i < keyCount; i++)
+        {
+            usernames[i] = "player" + i;
+            
+            if (i % 2 == 0)
+            {
+                queuedMap.put(usernames[i], VALUE);
+                concurrentQueuedMap.put(usernames[i], VALUE);
+            }
+        }
+    }
+    
+    @Benchmark
+    public Object queuedMap()
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String username = usernames[random.nextInt(keyCount)];
+        int op = random.nextInt(100);
+        
+        synchronized (queuedMap)
+        {
+            if (op < 90)
+            {
+                return queuedMap.containsKey(username)
+                        ? queuedMap.get(username) : null;
+            }
+            else if (op < 95)
+            {
+                return queuedMap.put(username, VALUE);
+            }
+            else
+            {
+                return queuedMap.remove(username);
+            }
+        }
+    }
+    
+    @Benchmark
+    public Object concurrentQueuedMap()
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String username = usernames[random.nextInt(keyCount)];
+        int op = random.nextInt(100);
+        
+        if (op < 90)
+        {
+            return concurrentQueuedMap.getEntry(username);
+        }
+        
+        synchronized (concurrentQueuedMap.getLock(username))
+        {
+            if (op < 95)
+            {
+                return concurrentQueuedMap.put(username, VALUE);
+            }
+            else
+            {
+                return concurrentQueuedMap.remove(username);
+            }
+        }
+    }
+    
+    @Param({"1000", "10000"})
+    public int keyCount;
+    
+    private static final Object VALUE = new Object();
+    
+    private String[] usernames;
+    private QueuedMap<String, Object> queuedMap;
+    private ConcurrentQueuedMap<String, Object> concurrentQueuedMap;
+}
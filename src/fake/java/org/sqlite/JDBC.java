@@ -1,6 +1,7 @@
 package org.sqlite;
 
 import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.Properties;
 
 public final class JDBC
@@ -11,7 +12,7 @@ public final class JDBC
     
     public static Connection createConnection(
             String host, Properties properties
-    )
+    ) throws SQLException
     {
         return null;
     }
@@ -65,8 +65,11 @@ import io.github.lucaseasedup.logit.security.SecurityHelper;
 import io.github.lucaseasedup.logit.session.SessionManager;
 import io.github.lucaseasedup.logit.storage.CacheType;
 import io.github.lucaseasedup.logit.storage.DataType;
+import io.github.lucaseasedup.logit.storage.ReadPolicy;
 import io.github.lucaseasedup.logit.storage.Storage;
 import io.github.lucaseasedup.logit.storage.StorageFactory;
+import io.github.lucaseasedup.logit.storage.StorageJournal;
+import io.github.lucaseasedup.logit.storage.StorageMetrics;
 import io.github.lucaseasedup.logit.storage.StorageType;
 import io.github.lucaseasedup.logit.storage.UnitKeys;
 import io.github.lucaseasedup.logit.storage.WrapperStorage;
@@ -501,7 +504,7 @@ public final class LogItCore
         @SuppressWarnings("resource")
         Storage leadingAccountStorage =
                 new StorageFactory(getConfig("config.yml"), "storage.accounts.leading")
-                        .produceStorage(leadingStorageType);
+                        .produceShardedStorage(leadingStorageType);
         
         @SuppressWarnings("resource")
         Storage mirrorAccountStorage =
@@ -517,10 +520,33 @@ public final class LogItCore
         String mirrorUnit = getConfig("config.yml")
                 .getString("storage.accounts.mirror.unit");
         
+        // Reads are never routed to a mirror that does not store anything.
+        ReadPolicy readPolicy = (mirrorStorageType == StorageType.NONE)
+                ? ReadPolicy.LEADING_ONLY
+                : ReadPolicy.decode(getConfig("config.yml")
+                        .getString("storage.accounts.mirror.readPolicy").toLowerCase());
+        
         @SuppressWarnings("resource")
         WrapperStorage accountStorage = new WrapperStorage.Builder()
                 .leading(leadingAccountStorage)
                 .cacheType(accountCacheType)
+                .cacheSize(Math.max(1, getConfig("config.yml")
+                        .getInt("storage.accounts.leading.cacheSize")))
+                .cacheTtl(getConfig("config.yml")
+                        .getTime("storage.accounts.leading.cacheTtl", TimeUnit.MILLISECONDS))
+                .queryCacheSize(getConfig("config.yml")
+                        .getInt("storage.accounts.leading.queryCacheSize"))
+                .metrics(getConfig("config.yml").getBoolean("storage.metrics.enabled")
+                        ? new StorageMetrics() : null)
+                .readPolicy(readPolicy)
+                .maxMirrorLag(getConfig("config.yml")
+                        .getTime("storage.accounts.mirror.maxLag", TimeUnit.MILLISECONDS))
+                .journal(getConfig("config.yml").getBoolean("storage.accounts.leading.journal.enabled")
+                        ? new StorageJournal(getDataFile(getConfig("config.yml")
+                                .getString("storage.accounts.leading.journal.filename")))
+                        : null)
+                .journalRetryInterval(getConfig("config.yml")
+                        .getTime("storage.accounts.leading.journal.retryInterval", TimeUnit.MILLISECONDS))
                 .build();
         Map<String, String> unitMappings = new HashMap<>();
         unitMappings.put(leadingUnit, mirrorUnit);
@@ -551,21 +577,9 @@ public final class LogItCore
         
         try
         {
-            accountStorage.setAutobatchEnabled(true);
-            
-            UnitKeys existingKeys = accountStorage.getKeys(accountsUnit);
-            
-            for (Map.Entry<String, DataType> e : accountKeys.entrySet())
-            {
-                if (!existingKeys.containsKey(e.getKey()))
-                {
-                    accountStorage.addKey(accountsUnit, e.getKey(), e.getValue());
-                }
-            }
-            
-            accountStorage.executeBatch();
-            accountStorage.clearBatch();
-            accountStorage.setAutobatchEnabled(false);
+            // Missing columns are added in the background, so that altering
+            // a large table does not hold up the server start.
+            accountStorage.migrate(accountsUnit, accountKeys);
         }
         catch (IOException ex)
         {
@@ -672,10 +686,6 @@ public final class LogItCore
     
     private void startTasks()
     {
-        long bufferFlushInterval = getConfig("secret.yml")
-                .getTime("bufferFlushInterval", TimeUnit.TICKS);
-        
-        scheduleTask(getAccountManager(), 0L, bufferFlushInterval);
         scheduleTask(getBackupManager(), 0L, BackupManager.TASK_PERIOD);
         scheduleTask(getSessionManager(), 0L, SessionManager.TASK_PERIOD);
         scheduleTask(getGlobalPasswordManager(), 0L, GlobalPasswordManager.TASK_PERIOD);
@@ -2,6 +2,7 @@ package io.github.lucaseasedup.logit.account;
 
 import io.github.lucaseasedup.logit.LogItCoreObject;
 import io.github.lucaseasedup.logit.common.ReportedException;
+import io.github.lucaseasedup.logit.security.SecurityHelper;
 import io.github.lucaseasedup.logit.security.model.HashingModel;
 import io.github.lucaseasedup.logit.security.model.HashingModelDecoder;
 import io.github.lucaseasedup.logit.storage.StorageEntry;
@@ -11,7 +12,9 @@ import it.sauronsoftware.base64.Base64;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -225,36 +228,48 @@ public final class Account extends LogItCoreObject
         if (password == null)
             throw new IllegalArgumentException("Null password");
         
-        if (getConfig("secret.yml").getBoolean("passwords.disable"))
+        SecurityHelper securityHelper = getSecurityHelper();
+        
+        if (securityHelper.arePasswordsDisabled())
             return true;
         
-        if (!entry.containsKey(keys().salt()))
+        StorageEntry entry = this.entry;
+        String salt = entry.get(keys().salt());
+        String hash = entry.get(keys().password());
+        String userHashingAlgorithm = entry.get(keys().hashing_algorithm());
+        
+        if (salt == null)
             throw new IllegalArgumentException("Missing entry key: salt");
         
-        if (!entry.containsKey(keys().password()))
+        if (hash == null)
             throw new IllegalArgumentException("Missing entry key: password");
         
-        if (!entry.containsKey(keys().hashing_algorithm()))
+        if (userHashingAlgorithm == null)
             throw new IllegalArgumentException("Missing entry key: hashing_algorithm");
         
-        String hash = entry.get(keys().password());
-        HashingModel hashingModel =
-                getSecurityHelper().getDefaultHashingModel();
+        HashingModel hashingModel;
         
-        if (!getConfig("secret.yml").getBoolean("debug.forceHashingAlgorithm"))
+        if (securityHelper.isHashingAlgorithmForced()
+                || StringUtils.isBlank(userHashingAlgorithm))
+        {
+            hashingModel = securityHelper.getDefaultHashingModel();
+        }
+        else
         {
-            String userHashingAlgorithm = entry.get(keys().hashing_algorithm());
+            ParsedValue<HashingModel> parsed = this.hashingModel;
             
-            if (!StringUtils.isBlank(userHashingAlgorithm))
+            if (parsed == null || parsed.raw != userHashingAlgorithm)
             {
-                hashingModel = HashingModelDecoder.decode(userHashingAlgorithm);
+                parsed = new ParsedValue<>(userHashingAlgorithm,
+                        HashingModelDecoder.decode(userHashingAlgorithm));
+                this.hashingModel = parsed;
             }
+            
+            hashingModel = parsed.value;
         }
         
-        if (getConfig("secret.yml").getBoolean("passwords.useSalt"))
+        if (securityHelper.isSaltUsed())
         {
-            String salt = entry.get(keys().salt());
-            
             return hashingModel.verify(password, salt, hash);
         }
         else
@@ -283,14 +298,15 @@ public final class Account extends LogItCoreObject
         if (newPassword == null)
             throw new IllegalArgumentException("Null newPassword");
         
-        if (getConfig("secret.yml").getBoolean("passwords.disable"))
+        SecurityHelper securityHelper = getSecurityHelper();
+        
+        if (securityHelper.arePasswordsDisabled())
             return;
         
-        HashingModel hashingModel =
-                getSecurityHelper().getDefaultHashingModel();
+        HashingModel hashingModel = securityHelper.getDefaultHashingModel();
         String newHash;
         
-        if (getConfig("secret.yml").getBoolean("passwords.useSalt"))
+        if (securityHelper.isSaltUsed())
         {
             String newSalt = hashingModel.generateSalt();
             
@@ -464,10 +480,21 @@ public final class Account extends LogItCoreObject
      */
     public long getLastActiveDate()
     {
-        if (!entry.containsKey(keys().last_active_date()))
+        String lastActiveDateString = entry.get(keys().last_active_date());
+        
+        if (lastActiveDateString == null)
             throw new IllegalArgumentException("Missing entry key: last_active_date");
         
-        return Long.parseLong(entry.get(keys().last_active_date()));
+        ParsedValue<Long> parsed = lastActiveDate;
+        
+        if (parsed == null || parsed.raw != lastActiveDateString)
+        {
+            parsed = new ParsedValue<>(lastActiveDateString,
+                    Long.parseLong(lastActiveDateString));
+            lastActiveDate = parsed;
+        }
+        
+        return parsed.value;
     }
     
     /**
@@ -478,7 +505,13 @@ public final class Account extends LogItCoreObject
      */
     public void setLastActiveDate(long unixTime)
     {
+        StorageEntry entry = this.entry;
+        
         entry.put(keys().last_active_date(), String.valueOf(unixTime));
+        
+        lastActiveDate = new ParsedValue<>(
+                entry.get(keys().last_active_date()), unixTime
+        );
     }
     
     /**
@@ -494,10 +527,21 @@ public final class Account extends LogItCoreObject
      */
     public long getRegistrationDate()
     {
-        if (!entry.containsKey(keys().reg_date()))
+        String registrationDateString = entry.get(keys().reg_date());
+        
+        if (registrationDateString == null)
             throw new IllegalArgumentException("Missing entry key: reg_date");
         
-        return Long.parseLong(entry.get(keys().reg_date()));
+        ParsedValue<Long> parsed = registrationDate;
+        
+        if (parsed == null || parsed.raw != registrationDateString)
+        {
+            parsed = new ParsedValue<>(registrationDateString,
+                    Long.parseLong(registrationDateString));
+            registrationDate = parsed;
+        }
+        
+        return parsed.value;
     }
     
     /**
@@ -508,7 +552,13 @@ public final class Account extends LogItCoreObject
      */
     public void setRegistrationDate(long unixTime)
     {
+        StorageEntry entry = this.entry;
+        
         entry.put(keys().reg_date(), String.valueOf(unixTime));
+        
+        registrationDate = new ParsedValue<>(
+                entry.get(keys().reg_date()), unixTime
+        );
     }
     
     /**
@@ -554,16 +604,9 @@ public final class Account extends LogItCoreObject
      * @throws IllegalArgumentException
      *        If the underlying entry does not contain the required keys.
      */
-    public List<String> getLoginHistory()
+    public synchronized List<String> getLoginHistory()
     {
-        if (!entry.containsKey(keys().login_history()))
-            throw new IllegalArgumentException("Missing entry key: login_history");
-        
-        return new ArrayList<>(Arrays.asList(
-                LOGIN_HISTORY_SEPARATOR_PATTERN.split(
-                        entry.get(keys().login_history())
-                )
-        ));
+        return new ArrayList<>(getLoginHistoryRecords());
     }
     
     /**
@@ -583,7 +626,9 @@ public final class Account extends LogItCoreObject
      *        If {@code unixTime} is negative, or if {@code ip} is not null
      *        but is not a valid IPv4/6 address.
      */
-    public void recordLogin(long unixTime, String ip, boolean succeeded)
+    public synchronized void recordLogin(
+            long unixTime, String ip, boolean succeeded
+    )
     {
         if (unixTime < 0)
             throw new IllegalArgumentException("Negative unixTime");
@@ -591,10 +636,7 @@ public final class Account extends LogItCoreObject
         if (ip != null && !Validators.validateIp(ip))
             throw new IllegalArgumentException("ip is not a valid IPv4/6 address");
         
-        if (!entry.containsKey(keys().login_history()))
-            throw new IllegalArgumentException("Missing entry key: login_history");
-        
-        List<String> records = getLoginHistory();
+        List<String> records = new ArrayList<>(getLoginHistoryRecords());
         int recordsToKeep = getConfig("config.yml")
                 .getInt("loginHistory.recordsToKeep");
         
@@ -612,18 +654,72 @@ public final class Account extends LogItCoreObject
             records.add(unixTime + ";" + ip + ";" + succeeded);
         }
         
-        StringBuilder historyBuilder = new StringBuilder();
+        Iterator<String> it = records.iterator();
         
-        for (String record : records)
+        while (it.hasNext())
         {
-            if (!record.isEmpty())
+            if (it.next().isEmpty())
             {
-                historyBuilder.append(record);
-                historyBuilder.append(LOGIN_HISTORY_SEPARATOR);
+                it.remove();
             }
         }
         
+        // The history is encoded into the entry once it is needed there,
+        // however many logins are recorded in the meantime.
+        pendingLoginHistory = Collections.unmodifiableList(records);
+    }
+    
+    /**
+     * Returns the login history records, parsing the login_history key
+     * only if it has changed since the last time.
+     */
+    private List<String> getLoginHistoryRecords()
+    {
+        if (pendingLoginHistory != null)
+            return pendingLoginHistory;
+        
+        String loginHistoryString = entry.get(keys().login_history());
+        
+        if (loginHistoryString == null)
+            throw new IllegalArgumentException("Missing entry key: login_history");
+        
+        ParsedValue<List<String>> parsed = loginHistory;
+        
+        if (parsed == null || parsed.raw != loginHistoryString)
+        {
+            parsed = new ParsedValue<>(loginHistoryString,
+                    Collections.unmodifiableList(Arrays.asList(
+                            LOGIN_HISTORY_SEPARATOR_PATTERN.split(loginHistoryString)
+                    )));
+            loginHistory = parsed;
+        }
+        
+        return parsed.value;
+    }
+    
+    /**
+     * Puts the values that have been changed only in their parsed form
+     * into the entry.
+     */
+    private synchronized void encodePendingValues()
+    {
+        if (pendingLoginHistory == null)
+            return;
+        
+        StringBuilder historyBuilder = new StringBuilder();
+        
+        for (String record : pendingLoginHistory)
+        {
+            historyBuilder.append(record);
+            historyBuilder.append(LOGIN_HISTORY_SEPARATOR);
+        }
+        
         entry.put(keys().login_history(), historyBuilder.toString());
+        
+        loginHistory = new ParsedValue<>(
+                entry.get(keys().login_history()), pendingLoginHistory
+        );
+        pendingLoginHistory = null;
     }
     
     /**
@@ -680,42 +776,51 @@ public final class Account extends LogItCoreObject
      */
     public Map<String, String> getPersistence()
     {
-        if (!entry.containsKey(keys().persistence()))
+        String persistenceString = entry.get(keys().persistence());
+        
+        if (persistenceString == null)
             throw new IllegalArgumentException("Missing entry key: persistence");
         
-        String persistenceString = entry.get(keys().persistence());
-        Map<String, String> persistence = new LinkedHashMap<>();
+        ParsedValue<Map<String, String>> parsed = this.persistence;
+        
+        if (parsed != null && parsed.raw == persistenceString)
+            return new LinkedHashMap<>(parsed.value);
+        
+        String decodedPersistenceString = persistenceString;
+        Map<String, String> persistence;
         
-        if (persistenceString != null)
+        if (getConfig("secret.yml").getBoolean("debug.encodePersistence"))
         {
-            if (getConfig("secret.yml").getBoolean("debug.encodePersistence"))
-            {
-                persistenceString = Base64.decode(persistenceString);
-            }
+            decodedPersistenceString = Base64.decode(decodedPersistenceString);
+        }
+        
+        try
+        {
+            persistence = IniUtils.unserialize(
+                    decodedPersistenceString
+            ).get("persistence");
+        }
+        catch (IOException ex)
+        {
+            log(Level.WARNING, "Could not unserialize persistence"
+                             + " {username: " + getUsername() + "}", ex);
             
-            try
-            {
-                persistence = IniUtils.unserialize(
-                        persistenceString
-                ).get("persistence");
-            }
-            catch (IOException ex)
-            {
-                log(Level.WARNING, "Could not unserialize persistence"
-                                 + " {username: " + getUsername() + "}", ex);
-                
-                ReportedException.throwNew(ex);
-                
-                return null;
-            }
+            ReportedException.throwNew(ex);
             
-            if (persistence == null)
-            {
-                return new LinkedHashMap<>();
-            }
+            return null;
+        }
+        
+        if (persistence == null)
+        {
+            persistence = new LinkedHashMap<>();
         }
         
-        return persistence;
+        this.persistence = new ParsedValue<Map<String, String>>(
+                persistenceString,
+                Collections.unmodifiableMap(new LinkedHashMap<>(persistence))
+        );
+        
+        return new LinkedHashMap<>(persistence);
     }
     
     /**
@@ -778,7 +883,7 @@ public final class Account extends LogItCoreObject
         if (StringUtils.isBlank(username))
             throw new IllegalArgumentException("Null or blank username");
         
-        StorageEntry entryClone = entry.copy();
+        StorageEntry entryClone = getEncodedEntry().copy();
         
         entryClone.put(keys().username(), username.toLowerCase());
         entryClone.clearKeyDirty(keys().username());
@@ -888,6 +993,9 @@ public final class Account extends LogItCoreObject
      * Returns the underlying storage entry.
      *
      * <p> <b>Do not use unless you know what you're doing!</b>
+     * 
+     * <p> Logins recorded since the account was last flushed
+     * are not yet in the <i>login_history</i> key.
      *
      * @return The account entry.
      */
@@ -896,12 +1004,56 @@ public final class Account extends LogItCoreObject
         return entry;
     }
     
-    /* package */ void setEntry(StorageEntry entry)
+    /**
+     * Returns the underlying storage entry, with the values
+     * changed only in their parsed form put into it.
+     */
+    /* package */ synchronized StorageEntry getEncodedEntry()
+    {
+        encodePendingValues();
+        
+        return entry;
+    }
+    
+    /**
+     * Replaces the underlying storage entry.
+     * 
+     * <p> Logins recorded against the old entry that have not been
+     * put into it yet are put into the new one.
+     */
+    /* package */ synchronized void setEntry(StorageEntry entry)
     {
         if (entry == null)
             throw new IllegalArgumentException();
         
         this.entry = entry;
+        
+        encodePendingValues();
+    }
+    
+    /**
+     * Returns the keys of the underlying entry modified since the last call,
+     * marking them as clean.
+     */
+    /* package */ synchronized StorageEntry takeDirtyEntry()
+    {
+        encodePendingValues();
+        
+        return entry.takeDirty();
+    }
+    
+    /**
+     * Marks this account as used just now, so that it is kept
+     * in the buffer for a while longer.
+     */
+    /* package */ void markUsed()
+    {
+        lastUsedTime = System.currentTimeMillis();
+    }
+    
+    /* package */ long getLastUsedTime()
+    {
+        return lastUsedTime;
     }
     
     public void bufferLock()
@@ -951,7 +1103,37 @@ public final class Account extends LogItCoreObject
     private static final Pattern LOGIN_HISTORY_SEPARATOR_PATTERN =
             Pattern.compile(Pattern.quote(LOGIN_HISTORY_SEPARATOR));
     
-    private StorageEntry entry;
+    /**
+     * A value parsed from an entry key, along with the string it was parsed
+     * from. The string is compared by identity, since {@code StorageEntry}
+     * replaces the string instance whenever the key changes.
+     */
+    private static final class ParsedValue<T>
+    {
+        public ParsedValue(String raw, T value)
+        {
+            this.raw = raw;
+            this.value = value;
+        }
+        
+        private final String raw;
+        private final T value;
+    }
+    
+    private volatile StorageEntry entry;
     private final Queue<SaveCallback> saveCallbacks = new LinkedList<>();
-    private boolean bufferLocked = false;
+    private volatile boolean bufferLocked = false;
+    private volatile long lastUsedTime = System.currentTimeMillis();
+    
+    private volatile ParsedValue<Long> lastActiveDate;
+    private volatile ParsedValue<Long> registrationDate;
+    private volatile ParsedValue<List<String>> loginHistory;
+    private volatile ParsedValue<Map<String, String>> persistence;
+    private volatile ParsedValue<HashingModel> hashingModel;
+    
+    /**
+     * The login history recorded since it was last encoded into the entry,
+     * or {@code null} if the entry is up to date. Guarded by this account.
+     */
+    private List<String> pendingLoginHistory;
 }
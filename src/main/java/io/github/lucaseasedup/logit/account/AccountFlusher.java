@@ -0,0 +1,285 @@
+package io.github.lucaseasedup.logit.account;
+
+import io.github.lucaseasedup.logit.LogItCoreObject;
+import io.github.lucaseasedup.logit.storage.StorageMetrics;
+import java.util.logging.Level;
+
+/**
+ * Flushes the account buffer of an {@link AccountManager}
+ * on a background thread.
+ * 
+ * <p> Every flush takes the dirty entries of at most {@code maxRows}
+ * buffered accounts and submits them to the account writer. The time
+ * between flushes adapts to the rate at which entries get dirty: it is
+ * chosen so that a flush picks up about half of {@code maxRows} entries,
+ * between {@code minInterval} and {@code maxInterval}. A flush that hits
+ * the cap is followed by another one straight away.
+ * 
+ * <p> Flush latency and batch size are kept for
+ * {@code /logit storage flush}, and the latency is also recorded
+ * in the storage metrics, if enabled, as the {@code "flush"} operation.
+ */
+public final class AccountFlusher extends LogItCoreObject implements Runnable
+{
+    /**
+     * Constructs a new {@code AccountFlusher}.
+     * 
+     * @param accountManager the account manager whose buffer is to be flushed.
+     * @param metrics        the storage metrics to record flushes in,
+     *                       or {@code null}.
+     * @param minInterval    the shortest time between flushes, in milliseconds.
+     * @param maxInterval    the longest time between flushes, in milliseconds.
+     * @param maxRows        the maximum number of dirty entries
+     *                       taken by a flush.
+     */
+    AccountFlusher(
+            AccountManager accountManager, StorageMetrics metrics,
+            long minInterval, long maxInterval, int maxRows
+    )
+    {
+        if (accountManager == null || minInterval <= 0
+                || maxInterval < minInterval || maxRows <= 0)
+        {
+            throw new IllegalArgumentException();
+        }
+        
+        this.accountManager = accountManager;
+        this.metrics = metrics;
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+        this.maxRows = maxRows;
+        this.interval = minInterval;
+    }
+    
+    /**
+     * Starts flushing on a new thread.
+     */
+    public synchronized void start()
+    {
+        if (thread != null)
+            throw new IllegalStateException("AccountFlusher already started");
+        
+        lastFlushTime = System.currentTimeMillis();
+        thread = new Thread(this, "LogIt Account Flusher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Stops the background thread and waits for a flush in progress
+     * to finish. Accounts left in the buffer are flushed when
+     * the storage is closed.
+     */
+    @Override
+    public void dispose()
+    {
+        Thread thread;
+        
+        synchronized (this)
+        {
+            closed = true;
+            thread = this.thread;
+            
+            notifyAll();
+        }
+        
+        if (thread == null || thread == Thread.currentThread())
+            return;
+        
+        try
+        {
+            thread.join();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Internal method. Do not call directly.
+     */
+    @Override
+    public void run()
+    {
+        while (awaitFlush())
+        {
+            long startNanos = System.nanoTime();
+            int rows;
+            
+            try
+            {
+                rows = accountManager.flushBuffer(maxRows);
+            }
+            catch (RuntimeException ex)
+            {
+                log(Level.WARNING, "Could not flush the account buffer", ex);
+                
+                rows = 0;
+            }
+            
+            long latencyNanos = System.nanoTime() - startNanos;
+            
+            if (metrics != null)
+            {
+                metrics.record(StorageMetrics.Role.LEADING, "flush",
+                        accountManager.getUnit(), startNanos);
+            }
+            
+            synchronized (this)
+            {
+                long now = System.currentTimeMillis();
+                
+                flushCount++;
+                totalRows += rows;
+                totalLatencyNanos += latencyNanos;
+                lastRows = rows;
+                lastLatencyNanos = latencyNanos;
+                
+                adaptInterval(rows, Math.max(1L, now - lastFlushTime));
+                
+                lastFlushTime = now;
+            }
+        }
+    }
+    
+    /**
+     * Returns the current time between flushes, in milliseconds.
+     */
+    public synchronized long getInterval()
+    {
+        return interval;
+    }
+    
+    /**
+     * Returns the smoothed number of entries that get dirty per second.
+     */
+    public synchronized double getDirtyRate()
+    {
+        return dirtyRate * 1000.0;
+    }
+    
+    public synchronized long getFlushCount()
+    {
+        return flushCount;
+    }
+    
+    /**
+     * Returns the number of dirty entries taken by the last flush.
+     */
+    public synchronized int getLastBatchSize()
+    {
+        return lastRows;
+    }
+    
+    /**
+     * Returns the mean number of dirty entries taken by a flush.
+     */
+    public synchronized double getMeanBatchSize()
+    {
+        return (flushCount > 0) ? (double) totalRows / flushCount : 0.0;
+    }
+    
+    public synchronized long getLastLatencyNanos()
+    {
+        return lastLatencyNanos;
+    }
+    
+    public synchronized long getMeanLatencyNanos()
+    {
+        return (flushCount > 0) ? totalLatencyNanos / flushCount : 0L;
+    }
+    
+    /**
+     * Returns the number of entries flushed but not yet written
+     * to the storage.
+     */
+    public int getQueueDepth()
+    {
+        return accountManager.getPendingWriteCount();
+    }
+    
+    public int getMaxBatchSize()
+    {
+        return maxRows;
+    }
+    
+    /**
+     * Waits until the next flush is due.
+     * 
+     * @return {@code false} if this flusher has been closed.
+     */
+    private synchronized boolean awaitFlush()
+    {
+        long flushAt = lastFlushTime + interval;
+        long remaining;
+        
+        while (!closed && (remaining = flushAt - System.currentTimeMillis()) > 0)
+        {
+            try
+            {
+                wait(remaining);
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                closed = true;
+            }
+        }
+        
+        return !closed;
+    }
+    
+    private void adaptInterval(int rows, long elapsed)
+    {
+        double rate = (double) rows / elapsed;
+        
+        dirtyRate += RATE_SMOOTHING * (rate - dirtyRate);
+        
+        if (rows >= maxRows)
+        {
+            // The rest of the buffer is flushed straight away.
+            interval = 0L;
+        }
+        else if (dirtyRate * maxInterval < 1.0)
+        {
+            interval = maxInterval;
+        }
+        else
+        {
+            long targetInterval = (long) (maxRows * TARGET_FILL / dirtyRate);
+            
+            interval = Math.max(minInterval, Math.min(maxInterval, targetInterval));
+        }
+    }
+    
+    /**
+     * The weight of the last flush in the smoothed dirty-entry rate.
+     */
+    private static final double RATE_SMOOTHING = 0.3;
+    
+    /**
+     * The fraction of {@code maxRows} a flush aims to pick up.
+     */
+    private static final double TARGET_FILL = 0.5;
+    
+    private final AccountManager accountManager;
+    private final StorageMetrics metrics;
+    private final long minInterval;
+    private final long maxInterval;
+    private final int maxRows;
+    private Thread thread;
+    private boolean closed = false;
+    private long interval;
+    private long lastFlushTime;
+    
+    /**
+     * Dirty entries per millisecond.
+     */
+    private double dirtyRate = 0.0;
+    private long flushCount = 0L;
+    private long totalRows = 0L;
+    private long totalLatencyNanos = 0L;
+    private int lastRows = 0;
+    private long lastLatencyNanos = 0L;
+}
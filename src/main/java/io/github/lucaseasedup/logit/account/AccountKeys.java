@@ -74,6 +74,12 @@ public final class AccountKeys extends UnitKeys
             display_name,
             persistence).build();
         
+        this.indexedNames = new ImmutableList.Builder<String>().add(
+            uuid,
+            ip,
+            email,
+            last_active_date).build();
+        
         this.username = username;
         this.uuid = uuid;
         this.salt = salt;
@@ -165,6 +171,17 @@ public final class AccountKeys extends UnitKeys
         return names;
     }
     
+    /**
+     * Returns the keys that accounts are looked up by besides the username
+     * and that should therefore be indexed in the storage.
+     * 
+     * @return an immutable list of key names.
+     */
+    public List<String> getIndexedNames()
+    {
+        return indexedNames;
+    }
+    
     public static final AccountKeys DEFAULT = new AccountKeys(
             "username",
             "uuid",
@@ -185,6 +202,7 @@ public final class AccountKeys extends UnitKeys
     private static final long serialVersionUID = 1L;
     
     private final List<String> names;
+    private final List<String> indexedNames;
     private final String username;
     private final String uuid;
     private final String salt;
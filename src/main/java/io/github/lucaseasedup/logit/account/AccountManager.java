@@ -3,20 +3,27 @@ package io.github.lucaseasedup.logit.account;
 import static io.github.lucaseasedup.logit.message.MessageHelper.t;
 import io.github.lucaseasedup.logit.CancelledState;
 import io.github.lucaseasedup.logit.LogItCoreObject;
-import io.github.lucaseasedup.logit.common.QueuedMap;
+import io.github.lucaseasedup.logit.common.ConcurrentQueuedMap;
 import io.github.lucaseasedup.logit.common.ReportedException;
 import io.github.lucaseasedup.logit.config.TimeUnit;
 import io.github.lucaseasedup.logit.logging.CustomLevel;
 import io.github.lucaseasedup.logit.session.SessionManager;
+import io.github.lucaseasedup.logit.storage.AsyncStorage;
+import io.github.lucaseasedup.logit.storage.EntryVisitor;
 import io.github.lucaseasedup.logit.storage.Infix;
+import io.github.lucaseasedup.logit.storage.JournaledStorage;
 import io.github.lucaseasedup.logit.storage.Selector;
 import io.github.lucaseasedup.logit.storage.SelectorCondition;
 import io.github.lucaseasedup.logit.storage.SelectorConstant;
 import io.github.lucaseasedup.logit.storage.Storage;
+import io.github.lucaseasedup.logit.storage.StorageCallback;
 import io.github.lucaseasedup.logit.storage.StorageDatum;
 import io.github.lucaseasedup.logit.storage.StorageEntry;
+import io.github.lucaseasedup.logit.storage.StorageHealth;
+import io.github.lucaseasedup.logit.storage.StorageHealthMonitor;
+import io.github.lucaseasedup.logit.storage.StorageJournal;
 import io.github.lucaseasedup.logit.storage.StorageObserver;
-import io.github.lucaseasedup.logit.storage.StoragePinger;
+import io.github.lucaseasedup.logit.storage.StorageType;
 import io.github.lucaseasedup.logit.storage.WrapperStorage;
 import io.github.lucaseasedup.logit.util.CollectionUtils;
 import java.io.BufferedWriter;
@@ -25,17 +32,19 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import org.apache.commons.lang.StringUtils;
 import org.bukkit.Bukkit;
-import org.bukkit.scheduler.BukkitRunnable;
-import org.bukkit.scheduler.BukkitTask;
 
-public final class AccountManager extends LogItCoreObject implements Runnable
+public final class AccountManager extends LogItCoreObject
 {
     /**
      * Constructs a new {@code AccountManager}.
@@ -62,14 +71,99 @@ public final class AccountManager extends LogItCoreObject implements Runnable
             @Override
             public void beforeClose()
             {
-                flushBuffer();
+                // The flusher must not take dirty entries
+                // that could no longer be submitted.
+                if (flusher != null)
+                {
+                    flusher.dispose();
+                }
+                
+                flushBuffer(Integer.MAX_VALUE);
+                
+                if (writer != null)
+                {
+                    writer.dispose();
+                }
             }
         });
         
         this.storage = storage;
         this.unit = unit;
         this.keys = keys;
-        this.pinger = new StoragePinger(storage);
+        
+        createIndexes();
+        
+        Executor mainThreadExecutor = new Executor()
+        {
+            @Override
+            public void execute(Runnable task)
+            {
+                Bukkit.getScheduler().runTask(getPlugin(), task);
+            }
+        };
+        
+        this.healthMonitor = new StorageHealthMonitor(
+                storage,
+                Math.max(1L, getConfig("config.yml")
+                        .getTime("storage.health.interval", TimeUnit.MILLISECONDS)),
+                getConfig("config.yml")
+                        .getTime("storage.health.degradedLatency", TimeUnit.MILLISECONDS)
+        );
+        this.healthMonitor.start();
+        this.asyncStorage = new AsyncStorage(
+                storage,
+                Math.max(1, getConfig("config.yml")
+                        .getInt("storage.accounts.leading.pool.maxSize")),
+                mainThreadExecutor
+        );
+        this.writer = new AccountWriter(
+                storage,
+                unit,
+                keys.username(),
+                new StorageJournal(getDataFile(getConfig("config.yml")
+                        .getString("storage.accounts.writer.journalFilename"))),
+                Math.max(1, getConfig("config.yml")
+                        .getInt("storage.accounts.writer.batchSize")),
+                getConfig("config.yml")
+                        .getTime("storage.accounts.writer.maxLinger", TimeUnit.MILLISECONDS),
+                mainThreadExecutor
+        );
+        this.writer.start();
+        
+        long minFlushInterval = Math.max(1L, getConfig("secret.yml")
+                .getTime("bufferFlushInterval", TimeUnit.MILLISECONDS));
+        
+        this.bufferIdleTime = getConfig("config.yml")
+                .getTime("storage.accounts.flush.idleTime", TimeUnit.MILLISECONDS);
+        
+        this.flusher = new AccountFlusher(
+                this,
+                (storage instanceof WrapperStorage)
+                        ? ((WrapperStorage) storage).getMetrics() : null,
+                minFlushInterval,
+                Math.max(minFlushInterval, getConfig("config.yml")
+                        .getTime("storage.accounts.flush.maxInterval", TimeUnit.MILLISECONDS)),
+                Math.max(1, getConfig("config.yml")
+                        .getInt("storage.accounts.flush.maxRows"))
+        );
+        this.flusher.start();
+        this.registrationOracle = new RegistrationOracle(
+                storage,
+                unit,
+                keys.username(),
+                Math.max(1, getConfig("config.yml")
+                        .getInt("storage.accounts.registrationCache.size")),
+                Math.min(0.5, Math.max(0.0001, getConfig("config.yml")
+                        .getDouble("storage.accounts.registrationCache.falsePositiveRate"))),
+                StorageType.decode(getConfig("config.yml")
+                        .getString("storage.accounts.leading.storageType")).isLocal()
+        );
+        this.registrationOracle.start();
+        this.prefetcher = new AccountPrefetcher(
+                this,
+                getConfig("config.yml")
+                        .getTime("storage.accounts.prefetch.ttl", TimeUnit.MILLISECONDS)
+        );
         
         if (getConfig("secret.yml").getBoolean("generateBufferUsageGraph"))
         {
@@ -89,15 +183,32 @@ public final class AccountManager extends LogItCoreObject implements Runnable
     @Override
     public void dispose()
     {
+        if (flusher != null)
+        {
+            flusher.dispose();
+            flusher = null;
+        }
+        
         storage = null;
         unit = null;
         keys = null;
-        pinger = null;
         
-        if (pingerTask != null)
+        if (healthMonitor != null)
+        {
+            healthMonitor.close();
+            healthMonitor = null;
+        }
+        
+        if (asyncStorage != null)
         {
-            pingerTask.cancel();
-            pingerTask = null;
+            asyncStorage.close();
+            asyncStorage = null;
+        }
+        
+        if (writer != null)
+        {
+            writer.dispose();
+            writer = null;
         }
         
         if (buffer != null)
@@ -106,40 +217,34 @@ public final class AccountManager extends LogItCoreObject implements Runnable
             buffer = null;
         }
         
-        if (registrationCache != null)
+        if (registrationOracle != null)
         {
-            registrationCache.clear();
-            registrationCache = null;
+            registrationOracle.dispose();
+            registrationOracle = null;
         }
         
-        if (bufferUsageGraphWriter != null)
+        if (prefetcher != null)
         {
-            try
-            {
-                bufferUsageGraphWriter.close();
-            }
-            catch (IOException ex)
-            {
-                log(Level.WARNING, ex);
-            }
-            
-            bufferUsageGraphWriter = null;
+            prefetcher.dispose();
+            prefetcher = null;
         }
-    }
-    
-    /**
-     * Internal method. Do not call directly.
-     */
-    @Override
-    public void run()
-    {
-        if (pingerTask == null)
+        
+        synchronized (flushLock)
         {
-            pingerTask = pinger.runTaskTimer(getPlugin(), 20L,
-                    TimeUnit.MINUTES.convertTo(5, TimeUnit.TICKS));
+            if (bufferUsageGraphWriter != null)
+            {
+                try
+                {
+                    bufferUsageGraphWriter.close();
+                }
+                catch (IOException ex)
+                {
+                    log(Level.WARNING, ex);
+                }
+                
+                bufferUsageGraphWriter = null;
+            }
         }
-        
-        flushBuffer();
     }
     
     /**
@@ -149,6 +254,10 @@ public final class AccountManager extends LogItCoreObject implements Runnable
      * @param username  the username of an account to be selected.
      * @param queryKeys the account keys to be returned by this query.
      * 
+     * <p> While the leading storage is offline, an account that is still
+     * in the buffer is returned as it is, even if some of the query keys
+     * are missing from it.
+     * 
      * @return an {@code Account} object, or {@code null}
      *         if there was no account with the given username
      *         or an I/O error occurred.
@@ -159,9 +268,7 @@ public final class AccountManager extends LogItCoreObject implements Runnable
      * @throws ReportedException        if an I/O error occurred,
      *                                  and it was reported to the logger.
      */
-    public synchronized Account selectAccount(
-            String username, List<String> queryKeys
-    )
+    public Account selectAccount(String username, List<String> queryKeys)
     {
         if (username == null || queryKeys == null)
             throw new IllegalArgumentException();
@@ -171,46 +278,76 @@ public final class AccountManager extends LogItCoreObject implements Runnable
         
         username = username.toLowerCase();
         
-        Account cachedAccount = null;
+        // Only selections of the same account wait for each other,
+        // so that it is fetched from the storage once.
+        synchronized (buffer.getLock(username))
+        {
+            return selectAccountLocked(username, queryKeys);
+        }
+    }
+    
+    /**
+     * Selects an account with the given username without blocking
+     * the calling thread.
+     * 
+     * <p> The selection is made on an I/O thread just as
+     * {@link #selectAccount} makes it, going through the buffer and the
+     * writes still waiting to be applied, and the callback is notified
+     * on the server thread.
+     * 
+     * @param username  the username of an account to be selected.
+     * @param queryKeys the account keys to be returned by this query.
+     * @param callback  the callback to be notified with an {@code Account}
+     *                  object, or {@code null} if there was no account
+     *                  with the given username; may be {@code null}.
+     * 
+     * @return a {@code Future} holding the selected account.
+     * 
+     * @throws IllegalArgumentException if {@code username} or
+     *                                  {@code queryKeys} is {@code null}.
+     */
+    public Future<Account> selectAccountAsync(
+            final String username,
+            final List<String> queryKeys,
+            StorageCallback<Account> callback
+    )
+    {
+        if (username == null || queryKeys == null)
+            throw new IllegalArgumentException();
+        
+        if (!queryKeys.contains(keys.username()))
+            throw new IllegalArgumentException("Missing query key: username");
         
-        // If the buffer contains some information about this account.
-        if (buffer.containsKey(username))
+        return asyncStorage.submit(new Callable<Account>()
         {
-            cachedAccount = buffer.get(username);
-            
-            // The account is known not to exist.
-            if (cachedAccount == null)
-            {
-                return null;
-            }
-            // The account exists in the buffer.
-            else
+            @Override
+            public Account call()
             {
-                // All the query keys can be found in the cached entry.
-                if (CollectionUtils.isSubset(queryKeys,
-                        cachedAccount.getEntry().getKeys()))
+                ReportedException.incrementRequestCount();
+                
+                try
                 {
-                    return cachedAccount;
+                    return selectAccount(username, queryKeys);
                 }
-                // Some keys need to be fetched from the storage
-                // in order to fulfill the selection request.
-                else
+                finally
                 {
-                    // Remove the keys that have already been fetched;
-                    // we only need those that hasn't been.
-                    queryKeys = new ArrayList<>(queryKeys);
-                    queryKeys.removeAll(cachedAccount.getEntry().getKeys());
-                    
-                    // If the username key has been removed
-                    // (actually, it is always the case),
-                    // then put it back into the key list.
-                    if (!queryKeys.contains(keys.username()))
-                    {
-                        queryKeys.add(keys.username());
-                    }
+                    ReportedException.decrementRequestCount();
                 }
             }
-        }
+        }, callback);
+    }
+    
+    private Account selectAccountLocked(String username, List<String> queryKeys)
+    {
+        List<String> missingKeys = getMissingQueryKeys(username, queryKeys);
+        
+        // The buffer alone fulfills the selection request.
+        if (missingKeys == null)
+            return markUsed(buffer.get(username));
+        
+        // Do not wait on a storage that is known to be unreachable.
+        if (isStorageOffline() && buffer.get(username) != null)
+            return markUsed(buffer.get(username));
         
         List<StorageEntry> entries = null;
         
@@ -218,7 +355,7 @@ public final class AccountManager extends LogItCoreObject implements Runnable
         {
             entries = storage.selectEntries(
                     unit,
-                    queryKeys,
+                    missingKeys,
                     new SelectorCondition(
                             keys.username(),
                             Infix.EQUALS,
@@ -228,6 +365,9 @@ public final class AccountManager extends LogItCoreObject implements Runnable
         }
         catch (IOException ex)
         {
+            if (isStorageOffline() && buffer.get(username) != null)
+                return markUsed(buffer.get(username));
+            
             log(Level.WARNING, ex);
             
             ReportedException.throwNew(ex);
@@ -237,8 +377,144 @@ public final class AccountManager extends LogItCoreObject implements Runnable
         if (entries == null)
             return null;
         
+        return mergeSelectedAccount(username, entries);
+    }
+    
+    public List<Account> selectAccounts(
+            List<String> queryKeys, Selector selector
+    )
+    {
+        if (queryKeys == null || selector == null)
+            throw new IllegalArgumentException();
+        
+        if (!queryKeys.contains(keys.username()))
+            throw new IllegalArgumentException("Missing query key: username");
+        
+        List<StorageEntry> entries = null;
+        
+        try
+        {
+            entries = storage.selectEntries(unit, queryKeys, selector);
+        }
+        catch (IOException ex)
+        {
+            log(Level.WARNING, ex);
+            
+            ReportedException.throwNew(ex);
+        }
+        
+        if (entries == null)
+            return null;
+        
+        return mergeSelectedAccounts(entries);
+    }
+    
+    /**
+     * Selects accounts matching the given selector without blocking
+     * the calling thread.
+     * 
+     * <p> The selection is made on an I/O thread just as
+     * {@link #selectAccounts} makes it, and the callback is notified
+     * on the server thread.
+     * 
+     * @param queryKeys the account keys to be returned by this query.
+     * @param selector  the selector.
+     * @param callback  the callback to be notified with the selected
+     *                  accounts; may be {@code null}.
+     * 
+     * @return a {@code Future} holding the selected accounts.
+     * 
+     * @throws IllegalArgumentException if {@code queryKeys}
+     *                                  or {@code selector} is {@code null}.
+     */
+    public Future<List<Account>> selectAccountsAsync(
+            final List<String> queryKeys,
+            final Selector selector,
+            StorageCallback<List<Account>> callback
+    )
+    {
+        if (queryKeys == null || selector == null)
+            throw new IllegalArgumentException();
+        
+        if (!queryKeys.contains(keys.username()))
+            throw new IllegalArgumentException("Missing query key: username");
+        
+        return asyncStorage.submit(new Callable<List<Account>>()
+        {
+            @Override
+            public List<Account> call()
+            {
+                ReportedException.incrementRequestCount();
+                
+                try
+                {
+                    return selectAccounts(queryKeys, selector);
+                }
+                finally
+                {
+                    ReportedException.decrementRequestCount();
+                }
+            }
+        }, callback);
+    }
+    
+    /**
+     * Determines which of the query keys have to be fetched from the storage
+     * in order to select an account.
+     * 
+     * @param username  the username of an account, lowercase.
+     * @param queryKeys the account keys to be returned by the query.
+     * 
+     * @return the keys to be fetched, including the username key,
+     *         or {@code null} if the query can be fulfilled from the buffer.
+     */
+    private List<String> getMissingQueryKeys(
+            String username, List<String> queryKeys
+    )
+    {
+        Map.Entry<String, Account> bufferEntry = buffer.getEntry(username);
+        
+        // If the buffer contains no information about this account.
+        if (bufferEntry == null)
+            return queryKeys;
+        
+        Account cachedAccount = bufferEntry.getValue();
+        
+        // The account is known not to exist.
+        if (cachedAccount == null)
+            return null;
+        
+        // All the query keys can be found in the cached entry.
+        if (CollectionUtils.isSubset(queryKeys,
+                cachedAccount.getEntry().getKeys()))
+        {
+            return null;
+        }
+        
+        // Some keys need to be fetched from the storage
+        // in order to fulfill the selection request.
+        // Remove the keys that have already been fetched;
+        // we only need those that hasn't been.
+        List<String> missingKeys = new ArrayList<>(queryKeys);
+        missingKeys.removeAll(cachedAccount.getEntry().getKeys());
+        
+        // If the username key has been removed
+        // (actually, it is always the case),
+        // then put it back into the key list.
+        if (!missingKeys.contains(keys.username()))
+        {
+            missingKeys.add(keys.username());
+        }
+        
+        return missingKeys;
+    }
+    
+    private Account mergeSelectedAccount(
+            String username, List<StorageEntry> entries
+    )
+    {
         // Cache registration status.
-        registrationCache.put(username, !entries.isEmpty());
+        registrationOracle.remember(username, !entries.isEmpty());
         
         // If no such account exists in the storage,
         // mark it in the buffer as non-existing and return null.
@@ -249,11 +525,16 @@ public final class AccountManager extends LogItCoreObject implements Runnable
             return null;
         }
         
+        Account cachedAccount = buffer.get(username);
+        StorageEntry selectedEntry = entries.get(0);
+        
+        applyPendingWrites(username, selectedEntry);
+        
         // If the account is just partially cached,
         // fill the missing keys with the values fetched from the storage.
         if (cachedAccount != null)
         {
-            for (StorageDatum datum : entries.get(0))
+            for (StorageDatum datum : selectedEntry)
             {
                 if (!cachedAccount.getEntry().containsKey(datum.getKey()))
                 {
@@ -263,70 +544,52 @@ public final class AccountManager extends LogItCoreObject implements Runnable
                     cachedAccount.getEntry().clearKeyDirty(datum.getKey());
                 }
             }
+            
+            return markUsed(cachedAccount);
         }
         
         // If there was no cached account in the buffer,
         // create a new Account object for it and put it into the buffer.
-        if (!buffer.containsKey(username))
-        {
-            cachedAccount = new Account(entries.get(0), false);
-            
-            buffer.put(username, cachedAccount);
-        }
+        cachedAccount = new Account(selectedEntry, false);
+        
+        buffer.put(username, cachedAccount);
         
         return cachedAccount;
     }
     
-    public synchronized List<Account> selectAccounts(
-            List<String> queryKeys, Selector selector
-    )
+    private List<Account> mergeSelectedAccounts(List<StorageEntry> entries)
     {
-        if (queryKeys == null || selector == null)
-            throw new IllegalArgumentException();
-        
-        if (!queryKeys.contains(keys.username()))
-            throw new IllegalArgumentException("Missing query key: username");
-        
-        List<StorageEntry> entries = null;
-        
-        try
-        {
-            entries = storage.selectEntries(unit, queryKeys, selector);
-        }
-        catch (IOException ex)
-        {
-            log(Level.WARNING, ex);
-            
-            ReportedException.throwNew(ex);
-        }
-        
-        if (entries == null)
-            return null;
-        
         List<Account> accounts = new ArrayList<>(entries.size());
         
         for (StorageEntry entry : entries)
         {
             String username = entry.get(keys().username()).toLowerCase();
             
-            registrationCache.put(username, true);
+            registrationOracle.remember(username, true);
             
-            if (buffer.get(username) != null)
+            synchronized (buffer.getLock(username))
             {
-                for (StorageDatum datum : buffer.get(username).getEntry())
+                applyPendingWrites(username, entry);
+                
+                Account bufferedAccount = buffer.get(username);
+                
+                if (bufferedAccount != null)
                 {
-                    entry.put(datum.getKey(), datum.getValue());
+                    for (StorageDatum datum : bufferedAccount.getEntry())
+                    {
+                        entry.put(datum.getKey(), datum.getValue());
+                    }
                 }
+                
+                Account account = new Account(entry, false);
+                
+                if (bufferedAccount == null)
+                {
+                    buffer.put(username, account);
+                }
+                
+                accounts.add(account);
             }
-            
-            Account account = new Account(entry, false);
-            
-            if (buffer.get(username) == null)
-            {
-                buffer.put(username, account);
-            }
-            
-            accounts.add(account);
         }
         
         return accounts;
@@ -347,7 +610,7 @@ public final class AccountManager extends LogItCoreObject implements Runnable
         }
         else
         {
-            Boolean registered = registrationCache.get(username);
+            Boolean registered = registrationOracle.lookUp(username);
             
             if (registered == null)
             {
@@ -384,11 +647,12 @@ public final class AccountManager extends LogItCoreObject implements Runnable
     
     private boolean fetchRegistrationStatus(String username)
     {
+        Map.Entry<String, Account> bufferEntry = buffer.getEntry(username);
         Account account;
         
-        if (buffer.containsKey(username))
+        if (bufferEntry != null)
         {
-            account = buffer.get(username);
+            account = bufferEntry.getValue();
         }
         else
         {
@@ -412,32 +676,44 @@ public final class AccountManager extends LogItCoreObject implements Runnable
      */
     public Set<String> getRegisteredUsernames()
     {
-        List<Account> accounts = selectAccounts(
-                Arrays.asList(
-                        keys().username()
-                ),
-                new SelectorConstant(true)
-        );
-        
-        if (accounts == null)
-            return null;
-        
-        Set<String> usernames = new LinkedHashSet<>(accounts.size());
+        final Set<String> usernames = new LinkedHashSet<>();
         
-        for (Account account : accounts)
+        try
         {
-            usernames.add(account.getUsername());
+            // Stream the usernames instead of selecting whole accounts,
+            // which would pull the entire unit into the buffer.
+            storage.forEachEntry(
+                    unit,
+                    Arrays.asList(keys.username()),
+                    new SelectorConstant(true),
+                    new EntryVisitor()
+                    {
+                        @Override
+                        public void visit(StorageEntry entry)
+                        {
+                            usernames.add(
+                                    entry.get(keys.username()).toLowerCase()
+                            );
+                        }
+                    }
+            );
+        }
+        catch (IOException ex)
+        {
+            log(Level.WARNING, ex);
+            
+            ReportedException.throwNew(ex);
         }
         
         return usernames;
     }
     
-    public synchronized CancelledState insertAccount(Account account)
+    public CancelledState insertAccount(Account account)
     {
         if (account == null)
             throw new IllegalArgumentException();
         
-        AccountEvent event = new AccountInsertEvent(account.getEntry());
+        AccountEvent event = new AccountInsertEvent(account.getEncodedEntry());
         
         Bukkit.getPluginManager().callEvent(event);
         
@@ -446,7 +722,7 @@ public final class AccountManager extends LogItCoreObject implements Runnable
         
         try
         {
-            StorageEntry entry = account.getEntry();
+            StorageEntry entry = account.getEncodedEntry();
             
             storage.addEntry(unit, entry);
             
@@ -455,7 +731,15 @@ public final class AccountManager extends LogItCoreObject implements Runnable
                 entry.clearKeyDirty(datum.getKey());
             }
             
-            buffer.put(account.getUsername(), account);
+            account.markUsed();
+            
+            synchronized (buffer.getLock(account.getUsername()))
+            {
+                buffer.put(account.getUsername(), account);
+            }
+            
+            registrationOracle.record(account.getUsername(), true);
+            invalidatePrefetches(account.getUsername());
             
             log(Level.FINE, t("createAccount.success.log")
                     .replace("{0}", account.getUsername()));
@@ -475,36 +759,90 @@ public final class AccountManager extends LogItCoreObject implements Runnable
         return CancelledState.NOT_CANCELLED;
     }
     
-    public synchronized void insertAccounts(Account... accounts)
+    /**
+     * Inserts accounts into the underlying storage unit with a single
+     * bulk write.
+     * 
+     * <p> This method emits the {@code AccountInsertEvent} event for every
+     * account; accounts whose events get cancelled are not inserted.
+     * 
+     * @param accounts the accounts to be inserted.
+     * 
+     * @throws IllegalArgumentException if {@code accounts} is {@code null}.
+     * 
+     * @throws ReportedException        if an I/O error occurred,
+     *                                  and it was reported to the logger.
+     */
+    public void insertAccounts(Account... accounts)
     {
         if (accounts == null)
             throw new IllegalArgumentException();
         
-        try
-        {
-            storage.setAutobatchEnabled(true);
+        List<Account> insertedAccounts = new ArrayList<>(accounts.length);
+        List<AccountEvent> events = new ArrayList<>(accounts.length);
+        List<StorageEntry> entries = new ArrayList<>(accounts.length);
+        
+        for (Account account : accounts)
+        {
+            AccountEvent event = new AccountInsertEvent(account.getEncodedEntry());
+            
+            Bukkit.getPluginManager().callEvent(event);
+            
+            if (event.isCancelled())
+                continue;
+            
+            insertedAccounts.add(account);
+            events.add(event);
+            entries.add(account.getEncodedEntry());
+        }
+        
+        if (entries.isEmpty())
+            return;
+        
+        try
+        {
+            storage.addEntries(unit, entries);
             
-            for (Account account : accounts)
+            for (int i = 0; i < insertedAccounts.size(); i++)
             {
-                insertAccount(account);
+                Account account = insertedAccounts.get(i);
+                StorageEntry entry = account.getEncodedEntry();
+                
+                for (StorageDatum datum : entry)
+                {
+                    entry.clearKeyDirty(datum.getKey());
+                }
+                
+                account.markUsed();
+                
+                synchronized (buffer.getLock(account.getUsername()))
+                {
+                    buffer.put(account.getUsername(), account);
+                }
+                
+                registrationOracle.record(account.getUsername(), true);
+                invalidatePrefetches(account.getUsername());
+                
+                log(Level.FINE, t("createAccount.success.log")
+                        .replace("{0}", account.getUsername()));
+                
+                events.get(i).executeSuccessTasks();
             }
-            
-            storage.executeBatch();
-            storage.clearBatch();
         }
         catch (IOException ex)
         {
             log(Level.WARNING, ex);
             
+            for (AccountEvent event : events)
+            {
+                event.executeFailureTasks();
+            }
+            
             ReportedException.throwNew(ex);
         }
-        finally
-        {
-            storage.setAutobatchEnabled(false);
-        }
     }
     
-    public synchronized void renameAccount(String username, String newUsername)
+    public void renameAccount(String username, String newUsername)
     {
         if (StringUtils.isBlank(username) || StringUtils.isBlank(newUsername))
         {
@@ -516,33 +854,57 @@ public final class AccountManager extends LogItCoreObject implements Runnable
         
         try
         {
-            storage.updateEntries(unit,
-                    new StorageEntry.Builder()
-                            .put(keys().username(), newUsername)
-                            .put(keys().display_name(), "")
-                            .build(),
-                    new SelectorCondition(
-                            keys.username(),
-                            Infix.EQUALS,
-                            username
-                    )
-            );
+            Account bufferedAccount;
             
-            Account bufferedAccount = buffer.remove(username);
+            // Neither the flusher nor anyone selecting the account may
+            // submit changes under the old username until it is renamed.
+            synchronized (flushLock)
+            {
+                synchronized (buffer.getLock(username))
+                {
+                    // Changes waiting under the old username would be lost.
+                    flushWriter();
+                    
+                    storage.updateEntries(unit,
+                            new StorageEntry.Builder()
+                                    .put(keys().username(), newUsername)
+                                    .put(keys().display_name(), "")
+                                    .build(),
+                            new SelectorCondition(
+                                    keys.username(),
+                                    Infix.EQUALS,
+                                    username
+                            )
+                    );
+                    
+                    bufferedAccount = buffer.remove(username);
+                }
+            }
             
+            // The two stripe locks are never held at once,
+            // since another rename could take them the other way round.
+
             if (bufferedAccount != null)
             {
                 bufferedAccount.getEntry().put(keys().username(), newUsername);
                 
-                if (buffer.get(newUsername) != null)
+                synchronized (buffer.getLock(newUsername))
                 {
-                    buffer.get(newUsername).setEntry(
-                            bufferedAccount.getEntry()
-                    );
+                    Account replacedAccount = buffer.get(newUsername);
+                    
+                    if (replacedAccount != null)
+                    {
+                        replacedAccount.setEntry(bufferedAccount.getEntry());
+                    }
+                    
+                    buffer.put(newUsername, bufferedAccount);
                 }
-                
-                buffer.put(newUsername, bufferedAccount);
             }
+            
+            registrationOracle.record(username, false);
+            registrationOracle.record(newUsername, true);
+            invalidatePrefetches(username);
+            invalidatePrefetches(newUsername);
         }
         catch (IOException ex)
         {
@@ -573,7 +935,7 @@ public final class AccountManager extends LogItCoreObject implements Runnable
      * @throws ReportedException        if an I/O error occurred,
      *                                  and it was reported to the logger.
      */
-    public synchronized CancelledState removeAccount(String username)
+    public CancelledState removeAccount(String username)
     {
         if (StringUtils.isBlank(username))
             throw new IllegalArgumentException();
@@ -589,16 +951,29 @@ public final class AccountManager extends LogItCoreObject implements Runnable
         
         try
         {
-            storage.removeEntries(
-                    unit,
-                    new SelectorCondition(
-                            keys.username(),
-                            Infix.EQUALS,
-                            username
-                    )
-            );
+            // Changes to the removed account must not be written
+            // to an account registered later with the same username.
+            synchronized (flushLock)
+            {
+                synchronized (buffer.getLock(username))
+                {
+                    flushWriter();
+                    
+                    storage.removeEntries(
+                            unit,
+                            new SelectorCondition(
+                                    keys.username(),
+                                    Infix.EQUALS,
+                                    username
+                            )
+                    );
+                    
+                    buffer.put(username, null);
+                }
+            }
             
-            buffer.put(username, null);
+            registrationOracle.record(username, false);
+            invalidatePrefetches(username);
             
             log(Level.WARNING, t("removeAccount.success.log")
                     .replace("{0}", username));
@@ -618,75 +993,195 @@ public final class AccountManager extends LogItCoreObject implements Runnable
         return CancelledState.NOT_CANCELLED;
     }
     
-    public synchronized void removeAccounts(String... usernames)
+    /**
+     * Removes accounts with the given usernames from the underlying storage
+     * unit with a single bulk write.
+     * 
+     * <p> This method emits the {@code AccountRemoveEvent} event for every
+     * username; accounts whose events get cancelled are not removed.
+     * 
+     * @param usernames the usernames of accounts to be removed.
+     * 
+     * @throws IllegalArgumentException if {@code usernames} is {@code null}
+     *                                  or any of the usernames is blank.
+     * 
+     * @throws ReportedException        if an I/O error occurred,
+     *                                  and it was reported to the logger.
+     */
+    public void removeAccounts(String... usernames)
     {
         if (usernames == null)
             throw new IllegalArgumentException();
         
-        try
+        List<String> removedUsernames = new ArrayList<>(usernames.length);
+        List<AccountEvent> events = new ArrayList<>(usernames.length);
+        
+        for (String username : usernames)
         {
-            storage.setAutobatchEnabled(true);
+            if (StringUtils.isBlank(username))
+                throw new IllegalArgumentException();
+            
+            username = username.toLowerCase();
+            
+            AccountEvent event = new AccountRemoveEvent(username);
+            
+            Bukkit.getPluginManager().callEvent(event);
             
-            for (String username : usernames)
+            if (event.isCancelled())
+                continue;
+            
+            removedUsernames.add(username);
+            events.add(event);
+        }
+        
+        if (removedUsernames.isEmpty())
+            return;
+        
+        try
+        {
+            // The flusher cannot submit changes to the removed accounts
+            // while the flush lock is held, and sees them as non-existing
+            // once it is released.
+            synchronized (flushLock)
             {
-                removeAccount(username);
+                flushWriter();
+                
+                storage.removeEntries(unit, removedUsernames);
+                
+                for (String username : removedUsernames)
+                {
+                    synchronized (buffer.getLock(username))
+                    {
+                        buffer.put(username, null);
+                    }
+                }
             }
             
-            storage.executeBatch();
-            storage.clearBatch();
+            for (int i = 0; i < removedUsernames.size(); i++)
+            {
+                registrationOracle.record(removedUsernames.get(i), false);
+                invalidatePrefetches(removedUsernames.get(i));
+                
+                log(Level.WARNING, t("removeAccount.success.log")
+                        .replace("{0}", removedUsernames.get(i)));
+                
+                events.get(i).executeSuccessTasks();
+            }
         }
         catch (IOException ex)
         {
             log(Level.WARNING, ex);
             
+            for (AccountEvent event : events)
+            {
+                event.executeFailureTasks();
+            }
+            
             ReportedException.throwNew(ex);
         }
-        finally
+    }
+    
+    /**
+     * Makes sure the keys accounts are looked up by are indexed
+     * in the leading storage and its mirrors.
+     */
+    private void createIndexes()
+    {
+        for (String indexedKey : keys.getIndexedNames())
+        {
+            try
+            {
+                storage.createIndex(unit, indexedKey);
+            }
+            catch (IOException ex)
+            {
+                log(Level.WARNING, "Could not create index on: " + indexedKey, ex);
+            }
+        }
+    }
+    
+    /**
+     * Submits the dirty entries of buffered accounts to the writer.
+     * 
+     * <p> Accounts stay in the buffer, so that changes made to them later
+     * are picked up by a later flush. Only accounts that have been neither
+     * selected nor modified for {@code storage.accounts.flush.idleTime},
+     * and have nothing left to write, are evicted.
+     * 
+     * <p> Accounts are snapshotted one at a time, under the same lock
+     * that selections of the account hold, so threads selecting
+     * or modifying other accounts are never held up.
+     * 
+     * @param maxRows the maximum number of dirty entries to take; accounts
+     *                past that are left in the buffer for the next flush.
+     * 
+     * @return the number of dirty entries submitted.
+     */
+    int flushBuffer(int maxRows)
+    {
+        synchronized (flushLock)
         {
-            storage.setAutobatchEnabled(false);
+            return flushBufferLocked(maxRows);
         }
     }
     
-    private void flushBuffer()
+    private int flushBufferLocked(int maxRows)
     {
+        ConcurrentQueuedMap<String, Account> buffer = this.buffer;
+        AccountWriter writer = this.writer;
+        
         if (buffer == null || buffer.isEmpty())
-            return;
+            return 0;
         
         if (storage == null)
-            return;
+            return 0;
         
         Map<String, Account> dirtyAccounts = new HashMap<>();
-        QueuedMap<String, Account> ignoredAccounts = new QueuedMap<>();
-        QueuedMap<String, StorageEntry> dirtyEntries = new QueuedMap<>();
+        Map<String, StorageEntry> dirtyEntries = new LinkedHashMap<>();
+        long now = System.currentTimeMillis();
         
-        while (!buffer.isEmpty())
+        for (String username : buffer.keySet())
         {
-            Map.Entry<String, Account> e = buffer.remove();
-            String username = e.getKey();
-            Account account = e.getValue();
-            
-            if (account == null)
-                continue;
+            if (dirtyEntries.size() >= maxRows)
+                break;
             
-            if (account.isBufferLocked())
+            synchronized (buffer.getLock(username))
             {
-                ignoredAccounts.put(username, account);
+                Map.Entry<String, Account> e = buffer.getEntry(username);
                 
-                continue;
-            }
-            
-            StorageEntry dirtyEntry = account.getEntry().copyDirty();
-            
-            if (!dirtyEntry.getKeys().isEmpty())
-            {
-                dirtyAccounts.put(username, account);
-                dirtyEntries.put(username, dirtyEntry);
+                if (e == null)
+                    continue;
+                
+                Account account = e.getValue();
+                
+                // Accounts known not to exist are only remembered
+                // until the next flush.
+                if (account == null)
+                {
+                    buffer.remove(username);
+                    
+                    continue;
+                }
+                
+                if (account.isBufferLocked())
+                    continue;
+                
+                StorageEntry dirtyEntry = account.takeDirtyEntry();
+                
+                if (!dirtyEntry.getKeys().isEmpty())
+                {
+                    account.markUsed();
+                    
+                    dirtyAccounts.put(username, account);
+                    dirtyEntries.put(username, dirtyEntry);
+                }
+                else if (now - account.getLastUsedTime() >= bufferIdleTime)
+                {
+                    buffer.remove(username);
+                }
             }
         }
         
-        // Restore buffer-locked accounts.
-        buffer.putAll(ignoredAccounts);
-        
         if (bufferUsageGraphWriter != null)
         {
             long elapsedTicks = getCore().getGlobalClock().getElapsed();
@@ -717,52 +1212,145 @@ public final class AccountManager extends LogItCoreObject implements Runnable
         }
         
         if (dirtyEntries.isEmpty())
-            return;
+            return 0;
         
         log(CustomLevel.INTERNAL, "AccountManager#flushBuffer() {"
                 + "dirtyEntries.size() = " + dirtyEntries.size() + "}");
         
-        try
+        // The entries are journaled right away
+        // and written to the storage in the background.
+        if (writer != null)
         {
-            storage.setAutobatchEnabled(true);
-            
-            for (Map.Entry<String, StorageEntry> e : dirtyEntries.entrySet())
+            writer.submit(dirtyEntries, dirtyAccounts);
+        }
+        
+        log(CustomLevel.INTERNAL, "end-of #flushBuffer()");
+        
+        return dirtyEntries.size();
+    }
+    
+    /**
+     * Returns the number of flushed entries that are waiting
+     * to be written to the storage.
+     */
+    int getPendingWriteCount()
+    {
+        AccountWriter writer = this.writer;
+        
+        return (writer != null) ? writer.getQueueSize() : 0;
+    }
+    
+    /**
+     * Checks whether the leading storage is known to be unreachable,
+     * either because the health monitor found it down or because
+     * writes to it are being journaled.
+     */
+    private boolean isStorageOffline()
+    {
+        if (healthMonitor != null
+                && healthMonitor.getHealth() == StorageHealth.DOWN)
+        {
+            return true;
+        }
+        
+        if (!(storage instanceof WrapperStorage))
+            return false;
+        
+        JournaledStorage journaledStorage =
+                ((WrapperStorage) storage).getJournaledStorage();
+        
+        return journaledStorage != null && journaledStorage.isOffline();
+    }
+    
+    /**
+     * Writes every change waiting in the background to the storage,
+     * before an operation that the changes must not outlive.
+     * 
+     * <p> The caller should hold {@code flushLock}, so that no new changes
+     * are submitted until the operation is done.
+     * 
+     * @throws IOException if the changes could not be written.
+     */
+    private void flushWriter() throws IOException
+    {
+        if (writer != null)
+        {
+            writer.flush();
+        }
+    }
+    
+    /**
+     * Puts into an entry selected from the storage the values
+     * that are still waiting to be written there.
+     */
+    private void applyPendingWrites(String username, StorageEntry entry)
+    {
+        if (writer == null)
+            return;
+        
+        StorageEntry pendingEntry = writer.getPendingEntry(username);
+        
+        if (pendingEntry == null)
+            return;
+        
+        for (StorageDatum datum : pendingEntry)
+        {
+            if (entry.containsKey(datum.getKey()))
             {
-                try
-                {
-                    storage.updateEntries(
-                            unit,
-                            e.getValue(),
-                            new SelectorCondition(
-                                    keys.username(),
-                                    Infix.EQUALS,
-                                    e.getKey().toLowerCase()
-                            )
-                    );
-                    
-                    dirtyAccounts.get(e.getKey()).runSaveCallbacks(true);
-                }
-                catch (IOException ex)
-                {
-                    log(Level.WARNING, ex);
-                    
-                    dirtyAccounts.get(e.getKey()).runSaveCallbacks(false);
-                }
+                entry.put(datum.getKey(), datum.getValue());
+                entry.clearKeyDirty(datum.getKey());
             }
+        }
+    }
+    
+    /**
+     * Checks whether a prefetched account can still be used, that is,
+     * whether the buffer holds that very account under the given username.
+     * 
+     * <p> A prefetched {@code null} can be used as long as the buffer
+     * holds no account with the given username.
+     * 
+     * @param username the username, lowercase.
+     * @param account  the prefetched account, or {@code null}
+     *                 if it was found not to exist.
+     * 
+     * @return {@code true} if the prefetched account can be used;
+     *         {@code false} if it has to be selected again.
+     */
+    /* package */ boolean isBuffered(String username, Account account)
+    {
+        synchronized (buffer.getLock(username))
+        {
+            Map.Entry<String, Account> bufferEntry = buffer.getEntry(username);
             
-            storage.executeBatch();
-            storage.clearBatch();
+            if (account == null)
+                return bufferEntry == null || bufferEntry.getValue() == null;
+            
+            if (bufferEntry == null || bufferEntry.getValue() != account)
+                return false;
+            
+            account.markUsed();
+            
+            return true;
         }
-        catch (IOException ex)
+    }
+    
+    private void invalidatePrefetches(String username)
+    {
+        if (prefetcher != null)
         {
-            log(Level.WARNING, ex);
+            prefetcher.invalidate(username);
         }
-        finally
+    }
+    
+    private static Account markUsed(Account account)
+    {
+        if (account != null)
         {
-            storage.setAutobatchEnabled(false);
+            account.markUsed();
         }
         
-        log(CustomLevel.INTERNAL, "end-of #flushBuffer()");
+        return account;
     }
     
     private void discardBuffer()
@@ -770,11 +1358,80 @@ public final class AccountManager extends LogItCoreObject implements Runnable
         buffer.clear();
     }
     
+    /**
+     * Forgets everything known about accounts apart from what is stored,
+     * after the accounts unit has been rewritten without going through
+     * this {@code AccountManager}, e.g. by restoring a backup.
+     * 
+     * <p> The buffer and prefetched accounts are discarded,
+     * the registration cache is cleared, and the registration filter
+     * is built again from the storage.
+     */
+    public void reloadAccounts()
+    {
+        synchronized (flushLock)
+        {
+            discardBuffer();
+        }
+        
+        registrationOracle.reset();
+        
+        if (prefetcher != null)
+        {
+            prefetcher.invalidateAll();
+        }
+    }
+    
     public Storage getStorage()
     {
         return storage;
     }
     
+    /**
+     * Returns the facade that runs operations on the account storage
+     * off the calling thread, for callers that must not block the server.
+     * 
+     * @return the facade, or {@code null}
+     *         if this {@code AccountManager} has been disposed of.
+     */
+    public AsyncStorage getAsyncStorage()
+    {
+        return asyncStorage;
+    }
+    
+    /**
+     * Returns the monitor of the leading storage's health.
+     * 
+     * @return the health monitor, or {@code null}
+     *         if this {@code AccountManager} has been disposed of.
+     */
+    public StorageHealthMonitor getHealthMonitor()
+    {
+        return healthMonitor;
+    }
+    
+    /**
+     * Returns the prefetcher of accounts of players about to join.
+     * 
+     * @return the prefetcher, or {@code null}
+     *         if this {@code AccountManager} has been disposed of.
+     */
+    public AccountPrefetcher getPrefetcher()
+    {
+        return prefetcher;
+    }
+    
+    /**
+     * Returns the flusher of the account buffer.
+     * 
+     * @return the flusher, or {@code null}
+     *         if this {@code AccountManager} has been disposed of.
+     */
+    public AccountFlusher getFlusher()
+    {
+        return flusher;
+    }
+    
     public String getUnit()
     {
         return unit;
@@ -793,10 +1450,21 @@ public final class AccountManager extends LogItCoreObject implements Runnable
     private Storage storage;
     private String unit;
     private AccountKeys keys;
-    private BukkitRunnable pinger;
-    private BukkitTask pingerTask;
-    private QueuedMap<String, Account> buffer = new QueuedMap<>();
-    private Map<String, Boolean> registrationCache = new HashMap<>();
+    private AsyncStorage asyncStorage;
+    private AccountWriter writer;
+    private AccountFlusher flusher;
+    private StorageHealthMonitor healthMonitor;
+    private ConcurrentQueuedMap<String, Account> buffer =
+            new ConcurrentQueuedMap<>();
+    private RegistrationOracle registrationOracle;
+    private AccountPrefetcher prefetcher;
+    
+    /**
+     * The time, in milliseconds, an account is kept in the buffer
+     * after it was last selected or modified.
+     */
+    private long bufferIdleTime;
     private BufferedWriter bufferUsageGraphWriter;
     private boolean bufferUsageGraphTouched = false;
+    private final Object flushLock = new Object();
 }
@@ -0,0 +1,382 @@
+package io.github.lucaseasedup.logit.account;
+
+import io.github.lucaseasedup.logit.LogItCoreObject;
+import io.github.lucaseasedup.logit.common.ReportedException;
+import io.github.lucaseasedup.logit.storage.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads accounts of players who are about to join, before they do.
+ * 
+ * <p> {@link #prefetch} is meant to be called from the thread that handles
+ * {@code AsyncPlayerPreLoginEvent}, where waiting for the storage does not
+ * hold up the server. The account it selects, along with the accounts
+ * matching the player's UUID if there is none, is kept by UUID for
+ * a short while, so that the login and join events on the server thread
+ * can pick it up with {@link #lookUp} and {@link #take} instead
+ * of selecting it again.
+ * 
+ * <p> A prefetch is only handed out while the account buffer still holds
+ * the very objects it consists of, including the accounts matching
+ * the UUID, and prefetches involving a username are forgotten as soon
+ * as an account with it is created, renamed or removed.
+ * 
+ * <p> This class is thread-safe.
+ */
+public final class AccountPrefetcher extends LogItCoreObject
+{
+    /**
+     * Constructs a new {@code AccountPrefetcher}.
+     * 
+     * @param accountManager the account manager to select accounts with.
+     * @param ttl            the time, in milliseconds, a prefetched account
+     *                       is kept for. Zero disables prefetching.
+     */
+    AccountPrefetcher(AccountManager accountManager, long ttl)
+    {
+        if (accountManager == null || ttl < 0)
+            throw new IllegalArgumentException();
+        
+        this.accountManager = accountManager;
+        this.ttl = ttl;
+    }
+    
+    @Override
+    public void dispose()
+    {
+        prefetches.clear();
+    }
+    
+    /**
+     * Selects an account on the calling thread and keeps it
+     * for the player with the given UUID.
+     * 
+     * <p> If an I/O error occurs, nothing is kept, and the account
+     * will be selected on the server thread as if it had never been
+     * prefetched.
+     * 
+     * @param username          the username of the player.
+     * @param uuid              the UUID of the player.
+     * @param queryKeys         the account keys to be prefetched; these have to
+     *                          cover every key that will be read from the
+     *                          account during login and join.
+     * @param uuidMatchSelector the selector of accounts to be prefetched
+     *                          if there is no account with the given username.
+     * 
+     * @throws IllegalArgumentException if any of the arguments is {@code null}.
+     */
+    public void prefetch(
+            String username,
+            UUID uuid,
+            List<String> queryKeys,
+            Selector uuidMatchSelector
+    )
+    {
+        if (username == null || uuid == null || queryKeys == null
+                || uuidMatchSelector == null)
+        {
+            throw new IllegalArgumentException();
+        }
+        
+        if (!isEnabled())
+            return;
+        
+        purgeExpired();
+        
+        username = username.toLowerCase();
+        
+        Account account;
+        List<Account> uuidMatchedAccounts = Collections.emptyList();
+        long generation = invalidationCount.get();
+        
+        ReportedException.incrementRequestCount();
+        
+        try
+        {
+            account = accountManager.selectAccount(username, queryKeys);
+            
+            if (account == null)
+            {
+                uuidMatchedAccounts = accountManager.selectAccounts(
+                        queryKeys, uuidMatchSelector
+                );
+            }
+        }
+        catch (ReportedException ex)
+        {
+            return;
+        }
+        finally
+        {
+            ReportedException.decrementRequestCount();
+        }
+        
+        Prefetch prefetch = new Prefetch(
+                username,
+                account,
+                uuidMatchedAccounts,
+                System.currentTimeMillis()
+        );
+        
+        prefetches.put(uuid, prefetch);
+        
+        // An account may have been created, renamed or removed
+        // while this one was being selected.
+        if (invalidationCount.get() != generation)
+        {
+            prefetches.remove(uuid, prefetch);
+        }
+    }
+    
+    /**
+     * Returns the prefetched account of a player, leaving it in place
+     * for a later {@link #take}.
+     * 
+     * @param username the username of the player.
+     * @param uuid     the UUID of the player.
+     * 
+     * @return the prefetched account, or {@code null} if it has not been
+     *         prefetched, has expired or has changed since.
+     */
+    public Prefetch lookUp(String username, UUID uuid)
+    {
+        return lookUp(username, uuid, false);
+    }
+    
+    /**
+     * Returns the prefetched account of a player and forgets it.
+     * 
+     * @param username the username of the player.
+     * @param uuid     the UUID of the player.
+     * 
+     * @return the prefetched account, or {@code null} if it has not been
+     *         prefetched, has expired or has changed since.
+     */
+    public Prefetch take(String username, UUID uuid)
+    {
+        return lookUp(username, uuid, true);
+    }
+    
+    /**
+     * Forgets the prefetched account of a player, if there is one.
+     */
+    public void discard(UUID uuid)
+    {
+        if (uuid == null)
+            throw new IllegalArgumentException();
+        
+        prefetches.remove(uuid);
+    }
+    
+    /**
+     * Forgets every prefetch made for the given username,
+     * or holding an account with it among the UUID-matched ones.
+     * 
+     * <p> This has to be called whenever an account with the given username
+     * is created, renamed or removed.
+     * 
+     * @param username the username, lowercase.
+     */
+    /* package */ void invalidate(String username)
+    {
+        if (username == null)
+            throw new IllegalArgumentException();
+        
+        invalidationCount.incrementAndGet();
+        
+        Iterator<Prefetch> it = prefetches.values().iterator();
+        
+        while (it.hasNext())
+        {
+            Prefetch prefetch = it.next();
+            
+            if (prefetch.getUsername().equals(username)
+                    || prefetch.uuidMatchedUsernames.contains(username))
+            {
+                it.remove();
+            }
+        }
+    }
+    
+    /**
+     * Forgets every prefetch, after accounts have been changed
+     * in ways that cannot be told apart by username.
+     */
+    /* package */ void invalidateAll()
+    {
+        invalidationCount.incrementAndGet();
+        prefetches.clear();
+    }
+    
+    public boolean isEnabled()
+    {
+        return ttl > 0;
+    }
+    
+    /**
+     * Returns the number of lookups that found a prefetched account.
+     */
+    public long getHitCount()
+    {
+        return hitCount.get();
+    }
+    
+    /**
+     * Returns the number of lookups that did not find a prefetched account.
+     */
+    public long getMissCount()
+    {
+        return missCount.get();
+    }
+    
+    private Prefetch lookUp(String username, UUID uuid, boolean remove)
+    {
+        if (username == null || uuid == null)
+            throw new IllegalArgumentException();
+        
+        username = username.toLowerCase();
+        
+        Prefetch prefetch = remove ? prefetches.remove(uuid) : prefetches.get(uuid);
+        
+        if (prefetch == null || !prefetch.getUsername().equals(username)
+                || isExpired(prefetch))
+        {
+            missCount.incrementAndGet();
+            
+            return null;
+        }
+        
+        // The accounts may have been flushed out of the buffer since
+        // they were prefetched, and selected anew or changed in the meantime.
+        if (!isBuffered(prefetch))
+        {
+            prefetches.remove(uuid, prefetch);
+            missCount.incrementAndGet();
+            
+            return null;
+        }
+        
+        hitCount.incrementAndGet();
+        
+        return prefetch;
+    }
+    
+    private boolean isBuffered(Prefetch prefetch)
+    {
+        if (!accountManager.isBuffered(prefetch.getUsername(), prefetch.getAccount()))
+            return false;
+        
+        List<Account> uuidMatchedAccounts = prefetch.getUuidMatchedAccounts();
+        
+        for (int i = 0; i < uuidMatchedAccounts.size(); i++)
+        {
+            if (!accountManager.isBuffered(prefetch.uuidMatchedUsernames.get(i),
+                    uuidMatchedAccounts.get(i)))
+            {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    private boolean isExpired(Prefetch prefetch)
+    {
+        return System.currentTimeMillis() - prefetch.getTimestamp() > ttl;
+    }
+    
+    /**
+     * Forgets the accounts of players who never made it
+     * to the join event.
+     */
+    private void purgeExpired()
+    {
+        Iterator<Map.Entry<UUID, Prefetch>> it = prefetches.entrySet().iterator();
+        
+        while (it.hasNext())
+        {
+            if (isExpired(it.next().getValue()))
+            {
+                it.remove();
+            }
+        }
+    }
+    
+    /**
+     * The result of prefetching the account of a player.
+     */
+    public static final class Prefetch
+    {
+        private Prefetch(
+                String username,
+                Account account,
+                List<Account> uuidMatchedAccounts,
+                long timestamp
+        )
+        {
+            this.username = username;
+            this.account = account;
+            this.uuidMatchedAccounts = uuidMatchedAccounts;
+            this.timestamp = timestamp;
+            
+            // The accounts' usernames change if they are renamed.
+            List<String> usernames = new ArrayList<>(uuidMatchedAccounts.size());
+            
+            for (Account uuidMatchedAccount : uuidMatchedAccounts)
+            {
+                usernames.add(uuidMatchedAccount.getUsername());
+            }
+            
+            this.uuidMatchedUsernames = usernames;
+        }
+        
+        public String getUsername()
+        {
+            return username;
+        }
+        
+        /**
+         * Returns the account of the player,
+         * or {@code null} if there was none.
+         */
+        public Account getAccount()
+        {
+            return account;
+        }
+        
+        /**
+         * Returns the accounts matching the player's UUID,
+         * if there was no account with the player's username.
+         */
+        public List<Account> getUuidMatchedAccounts()
+        {
+            return uuidMatchedAccounts;
+        }
+        
+        public long getTimestamp()
+        {
+            return timestamp;
+        }
+        
+        private final String username;
+        private final Account account;
+        private final List<Account> uuidMatchedAccounts;
+        private final List<String> uuidMatchedUsernames;
+        private final long timestamp;
+    }
+    
+    private final AccountManager accountManager;
+    private final long ttl;
+    private final ConcurrentHashMap<UUID, Prefetch> prefetches =
+            new ConcurrentHashMap<>();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong invalidationCount = new AtomicLong();
+}
@@ -0,0 +1,846 @@
+package io.github.lucaseasedup.logit.account;
+
+import io.github.lucaseasedup.logit.LogItCoreObject;
+import io.github.lucaseasedup.logit.logging.CustomLevel;
+import io.github.lucaseasedup.logit.storage.Infix;
+import io.github.lucaseasedup.logit.storage.SelectorCondition;
+import io.github.lucaseasedup.logit.storage.Storage;
+import io.github.lucaseasedup.logit.storage.StorageDatum;
+import io.github.lucaseasedup.logit.storage.StorageEntry;
+import io.github.lucaseasedup.logit.storage.StorageJournal;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+
+/**
+ * Writes dirty account entries to the storage in the background,
+ * using group commit.
+ * 
+ * <p> Submitted entries are appended to a journal, which is forced
+ * to the disk once per submission, and queued. Entries queued for
+ * the same username are coalesced into one. A background thread writes
+ * the queue to the storage in batches of at most {@code batchSize}
+ * entries, as soon as a full batch is queued or the oldest entry has been
+ * waiting for the current linger time. The linger time adapts to the load:
+ * it is halved after every full batch and doubled after every partial one,
+ * between {@link #MIN_LINGER} and {@code maxLinger}.
+ * 
+ * <p> Journal records are checkpointed once written to the storage,
+ * and records left over by a crash are queued again on {@link #start()}.
+ * If a batch fails while the storage can still be pinged, its entries are
+ * written one by one, so that an entry the storage rejects does not hold
+ * up the others. A rejected entry is queued again behind everything else,
+ * and dropped once it has been rejected {@link #MAX_ATTEMPTS} times.
+ * 
+ * <p> If the storage cannot be reached, the batch is queued again and
+ * retried after a delay that doubles with every consecutive failure,
+ * up to {@link #MAX_RETRY_DELAY}, for as long as it takes; its journal
+ * records are kept until then. Save callbacks are told of the failure
+ * once a write has failed {@link #MAX_ATTEMPTS} times.
+ * 
+ * <p> The statements of a batch are queued and executed while holding
+ * the lock on the storage, so that autobatch does not pick up writes made
+ * by other threads. The storage must therefore synchronize its own methods
+ * on itself, as a {@code WrapperStorage} does. Everything else, including
+ * checkpointing the journal, is done without holding that lock.
+ */
+final class AccountWriter extends LogItCoreObject implements Runnable
+{
+    /**
+     * Constructs a new {@code AccountWriter}.
+     * 
+     * @param storage          the storage to write to.
+     * @param unit             the accounts unit.
+     * @param usernameKey      the key that entries are selected by.
+     * @param journal          the journal to append entries to.
+     * @param batchSize        the maximum number of entries in a batch.
+     * @param maxLinger        the maximum time in milliseconds an entry
+     *                         waits for a batch to fill up.
+     * @param callbackExecutor the executor that save callbacks
+     *                         are run through.
+     */
+    public AccountWriter(
+            Storage storage, String unit, String usernameKey,
+            StorageJournal journal, int batchSize, long maxLinger,
+            Executor callbackExecutor
+    )
+    {
+        if (storage == null || unit == null || usernameKey == null
+                || journal == null || batchSize <= 0 || maxLinger < 0
+                || callbackExecutor == null)
+        {
+            throw new IllegalArgumentException();
+        }
+        
+        this.storage = storage;
+        this.unit = unit;
+        this.usernameKey = usernameKey;
+        this.journal = journal;
+        this.batchSize = batchSize;
+        this.maxLinger = maxLinger;
+        this.callbackExecutor = callbackExecutor;
+        this.linger = maxLinger;
+    }
+    
+    /**
+     * Opens the journal, queues any entries left in it
+     * and starts the background thread.
+     * 
+     * @throws IOException if the journal could not be read.
+     */
+    public synchronized void start() throws IOException
+    {
+        if (thread != null)
+            throw new IllegalStateException("AccountWriter already started");
+        
+        journal.open();
+        
+        List<StorageJournal.Record> records = journal.readPending();
+        
+        for (StorageJournal.Record record : records)
+        {
+            Iterator<String> it = record.getArguments().iterator();
+            String username = it.next();
+            StorageEntry.Builder entryBuilder = new StorageEntry.Builder();
+            int count = Integer.parseInt(it.next());
+            
+            for (int i = 0; i < count; i++)
+            {
+                entryBuilder.put(it.next(), it.next());
+            }
+            
+            enqueue(username, entryBuilder.build(), null, record.getSequence());
+        }
+        
+        if (!records.isEmpty())
+        {
+            log(Level.INFO, "Recovered " + records.size()
+                    + " unsaved account changes from " + journal.getFile());
+        }
+        
+        if (journal.getCorruptCount() > 0)
+        {
+            log(Level.WARNING, "Skipped " + journal.getCorruptCount()
+                    + " corrupt records in " + journal.getFile());
+        }
+        
+        thread = new Thread(this, "LogIt Account Writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Journals dirty entries and queues them to be written to the storage.
+     * 
+     * @param dirtyEntries the dirty entries, by username.
+     * @param accounts     the accounts whose save callbacks should be run
+     *                     once their entries have been written, by username.
+     */
+    public synchronized void submit(
+            Map<String, StorageEntry> dirtyEntries,
+            Map<String, Account> accounts
+    )
+    {
+        if (dirtyEntries == null || accounts == null)
+            throw new IllegalArgumentException();
+        
+        if (closed)
+            throw new IllegalStateException("AccountWriter closed");
+        
+        List<Long> sequences = new ArrayList<>(dirtyEntries.size());
+        
+        try
+        {
+            for (Map.Entry<String, StorageEntry> e : dirtyEntries.entrySet())
+            {
+                List<String> arguments = new ArrayList<>();
+                
+                arguments.add(e.getKey());
+                arguments.add(String.valueOf(e.getValue().getKeys().size()));
+                
+                for (StorageDatum datum : e.getValue())
+                {
+                    arguments.add(datum.getKey());
+                    arguments.add(datum.getValue());
+                }
+                
+                sequences.add(journal.append(RECORD_OPERATION, arguments, false));
+            }
+            
+            journal.sync();
+        }
+        catch (IOException ex)
+        {
+            log(Level.WARNING, "Could not journal account changes", ex);
+        }
+        
+        int i = 0;
+        
+        for (Map.Entry<String, StorageEntry> e : dirtyEntries.entrySet())
+        {
+            Long sequence = (i < sequences.size()) ? sequences.get(i) : null;
+            
+            enqueue(e.getKey(), e.getValue(), accounts.get(e.getKey()), sequence);
+            i++;
+        }
+        
+        notifyAll();
+    }
+    
+    /**
+     * Returns the values that are still waiting to be written
+     * for the given username.
+     * 
+     * @param username the username.
+     * 
+     * @return a new entry holding the values, or {@code null}
+     *         if nothing is waiting to be written.
+     */
+    public synchronized StorageEntry getPendingEntry(String username)
+    {
+        PendingWrite inFlightWrite = inFlight.get(username);
+        PendingWrite queuedWrite = queue.get(username);
+        
+        if (inFlightWrite == null && queuedWrite == null)
+            return null;
+        
+        StorageEntry.Builder entryBuilder = new StorageEntry.Builder();
+        
+        if (inFlightWrite != null)
+        {
+            entryBuilder.putAll(inFlightWrite.entry);
+        }
+        
+        if (queuedWrite != null)
+        {
+            entryBuilder.putAll(queuedWrite.entry);
+        }
+        
+        return entryBuilder.build();
+    }
+    
+    /**
+     * Writes every queued entry to the storage on the calling thread,
+     * and waits for the batch being written by the background thread.
+     * 
+     * <p> Entries that the storage keeps rejecting are dropped
+     * on the way, as they would be by the background thread.
+     * 
+     * @throws IOException if the storage could not be reached;
+     *                     the remaining entries are left for
+     *                     the background thread.
+     */
+    public void flush() throws IOException
+    {
+        while (true)
+        {
+            if (writeBatch() < 0)
+                throw new IOException("Could not write queued account changes");
+            
+            synchronized (this)
+            {
+                while (!inFlight.isEmpty())
+                {
+                    waitQuietly(0L);
+                }
+                
+                // A batch written by the background thread
+                // may have been queued again.
+                if (queue.isEmpty())
+                    return;
+            }
+        }
+    }
+    
+    public synchronized int getQueueSize()
+    {
+        return queue.size();
+    }
+    
+    /**
+     * Stops the background thread, writes every queued entry
+     * to the storage and closes the journal.
+     * 
+     * <p> Entries that could not be written stay in the journal
+     * and will be queued again the next time the writer is started.
+     */
+    @Override
+    public void dispose()
+    {
+        synchronized (this)
+        {
+            if (closed)
+                return;
+            
+            closed = true;
+            
+            notifyAll();
+        }
+        
+        try
+        {
+            flush();
+        }
+        catch (IOException ex)
+        {
+            log(Level.WARNING, ex);
+        }
+        
+        try
+        {
+            journal.close();
+        }
+        catch (IOException ex)
+        {
+            log(Level.WARNING, ex);
+        }
+    }
+    
+    /**
+     * Internal method. Do not call directly.
+     */
+    @Override
+    public void run()
+    {
+        while (awaitBatch())
+        {
+            int written = writeBatch();
+            
+            synchronized (this)
+            {
+                if (written < 0)
+                {
+                    linger = maxLinger;
+                    
+                    // Back off after a failure instead of retrying right away,
+                    // longer with every failure in a row.
+                    long retryAt = System.currentTimeMillis()
+                            + getRetryDelay(consecutiveFailures);
+                    long remaining;
+                    
+                    while (!closed && (remaining =
+                            retryAt - System.currentTimeMillis()) > 0)
+                    {
+                        waitQuietly(remaining);
+                    }
+                }
+                else if (written >= batchSize)
+                {
+                    linger = Math.max(MIN_LINGER, linger / 2);
+                }
+                else
+                {
+                    linger = Math.min(maxLinger, Math.max(MIN_LINGER, linger * 2));
+                }
+            }
+        }
+    }
+    
+    /**
+     * Waits until a batch is ready to be written.
+     * 
+     * @return {@code false} if this writer has been closed.
+     */
+    private synchronized boolean awaitBatch()
+    {
+        while (!closed)
+        {
+            if (queue.size() >= batchSize)
+                return true;
+            
+            if (queue.isEmpty())
+            {
+                waitQuietly(0L);
+                
+                continue;
+            }
+            
+            long remaining = queuedSince + linger - System.currentTimeMillis();
+            
+            if (remaining <= 0)
+                return true;
+            
+            waitQuietly(remaining);
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Writes one batch of queued entries to the storage.
+     * 
+     * @return the number of entries taken from the queue, or {@code -1}
+     *         if the storage could not be reached.
+     */
+    private int writeBatch()
+    {
+        List<PendingWrite> batch = new ArrayList<>();
+        
+        synchronized (this)
+        {
+            Iterator<PendingWrite> it = queue.values().iterator();
+            
+            while (it.hasNext() && batch.size() < batchSize)
+            {
+                PendingWrite write = it.next();
+                
+                // Older values for this username are still being written
+                // by another thread; these must not overtake them.
+                if (inFlight.containsKey(write.username))
+                    continue;
+                
+                it.remove();
+                inFlight.put(write.username, write);
+                batch.add(write);
+            }
+            
+            queuedSince = System.currentTimeMillis();
+        }
+        
+        if (batch.isEmpty())
+            return 0;
+        
+        log(CustomLevel.INTERNAL, "AccountWriter#writeBatch() {"
+                + "batch.size() = " + batch.size() + "}");
+        
+        Set<PendingWrite> rejected = new HashSet<>();
+        List<PendingWrite> unwritten = executeBatch(batch, rejected);
+        
+        synchronized (this)
+        {
+            for (PendingWrite write : batch)
+            {
+                inFlight.remove(write.username);
+            }
+            
+            for (PendingWrite write : batch)
+            {
+                if (!rejected.contains(write) && !unwritten.contains(write))
+                {
+                    writeFinished(write);
+                }
+            }
+            
+            if (!rejected.isEmpty())
+            {
+                reject(rejected);
+            }
+            
+            if (unwritten.isEmpty())
+            {
+                consecutiveFailures = 0;
+            }
+            else
+            {
+                consecutiveFailures++;
+                
+                requeue(unwritten);
+            }
+            
+            checkpoint();
+            notifyAll();
+        }
+        
+        return unwritten.isEmpty() ? batch.size() : -1;
+    }
+    
+    /**
+     * Writes a batch to the storage.
+     * 
+     * <p> If the batch fails but the storage can still be reached,
+     * its entries are written one at a time.
+     * 
+     * @param batch    the batch.
+     * @param rejected the set that entries rejected by the storage,
+     *                 while it could be reached, are added to.
+     * 
+     * @return the entries that could not be written because the storage
+     *         could not be reached.
+     */
+    private List<PendingWrite> executeBatch(
+            List<PendingWrite> batch, Set<PendingWrite> rejected
+    )
+    {
+        synchronized (storage)
+        {
+            boolean autobatch = storage.isAutobatchEnabled();
+            
+            try
+            {
+                storage.setAutobatchEnabled(true);
+                
+                try
+                {
+                    for (PendingWrite write : batch)
+                    {
+                        updateEntry(write);
+                    }
+                    
+                    storage.executeBatch();
+                    
+                    return new ArrayList<>(0);
+                }
+                catch (IOException ex)
+                {
+                    clearBatchQuietly();
+                    
+                    if (!isReachable())
+                    {
+                        log(Level.WARNING, "Could not save account changes", ex);
+                        
+                        return batch;
+                    }
+                }
+                
+                // Something in the batch was rejected; find out what, one by one.
+                storage.setAutobatchEnabled(false);
+                
+                for (int i = 0; i < batch.size(); i++)
+                {
+                    PendingWrite write = batch.get(i);
+                    
+                    try
+                    {
+                        updateEntry(write);
+                    }
+                    catch (IOException ex)
+                    {
+                        if (!isReachable())
+                        {
+                            log(Level.WARNING, "Could not save account changes", ex);
+                            
+                            return batch.subList(i, batch.size());
+                        }
+                        
+                        log(Level.WARNING, "Could not save changes to account: "
+                                + write.username, ex);
+                        
+                        rejected.add(write);
+                    }
+                }
+                
+                return new ArrayList<>(0);
+            }
+            finally
+            {
+                storage.setAutobatchEnabled(autobatch);
+            }
+        }
+    }
+    
+    private void updateEntry(PendingWrite write) throws IOException
+    {
+        storage.updateEntries(unit, write.entry, new SelectorCondition(
+                usernameKey, Infix.EQUALS, write.username
+        ));
+    }
+    
+    private void clearBatchQuietly()
+    {
+        try
+        {
+            storage.clearBatch();
+        }
+        catch (IOException ex)
+        {
+            log(Level.WARNING, ex);
+        }
+    }
+    
+    private boolean isReachable()
+    {
+        try
+        {
+            storage.ping();
+            
+            return true;
+        }
+        catch (IOException ex)
+        {
+            return false;
+        }
+    }
+    
+    private void enqueue(
+            String username, StorageEntry entry, Account account, Long sequence
+    )
+    {
+        PendingWrite write = queue.get(username);
+        
+        if (write == null)
+        {
+            write = new PendingWrite(username);
+            
+            if (queue.isEmpty())
+            {
+                queuedSince = System.currentTimeMillis();
+            }
+            
+            queue.put(username, write);
+        }
+        
+        write.merge(entry);
+        
+        if (account != null)
+        {
+            write.accounts.add(account);
+        }
+        
+        if (sequence != null)
+        {
+            write.sequences.add(sequence);
+            unwrittenSequences.add(sequence);
+        }
+    }
+    
+    /**
+     * Puts a failed batch back at the head of the queue. Writes that have
+     * failed too many times have their save callbacks told so, but stay
+     * queued, along with their journal records.
+     */
+    private void requeue(List<PendingWrite> batch)
+    {
+        Map<String, PendingWrite> newQueue = new LinkedHashMap<>();
+        
+        for (PendingWrite write : batch)
+        {
+            write.attempts++;
+            
+            if (write.attempts == MAX_ATTEMPTS)
+            {
+                log(Level.WARNING, "Could not save changes to account: "
+                        + write.username + " after " + MAX_ATTEMPTS
+                        + " attempts; they will be retried until saved");
+                
+                runSaveCallbacks(write.accounts, false);
+                write.accounts.clear();
+            }
+            
+            newQueue.put(write.username, write);
+        }
+        
+        for (PendingWrite write : queue.values())
+        {
+            PendingWrite failedWrite = newQueue.get(write.username);
+            
+            if (failedWrite != null)
+            {
+                // The newer values win.
+                failedWrite.merge(write.entry);
+                failedWrite.accounts.addAll(write.accounts);
+                failedWrite.sequences.addAll(write.sequences);
+            }
+            else
+            {
+                newQueue.put(write.username, write);
+            }
+        }
+        
+        queue.clear();
+        queue.putAll(newQueue);
+    }
+    
+    /**
+     * Queues writes rejected by the storage again behind everything else,
+     * so that they do not hold up other writes, and drops those that have
+     * been rejected too many times, along with their journal records.
+     */
+    private void reject(Set<PendingWrite> writes)
+    {
+        for (PendingWrite write : writes)
+        {
+            write.rejections++;
+            
+            PendingWrite queuedWrite = queue.remove(write.username);
+            
+            if (write.rejections >= MAX_ATTEMPTS)
+            {
+                log(Level.WARNING, "Dropping changes to account: "
+                        + write.username + " rejected by the storage "
+                        + MAX_ATTEMPTS + " times");
+                
+                unwrittenSequences.removeAll(write.sequences);
+                runSaveCallbacks(write.accounts, false);
+                
+                // Newer values are given a chance of their own.
+                if (queuedWrite != null)
+                {
+                    queue.put(queuedWrite.username, queuedWrite);
+                }
+                
+                continue;
+            }
+            
+            if (queuedWrite != null)
+            {
+                // The newer values win.
+                write.merge(queuedWrite.entry);
+                write.accounts.addAll(queuedWrite.accounts);
+                write.sequences.addAll(queuedWrite.sequences);
+            }
+            
+            if (queue.isEmpty())
+            {
+                queuedSince = System.currentTimeMillis();
+            }
+            
+            queue.put(write.username, write);
+        }
+    }
+    
+    private void writeFinished(PendingWrite write)
+    {
+        unwrittenSequences.removeAll(write.sequences);
+        
+        runSaveCallbacks(write.accounts, true);
+    }
+    
+    private void runSaveCallbacks(List<Account> accounts, final boolean success)
+    {
+        for (final Account account : accounts)
+        {
+            callbackExecutor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    account.runSaveCallbacks(success);
+                }
+            });
+        }
+    }
+    
+    /**
+     * Returns the time, in milliseconds, to wait before retrying
+     * after the given number of failures in a row.
+     */
+    private long getRetryDelay(int failures)
+    {
+        long delay = Math.max(MIN_LINGER, maxLinger);
+        
+        for (int i = 1; i < failures && delay < MAX_RETRY_DELAY; i++)
+        {
+            delay *= 2;
+        }
+        
+        return Math.min(MAX_RETRY_DELAY, delay);
+    }
+    
+    /**
+     * Marks the journal records that have been written as replayed,
+     * or empties the journal if there is nothing left to write.
+     */
+    private void checkpoint()
+    {
+        try
+        {
+            if (unwrittenSequences.isEmpty())
+            {
+                if (journal.getSize() > 0)
+                {
+                    journal.truncate();
+                }
+                
+                checkpointedSequence = 0L;
+            }
+            else
+            {
+                long sequence = unwrittenSequences.first() - 1;
+                
+                if (sequence > checkpointedSequence)
+                {
+                    journal.checkpoint(sequence,
+                            journal.getPendingCount() - unwrittenSequences.size());
+                    checkpointedSequence = sequence;
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            log(Level.WARNING, "Could not checkpoint the account journal", ex);
+        }
+    }
+    
+    private void waitQuietly(long timeout)
+    {
+        try
+        {
+            wait(timeout);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            closed = true;
+        }
+    }
+    
+    private static final class PendingWrite
+    {
+        public PendingWrite(String username)
+        {
+            this.username = username;
+        }
+        
+        public void merge(StorageEntry newEntry)
+        {
+            entry = new StorageEntry.Builder()
+                    .putAll(entry)
+                    .putAll(newEntry)
+                    .build();
+        }
+        
+        private final String username;
+        private StorageEntry entry = new StorageEntry.Builder().build();
+        private final List<Account> accounts = new ArrayList<>();
+        private final List<Long> sequences = new ArrayList<>();
+        private int attempts = 0;
+        private int rejections = 0;
+    }
+    
+    /**
+     * The shortest time, in milliseconds, an entry waits
+     * for a batch to fill up.
+     */
+    public static final long MIN_LINGER = 50L;
+    
+    /**
+     * The number of times writing an entry is attempted
+     * before its save callbacks are told it has failed,
+     * and the number of times the storage may reject it
+     * before it is dropped.
+     */
+    public static final int MAX_ATTEMPTS = 5;
+    
+    /**
+     * The longest time, in milliseconds, to wait before retrying
+     * a failed batch.
+     */
+    public static final long MAX_RETRY_DELAY = 60000L;
+    
+    private static final String RECORD_OPERATION = "update";
+    
+    private final Storage storage;
+    private final String unit;
+    private final String usernameKey;
+    private final StorageJournal journal;
+    private final int batchSize;
+    private final long maxLinger;
+    private final Executor callbackExecutor;
+    private final Map<String, PendingWrite> queue = new LinkedHashMap<>();
+    private final Map<String, PendingWrite> inFlight = new LinkedHashMap<>();
+    private final TreeSet<Long> unwrittenSequences = new TreeSet<>();
+    private long checkpointedSequence = 0L;
+    private long queuedSince = 0L;
+    private long linger;
+    private int consecutiveFailures = 0;
+    private Thread thread;
+    private boolean closed = false;
+}
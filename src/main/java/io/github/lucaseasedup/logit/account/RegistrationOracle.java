@@ -0,0 +1,379 @@
+package io.github.lucaseasedup.logit.account;
+
+import io.github.lucaseasedup.logit.LogItCoreObject;
+import io.github.lucaseasedup.logit.common.BloomFilter;
+import io.github.lucaseasedup.logit.storage.EntryVisitor;
+import io.github.lucaseasedup.logit.storage.SelectorConstant;
+import io.github.lucaseasedup.logit.storage.Storage;
+import io.github.lucaseasedup.logit.storage.StorageEntry;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+ * Tells whether usernames are registered without asking the storage,
+ * whenever it can.
+ * 
+ * <p> A bounded cache remembers the registration status of usernames
+ * looked up recently, evicting the least recently used ones.
+ * Usernames missing from the cache are checked against a Bloom filter
+ * of every registered username, which answers "not registered" for
+ * most unregistered usernames without any I/O. The filter is built
+ * by streaming the usernames from the storage on a background thread,
+ * and until that is done, only the cache is consulted. It is rebuilt,
+ * twice as large, once more usernames have been registered
+ * than it was sized for.
+ * 
+ * <p> The filter only learns of registrations made through
+ * this {@code AccountManager}, so it is only used with storages
+ * that no other server can write to. With a shared storage,
+ * a username missing from the cache is always checked in the storage.
+ * Whenever the accounts unit is rewritten behind the back of the
+ * {@code AccountManager}, e.g. by restoring a backup, {@link #reset()}
+ * has to be called.
+ */
+final class RegistrationOracle extends LogItCoreObject implements Runnable
+{
+    /**
+     * Constructs a new {@code RegistrationOracle}.
+     * 
+     * @param storage           the storage to read usernames from.
+     * @param unit              the unit to read usernames from.
+     * @param usernameKey       the key usernames are stored under.
+     * @param cacheSize         the maximum number of usernames to be cached.
+     * @param falsePositiveRate the probability of the filter reporting
+     *                          an unregistered username as registered.
+     * @param filterEnabled     whether to build the filter; only if no other
+     *                          server can register usernames in the storage.
+     */
+    public RegistrationOracle(
+            Storage storage, String unit, String usernameKey,
+            int cacheSize, double falsePositiveRate, boolean filterEnabled
+    )
+    {
+        if (storage == null || unit == null || usernameKey == null
+                || cacheSize <= 0
+                || falsePositiveRate <= 0 || falsePositiveRate >= 1)
+        {
+            throw new IllegalArgumentException();
+        }
+        
+        this.storage = storage;
+        this.unit = unit;
+        this.usernameKey = usernameKey;
+        this.cacheSize = cacheSize;
+        this.falsePositiveRate = falsePositiveRate;
+        this.filterEnabled = filterEnabled;
+    }
+    
+    /**
+     * Starts building the filter on a new thread, if it is enabled.
+     */
+    public synchronized void start()
+    {
+        if (thread != null)
+            throw new IllegalStateException("Oracle already started");
+        
+        if (filterEnabled)
+        {
+            startRebuild(INITIAL_CAPACITY);
+        }
+    }
+    
+    @Override
+    public void dispose()
+    {
+        synchronized (this)
+        {
+            closed = true;
+            
+            if (thread != null)
+            {
+                thread.interrupt();
+            }
+        }
+        
+        synchronized (cache)
+        {
+            cache.clear();
+        }
+        
+        filter = null;
+        pendingFilter = null;
+    }
+    
+    /**
+     * Looks up the registration status of a username.
+     * 
+     * @param username the username, lowercase.
+     * 
+     * @return {@code true} or {@code false}, or {@code null}
+     *         if the status has to be fetched from the storage.
+     */
+    public Boolean lookUp(String username)
+    {
+        Boolean registered;
+        
+        synchronized (cache)
+        {
+            registered = cache.get(username);
+        }
+        
+        if (registered != null)
+            return registered;
+        
+        BloomFilter currentFilter = filter;
+        
+        if (currentFilter != null && !currentFilter.mightContain(username))
+            return false;
+        
+        return null;
+    }
+    
+    /**
+     * Records the registration status of a username, as just changed
+     * in the storage by registering, renaming or removing an account.
+     * 
+     * @param username   the username, lowercase.
+     * @param registered whether the username is registered.
+     */
+    public void record(String username, boolean registered)
+    {
+        remember(username, registered);
+        
+        if (!registered)
+            return;
+        
+        // A filter being built gets the username too,
+        // in case the scan has already gone past it.
+        BloomFilter newFilter = pendingFilter;
+        
+        if (newFilter != null && !newFilter.mightContain(username))
+        {
+            newFilter.put(username);
+        }
+        
+        BloomFilter currentFilter = filter;
+        
+        if (currentFilter != null && !currentFilter.mightContain(username))
+        {
+            currentFilter.put(username);
+            
+            if (currentFilter.getInsertionCount()
+                    > currentFilter.getExpectedInsertions())
+            {
+                requestRebuild(currentFilter.getInsertionCount() * 2);
+            }
+        }
+    }
+    
+    /**
+     * Remembers the registration status of a username, as found
+     * in the storage. The filter is left alone, since it already
+     * holds every username registered in the storage.
+     * 
+     * @param username   the username, lowercase.
+     * @param registered whether the username is registered.
+     */
+    public void remember(String username, boolean registered)
+    {
+        synchronized (cache)
+        {
+            cache.put(username, registered);
+        }
+    }
+    
+    /**
+     * Forgets every registration status known, and builds the filter
+     * from scratch, after the accounts unit has been rewritten without
+     * the statuses being recorded.
+     * 
+     * <p> Until the new filter is built, only the cache is consulted.
+     */
+    public void reset()
+    {
+        synchronized (cache)
+        {
+            cache.clear();
+        }
+        
+        if (!filterEnabled)
+            return;
+        
+        synchronized (this)
+        {
+            resetCount++;
+            filter = null;
+            
+            // A build in progress may have read the old usernames;
+            // it starts over once it notices the reset.
+            if (thread == null && !closed)
+            {
+                startRebuild(INITIAL_CAPACITY);
+            }
+        }
+    }
+    
+    /**
+     * Checks whether the filter has been built.
+     */
+    public boolean isReady()
+    {
+        return filter != null;
+    }
+    
+    /**
+     * Internal method. Do not call directly.
+     */
+    @Override
+    public void run()
+    {
+        int capacity;
+        int startResetCount;
+        
+        synchronized (this)
+        {
+            capacity = rebuildCapacity;
+            startResetCount = resetCount;
+        }
+        
+        try
+        {
+            long startTime = System.currentTimeMillis();
+            int count = scan(capacity, startResetCount);
+            
+            // The guess was too small; the second scan knows the count.
+            if (count > capacity && !closed)
+            {
+                count = scan(count * 2, startResetCount);
+            }
+            
+            BloomFilter builtFilter = filter;
+            
+            if (closed || builtFilter == null)
+                return;
+            
+            log(Level.FINE, "Registration filter built from " + count
+                    + " usernames in " + (System.currentTimeMillis() - startTime)
+                    + " ms (" + builtFilter.getSize() + " bytes)");
+        }
+        catch (IOException ex)
+        {
+            if (!closed)
+            {
+                log(Level.WARNING, "Could not build the registration filter", ex);
+            }
+        }
+        finally
+        {
+            pendingFilter = null;
+            
+            synchronized (this)
+            {
+                thread = null;
+                
+                if (resetCount != startResetCount && !closed)
+                {
+                    startRebuild(capacity);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Streams every username from the storage into a new filter,
+     * and puts it in place of the current one unless the usernames
+     * did not fit or the oracle has been reset in the meantime.
+     * 
+     * @return the number of usernames streamed.
+     */
+    private int scan(final int capacity, int startResetCount)
+            throws IOException
+    {
+        final BloomFilter newFilter = new BloomFilter(capacity, falsePositiveRate);
+        final int[] count = {0};
+        
+        pendingFilter = newFilter;
+        
+        storage.forEachEntry(
+                unit,
+                Arrays.asList(usernameKey),
+                new SelectorConstant(true),
+                new EntryVisitor()
+                {
+                    @Override
+                    public void visit(StorageEntry entry) throws IOException
+                    {
+                        if (Thread.currentThread().isInterrupted())
+                            throw new IOException("Interrupted");
+                        
+                        // Past capacity, usernames are only counted.
+                        if (++count[0] <= capacity)
+                        {
+                            newFilter.put(entry.get(usernameKey).toLowerCase());
+                        }
+                    }
+                }
+        );
+        
+        synchronized (this)
+        {
+            if (count[0] <= capacity && resetCount == startResetCount)
+            {
+                filter = newFilter;
+            }
+        }
+        
+        return count[0];
+    }
+    
+    private synchronized void requestRebuild(int capacity)
+    {
+        if (thread != null || closed)
+            return;
+        
+        startRebuild(capacity);
+    }
+    
+    private void startRebuild(int capacity)
+    {
+        rebuildCapacity = capacity;
+        thread = new Thread(this, "LogIt Registration Oracle");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * The number of usernames the first filter is sized for,
+     * before the storage has been scanned.
+     */
+    private static final int INITIAL_CAPACITY = 1 << 14;
+    
+    private final Storage storage;
+    private final String unit;
+    private final String usernameKey;
+    private final int cacheSize;
+    private final double falsePositiveRate;
+    private final boolean filterEnabled;
+    
+    private final Map<String, Boolean> cache =
+            new LinkedHashMap<String, Boolean>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest)
+        {
+            return size() > cacheSize;
+        }
+        
+        private static final long serialVersionUID = 1L;
+    };
+    
+    private volatile BloomFilter filter;
+    private volatile BloomFilter pendingFilter;
+    private volatile boolean closed = false;
+    private Thread thread;
+    private int rebuildCapacity;
+    private int resetCount = 0;
+}
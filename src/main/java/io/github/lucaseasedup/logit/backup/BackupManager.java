@@ -6,6 +6,7 @@ import io.github.lucaseasedup.logit.account.AccountManager;
 import io.github.lucaseasedup.logit.common.ReportedException;
 import io.github.lucaseasedup.logit.common.Timer;
 import io.github.lucaseasedup.logit.config.TimeUnit;
+import io.github.lucaseasedup.logit.storage.EntryVisitor;
 import io.github.lucaseasedup.logit.storage.SqliteStorage;
 import io.github.lucaseasedup.logit.storage.Storage;
 import io.github.lucaseasedup.logit.storage.StorageEntry;
@@ -16,6 +17,7 @@ import java.io.IOException;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Date;
@@ -160,8 +162,6 @@ public final class BackupManager extends LogItCoreObject implements Runnable
                 accountManager.getStorage().getKeys(accountManager.getUnit());
         String primaryKey =
                 accountManager.getStorage().getPrimaryKey(accountManager.getUnit());
-        List<StorageEntry> entries =
-                accountManager.getStorage().selectEntries(accountManager.getUnit());
         
         try (Storage backupStorage = new SqliteStorage("jdbc:sqlite:" + backupFile))
         {
@@ -172,10 +172,12 @@ public final class BackupManager extends LogItCoreObject implements Runnable
             {
                 backupStorage.setAutobatchEnabled(true);
                 
-                for (StorageEntry entry : entries)
-                {
-                    backupStorage.addEntry("accounts", entry);
-                }
+                EntryCopier copier = new EntryCopier(backupStorage, "accounts");
+                
+                accountManager.getStorage().forEachEntry(
+                        accountManager.getUnit(), copier
+                );
+                copier.flush();
                 
                 backupStorage.executeBatch();
                 backupStorage.clearBatch();
@@ -211,7 +213,10 @@ public final class BackupManager extends LogItCoreObject implements Runnable
         {
             backupStorage.connect();
             
-            List<StorageEntry> entries = backupStorage.selectEntries("accounts");
+            // Make sure there is something to restore
+            // before erasing the current accounts.
+            if (!backupStorage.getUnitNames().contains("accounts"))
+                throw new IOException("Backup contains no accounts unit: " + filename);
             
             accountManager.getStorage().eraseUnit(accountManager.getUnit());
             
@@ -219,10 +224,12 @@ public final class BackupManager extends LogItCoreObject implements Runnable
             {
                 accountManager.getStorage().setAutobatchEnabled(true);
                 
-                for (StorageEntry entry : entries)
-                {
-                    accountManager.getStorage().addEntry(accountManager.getUnit(), entry);
-                }
+                EntryCopier copier = new EntryCopier(
+                        accountManager.getStorage(), accountManager.getUnit()
+                );
+                
+                backupStorage.forEachEntry("accounts", copier);
+                copier.flush();
                 
                 accountManager.getStorage().executeBatch();
                 accountManager.getStorage().clearBatch();
@@ -230,6 +237,9 @@ public final class BackupManager extends LogItCoreObject implements Runnable
             finally
             {
                 accountManager.getStorage().setAutobatchEnabled(false);
+                
+                // The accounts were erased and added behind its back.
+                accountManager.reloadAccounts();
             }
             
             log(Level.INFO, t("restoreBackup.success.log")
@@ -398,6 +408,52 @@ public final class BackupManager extends LogItCoreObject implements Runnable
      */
     public static final long TASK_PERIOD = TimeUnit.SECONDS.convertTo(2, TimeUnit.TICKS);
     
+    /**
+     * Copies visited entries into a unit, sending them to the storage
+     * in bulk writes so that a whole unit never has to be held in memory.
+     * 
+     * <p> {@link #flush()} has to be called once all the entries
+     * have been visited.
+     */
+    private static final class EntryCopier implements EntryVisitor
+    {
+        public EntryCopier(Storage storage, String unit)
+        {
+            this.storage = storage;
+            this.unit = unit;
+        }
+        
+        @Override
+        public void visit(StorageEntry entry) throws IOException
+        {
+            pendingEntries.add(entry);
+            
+            if (pendingEntries.size() >= BATCH_SIZE)
+            {
+                flush();
+            }
+        }
+        
+        public void flush() throws IOException
+        {
+            if (pendingEntries.isEmpty())
+                return;
+            
+            storage.addEntries(unit, pendingEntries);
+            storage.executeBatch();
+            storage.clearBatch();
+            
+            pendingEntries.clear();
+        }
+        
+        private static final int BATCH_SIZE = 1000;
+        
+        private final Storage storage;
+        private final String unit;
+        private final List<StorageEntry> pendingEntries =
+                new ArrayList<>(BATCH_SIZE);
+    }
+    
     private Timer timer;
     private AccountManager accountManager;
 }
@@ -4,6 +4,7 @@ import static io.github.lucaseasedup.logit.message.MessageHelper.sendMsg;
 import static io.github.lucaseasedup.logit.message.MessageHelper.t;
 import io.github.lucaseasedup.logit.LogItCoreObject;
 import io.github.lucaseasedup.logit.account.Account;
+import io.github.lucaseasedup.logit.storage.StorageCallback;
 import io.github.lucaseasedup.logit.util.PlayerUtils;
 import java.util.Arrays;
 import java.util.Date;
@@ -18,7 +19,7 @@ public final class LoginHistoryCommand extends LogItCoreObject
 {
     @Override
     public boolean onCommand(
-            CommandSender sender, Command cmd, String label, String[] args
+            final CommandSender sender, Command cmd, String label, final String[] args
     )
     {
         Player player = null;
@@ -76,79 +77,97 @@ public final class LoginHistoryCommand extends LogItCoreObject
                 return true;
             }
             
-            Account account = getAccountManager().selectAccount(playerName, Arrays.asList(
+            final String username = playerName;
+            
+            // The history is printed once the account has been selected,
+            // so that the server does not wait on the storage.
+            getAccountManager().selectAccountAsync(username, Arrays.asList(
                     keys().username(),
                     keys().login_history()
-            ));
-            
-            if (account == null)
+            ), new StorageCallback<Account>()
             {
-                if (args.length == 0)
+                @Override
+                public void onSuccess(Account account)
                 {
-                    sendMsg(sender, t("notRegistered.self"));
+                    if (account == null)
+                    {
+                        if (args.length == 0)
+                        {
+                            sendMsg(sender, t("notRegistered.self"));
+                        }
+                        else
+                        {
+                            sendMsg(sender, t("notRegistered.others")
+                                    .replace("{0}", PlayerUtils.getPlayerRealName(username)));
+                        }
+                        
+                        return;
+                    }
+                    
+                    printLoginHistory(sender, account.getLoginHistory());
                 }
-                else
+                
+                @Override
+                public void onFailure(Exception ex)
                 {
-                    sendMsg(sender, t("notRegistered.others")
-                            .replace("{0}", PlayerUtils.getPlayerRealName(playerName)));
+                    sendMsg(sender, t("unexpectedError"));
                 }
-                
-                return true;
-            }
+            });
+        }
+        else
+        {
+            sendMsg(sender, t("incorrectParamCombination"));
+        }
+        
+        return true;
+    }
+    
+    private void printLoginHistory(CommandSender sender, List<String> records)
+    {
+        sendMsg(sender, "");
+        sendMsg(sender, t("loginHistory.header"));
+        
+        String lastIp = null;
+        int equalRecords = 1;
+        
+        for (int i = 0, n = records.size(); i < n - 1; i++)
+        {
+            String record = records.get(i);
+            String[] split = record.split(";");
+            String nextRecord = records.get(i + 1);
+            String[] nextSplit = nextRecord.split(";");
             
-            List<String> records = account.getLoginHistory();
+            if (split.length < 3 || nextSplit.length < 3)
+                continue;
             
-            sendMsg(sender, "");
-            sendMsg(sender, t("loginHistory.header"));
+            boolean nextRecordEqual = split[0].equals(nextSplit[0])
+                    && split[1].equals(nextSplit[1])
+                    && split[2].equals(nextSplit[2]);
             
-            String lastIp = null;
-            int equalRecords = 1;
+            if (nextRecordEqual)
+            {
+                equalRecords++;
+            }
             
-            for (int i = 0, n = records.size(); i < n - 1; i++)
+            if (!nextRecordEqual)
             {
-                String record = records.get(i);
-                String[] split = record.split(";");
-                String nextRecord = records.get(i + 1);
-                String[] nextSplit = nextRecord.split(";");
-                
-                if (split.length < 3 || nextSplit.length < 3)
-                    continue;
-                
-                boolean nextRecordEqual = split[0].equals(nextSplit[0])
-                        && split[1].equals(nextSplit[1])
-                        && split[2].equals(nextSplit[2]);
-                
-                if (nextRecordEqual)
-                {
-                    equalRecords++;
-                }
+                printLoginRecord(sender, split[0], split[1], split[2],
+                        equalRecords, lastIp);
                 
-                if (!nextRecordEqual)
-                {
-                    printLoginRecord(sender, split[0], split[1], split[2],
-                            equalRecords, lastIp);
-                    
-                    equalRecords = 1;
-                }
-                
-                // If the next record is the last one.
-                if (i + 1 >= n - 1)
-                {
-                    printLoginRecord(sender, nextSplit[0], nextSplit[1], nextSplit[2],
-                            equalRecords, split[1]);
-                }
-                
-                lastIp = split[1];
+                equalRecords = 1;
             }
             
-            sendMsg(sender, "");
-        }
-        else
-        {
-            sendMsg(sender, t("incorrectParamCombination"));
+            // If the next record is the last one.
+            if (i + 1 >= n - 1)
+            {
+                printLoginRecord(sender, nextSplit[0], nextSplit[1], nextSplit[2],
+                        equalRecords, split[1]);
+            }
+            
+            lastIp = split[1];
         }
         
-        return true;
+        sendMsg(sender, "");
     }
     
     private void printLoginRecord(
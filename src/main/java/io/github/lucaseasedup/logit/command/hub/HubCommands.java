@@ -62,6 +62,11 @@ public final class HubCommands
         hubCommands.add(new ConfigReloadHubCommand());
         hubCommands.add(new ConvertHubCommand());
         hubCommands.add(new StatsHubCommand());
+        hubCommands.add(new StorageFlushHubCommand());
+        hubCommands.add(new StorageJournalHubCommand());
+        hubCommands.add(new StorageMigrationHubCommand());
+        hubCommands.add(new StorageMetricsDumpHubCommand());
+        hubCommands.add(new StorageMetricsHubCommand());
         hubCommands.add(new ImportAuthMeHubCommand());
         hubCommands.add(new SelftestHubCommand());
     }
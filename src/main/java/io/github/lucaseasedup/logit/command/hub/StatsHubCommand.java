@@ -5,6 +5,7 @@ import static io.github.lucaseasedup.logit.message.MessageHelper.t;
 import io.github.lucaseasedup.logit.account.Account;
 import io.github.lucaseasedup.logit.command.CommandAccess;
 import io.github.lucaseasedup.logit.command.CommandHelpLine;
+import io.github.lucaseasedup.logit.storage.StorageCallback;
 import io.github.lucaseasedup.logit.storage.SelectorConstant;
 import java.util.Arrays;
 import java.util.HashSet;
@@ -31,16 +32,35 @@ public final class StatsHubCommand extends HubCommand
     }
     
     @Override
-    public void execute(CommandSender sender, String[] args)
+    public void execute(final CommandSender sender, String[] args)
     {
-        List<Account> accounts = getAccountManager().selectAccounts(
+        // Selecting every account may take a while;
+        // the stats are printed once it is done.
+        getAccountManager().selectAccountsAsync(
                 Arrays.asList(
                         keys().username(),
                         keys().ip()
                 ),
-                new SelectorConstant(true)
+                new SelectorConstant(true),
+                new StorageCallback<List<Account>>()
+                {
+                    @Override
+                    public void onSuccess(List<Account> accounts)
+                    {
+                        printStats(sender, accounts);
+                    }
+                    
+                    @Override
+                    public void onFailure(Exception ex)
+                    {
+                        printStats(sender, null);
+                    }
+                }
         );
-        
+    }
+    
+    private void printStats(CommandSender sender, List<Account> accounts)
+    {
         Set<String> uniqueIps = null;
         
         if (accounts != null)
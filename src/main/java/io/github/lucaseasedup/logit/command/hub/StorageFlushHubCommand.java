@@ -0,0 +1,67 @@
+package io.github.lucaseasedup.logit.command.hub;
+
+import static io.github.lucaseasedup.logit.message.MessageHelper.sendMsg;
+import static io.github.lucaseasedup.logit.message.MessageHelper.t;
+import io.github.lucaseasedup.logit.account.AccountFlusher;
+import io.github.lucaseasedup.logit.command.CommandAccess;
+import io.github.lucaseasedup.logit.command.CommandHelpLine;
+import io.github.lucaseasedup.logit.storage.StorageMetrics;
+import java.util.Locale;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+public final class StorageFlushHubCommand extends HubCommand
+{
+    public StorageFlushHubCommand()
+    {
+        super("storage flush", new String[] {},
+                new CommandAccess.Builder()
+                        .permission("logit.storage.flush")
+                        .playerOnly(false)
+                        .runningCoreRequired(true)
+                        .build(),
+                new CommandHelpLine.Builder()
+                        .command("logit storage flush")
+                        .descriptionLabel("subCmdDesc.storage.flush")
+                        .build());
+    }
+    
+    @Override
+    public void execute(CommandSender sender, String[] args)
+    {
+        AccountFlusher flusher = getAccountManager().getFlusher();
+        
+        if (flusher == null)
+            return;
+        
+        if (sender instanceof Player)
+        {
+            sendMsg(sender, "");
+        }
+        
+        sendMsg(sender, t("storageFlush.header"));
+        sendMsg(sender, t("storageFlush.interval")
+                .replace("{0}", String.valueOf(flusher.getInterval()))
+                .replace("{1}", String.format(Locale.ROOT, "%.2f",
+                        flusher.getDirtyRate())));
+        sendMsg(sender, t("storageFlush.flushes")
+                .replace("{0}", String.valueOf(flusher.getFlushCount())));
+        sendMsg(sender, t("storageFlush.latency")
+                .replace("{0}", StorageMetrics.formatMillis(
+                        flusher.getLastLatencyNanos()))
+                .replace("{1}", StorageMetrics.formatMillis(
+                        flusher.getMeanLatencyNanos())));
+        sendMsg(sender, t("storageFlush.batchSize")
+                .replace("{0}", String.valueOf(flusher.getLastBatchSize()))
+                .replace("{1}", String.format(Locale.ROOT, "%.2f",
+                        flusher.getMeanBatchSize()))
+                .replace("{2}", String.valueOf(flusher.getMaxBatchSize())));
+        sendMsg(sender, t("storageFlush.queueDepth")
+                .replace("{0}", String.valueOf(flusher.getQueueDepth())));
+        
+        if (sender instanceof Player)
+        {
+            sendMsg(sender, "");
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package io.github.lucaseasedup.logit.command.hub;
+
+import static io.github.lucaseasedup.logit.message.MessageHelper.sendMsg;
+import static io.github.lucaseasedup.logit.message.MessageHelper.t;
+import io.github.lucaseasedup.logit.command.CommandAccess;
+import io.github.lucaseasedup.logit.command.CommandHelpLine;
+import io.github.lucaseasedup.logit.storage.JournaledStorage;
+import io.github.lucaseasedup.logit.storage.Storage;
+import io.github.lucaseasedup.logit.storage.StorageJournal;
+import io.github.lucaseasedup.logit.storage.WrapperStorage;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+public final class StorageJournalHubCommand extends HubCommand
+{
+    public StorageJournalHubCommand()
+    {
+        super("storage journal", new String[] {},
+                new CommandAccess.Builder()
+                        .permission("logit.storage.journal")
+                        .playerOnly(false)
+                        .runningCoreRequired(true)
+                        .build(),
+                new CommandHelpLine.Builder()
+                        .command("logit storage journal")
+                        .descriptionLabel("subCmdDesc.storage.journal")
+                        .build());
+    }
+    
+    @Override
+    public void execute(CommandSender sender, String[] args)
+    {
+        Storage storage = getAccountManager().getStorage();
+        JournaledStorage journaledStorage = (storage instanceof WrapperStorage)
+                ? ((WrapperStorage) storage).getJournaledStorage() : null;
+        
+        if (journaledStorage == null)
+        {
+            sendMsg(sender, t("storageJournal.disabled"));
+            
+            return;
+        }
+        
+        StorageJournal journal = journaledStorage.getJournal();
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        
+        if (sender instanceof Player)
+        {
+            sendMsg(sender, "");
+        }
+        
+        sendMsg(sender, t("storageJournal.header"));
+        
+        if (journaledStorage.isOffline())
+        {
+            sendMsg(sender, t("storageJournal.offline")
+                    .replace("{0}", dateFormat.format(
+                            new Date(journaledStorage.getOfflineSince()))));
+        }
+        else
+        {
+            sendMsg(sender, t("storageJournal.online"));
+        }
+        
+        sendMsg(sender, t("storageJournal.file")
+                .replace("{0}", journal.getFile().getName())
+                .replace("{1}", String.valueOf(journal.getSize())));
+        sendMsg(sender, t("storageJournal.pending")
+                .replace("{0}", String.valueOf(journal.getPendingCount())));
+        sendMsg(sender, t("storageJournal.corrupt")
+                .replace("{0}", String.valueOf(journal.getCorruptCount())));
+        
+        if (journaledStorage.getLastReplayTime() > 0)
+        {
+            sendMsg(sender, t("storageJournal.lastReplay")
+                    .replace("{0}", String.valueOf(
+                            journaledStorage.getLastReplayCount()))
+                    .replace("{1}", dateFormat.format(
+                            new Date(journaledStorage.getLastReplayTime()))));
+        }
+        else
+        {
+            sendMsg(sender, t("storageJournal.neverReplayed"));
+        }
+        
+        if (sender instanceof Player)
+        {
+            sendMsg(sender, "");
+        }
+    }
+}
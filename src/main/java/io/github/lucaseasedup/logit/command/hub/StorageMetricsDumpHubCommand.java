@@ -0,0 +1,65 @@
+package io.github.lucaseasedup.logit.command.hub;
+
+import static io.github.lucaseasedup.logit.message.MessageHelper.sendMsg;
+import static io.github.lucaseasedup.logit.message.MessageHelper.t;
+import io.github.lucaseasedup.logit.command.CommandAccess;
+import io.github.lucaseasedup.logit.command.CommandHelpLine;
+import io.github.lucaseasedup.logit.storage.Storage;
+import io.github.lucaseasedup.logit.storage.StorageMetrics;
+import io.github.lucaseasedup.logit.storage.WrapperStorage;
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.logging.Level;
+import org.bukkit.command.CommandSender;
+
+public final class StorageMetricsDumpHubCommand extends HubCommand
+{
+    public StorageMetricsDumpHubCommand()
+    {
+        super("storage metrics dump", new String[] {},
+                new CommandAccess.Builder()
+                        .permission("logit.storage.metrics")
+                        .playerOnly(false)
+                        .runningCoreRequired(true)
+                        .build(),
+                new CommandHelpLine.Builder()
+                        .command("logit storage metrics dump")
+                        .descriptionLabel("subCmdDesc.storage.metrics.dump")
+                        .build());
+    }
+    
+    @Override
+    public void execute(CommandSender sender, String[] args)
+    {
+        Storage storage = getAccountManager().getStorage();
+        StorageMetrics metrics = (storage instanceof WrapperStorage)
+                ? ((WrapperStorage) storage).getMetrics() : null;
+        
+        if (metrics == null)
+        {
+            sendMsg(sender, t("storageMetrics.disabled"));
+            
+            return;
+        }
+        
+        File dumpFile = getDataFile("storage-metrics_"
+                + new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date())
+                + ".csv");
+        
+        try
+        {
+            metrics.dump(dumpFile);
+            
+            sendMsg(sender, t("storageMetrics.dump.success")
+                    .replace("{0}", dumpFile.getName()));
+        }
+        catch (IOException ex)
+        {
+            log(Level.WARNING, ex);
+            
+            sendMsg(sender, t("storageMetrics.dump.fail"));
+        }
+    }
+}
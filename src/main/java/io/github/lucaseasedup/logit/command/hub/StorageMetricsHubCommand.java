@@ -0,0 +1,81 @@
+package io.github.lucaseasedup.logit.command.hub;
+
+import static io.github.lucaseasedup.logit.message.MessageHelper.sendMsg;
+import static io.github.lucaseasedup.logit.message.MessageHelper.t;
+import io.github.lucaseasedup.logit.command.CommandAccess;
+import io.github.lucaseasedup.logit.command.CommandHelpLine;
+import io.github.lucaseasedup.logit.storage.Storage;
+import io.github.lucaseasedup.logit.storage.StorageMetrics;
+import io.github.lucaseasedup.logit.storage.WrapperStorage;
+import java.util.List;
+import java.util.Locale;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+public final class StorageMetricsHubCommand extends HubCommand
+{
+    public StorageMetricsHubCommand()
+    {
+        super("storage metrics", new String[] {},
+                new CommandAccess.Builder()
+                        .permission("logit.storage.metrics")
+                        .playerOnly(false)
+                        .runningCoreRequired(true)
+                        .build(),
+                new CommandHelpLine.Builder()
+                        .command("logit storage metrics")
+                        .descriptionLabel("subCmdDesc.storage.metrics")
+                        .build());
+    }
+    
+    @Override
+    public void execute(CommandSender sender, String[] args)
+    {
+        Storage storage = getAccountManager().getStorage();
+        StorageMetrics metrics = (storage instanceof WrapperStorage)
+                ? ((WrapperStorage) storage).getMetrics() : null;
+        
+        if (metrics == null)
+        {
+            sendMsg(sender, t("storageMetrics.disabled"));
+            
+            return;
+        }
+        
+        List<StorageMetrics.Snapshot> snapshots = metrics.getSnapshots();
+        
+        if (sender instanceof Player)
+        {
+            sendMsg(sender, "");
+        }
+        
+        sendMsg(sender, t("storageMetrics.header"));
+        
+        if (snapshots.isEmpty())
+        {
+            sendMsg(sender, t("storageMetrics.empty"));
+        }
+        
+        for (StorageMetrics.Snapshot snapshot : snapshots)
+        {
+            sendMsg(sender, t("storageMetrics.line")
+                    .replace("{0}", snapshot.getRole().name().toLowerCase())
+                    .replace("{1}", snapshot.getOperation())
+                    .replace("{2}", snapshot.getUnit())
+                    .replace("{3}", String.valueOf(snapshot.getCount()))
+                    .replace("{4}", String.format(Locale.ROOT, "%.2f",
+                            snapshot.getThroughput()))
+                    .replace("{5}", StorageMetrics.formatMillis(
+                            snapshot.getPercentileNanos(50)))
+                    .replace("{6}", StorageMetrics.formatMillis(
+                            snapshot.getPercentileNanos(99)))
+                    .replace("{7}", StorageMetrics.formatMillis(
+                            snapshot.getMaxNanos())));
+        }
+        
+        if (sender instanceof Player)
+        {
+            sendMsg(sender, "");
+        }
+    }
+}
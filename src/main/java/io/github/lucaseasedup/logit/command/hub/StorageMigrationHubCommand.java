@@ -0,0 +1,92 @@
+package io.github.lucaseasedup.logit.command.hub;
+
+import static io.github.lucaseasedup.logit.message.MessageHelper.sendMsg;
+import static io.github.lucaseasedup.logit.message.MessageHelper.t;
+import io.github.lucaseasedup.logit.command.CommandAccess;
+import io.github.lucaseasedup.logit.command.CommandHelpLine;
+import io.github.lucaseasedup.logit.storage.SchemaMigration;
+import io.github.lucaseasedup.logit.storage.Storage;
+import io.github.lucaseasedup.logit.storage.WrapperStorage;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+public final class StorageMigrationHubCommand extends HubCommand
+{
+    public StorageMigrationHubCommand()
+    {
+        super("storage migration", new String[] {},
+                new CommandAccess.Builder()
+                        .permission("logit.storage.migration")
+                        .playerOnly(false)
+                        .runningCoreRequired(true)
+                        .build(),
+                new CommandHelpLine.Builder()
+                        .command("logit storage migration")
+                        .descriptionLabel("subCmdDesc.storage.migration")
+                        .build());
+    }
+    
+    @Override
+    public void execute(CommandSender sender, String[] args)
+    {
+        Storage storage = getAccountManager().getStorage();
+        WrapperStorage wrapperStorage = (storage instanceof WrapperStorage)
+                ? (WrapperStorage) storage : null;
+        SchemaMigration migration = (wrapperStorage != null)
+                ? wrapperStorage.getMigration(getAccountManager().getUnit()) : null;
+        
+        if (migration == null || migration.getKeys().isEmpty())
+        {
+            sendMsg(sender, t("storageMigration.none"));
+            
+            return;
+        }
+        
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        
+        if (sender instanceof Player)
+        {
+            sendMsg(sender, "");
+        }
+        
+        sendMsg(sender, t("storageMigration.header"));
+        sendMsg(sender, t("storageMigration.keys")
+                .replace("{0}", migration.getKeys().keySet().toString()));
+        sendMsg(sender, t("storageMigration.progress")
+                .replace("{0}", String.valueOf(migration.getCompletedCount()))
+                .replace("{1}", String.valueOf(migration.getKeys().size())));
+        sendMsg(sender, t("storageMigration.started")
+                .replace("{0}", dateFormat.format(
+                        new Date(migration.getStartTime()))));
+        
+        if (migration.isFinished())
+        {
+            sendMsg(sender, t("storageMigration.finished")
+                    .replace("{0}", dateFormat.format(
+                            new Date(migration.getFinishTime()))));
+        }
+        else
+        {
+            sendMsg(sender, t("storageMigration.current")
+                    .replace("{0}", String.valueOf(migration.getCurrentKey())));
+            
+            if (migration.getFailedAttempts() > 0)
+            {
+                sendMsg(sender, t("storageMigration.failing")
+                        .replace("{0}", String.valueOf(
+                                migration.getFailedAttempts())));
+            }
+        }
+        
+        sendMsg(sender, t("storageMigration.deferred")
+                .replace("{0}", String.valueOf(wrapperStorage
+                        .getMigratingStorage().getDeferredWriteCount())));
+        
+        if (sender instanceof Player)
+        {
+            sendMsg(sender, "");
+        }
+    }
+}
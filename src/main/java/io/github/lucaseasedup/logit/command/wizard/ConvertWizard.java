@@ -86,6 +86,7 @@ public final class ConvertWizard extends Wizard
                     break;
                     
                 case "csv":
+                case "mapped":
                     sendMessage(t("wizard.convert.enterFilename"));
                     updateStep(Step.ENTER_TABLE);
                     break;
@@ -0,0 +1,214 @@
+package io.github.lucaseasedup.logit.common;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A set of strings that takes up a fixed number of bits, no matter
+ * how long the strings are, at the cost of sometimes answering
+ * that a string is present when it is not.
+ * 
+ * <p> A string that has been put into the filter is always reported
+ * as present. A string that has not is reported as absent, except
+ * with a probability close to the false-positive rate the filter was
+ * sized for, which grows once more strings than expected have been put.
+ * Strings cannot be removed.
+ * 
+ * <p> This class is thread-safe and never blocks.
+ */
+public final class BloomFilter
+{
+    /**
+     * Constructs a new, empty {@code BloomFilter}.
+     * 
+     * @param expectedInsertions the number of strings the filter is sized for.
+     * @param falsePositiveRate  the probability of reporting an absent string
+     *                           as present once {@code expectedInsertions}
+     *                           strings have been put.
+     * 
+     * @throws IllegalArgumentException if {@code expectedInsertions} is not
+     *                                  positive or {@code falsePositiveRate}
+     *                                  is not between 0 and 1, exclusive.
+     */
+    public BloomFilter(int expectedInsertions, double falsePositiveRate)
+    {
+        if (expectedInsertions <= 0
+                || falsePositiveRate <= 0 || falsePositiveRate >= 1)
+        {
+            throw new IllegalArgumentException();
+        }
+        
+        double optimalBits = -expectedInsertions * Math.log(falsePositiveRate)
+                / (Math.log(2) * Math.log(2));
+        long wordCount = Math.min(MAX_WORDS,
+                Math.max(1L, ((long) Math.ceil(optimalBits) + 63) / 64));
+        
+        this.words = new AtomicLongArray((int) wordCount);
+        this.bitCount = wordCount * 64;
+        this.hashCount = (int) Math.max(1, Math.min(MAX_HASHES, Math.round(
+                (double) bitCount / expectedInsertions * Math.log(2))));
+        this.expectedInsertions = expectedInsertions;
+    }
+    
+    /**
+     * Puts a string into this filter.
+     * 
+     * @param s the string.
+     * 
+     * @return {@code true} if the filter has changed, i.e. the string
+     *         had certainly not been put before; {@code false} if it
+     *         probably had, in which case it is not counted again.
+     */
+    public boolean put(String s)
+    {
+        if (s == null)
+            throw new IllegalArgumentException();
+        
+        long hash = hash(s);
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32);
+        boolean changed = false;
+        
+        for (int i = 0; i < hashCount; i++)
+        {
+            changed |= setBit(index(hash1, hash2, i));
+        }
+        
+        if (changed)
+        {
+            insertionCount.incrementAndGet();
+        }
+        
+        return changed;
+    }
+    
+    /**
+     * Checks whether a string may have been put into this filter.
+     * 
+     * @param s the string.
+     * 
+     * @return {@code false} if the string has certainly not been put,
+     *         {@code true} if it probably has.
+     */
+    public boolean mightContain(String s)
+    {
+        if (s == null)
+            throw new IllegalArgumentException();
+        
+        long hash = hash(s);
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32);
+        
+        for (int i = 0; i < hashCount; i++)
+        {
+            long index = index(hash1, hash2, i);
+            
+            if ((words.get((int) (index >>> 6)) & (1L << (index & 63))) == 0)
+                return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Returns the number of strings put into this filter, not counting
+     * strings put more than once, nor the few strings mistaken
+     * for ones put before.
+     */
+    public int getInsertionCount()
+    {
+        return insertionCount.get();
+    }
+    
+    public int getExpectedInsertions()
+    {
+        return expectedInsertions;
+    }
+    
+    /**
+     * Returns the probability of reporting an absent string as present,
+     * given the number of strings put so far.
+     */
+    public double getFalsePositiveRate()
+    {
+        return Math.pow(1 - Math.exp(
+                -hashCount * (double) insertionCount.get() / bitCount
+        ), hashCount);
+    }
+    
+    /**
+     * Returns the size of the bit array in bytes.
+     */
+    public long getSize()
+    {
+        return bitCount / 8;
+    }
+    
+    /**
+     * Sets a bit.
+     * 
+     * @return {@code false} if the bit was already set.
+     */
+    private boolean setBit(long index)
+    {
+        int word = (int) (index >>> 6);
+        long mask = 1L << (index & 63);
+        
+        while (true)
+        {
+            long oldValue = words.get(word);
+            
+            if ((oldValue & mask) != 0)
+                return false;
+            
+            if (words.compareAndSet(word, oldValue, oldValue | mask))
+                return true;
+        }
+    }
+    
+    /**
+     * Derives the i-th bit index from two hashes, as in
+     * "Less Hashing, Same Performance" by Kirsch and Mitzenmacher.
+     */
+    private long index(int hash1, int hash2, int i)
+    {
+        long combinedHash = (hash1 & 0xffffffffL) + i * (hash2 & 0xffffffffL);
+        
+        return combinedHash % bitCount;
+    }
+    
+    /**
+     * Hashes a string with 64-bit FNV-1a, followed by the finalizer
+     * of MurmurHash3 to spread the bits.
+     */
+    private static long hash(String s)
+    {
+        long hash = 0xcbf29ce484222325L;
+        
+        for (int i = 0; i < s.length(); i++)
+        {
+            hash ^= s.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        
+        return hash;
+    }
+    
+    /**
+     * Caps the bit array at 256 MiB.
+     */
+    private static final long MAX_WORDS = 1L << 25;
+    private static final int MAX_HASHES = 16;
+    
+    private final AtomicLongArray words;
+    private final long bitCount;
+    private final int hashCount;
+    private final int expectedInsertions;
+    private final AtomicInteger insertionCount = new AtomicInteger();
+}
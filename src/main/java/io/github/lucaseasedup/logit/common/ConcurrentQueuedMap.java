@@ -0,0 +1,283 @@
+package io.github.lucaseasedup.logit.common;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A concurrent counterpart of {@link QueuedMap}: a map that remembers
+ * the order in which keys were put into it, and can be drained
+ * in that order with {@link #poll()}.
+ * 
+ * <p> Every operation takes constant time (amortized, in the case of
+ * {@code remove}) and none of them blocks on a map-wide lock.
+ * Putting a value under a key that is already present keeps the key
+ * in its place. Values may be {@code null}; keys may not.
+ * 
+ * <p> Callers that need to run several operations on a key atomically
+ * can synchronize on {@link #getLock(Object)}. The map itself
+ * never does, so such a lock only excludes other callers
+ * holding the same lock.
+ */
+public final class ConcurrentQueuedMap<K, V>
+{
+    public ConcurrentQueuedMap()
+    {
+        for (int i = 0; i < locks.length; i++)
+        {
+            locks[i] = new Object();
+        }
+    }
+    
+    public V put(K key, V value)
+    {
+        if (key == null)
+            throw new IllegalArgumentException();
+        
+        Node<K, V> node = new Node<>(key, value);
+        
+        while (true)
+        {
+            Node<K, V> existingNode = nodes.putIfAbsent(key, node);
+            
+            if (existingNode == null)
+            {
+                queue.add(node);
+                
+                return null;
+            }
+            
+            synchronized (existingNode)
+            {
+                // A node is taken out of the map before it is marked as
+                // removed, so the next attempt will not run into it again.
+                if (!existingNode.removed)
+                {
+                    V oldValue = existingNode.value;
+                    
+                    existingNode.value = value;
+                    
+                    return oldValue;
+                }
+            }
+        }
+    }
+    
+    public void putAll(Map<? extends K, ? extends V> m)
+    {
+        for (Map.Entry<? extends K, ? extends V> e : m.entrySet())
+        {
+            put(e.getKey(), e.getValue());
+        }
+    }
+    
+    public V get(Object key)
+    {
+        if (key == null)
+            throw new IllegalArgumentException();
+        
+        Node<K, V> node = nodes.get(key);
+        
+        return (node != null) ? node.value : null;
+    }
+    
+    /**
+     * Looks up a key and its value in one step, so that a key mapped
+     * to {@code null} can be told apart from a missing one even while
+     * other threads are removing it.
+     * 
+     * @param key the key.
+     * 
+     * @return the key and its value, or {@code null} if the key
+     *         is not present.
+     */
+    public Map.Entry<K, V> getEntry(Object key)
+    {
+        if (key == null)
+            throw new IllegalArgumentException();
+        
+        Node<K, V> node = nodes.get(key);
+        
+        if (node == null)
+            return null;
+        
+        return new AbstractMap.SimpleImmutableEntry<>(node.key, node.value);
+    }
+    
+    public boolean containsKey(Object key)
+    {
+        if (key == null)
+            throw new IllegalArgumentException();
+        
+        return nodes.containsKey(key);
+    }
+    
+    /**
+     * Removes a key from this map.
+     * 
+     * @param key the key.
+     * 
+     * @return the value the key was mapped to, or {@code null}
+     *         if it was not present.
+     */
+    public V remove(Object key)
+    {
+        if (key == null)
+            throw new IllegalArgumentException();
+        
+        Node<K, V> node = nodes.remove(key);
+        
+        if (node == null)
+            return null;
+        
+        // The node stays in the queue until poll() or purge() skips it.
+        if (deadCount.incrementAndGet() > nodes.size() + PURGE_THRESHOLD)
+        {
+            purge();
+        }
+        
+        synchronized (node)
+        {
+            node.removed = true;
+            
+            return node.value;
+        }
+    }
+    
+    /**
+     * Removes the key that was put into this map the longest time ago.
+     * 
+     * @return the removed key and its value, or {@code null}
+     *         if this map is empty.
+     */
+    public Map.Entry<K, V> poll()
+    {
+        Node<K, V> node;
+        
+        while ((node = queue.poll()) != null)
+        {
+            if (!nodes.remove(node.key, node))
+            {
+                deadCount.decrementAndGet();
+                
+                continue;
+            }
+            
+            synchronized (node)
+            {
+                node.removed = true;
+                
+                return new AbstractMap.SimpleImmutableEntry<>(
+                        node.key, node.value
+                );
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Returns the lock that callers should hold while running
+     * several operations on a key. Different keys may share a lock.
+     */
+    public Object getLock(Object key)
+    {
+        if (key == null)
+            throw new IllegalArgumentException();
+        
+        int hash = key.hashCode();
+        
+        hash ^= (hash >>> 16);
+        
+        return locks[(hash & 0x7fffffff) % locks.length];
+    }
+    
+    /**
+     * Returns an unmodifiable view of the keys in this map. Iterating
+     * over it never throws {@code ConcurrentModificationException},
+     * and may or may not reflect keys put or removed meanwhile.
+     */
+    public Set<K> keySet()
+    {
+        return Collections.unmodifiableSet(nodes.keySet());
+    }
+    
+    public int size()
+    {
+        return nodes.size();
+    }
+    
+    public boolean isEmpty()
+    {
+        return nodes.isEmpty();
+    }
+    
+    public void clear()
+    {
+        for (K key : nodes.keySet())
+        {
+            remove(key);
+        }
+    }
+    
+    /**
+     * Drops the nodes of removed keys from the queue.
+     */
+    private void purge()
+    {
+        Iterator<Node<K, V>> it = queue.iterator();
+        
+        while (it.hasNext())
+        {
+            Node<K, V> node = it.next();
+            
+            if (nodes.get(node.key) != node)
+            {
+                it.remove();
+                deadCount.decrementAndGet();
+            }
+        }
+    }
+    
+    private static final class Node<K, V>
+    {
+        public Node(K key, V value)
+        {
+            this.key = key;
+            this.value = value;
+        }
+        
+        private final K key;
+        private volatile V value;
+        
+        /**
+         * Guarded by the lock on this node.
+         */
+        private boolean removed = false;
+    }
+    
+    /**
+     * The number of nodes of removed keys the queue may hold
+     * on top of one per key before it gets purged.
+     */
+    private static final int PURGE_THRESHOLD = 64;
+    
+    private static final int LOCK_COUNT = 64;
+    
+    private final ConcurrentHashMap<K, Node<K, V>> nodes =
+            new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Node<K, V>> queue =
+            new ConcurrentLinkedQueue<>();
+    
+    /**
+     * The number of nodes of removed keys left in the queue. Only used
+     * to decide when to purge, so it need not be exact under contention.
+     */
+    private final AtomicInteger deadCount = new AtomicInteger();
+    private final Object[] locks = new Object[LOCK_COUNT];
+}
@@ -13,6 +13,7 @@ public final class CacheTypeValidator implements PropertyValidator
         
         String s = value.toString().toLowerCase();
         
-        return s.equals("disabled") || s.equals("preloaded");
+        return s.equals("disabled") || s.equals("preloaded")
+                || s.equals("bounded");
     }
 }
@@ -0,0 +1,17 @@
+package io.github.lucaseasedup.logit.config.validators;
+
+import io.github.lucaseasedup.logit.config.PropertyType;
+import io.github.lucaseasedup.logit.config.PropertyValidator;
+import io.github.lucaseasedup.logit.storage.ReadPolicy;
+
+public final class ReadPolicyValidator implements PropertyValidator
+{
+    @Override
+    public boolean validate(String path, PropertyType type, Object value)
+    {
+        if (value == null)
+            return false;
+        
+        return ReadPolicy.decode(value.toString().toLowerCase()) != null;
+    }
+}
@@ -4,6 +4,7 @@ import static io.github.lucaseasedup.logit.message.MessageHelper.sendMsg;
 import static io.github.lucaseasedup.logit.message.MessageHelper.t;
 import io.github.lucaseasedup.logit.LogItCoreObject;
 import io.github.lucaseasedup.logit.account.Account;
+import io.github.lucaseasedup.logit.account.AccountPrefetcher;
 import io.github.lucaseasedup.logit.config.TimeUnit;
 import io.github.lucaseasedup.logit.hooks.BukkitSmerfHook;
 import io.github.lucaseasedup.logit.hooks.EssentialsHook;
@@ -15,6 +16,7 @@ import io.github.lucaseasedup.logit.message.QuitMessageGenerator;
 import io.github.lucaseasedup.logit.persistence.LocationSerializer;
 import io.github.lucaseasedup.logit.session.Session;
 import io.github.lucaseasedup.logit.storage.Infix;
+import io.github.lucaseasedup.logit.storage.Selector;
 import io.github.lucaseasedup.logit.storage.SelectorBinary;
 import io.github.lucaseasedup.logit.storage.SelectorCondition;
 import io.github.lucaseasedup.logit.storage.SelectorNegation;
@@ -22,6 +24,7 @@ import io.github.lucaseasedup.logit.util.BlockUtils;
 import io.github.lucaseasedup.logit.util.CollectionUtils;
 import io.github.lucaseasedup.logit.util.PlayerUtils;
 import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
@@ -41,6 +44,7 @@ import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.player.AsyncPlayerChatEvent;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
 import org.bukkit.event.player.PlayerChangedWorldEvent;
 import org.bukkit.event.player.PlayerCommandPreprocessEvent;
 import org.bukkit.event.player.PlayerDropItemEvent;
@@ -59,6 +63,43 @@ import org.bukkit.scheduler.BukkitRunnable;
 public final class PlayerEventListener extends LogItCoreObject
         implements Listener
 {
+    /**
+     * Loads the account of a player who is about to log in, so that
+     * the login and join events do not have to wait for the storage
+     * on the server thread.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    private void onAsyncPreLogin(AsyncPlayerPreLoginEvent event)
+    {
+        if (!isCoreStarted())
+            return;
+        
+        if (event.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED)
+            return;
+        
+        AccountPrefetcher prefetcher = getAccountManager().getPrefetcher();
+        
+        if (prefetcher == null || !prefetcher.isEnabled())
+            return;
+        
+        List<String> prefetchKeys = new ArrayList<>(getLoginQueryKeys());
+        
+        for (String key : getJoinQueryKeys())
+        {
+            if (!prefetchKeys.contains(key))
+            {
+                prefetchKeys.add(key);
+            }
+        }
+        
+        prefetcher.prefetch(
+                event.getName(),
+                event.getUniqueId(),
+                prefetchKeys,
+                getUuidMatchSelector(event.getUniqueId())
+        );
+    }
+    
     @EventHandler(priority = EventPriority.NORMAL)
     private void onLogin(final PlayerLoginEvent event)
     {
@@ -144,26 +185,23 @@ public final class PlayerEventListener extends LogItCoreObject
         // =======================================
         timing.startSelectAccount();
         
-        List<String> keys;
+        AccountPrefetcher.Prefetch prefetch = getAccountManager()
+                .getPrefetcher().lookUp(username, player.getUniqueId());
+        Account account;
         
-        if (getConfig("secret.yml").getBoolean("fullLoginSelect"))
+        timing.setPrefetchHit(prefetch != null);
+        
+        if (prefetch != null)
         {
-            keys = keys().getNames();
+            account = prefetch.getAccount();
         }
         else
         {
-            keys = Arrays.asList(
-                    keys().username(),
-                    keys().uuid(), // for onJoin()
-                    keys().login_session(),
-                    keys().is_locked(),
-                    keys().display_name(),
-                    keys().persistence()
+            account = getAccountManager().selectAccount(
+                    username, getLoginQueryKeys()
             );
         }
         
-        Account account = getAccountManager().selectAccount(username, keys);
-        
         timing.endSelectAccount();
         // =======================================
         
@@ -280,16 +318,23 @@ public final class PlayerEventListener extends LogItCoreObject
         // =======================================
         timing.startSelectAccount();
         
-        List<String> joinQueryKeys = Arrays.asList(
-                keys().username(),
-                keys().uuid(),
-                keys().login_session(),
-                keys().display_name(),
-                keys().persistence()
-        );
-        Account account = getAccountManager().selectAccount(
-                username, joinQueryKeys
-        );
+        List<String> joinQueryKeys = getJoinQueryKeys();
+        AccountPrefetcher.Prefetch prefetch = getAccountManager()
+                .getPrefetcher().take(username, uuid);
+        Account account;
+        
+        timing.setPrefetchHit(prefetch != null);
+        
+        if (prefetch != null)
+        {
+            account = prefetch.getAccount();
+        }
+        else
+        {
+            account = getAccountManager().selectAccount(
+                    username, joinQueryKeys
+            );
+        }
         
         timing.endSelectAccount();
         // =======================================
@@ -299,25 +344,22 @@ public final class PlayerEventListener extends LogItCoreObject
             // =======================================
             timing.startUuidMatching();
             
-            List<Account> uuidMatchedAccounts = getAccountManager().selectAccounts(
-                    Arrays.asList(
-                            keys().username(),
-                            keys().uuid()
-                    ),
-                    new SelectorBinary(
-                            new SelectorNegation(new SelectorCondition(
-                                    keys().username(),
-                                    Infix.CONTAINS,
-                                    "$"
-                            )),
-                            Infix.AND,
-                            new SelectorCondition(
-                                    keys().uuid(),
-                                    Infix.EQUALS,
-                                    uuid.toString()
-                            )
-                    )
-            );
+            List<Account> uuidMatchedAccounts;
+            
+            if (prefetch != null)
+            {
+                uuidMatchedAccounts = prefetch.getUuidMatchedAccounts();
+            }
+            else
+            {
+                uuidMatchedAccounts = getAccountManager().selectAccounts(
+                        Arrays.asList(
+                                keys().username(),
+                                keys().uuid()
+                        ),
+                        getUuidMatchSelector(uuid)
+                );
+            }
             
             if (uuidMatchedAccounts != null && !uuidMatchedAccounts.isEmpty())
             {
@@ -981,6 +1023,53 @@ public final class PlayerEventListener extends LogItCoreObject
         }
     }
     
+    private List<String> getLoginQueryKeys()
+    {
+        if (getConfig("secret.yml").getBoolean("fullLoginSelect"))
+            return keys().getNames();
+        
+        return Arrays.asList(
+                keys().username(),
+                keys().uuid(), // for onJoin()
+                keys().login_session(),
+                keys().is_locked(),
+                keys().display_name(),
+                keys().persistence()
+        );
+    }
+    
+    private List<String> getJoinQueryKeys()
+    {
+        return Arrays.asList(
+                keys().username(),
+                keys().uuid(),
+                keys().login_session(),
+                keys().display_name(),
+                keys().persistence()
+        );
+    }
+    
+    /**
+     * Returns the selector of accounts that were registered by the player
+     * with the given UUID under a different username.
+     */
+    private Selector getUuidMatchSelector(UUID uuid)
+    {
+        return new SelectorBinary(
+                new SelectorNegation(new SelectorCondition(
+                        keys().username(),
+                        Infix.CONTAINS,
+                        "$"
+                )),
+                Infix.AND,
+                new SelectorCondition(
+                        keys().uuid(),
+                        Infix.EQUALS,
+                        uuid.toString()
+                )
+        );
+    }
+    
     private final Set<Player> playersDeadOnJoin = new HashSet<>();
     private Pattern usernamePattern = null;
 }
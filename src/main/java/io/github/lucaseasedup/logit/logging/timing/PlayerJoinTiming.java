@@ -87,6 +87,15 @@ public final class PlayerJoinTiming extends Timing
         postSafeLocation = getCurrentTimestamp();
     }
     
+    /**
+     * Records whether the account was found among the accounts
+     * prefetched before login.
+     */
+    public void setPrefetchHit(boolean prefetchHit)
+    {
+        this.prefetchHit = prefetchHit;
+    }
+    
     @Override
     public void saveTiming(File reportFile) throws IOException
     {
@@ -102,10 +111,23 @@ public final class PlayerJoinTiming extends Timing
         timings.set("lastPlayerJoin.selectAccount", postSelectAccount - preSelectAccount);
         timings.set("lastPlayerJoin.uuidMatching", postUuidMatching - preUuidMatching);
         timings.set("lastPlayerJoin.safeLocation", postSafeLocation - preSafeLocation);
+        timings.set("lastPlayerJoin.prefetchHit", prefetchHit);
+        
+        // The hit rate covers every join timed since the report was created.
+        int prefetchLookups = timings.getInt("playerJoins.prefetchLookups") + 1;
+        int prefetchHits = timings.getInt("playerJoins.prefetchHits")
+                + (prefetchHit ? 1 : 0);
+        
+        timings.set("playerJoins.prefetchLookups", prefetchLookups);
+        timings.set("playerJoins.prefetchHits", prefetchHits);
+        timings.set("playerJoins.prefetchHitRate",
+                (double) prefetchHits / prefetchLookups);
         
         timings.save(reportFile);
     }
     
+    private boolean prefetchHit = false;
+    
     private long preCreateSession = -1;
     private long postCreateSession = -2;
     
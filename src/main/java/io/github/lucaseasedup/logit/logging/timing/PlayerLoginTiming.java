@@ -23,6 +23,15 @@ public final class PlayerLoginTiming extends Timing
         postSelectAccount = getCurrentTimestamp();
     }
     
+    /**
+     * Records whether the account was found among the accounts
+     * prefetched before login.
+     */
+    public void setPrefetchHit(boolean prefetchHit)
+    {
+        this.prefetchHit = prefetchHit;
+    }
+    
     @Override
     public void saveTiming(File reportFile) throws IOException
     {
@@ -35,10 +44,23 @@ public final class PlayerLoginTiming extends Timing
         timings.set("lastPlayerLogin.timestamp", new Date().toString());
         timings.set("lastPlayerLogin.total", end - start);
         timings.set("lastPlayerLogin.selectAccount", postSelectAccount - preSelectAccount);
+        timings.set("lastPlayerLogin.prefetchHit", prefetchHit);
+        
+        // The hit rate covers every login timed since the report was created.
+        int prefetchLookups = timings.getInt("playerLogins.prefetchLookups") + 1;
+        int prefetchHits = timings.getInt("playerLogins.prefetchHits")
+                + (prefetchHit ? 1 : 0);
+        
+        timings.set("playerLogins.prefetchLookups", prefetchLookups);
+        timings.set("playerLogins.prefetchHits", prefetchHits);
+        timings.set("playerLogins.prefetchHitRate",
+                (double) prefetchHits / prefetchLookups);
         
         timings.save(reportFile);
     }
     
+    private boolean prefetchHit = false;
+    
     private long preSelectAccount = -1;
     private long postSelectAccount = -2;
 }
@@ -8,6 +8,25 @@ import java.util.regex.Pattern;
 
 public final class SecurityHelper extends LogItCoreObject
 {
+    /**
+     * Constructs a new {@code SecurityHelper}.
+     * 
+     * <p> The password settings are read once, since changing
+     * any of them requires a restart.
+     */
+    public SecurityHelper()
+    {
+        defaultHashingModel = HashingModelDecoder.decode(
+                getConfig("config.yml").getString("passwords.hashingAlgorithm")
+        );
+        passwordsDisabled = getConfig("secret.yml")
+                .getBoolean("passwords.disable");
+        saltUsed = getConfig("secret.yml")
+                .getBoolean("passwords.useSalt");
+        hashingAlgorithmForced = getConfig("secret.yml")
+                .getBoolean("debug.forceHashingAlgorithm");
+    }
+    
     /**
      * Returns the default hashing model specified in the config file.
      * 
@@ -15,9 +34,35 @@ public final class SecurityHelper extends LogItCoreObject
      */
     public HashingModel getDefaultHashingModel()
     {
-        return HashingModelDecoder.decode(
-                getConfig("config.yml").getString("passwords.hashingAlgorithm")
-        );
+        return defaultHashingModel;
+    }
+    
+    /**
+     * Checks whether passwords have been disabled
+     * ({@code passwords.disable} in secret.yml).
+     */
+    public boolean arePasswordsDisabled()
+    {
+        return passwordsDisabled;
+    }
+    
+    /**
+     * Checks whether passwords are hashed with a salt
+     * ({@code passwords.useSalt} in secret.yml).
+     */
+    public boolean isSaltUsed()
+    {
+        return saltUsed;
+    }
+    
+    /**
+     * Checks whether every password is checked with the default hashing
+     * model, regardless of the model it was hashed with
+     * ({@code debug.forceHashingAlgorithm} in secret.yml).
+     */
+    public boolean isHashingAlgorithmForced()
+    {
+        return hashingAlgorithmForced;
     }
     
     public boolean containsLowercaseLetters(String password)
@@ -102,4 +147,9 @@ public final class SecurityHelper extends LogItCoreObject
             Pattern.compile("\\d");
     private static final Pattern SPECIAL_SYMBOLS =
             Pattern.compile("[^A-Za-z0-9]");
+    
+    private final HashingModel defaultHashingModel;
+    private final boolean passwordsDisabled;
+    private final boolean saltUsed;
+    private final boolean hashingAlgorithmForced;
 }
@@ -16,6 +16,7 @@ import io.github.lucaseasedup.logit.util.PlayerUtils;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
@@ -603,20 +604,19 @@ public final class SessionManager extends LogItCoreObject implements Runnable
             
             sessionsStorage.connect();
             sessionsStorage.createUnit("sessions", keys, "username");
-            sessionsStorage.setAutobatchEnabled(true);
+            
+            List<StorageEntry> entries = new ArrayList<>(sessions.size());
             
             for (Map.Entry<String, Session> e : sessions.entrySet())
             {
-                sessionsStorage.addEntry("sessions", new StorageEntry.Builder()
+                entries.add(new StorageEntry.Builder()
                         .put("username", e.getKey())
                         .put("status", String.valueOf(e.getValue().getStatus()))
                         .put("ip", e.getValue().getIp())
                         .build());
             }
             
-            sessionsStorage.executeBatch();
-            sessionsStorage.clearBatch();
-            sessionsStorage.setAutobatchEnabled(false);
+            sessionsStorage.addEntries("sessions", entries);
         }
     }
     
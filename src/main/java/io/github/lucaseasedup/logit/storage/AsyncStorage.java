@@ -0,0 +1,274 @@
+package io.github.lucaseasedup.logit.storage;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs storage operations on a dedicated pool of I/O threads.
+ * 
+ * <p> Every operation returns a {@code Future} holding its result
+ * and optionally takes a {@link StorageCallback} that is notified
+ * of the outcome through the callback executor given at construction,
+ * e.g. one that hands tasks over to the server thread.
+ * 
+ * <p> The underlying storage must be safe for use from multiple threads,
+ * as a {@link WrapperStorage} is.
+ */
+public final class AsyncStorage implements AutoCloseable
+{
+    /**
+     * Constructs a new {@code AsyncStorage}.
+     * 
+     * @param storage          the storage to run operations on.
+     * @param threads          the number of I/O threads.
+     * @param callbackExecutor the executor that callbacks are run through,
+     *                         or {@code null} if they should be run
+     *                         directly on the I/O thread.
+     * 
+     * @throws IllegalArgumentException if {@code storage} is {@code null}
+     *                                  or {@code threads} is not positive.
+     */
+    public AsyncStorage(
+            Storage storage, int threads, Executor callbackExecutor
+    )
+    {
+        if (storage == null || threads <= 0)
+            throw new IllegalArgumentException();
+        
+        this.storage = storage;
+        this.callbackExecutor = callbackExecutor;
+        this.executorService = Executors.newFixedThreadPool(threads,
+                new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r,
+                        "LogIt Storage I/O #" + threadCounter.incrementAndGet());
+                thread.setDaemon(true);
+                
+                return thread;
+            }
+            
+            private final AtomicInteger threadCounter = new AtomicInteger();
+        });
+    }
+    
+    public Storage getStorage()
+    {
+        return storage;
+    }
+    
+    public Future<List<StorageEntry>> selectEntries(
+            final String unit,
+            StorageCallback<List<StorageEntry>> callback
+    )
+    {
+        return submit(new Callable<List<StorageEntry>>()
+        {
+            @Override
+            public List<StorageEntry> call() throws IOException
+            {
+                return storage.selectEntries(unit);
+            }
+        }, callback);
+    }
+    
+    public Future<List<StorageEntry>> selectEntries(
+            final String unit,
+            final Selector selector,
+            StorageCallback<List<StorageEntry>> callback
+    )
+    {
+        return submit(new Callable<List<StorageEntry>>()
+        {
+            @Override
+            public List<StorageEntry> call() throws IOException
+            {
+                return storage.selectEntries(unit, selector);
+            }
+        }, callback);
+    }
+    
+    public Future<List<StorageEntry>> selectEntries(
+            final String unit,
+            final List<String> keys,
+            final Selector selector,
+            StorageCallback<List<StorageEntry>> callback
+    )
+    {
+        return submit(new Callable<List<StorageEntry>>()
+        {
+            @Override
+            public List<StorageEntry> call() throws IOException
+            {
+                return storage.selectEntries(unit, keys, selector);
+            }
+        }, callback);
+    }
+    
+    public Future<Void> addEntry(
+            final String unit,
+            final StorageEntry entry,
+            StorageCallback<Void> callback
+    )
+    {
+        return submit(new Callable<Void>()
+        {
+            @Override
+            public Void call() throws IOException
+            {
+                storage.addEntry(unit, entry);
+                
+                return null;
+            }
+        }, callback);
+    }
+    
+    public Future<Void> updateEntries(
+            final String unit,
+            final StorageEntry entrySubset,
+            final Selector selector,
+            StorageCallback<Void> callback
+    )
+    {
+        return submit(new Callable<Void>()
+        {
+            @Override
+            public Void call() throws IOException
+            {
+                storage.updateEntries(unit, entrySubset, selector);
+                
+                return null;
+            }
+        }, callback);
+    }
+    
+    public Future<Void> removeEntries(
+            final String unit,
+            final Selector selector,
+            StorageCallback<Void> callback
+    )
+    {
+        return submit(new Callable<Void>()
+        {
+            @Override
+            public Void call() throws IOException
+            {
+                storage.removeEntries(unit, selector);
+                
+                return null;
+            }
+        }, callback);
+    }
+    
+    /**
+     * Stops accepting new operations. Operations already submitted
+     * are still run.
+     */
+    @Override
+    public void close()
+    {
+        executorService.shutdown();
+    }
+    
+    /**
+     * Runs an arbitrary operation on the I/O threads, e.g. one that makes
+     * several calls to the storage or merges their results into a cache.
+     * 
+     * @param operation the operation to be run.
+     * @param callback  the callback to be notified of the outcome,
+     *                  or {@code null}.
+     * 
+     * @return a {@code Future} holding the result of the operation.
+     * 
+     * @throws IllegalArgumentException if {@code operation} is {@code null}.
+     */
+    public <T> Future<T> submit(
+            final Callable<T> operation, final StorageCallback<T> callback
+    )
+    {
+        if (operation == null)
+            throw new IllegalArgumentException();
+        
+
+        return executorService.submit(new Callable<T>()
+        {
+            @Override
+            public T call() throws Exception
+            {
+                final T result;
+                
+                try
+                {
+                    result = operation.call();
+                }
+                catch (Exception ex)
+                {
+                    notifyFailure(callback, ex);
+                    
+                    throw ex;
+                }
+                
+                if (callback != null)
+                {
+                    dispatch(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            callback.onSuccess(result);
+                        }
+                    });
+                }
+                
+                return result;
+            }
+        });
+    }
+    
+    /**
+     * Notifies a callback of a failed operation. Unchecked exceptions
+     * are passed on as well, since the caller would otherwise be left
+     * waiting for a callback that never comes.
+     */
+    private <T> void notifyFailure(
+            final StorageCallback<T> callback, final Exception ex
+    )
+    {
+        if (callback == null)
+            return;
+        
+        dispatch(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                callback.onFailure(ex);
+            }
+        });
+    }
+    
+    private void dispatch(Runnable task)
+    {
+        if (callbackExecutor == null)
+        {
+            task.run();
+        }
+        else
+        {
+            callbackExecutor.execute(task);
+        }
+    }
+    
+    private final Storage storage;
+    private final Executor callbackExecutor;
+    private final ExecutorService executorService;
+}
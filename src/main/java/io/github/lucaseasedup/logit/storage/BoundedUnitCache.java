@@ -0,0 +1,307 @@
+package io.github.lucaseasedup.logit.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps a limited number of recently used entries of a unit in memory.
+ * 
+ * <p> Entries are looked up by their primary key. When the cache is full,
+ * the least recently used entry is evicted. If a time-to-live is set,
+ * entries older than that are treated as absent and evicted on access.
+ * 
+ * <p> This class is not thread-safe.
+ */
+public final class BoundedUnitCache
+{
+    /**
+     * Constructs a new {@code BoundedUnitCache}.
+     * 
+     * @param primaryKey the primary key of the cached unit.
+     * @param capacity   the maximum number of entries held at a time.
+     * @param ttl        the time in milliseconds after which a cached entry
+     *                   expires, or {@code 0} if entries never expire.
+     * 
+     * @throws IllegalArgumentException if {@code primaryKey} is {@code null},
+     *                                  {@code capacity} is not positive
+     *                                  or {@code ttl} is negative.
+     */
+    public BoundedUnitCache(String primaryKey, int capacity, long ttl)
+    {
+        if (primaryKey == null || capacity <= 0 || ttl < 0)
+            throw new IllegalArgumentException();
+        
+        this.primaryKey = primaryKey;
+        this.capacity = capacity;
+        this.ttl = ttl;
+    }
+    
+    public String getPrimaryKey()
+    {
+        return primaryKey;
+    }
+    
+    /**
+     * Extracts the primary key value tested by a selector.
+     * 
+     * @param selector the selector.
+     * 
+     * @return the primary key value, or {@code null} if {@code selector}
+     *         is not an equality condition on the primary key.
+     */
+    public String extractPrimaryKeyValue(Selector selector)
+    {
+        if (!(selector instanceof SelectorCondition))
+            return null;
+        
+        SelectorCondition selectorCondition = (SelectorCondition) selector;
+        
+        if (selectorCondition.getRelation() != Infix.EQUALS
+                || !selectorCondition.getKey().equals(primaryKey))
+        {
+            return null;
+        }
+        
+        return selectorCondition.getValue();
+    }
+    
+    /**
+     * Returns the cached entry with the given primary key value.
+     * 
+     * <p> The returned entry is not a copy; it must not be modified
+     * by the caller.
+     * 
+     * @param primaryKeyValue the primary key value.
+     * 
+     * @return the cached entry, or {@code null} if it is not cached
+     *         or has expired.
+     */
+    public StorageEntry get(String primaryKeyValue)
+    {
+        if (primaryKeyValue == null)
+            throw new IllegalArgumentException();
+        
+        CachedEntry cachedEntry = entries.get(primaryKeyValue);
+        
+        if (cachedEntry != null && cachedEntry.isExpired())
+        {
+            entries.remove(primaryKeyValue);
+            evictionCount++;
+            
+            cachedEntry = null;
+        }
+        
+        if (cachedEntry == null)
+        {
+            missCount++;
+            
+            return null;
+        }
+        
+        hitCount++;
+        
+        return cachedEntry.getEntry();
+    }
+    
+    /**
+     * Caches an entry. The entry must contain all the keys of the unit.
+     * 
+     * @param entry the entry to be cached.
+     */
+    public void put(StorageEntry entry)
+    {
+        if (entry == null)
+            throw new IllegalArgumentException();
+        
+        String primaryKeyValue = entry.get(primaryKey);
+        
+        if (primaryKeyValue == null)
+            return;
+        
+        entries.put(primaryKeyValue, new CachedEntry(entry));
+    }
+    
+    public void invalidate(String primaryKeyValue)
+    {
+        if (primaryKeyValue == null)
+            throw new IllegalArgumentException();
+        
+        entries.remove(primaryKeyValue);
+    }
+    
+    /**
+     * Applies an update to the cached entries matching a selector.
+     * 
+     * <p> If the update changes the primary key,
+     * the matching entries are invalidated instead.
+     * 
+     * @param entrySubset the updated data.
+     * @param selector    the selector.
+     */
+    public void update(StorageEntry entrySubset, Selector selector)
+    {
+        if (entrySubset == null || selector == null)
+            throw new IllegalArgumentException();
+        
+        if (entrySubset.containsKey(primaryKey))
+        {
+            invalidate(selector);
+            
+            return;
+        }
+        
+        String primaryKeyValue = extractPrimaryKeyValue(selector);
+        
+        if (primaryKeyValue != null)
+        {
+            CachedEntry cachedEntry = entries.get(primaryKeyValue);
+            
+            if (cachedEntry != null)
+            {
+                cachedEntry.update(entrySubset);
+            }
+            
+            return;
+        }
+        
+        CompiledSelector compiledSelector = CompiledSelector.compile(selector);
+        
+        for (CachedEntry cachedEntry : entries.values())
+        {
+            if (compiledSelector.test(cachedEntry.getEntry()))
+            {
+                cachedEntry.update(entrySubset);
+            }
+        }
+    }
+    
+    /**
+     * Invalidates the cached entries matching a selector.
+     * 
+     * @param selector the selector.
+     */
+    public void invalidate(Selector selector)
+    {
+        if (selector == null)
+            throw new IllegalArgumentException();
+        
+        String primaryKeyValue = extractPrimaryKeyValue(selector);
+        
+        if (primaryKeyValue != null)
+        {
+            invalidate(primaryKeyValue);
+            
+            return;
+        }
+        
+        CompiledSelector compiledSelector = CompiledSelector.compile(selector);
+        Iterator<CachedEntry> it = entries.values().iterator();
+        
+        while (it.hasNext())
+        {
+            if (compiledSelector.test(it.next().getEntry()))
+            {
+                it.remove();
+            }
+        }
+    }
+    
+    public void clear()
+    {
+        entries.clear();
+    }
+    
+    public int size()
+    {
+        return entries.size();
+    }
+    
+    public int getCapacity()
+    {
+        return capacity;
+    }
+    
+    public long getTtl()
+    {
+        return ttl;
+    }
+    
+    public long getHitCount()
+    {
+        return hitCount;
+    }
+    
+    public long getMissCount()
+    {
+        return missCount;
+    }
+    
+    /**
+     * Returns the number of entries removed from this cache
+     * because it was full or because they expired.
+     * 
+     * @return the eviction count.
+     */
+    public long getEvictionCount()
+    {
+        return evictionCount;
+    }
+    
+    private final class CachedEntry
+    {
+        public CachedEntry(StorageEntry entry)
+        {
+            this.entry = entry;
+            this.createdAt = System.currentTimeMillis();
+        }
+        
+        public StorageEntry getEntry()
+        {
+            return entry;
+        }
+        
+        public boolean isExpired()
+        {
+            return ttl > 0 && System.currentTimeMillis() - createdAt >= ttl;
+        }
+        
+        public void update(StorageEntry entrySubset)
+        {
+            for (StorageDatum datum : entrySubset)
+            {
+                entry.put(datum.getKey(), datum.getValue());
+            }
+        }
+        
+        private final StorageEntry entry;
+        private final long createdAt;
+    }
+    
+    private final String primaryKey;
+    private final int capacity;
+    private final long ttl;
+    
+    private final Map<String, CachedEntry> entries =
+            new LinkedHashMap<String, CachedEntry>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedEntry> eldest)
+        {
+            if (size() > capacity)
+            {
+                evictionCount++;
+                
+                return true;
+            }
+            
+            return false;
+        }
+        
+        private static final long serialVersionUID = 1L;
+    };
+    
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+}
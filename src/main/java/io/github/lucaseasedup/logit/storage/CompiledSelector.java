@@ -0,0 +1,395 @@
+package io.github.lucaseasedup.logit.storage;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * A {@link Selector} turned into a predicate that can be tested against
+ * many entries without walking the selector tree again.
+ * 
+ * <p> Compilation validates condition keys and parses numeric operands
+ * of {@code LESS_THAN} and {@code GREATER_THAN} conditions once.
+ * Each condition also remembers the slot of its key in the schema
+ * shared by the entries of a unit, so that scanning a unit only pays
+ * for comparing the actual values.
+ * 
+ * <p> A compiled selector matches exactly the same entries as
+ * {@link SqlUtils#resolveSelector(Selector, StorageEntry)}
+ * given the original selector.
+ */
+public abstract class CompiledSelector
+{
+    private CompiledSelector()
+    {
+    }
+    
+    /**
+     * Checks whether an entry matches this selector.
+     * 
+     * @param entry the entry to be tested.
+     * 
+     * @return {@code true} if the entry matches; {@code false} otherwise.
+     * 
+     * @throws IllegalArgumentException if {@code entry} is {@code null}.
+     */
+    public final boolean matches(StorageEntry entry)
+    {
+        if (entry == null)
+            throw new IllegalArgumentException();
+        
+        return test(entry);
+    }
+    
+    abstract boolean test(StorageEntry entry);
+    
+    /**
+     * Compiles a selector.
+     * 
+     * @param selector the selector to be compiled.
+     * 
+     * @return the compiled selector.
+     * 
+     * @throws IllegalArgumentException if {@code selector} is {@code null},
+     *                                  or contains an unsupported selector
+     *                                  or relation.
+     */
+    public static CompiledSelector compile(Selector selector)
+    {
+        if (selector == null)
+            throw new IllegalArgumentException();
+        
+        if (selector instanceof SelectorConstant)
+        {
+            return ((SelectorConstant) selector).getValue()
+                    ? ALWAYS : NEVER;
+        }
+        else if (selector instanceof SelectorNegation)
+        {
+            CompiledSelector operand =
+                    compile(((SelectorNegation) selector).getOperand());
+            
+            if (operand == ALWAYS)
+                return NEVER;
+            
+            if (operand == NEVER)
+                return ALWAYS;
+            
+            return new Negation(operand);
+        }
+        else if (selector instanceof SelectorBinary)
+        {
+            SelectorBinary selectorBinary = (SelectorBinary) selector;
+            CompiledSelector left = compile(selectorBinary.getLeftOperand());
+            CompiledSelector right = compile(selectorBinary.getRightOperand());
+            
+            switch (selectorBinary.getRelation())
+            {
+            case AND:
+                if (left == NEVER || left == ALWAYS)
+                    return (left == NEVER) ? NEVER : right;
+                
+                if (right == ALWAYS)
+                    return left;
+                
+                return new Conjunction(left, right);
+            
+            case OR:
+                if (left == NEVER || left == ALWAYS)
+                    return (left == ALWAYS) ? ALWAYS : right;
+                
+                if (right == NEVER)
+                    return left;
+                
+                return new Disjunction(left, right);
+            
+            default:
+                throw new IllegalArgumentException(
+                        "Unsupported relation: " + selectorBinary.getRelation()
+                );
+            }
+        }
+        else if (selector instanceof SelectorCondition)
+        {
+            return compileCondition((SelectorCondition) selector);
+        }
+        else
+        {
+            throw new IllegalArgumentException(
+                    "Unsupported selector: " + selector.getClass().getName()
+            );
+        }
+    }
+    
+    private static CompiledSelector compileCondition(
+            SelectorCondition selectorCondition
+    )
+    {
+        String key = selectorCondition.getKey();
+        String operandValue = selectorCondition.getValue();
+        
+        if (StringUtils.isBlank(key))
+            throw new IllegalArgumentException();
+        
+        switch (selectorCondition.getRelation())
+        {
+        case EQUALS:
+            return new Equals(key, operandValue);
+        
+        case LESS_THAN:
+        case GREATER_THAN:
+            long operandLong;
+            
+            try
+            {
+                operandLong = Long.parseLong(operandValue);
+            }
+            catch (NumberFormatException ex)
+            {
+                // No actual value can be compared with this operand.
+                return NEVER;
+            }
+            
+            boolean lessThan = selectorCondition.getRelation()
+                    == SelectorCondition.Relation.LESS_THAN;
+            
+            return new Comparison(key, lessThan, operandLong);
+        
+        case STARTS_WITH:
+        case ENDS_WITH:
+        case CONTAINS:
+            return new Substring(
+                    key, selectorCondition.getRelation(), operandValue
+            );
+        
+        default:
+            throw new IllegalArgumentException(
+                    "Unsupported relation: "
+                            + selectorCondition.getRelation()
+            );
+        }
+    }
+    
+    private static final class Constant extends CompiledSelector
+    {
+        public Constant(boolean value)
+        {
+            this.value = value;
+        }
+        
+        @Override
+        boolean test(StorageEntry entry)
+        {
+            return value;
+        }
+        
+        private final boolean value;
+    }
+    
+    private static final class Negation extends CompiledSelector
+    {
+        public Negation(CompiledSelector operand)
+        {
+            this.operand = operand;
+        }
+        
+        @Override
+        boolean test(StorageEntry entry)
+        {
+            return !operand.test(entry);
+        }
+        
+        private final CompiledSelector operand;
+    }
+    
+    private static final class Conjunction extends CompiledSelector
+    {
+        public Conjunction(CompiledSelector left, CompiledSelector right)
+        {
+            this.left = left;
+            this.right = right;
+        }
+        
+        @Override
+        boolean test(StorageEntry entry)
+        {
+            return left.test(entry) && right.test(entry);
+        }
+        
+        private final CompiledSelector left;
+        private final CompiledSelector right;
+    }
+    
+    private static final class Disjunction extends CompiledSelector
+    {
+        public Disjunction(CompiledSelector left, CompiledSelector right)
+        {
+            this.left = left;
+            this.right = right;
+        }
+        
+        @Override
+        boolean test(StorageEntry entry)
+        {
+            return left.test(entry) || right.test(entry);
+        }
+        
+        private final CompiledSelector left;
+        private final CompiledSelector right;
+    }
+    
+    private static final class Equals extends CompiledSelector
+    {
+        public Equals(String key, String operandValue)
+        {
+            this.key = new KeyRef(key);
+            this.operandValue = operandValue;
+        }
+        
+        @Override
+        boolean test(StorageEntry entry)
+        {
+            String actualValue = key.getValue(entry);
+            
+            if (actualValue == null)
+            {
+                return operandValue == null;
+            }
+            else
+            {
+                return actualValue.equals(operandValue);
+            }
+        }
+        
+        private final KeyRef key;
+        private final String operandValue;
+    }
+    
+    private static final class Comparison extends CompiledSelector
+    {
+        public Comparison(String key, boolean lessThan, long operandLong)
+        {
+            this.key = new KeyRef(key);
+            this.lessThan = lessThan;
+            this.operandLong = operandLong;
+        }
+        
+        @Override
+        boolean test(StorageEntry entry)
+        {
+            String actualValue = key.getValue(entry);
+            
+            if (actualValue == null)
+                return false;
+            
+            long actualLong;
+            
+            try
+            {
+                actualLong = Long.parseLong(actualValue);
+            }
+            catch (NumberFormatException ex)
+            {
+                return false;
+            }
+            
+            return lessThan ? actualLong < operandLong
+                            : actualLong > operandLong;
+        }
+        
+        private final KeyRef key;
+        private final boolean lessThan;
+        private final long operandLong;
+    }
+    
+    private static final class Substring extends CompiledSelector
+    {
+        public Substring(
+                String key, SelectorCondition.Relation relation,
+                String operandValue
+        )
+        {
+            this.key = new KeyRef(key);
+            this.relation = relation;
+            this.operandValue = operandValue;
+        }
+        
+        @Override
+        boolean test(StorageEntry entry)
+        {
+            String actualValue = key.getValue(entry);
+            
+            switch (relation)
+            {
+            case STARTS_WITH:
+                return actualValue.startsWith(operandValue);
+            
+            case ENDS_WITH:
+                return actualValue.endsWith(operandValue);
+            
+            default:
+                return actualValue.contains(operandValue);
+            }
+        }
+        
+        private final KeyRef key;
+        private final SelectorCondition.Relation relation;
+        private final String operandValue;
+    }
+    
+    /**
+     * Looks up the value of a key, remembering the slot of the key
+     * in the schema of the last entry seen.
+     */
+    private static final class KeyRef
+    {
+        public KeyRef(String key)
+        {
+            this.key = key;
+        }
+        
+        public String getValue(StorageEntry entry)
+        {
+            KeySchema schema = entry.getSchema();
+            SlotCache slotCache = this.slotCache;
+            
+            if (slotCache == null || slotCache.schema != schema)
+            {
+                slotCache = new SlotCache(schema, schema.getSlot(key));
+                
+                this.slotCache = slotCache;
+            }
+            
+            return (slotCache.slot >= 0)
+                    ? entry.getValueAt(schema, slotCache.slot) : null;
+        }
+        
+        private final String key;
+        
+        /**
+         * Immutable, so that it can be replaced by any thread
+         * testing entries against the same compiled selector.
+         */
+        private SlotCache slotCache;
+    }
+    
+    private static final class SlotCache
+    {
+        public SlotCache(KeySchema schema, int slot)
+        {
+            this.schema = schema;
+            this.slot = slot;
+        }
+        
+        private final KeySchema schema;
+        private final int slot;
+    }
+    
+    /**
+     * A compiled selector matching every entry.
+     */
+    public static final CompiledSelector ALWAYS = new Constant(true);
+    
+    /**
+     * A compiled selector matching no entry.
+     */
+    public static final CompiledSelector NEVER = new Constant(false);
+}
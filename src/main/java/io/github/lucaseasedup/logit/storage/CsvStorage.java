@@ -7,22 +7,52 @@ import java.io.FileFilter;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+/**
+ * Storage keeping every unit in a separate CSV file.
+ * 
+ * <p> Unit files are append-only. Inserts append a full record, while updates
+ * and removals append a patch or a tombstone line referring to the ordinal
+ * of the record they modify. An in-memory index maps primary-key values
+ * to record ordinals, so writes selecting entries by primary key never read
+ * the file. Superseded lines are dropped by a compaction pass run from
+ * {@link #ping()} once their share in a unit exceeds the compaction threshold.
+ */
 public final class CsvStorage implements Storage
 {
     public CsvStorage(File dir)
     {
-        if (dir == null)
+        this(dir, DEFAULT_COMPACTION_THRESHOLD);
+    }
+    
+    /**
+     * @param dir                 the directory holding unit files.
+     * @param compactionThreshold the share of garbage lines in a unit file
+     *                            above which the file gets compacted.
+     */
+    public CsvStorage(File dir, double compactionThreshold)
+    {
+        if (dir == null || compactionThreshold < 0)
             throw new IllegalArgumentException();
         
         this.dir = dir;
+        this.compactionThreshold = compactionThreshold;
     }
     
     @Override
-    public void connect() throws IOException
+    public synchronized void connect() throws IOException
     {
         if (!dir.isDirectory())
         {
@@ -35,13 +65,17 @@ public final class CsvStorage implements Storage
     }
     
     @Override
-    public boolean isConnected() throws IOException
+    public synchronized boolean isConnected() throws IOException
     {
         return connected;
     }
     
+    /**
+     * Checks that the CSV directory is still accessible and compacts
+     * indexed units whose garbage ratio crossed the compaction threshold.
+     */
     @Override
-    public void ping() throws IOException
+    public synchronized void ping() throws IOException
     {
         if (!dir.isDirectory())
         {
@@ -49,23 +83,39 @@ public final class CsvStorage implements Storage
                     "CSV path is not a directory: " + dir
             );
         }
+        
+        if (!connected)
+            return;
+        
+        List<Map.Entry<String, UnitIndex>> indexEntries =
+                new ArrayList<>(indexes.entrySet());
+        
+        for (Map.Entry<String, UnitIndex> e : indexEntries)
+        {
+            if (e.getValue().needsCompaction(compactionThreshold))
+            {
+                rewriteUnit(e.getKey(), e.getValue().header);
+            }
+        }
     }
     
     @Override
-    public void close() throws IOException
+    public synchronized void close() throws IOException
     {
         connected = false;
+        indexes.clear();
     }
     
     @Override
-    public List<String> getUnitNames() throws IOException
+    public synchronized List<String> getUnitNames() throws IOException
     {
         File[] files = dir.listFiles(new FileFilter()
         {
             @Override
             public boolean accept(File pathname)
             {
-                return pathname.isFile();
+                return pathname.isFile()
+                        && !pathname.getName().endsWith(COMPACTION_SUFFIX);
             }
         });
         
@@ -80,38 +130,28 @@ public final class CsvStorage implements Storage
     }
     
     @Override
-    public UnitKeys getKeys(String unit) throws IOException
+    public synchronized UnitKeys getKeys(String unit) throws IOException
     {
         if (!connected)
             throw new IOException("Database closed.");
         
         UnitKeys keys = new UnitKeys();
         
-        try (
-                FileReader fr = new FileReader(new File(dir, unit));
-                BufferedReader br = new BufferedReader(fr);
-        )
+        for (String key : getHeader(unit).keys)
         {
-            String line = br.readLine();
-            
-            if (line == null)
-                throw new IOException("Null line.");
-            
-            String[] topValues = line.split(",");
-            
-            for (String topValue : topValues)
-            {
-                keys.put(unescapeValue(topValue), DataType.TEXT);
-            }
+            keys.put(key, DataType.TEXT);
         }
         
         return keys;
     }
     
     @Override
-    public String getPrimaryKey(String unit) throws IOException
+    public synchronized String getPrimaryKey(String unit) throws IOException
     {
-        return null;
+        if (!connected)
+            throw new IOException("Database closed.");
+        
+        return getHeader(unit).primaryKey;
     }
     
     @Override
@@ -139,70 +179,76 @@ public final class CsvStorage implements Storage
             String unit, List<String> keys, Selector selector
     ) throws IOException
     {
-        List<StorageEntry> entries = new ArrayList<>();
+        final List<StorageEntry> entries = new ArrayList<>();
         
-        try (
-                FileReader fr = new FileReader(new File(dir, unit));
-                BufferedReader br = new BufferedReader(fr);
-        )
+        forEachEntry(unit, keys, selector, new EntryVisitor()
         {
-            String line = br.readLine();
-            
-            if (line == null)
-                throw new IOException("Null line.");
-            
-            String[] tableKeys = line.split(",");
-            
-            for (int i = 0; i < tableKeys.length; i++)
+            @Override
+            public void visit(StorageEntry entry)
             {
-                tableKeys[i] = unescapeValue(tableKeys[i]);
+                entries.add(entry);
             }
-            
-            while ((line = br.readLine()) != null)
+        });
+        
+        return entries;
+    }
+    
+    @Override
+    public void forEachEntry(String unit, EntryVisitor visitor)
+            throws IOException
+    {
+        forEachEntry(unit, null, new SelectorConstant(true), visitor);
+    }
+    
+    /**
+     * Reads the unit file line by line, passing each matching record
+     * to the visitor as soon as it has been read.
+     */
+    @Override
+    public synchronized void forEachEntry(
+            String unit, final List<String> keys, Selector selector,
+            final EntryVisitor visitor
+    ) throws IOException
+    {
+        final CompiledSelector compiledSelector =
+                CompiledSelector.compile(selector);
+        
+        scan(unit, new RecordVisitor()
+        {
+            @Override
+            public void visit(long ordinal, StorageEntry entry)
+                    throws IOException
             {
-                StringBuilder lineBuilder = new StringBuilder(line);
+                if (!compiledSelector.test(entry))
+                    return;
                 
-                // Read records spanning multiple lines.
-                while (!line.endsWith("\""))
+                if (keys == null)
                 {
-                    line = br.readLine();
-                    
-                    if (line == null)
-                        throw new IOException("Corrupted CSV file");
-                    
-                    lineBuilder.append("\r\n");
-                    lineBuilder.append(line);
+                    visitor.visit(entry);
                 }
-                
-                String[] lineValues =
-                        lineBuilder.toString().split("(?<=\"),(?=\")");
-                StorageEntry.Builder entryBuilder =
-                        new StorageEntry.Builder();
-                
-                for (int i = 0; i < lineValues.length; i++)
+                else
                 {
-                    if (keys == null || keys.contains(tableKeys[i]))
+                    StorageEntry.Builder entryBuilder =
+                            new StorageEntry.Builder();
+                    
+                    for (StorageDatum datum : entry)
                     {
-                        entryBuilder.put(tableKeys[i],
-                                unescapeValue(lineValues[i]));
+                        if (keys.contains(datum.getKey()))
+                        {
+                            entryBuilder.put(datum.getKey(), datum.getValue());
+                        }
                     }
-                }
-                
-                StorageEntry entry = entryBuilder.build();
-                
-                if (SqlUtils.resolveSelector(selector, entry))
-                {
-                    entries.add(entry);
+                    
+                    visitor.visit(entryBuilder.build());
                 }
             }
-        }
-        
-        return entries;
+        });
     }
     
     @Override
-    public void createUnit(String unit, UnitKeys keys, String primaryKey)
-            throws IOException
+    public synchronized void createUnit(
+            String unit, UnitKeys keys, String primaryKey
+    ) throws IOException
     {
         if (!connected)
             throw new IOException("Database closed.");
@@ -219,34 +265,37 @@ public final class CsvStorage implements Storage
         if (file.exists())
             return;
         
+        Header header = new Header(
+                keys.keySet().toArray(new String[keys.size()]), primaryKey
+        );
+        
         try (BufferedWriter bw = new BufferedWriter(new FileWriter(file)))
         {
-            StringBuilder sb = new StringBuilder();
-            
-            for (String key : keys.keySet())
-            {
-                if (sb.length() > 0)
-                    sb.append(",");
-                
-                sb.append(escapeValue(key));
-            }
-            
-            sb.append("\r\n");
-            bw.write(sb.toString());
+            bw.write(formatHeader(header));
         }
+        
+        indexes.remove(unit);
     }
     
     @Override
-    public void renameUnit(String unit, String newName) throws IOException
+    public synchronized void renameUnit(String unit, String newName)
+            throws IOException
     {
         if (!connected)
             throw new IOException("Database closed.");
         
         new File(dir, unit).renameTo(new File(dir, newName));
+        
+        UnitIndex index = indexes.remove(unit);
+        
+        if (index != null)
+        {
+            indexes.put(newName, index);
+        }
     }
     
     @Override
-    public void eraseUnit(String unit) throws IOException
+    public synchronized void eraseUnit(String unit) throws IOException
     {
         if (!connected)
             throw new IOException("Database closed.");
@@ -268,134 +317,288 @@ public final class CsvStorage implements Storage
         {
             bw.write(keys + "\r\n");
         }
+        
+        indexes.remove(unit);
     }
     
     @Override
-    public void removeUnit(String unit) throws IOException
+    public synchronized void removeUnit(String unit) throws IOException
     {
         if (!connected)
             throw new IOException("Database closed.");
         
         new File(dir, unit).delete();
+        indexes.remove(unit);
     }
     
+    /**
+     * Returns an empty list, as CSV units are only indexed
+     * by their primary key.
+     */
     @Override
-    public void addKey(String unit, String key, DataType type)
+    public synchronized List<String> getIndexes(String unit)
+    {
+        return new ArrayList<>();
+    }
+    
+    @Override
+    public synchronized void createIndex(String unit, String key)
+    {
+        // Secondary indexes are not supported.
+    }
+    
+    @Override
+    public synchronized void dropIndex(String unit, String key)
+    {
+        // Secondary indexes are not supported.
+    }
+    
+    @Override
+    public synchronized void addKey(String unit, String key, DataType type)
             throws IOException
     {
         if (!connected)
             throw new IOException("Database closed.");
         
-        UnitKeys keys = getKeys(unit);
-        String primaryKey = getPrimaryKey(unit);
+        Header header = getHeader(unit);
         
-        if (keys.containsKey(key))
+        if (Arrays.asList(header.keys).contains(key))
             throw new IOException("Key with this name already exists: " + key);
         
-        List<StorageEntry> entries = selectEntries(unit);
+        String[] newKeys = Arrays.copyOf(header.keys, header.keys.length + 1);
+        
+        newKeys[header.keys.length] = key;
+        
+        rewriteUnit(unit, new Header(newKeys, header.primaryKey));
+    }
+    
+    @Override
+    public synchronized void addEntry(String unit, StorageEntry entry)
+            throws IOException
+    {
+        if (!connected)
+            throw new IOException("Database closed.");
+        
+        UnitIndex index = getIndex(unit);
+        String primaryKey = index.header.primaryKey;
+        String primaryValue = null;
         
-        keys.put(key, type);
-        removeUnit(unit);
-        createUnit(unit, keys, primaryKey);
+        if (primaryKey != null)
+        {
+            primaryValue = nullToEmpty(entry.get(primaryKey));
+            
+            if (index.ordinals.containsKey(primaryValue))
+            {
+                throw new DuplicateEntryException(
+                        "Duplicate primary key: " + primaryValue
+                );
+            }
+        }
+        
+        appendLines(unit, formatRecord(index.header, entry));
         
-        for (StorageEntry entry : entries)
+        if (primaryKey != null)
         {
-            addEntry(unit, entry);
+            index.ordinals.put(primaryValue, index.recordCount);
         }
+        
+        index.recordCount++;
+        index.liveCount++;
     }
     
+    /**
+     * Appends all the entries with a single write.
+     * 
+     * <p> If one of the entries is a duplicate, the entries preceding it
+     * are still added.
+     */
     @Override
-    public void addEntry(String unit, StorageEntry entry) throws IOException
+    public synchronized void addEntries(
+            String unit, Iterable<StorageEntry> entries
+    ) throws IOException
     {
         if (!connected)
             throw new IOException("Database closed.");
         
-        UnitKeys keys = getKeys(unit);
+        UnitIndex index = getIndex(unit);
+        String primaryKey = index.header.primaryKey;
+        StringBuilder sb = new StringBuilder();
         
-        try (
-                FileWriter fw = new FileWriter(new File(dir, unit), true);
-                BufferedWriter bw = new BufferedWriter(fw);
-        )
+        try
         {
-            StringBuilder sb = new StringBuilder();
-            
-            for (String key : keys.keySet())
+            for (StorageEntry entry : entries)
             {
-                if (sb.length() > 0)
+                if (primaryKey != null)
                 {
-                    sb.append(",");
+                    String primaryValue = nullToEmpty(entry.get(primaryKey));
+                    
+                    if (index.ordinals.containsKey(primaryValue))
+                    {
+                        throw new DuplicateEntryException(
+                                "Duplicate primary key: " + primaryValue
+                        );
+                    }
+                    
+                    index.ordinals.put(primaryValue, index.recordCount);
                 }
                 
-                String value = entry.get(key);
+                sb.append(formatRecord(index.header, entry));
                 
-                if (value != null && !value.isEmpty())
-                {
-                    sb.append(escapeValue(value));
-                }
-                else
-                {
-                    sb.append("\"\"");
-                }
+                index.recordCount++;
+                index.liveCount++;
             }
-            
-            sb.append("\r\n");
-            bw.write(sb.toString());
+        }
+        finally
+        {
+            appendLines(unit, sb.toString());
         }
     }
     
+    /**
+     * Appends a patch line for every matching record; the records themselves
+     * are left untouched until the unit gets compacted.
+     */
     @Override
-    public void updateEntries(
+    public synchronized void updateEntries(
             String unit, StorageEntry entrySubset, Selector selector
     ) throws IOException
     {
         if (!connected)
             throw new IOException("Database closed.");
         
-        UnitKeys keys = getKeys(unit);
-        String primaryKey = getPrimaryKey(unit);
+        UnitIndex index = getIndex(unit);
+        List<String> tableKeys = Arrays.asList(index.header.keys);
+        StorageEntry.Builder patchBuilder = new StorageEntry.Builder();
         
-        List<StorageEntry> entries = selectEntries(unit);
+        for (StorageDatum datum : entrySubset)
+        {
+            if (tableKeys.contains(datum.getKey()))
+            {
+                patchBuilder.put(datum.getKey(), datum.getValue());
+            }
+        }
         
-        removeUnit(unit);
-        createUnit(unit, keys, primaryKey);
+        StorageEntry patch = patchBuilder.build();
         
-        for (StorageEntry entry : entries)
+        if (patch.getKeys().isEmpty())
+            return;
+        
+        Map<Long, String> targets = findTargets(unit, index, selector);
+        
+        if (targets.isEmpty())
+            return;
+        
+        String primaryKey = index.header.primaryKey;
+        String newPrimaryValue = null;
+        
+        if (primaryKey != null && patch.containsKey(primaryKey))
         {
-            if (SqlUtils.resolveSelector(selector, entry))
+            newPrimaryValue = nullToEmpty(patch.get(primaryKey));
+            
+            Long existingOrdinal = index.ordinals.get(newPrimaryValue);
+            
+            if (targets.size() > 1 || (existingOrdinal != null
+                    && !targets.containsKey(existingOrdinal)))
             {
-                for (StorageDatum datum : entrySubset)
-                {
-                    entry.put(datum.getKey(), datum.getValue());
-                }
+                throw new DuplicateEntryException(
+                        "Duplicate primary key: " + newPrimaryValue
+                );
+            }
+        }
+        
+        StringBuilder sb = new StringBuilder();
+        
+        for (Long ordinal : targets.keySet())
+        {
+            sb.append(formatPatch(ordinal, patch));
+        }
+        
+        appendLines(unit, sb.toString());
+        
+        index.pendingCount += targets.size();
+        
+        if (newPrimaryValue != null)
+        {
+            for (Map.Entry<Long, String> target : targets.entrySet())
+            {
+                index.ordinals.remove(target.getValue());
+                index.ordinals.put(newPrimaryValue, target.getKey());
             }
-            
-            addEntry(unit, entry);
         }
     }
     
+    /**
+     * Appends a tombstone line for every matching record; the records
+     * themselves are left untouched until the unit gets compacted.
+     */
     @Override
-    public void removeEntries(String unit, Selector selector) throws IOException
+    public synchronized void removeEntries(String unit, Selector selector)
+            throws IOException
     {
         if (!connected)
             throw new IOException("Database closed.");
         
-        UnitKeys keys = getKeys(unit);
-        String primaryKey = getPrimaryKey(unit);
+        UnitIndex index = getIndex(unit);
+        Map<Long, String> targets = findTargets(unit, index, selector);
         
-        List<StorageEntry> entries = selectEntries(unit);
+        if (targets.isEmpty())
+            return;
         
-        removeUnit(unit);
-        createUnit(unit, keys, primaryKey);
+        StringBuilder sb = new StringBuilder();
         
-        for (StorageEntry entry : entries)
+        for (Long ordinal : targets.keySet())
         {
-            if (!SqlUtils.resolveSelector(selector, entry))
+            sb.append(TOMBSTONE_PREFIX).append(ordinal).append("\r\n");
+        }
+        
+        appendLines(unit, sb.toString());
+        
+        index.pendingCount += targets.size();
+        index.liveCount -= targets.size();
+        
+        if (index.header.primaryKey != null)
+        {
+            for (String primaryValue : targets.values())
             {
-                addEntry(unit, entry);
+                index.ordinals.remove(primaryValue);
             }
         }
     }
     
+    @Override
+    public synchronized void removeEntries(
+            String unit, Collection<String> primaryKeys
+    ) throws IOException
+    {
+        if (!connected)
+            throw new IOException("Database closed.");
+        
+        UnitIndex index = getIndex(unit);
+        
+        if (index.header.primaryKey == null)
+            throw new IOException("Unit has no primary key: " + unit);
+        
+        StringBuilder sb = new StringBuilder();
+        
+        for (String primaryValue : primaryKeys)
+        {
+            Long ordinal = index.ordinals.remove(primaryValue);
+            
+            if (ordinal != null)
+            {
+                sb.append(TOMBSTONE_PREFIX).append(ordinal).append("\r\n");
+                
+                index.pendingCount++;
+                index.liveCount--;
+            }
+        }
+        
+        if (sb.length() > 0)
+        {
+            appendLines(unit, sb.toString());
+        }
+    }
+    
     @Override
     public boolean isAutobatchEnabled()
     {
@@ -420,14 +623,440 @@ public final class CsvStorage implements Storage
         // Batching is not supported.
     }
     
-    private String escapeValue(String s)
+    private Header getHeader(String unit) throws IOException
+    {
+        UnitIndex index = indexes.get(unit);
+        
+        if (index != null)
+            return index.header;
+        
+        try (
+                FileReader fr = new FileReader(new File(dir, unit));
+                BufferedReader br = new BufferedReader(fr);
+        )
+        {
+            return parseHeader(br.readLine());
+        }
+    }
+    
+    /**
+     * Returns the index of the given unit, building it with a full scan
+     * of the unit file if the unit has not been indexed yet.
+     */
+    private UnitIndex getIndex(String unit) throws IOException
+    {
+        UnitIndex index = indexes.get(unit);
+        
+        if (index != null)
+            return index;
+        
+        File file = new File(dir, unit);
+        Map<Long, StorageEntry> patches = new HashMap<>();
+        Set<Long> tombstones = new HashSet<>();
+        
+        final UnitIndex newIndex = new UnitIndex(getHeader(unit));
+        
+        newIndex.pendingCount = readPatches(file, patches, tombstones);
+        newIndex.recordCount = readRecords(file, patches, tombstones,
+                new RecordVisitor()
+        {
+            @Override
+            public void visit(long ordinal, StorageEntry entry)
+            {
+                newIndex.liveCount++;
+                
+                if (newIndex.header.primaryKey != null)
+                {
+                    newIndex.ordinals.put(
+                            nullToEmpty(entry.get(newIndex.header.primaryKey)),
+                            ordinal
+                    );
+                }
+            }
+        });
+        
+        indexes.put(unit, newIndex);
+        
+        return newIndex;
+    }
+    
+    /**
+     * Finds live records matched by the selector, mapping their ordinals
+     * to their primary-key values.
+     * 
+     * <p> Conditions testing the primary key for equality are resolved
+     * from the index without reading the unit file.
+     */
+    private Map<Long, String> findTargets(
+            String unit, UnitIndex index, Selector selector
+    ) throws IOException
+    {
+        final String primaryKey = index.header.primaryKey;
+        final Map<Long, String> targets = new LinkedHashMap<>();
+        
+        if (primaryKey != null && selector instanceof SelectorCondition)
+        {
+            SelectorCondition condition = (SelectorCondition) selector;
+            
+            if (condition.getRelation() == SelectorCondition.Relation.EQUALS
+                    && primaryKey.equals(condition.getKey()))
+            {
+                Long ordinal = index.ordinals.get(condition.getValue());
+                
+                if (ordinal != null)
+                {
+                    targets.put(ordinal, condition.getValue());
+                }
+                
+                return targets;
+            }
+        }
+        
+        final CompiledSelector compiledSelector =
+                CompiledSelector.compile(selector);
+        
+        scan(unit, new RecordVisitor()
+        {
+            @Override
+            public void visit(long ordinal, StorageEntry entry)
+            {
+                if (compiledSelector.test(entry))
+                {
+                    targets.put(ordinal, (primaryKey != null)
+                            ? nullToEmpty(entry.get(primaryKey)) : null);
+                }
+            }
+        });
+        
+        return targets;
+    }
+    
+    /**
+     * Visits every live record of the unit with its patches applied.
+     */
+    private void scan(String unit, RecordVisitor visitor) throws IOException
+    {
+        File file = new File(dir, unit);
+        UnitIndex index = indexes.get(unit);
+        Map<Long, StorageEntry> patches = new HashMap<>();
+        Set<Long> tombstones = new HashSet<>();
+        
+        // A compacted unit has no patches nor tombstones to collect.
+        if (index == null || index.pendingCount > 0)
+        {
+            readPatches(file, patches, tombstones);
+        }
+        
+        readRecords(file, patches, tombstones, visitor);
+    }
+    
+    /**
+     * Collects patch and tombstone lines of a unit file.
+     * 
+     * @return the number of lines collected.
+     */
+    private long readPatches(
+            File file,
+            Map<Long, StorageEntry> patches,
+            Set<Long> tombstones
+    ) throws IOException
+    {
+        long count = 0;
+        
+        try (
+                FileReader fr = new FileReader(file);
+                BufferedReader br = new BufferedReader(fr);
+        )
+        {
+            if (br.readLine() == null)
+                throw new IOException("Null line.");
+            
+            String record;
+            
+            while ((record = readRecord(br)) != null)
+            {
+                if (record.startsWith(PATCH_PREFIX))
+                {
+                    int separator = record.indexOf(',');
+                    long ordinal = Long.parseLong(
+                            record.substring(PATCH_PREFIX.length(), separator)
+                    );
+                    String[] values = record.substring(separator + 1)
+                            .split("(?<=\"),(?=\")");
+                    StorageEntry patch = patches.get(ordinal);
+                    
+                    if (patch == null)
+                    {
+                        patch = new StorageEntry.Builder().build();
+                        patches.put(ordinal, patch);
+                    }
+                    
+                    for (int i = 0; i + 1 < values.length; i += 2)
+                    {
+                        patch.put(unescapeValue(values[i]),
+                                unescapeValue(values[i + 1]));
+                    }
+                    
+                    count++;
+                }
+                else if (record.startsWith(TOMBSTONE_PREFIX))
+                {
+                    tombstones.add(Long.parseLong(
+                            record.substring(TOMBSTONE_PREFIX.length())
+                    ));
+                    
+                    count++;
+                }
+            }
+        }
+        
+        return count;
+    }
+    
+    /**
+     * Passes every record of a unit file that has not been removed
+     * to the visitor, applying collected patches on the way.
+     * 
+     * @return the number of records in the file, including removed ones.
+     */
+    private long readRecords(
+            File file,
+            Map<Long, StorageEntry> patches,
+            Set<Long> tombstones,
+            RecordVisitor visitor
+    ) throws IOException
+    {
+        long ordinal = 0;
+        
+        try (
+                FileReader fr = new FileReader(file);
+                BufferedReader br = new BufferedReader(fr);
+        )
+        {
+            String[] tableKeys = parseHeader(br.readLine()).keys;
+            String record;
+            
+            while ((record = readRecord(br)) != null)
+            {
+                if (!record.startsWith("\""))
+                    continue;
+                
+                long currentOrdinal = ordinal++;
+                
+                if (tombstones.contains(currentOrdinal))
+                    continue;
+                
+                String[] lineValues = record.split("(?<=\"),(?=\")");
+                StorageEntry.Builder entryBuilder = new StorageEntry.Builder();
+                
+                for (int i = 0; i < lineValues.length; i++)
+                {
+                    entryBuilder.put(tableKeys[i],
+                            unescapeValue(lineValues[i]));
+                }
+                
+                StorageEntry patch = patches.get(currentOrdinal);
+                
+                if (patch != null)
+                {
+                    entryBuilder.putAll(patch);
+                }
+                
+                visitor.visit(currentOrdinal, entryBuilder.build());
+            }
+        }
+        
+        return ordinal;
+    }
+    
+    /**
+     * Rewrites the unit file so that it contains only the current state
+     * of live records, under the given header.
+     */
+    private void rewriteUnit(String unit, final Header header)
+            throws IOException
+    {
+        File file = new File(dir, unit);
+        File tempFile = new File(dir, unit + COMPACTION_SUFFIX);
+        final UnitIndex newIndex = new UnitIndex(header);
+        
+        try (
+                final FileWriter fw = new FileWriter(tempFile);
+                final BufferedWriter bw = new BufferedWriter(fw);
+        )
+        {
+            bw.write(formatHeader(header));
+            
+            scan(unit, new RecordVisitor()
+            {
+                @Override
+                public void visit(long ordinal, StorageEntry entry)
+                        throws IOException
+                {
+                    bw.write(formatRecord(header, entry));
+                    
+                    if (header.primaryKey != null)
+                    {
+                        newIndex.ordinals.put(
+                                nullToEmpty(entry.get(header.primaryKey)),
+                                newIndex.recordCount
+                        );
+                    }
+                    
+                    newIndex.recordCount++;
+                    newIndex.liveCount++;
+                }
+            });
+        }
+        
+        Files.move(tempFile.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        
+        indexes.put(unit, newIndex);
+    }
+    
+    private void appendLines(String unit, String lines) throws IOException
+    {
+        try (
+                FileWriter fw = new FileWriter(new File(dir, unit), true);
+                BufferedWriter bw = new BufferedWriter(fw);
+        )
+        {
+            bw.write(lines);
+        }
+    }
+    
+    /**
+     * Reads a single logical line, joining records spanning multiple lines.
+     * 
+     * @return the line, or {@code null} if the end of the file was reached.
+     */
+    private static String readRecord(BufferedReader br) throws IOException
+    {
+        String line = br.readLine();
+        
+        while (line != null && line.isEmpty())
+        {
+            line = br.readLine();
+        }
+        
+        if (line == null || line.startsWith(TOMBSTONE_PREFIX))
+            return line;
+        
+        StringBuilder lineBuilder = new StringBuilder(line);
+        
+        while (!line.endsWith("\""))
+        {
+            line = br.readLine();
+            
+            if (line == null)
+                throw new IOException("Corrupted CSV file");
+            
+            lineBuilder.append("\r\n");
+            lineBuilder.append(line);
+        }
+        
+        return lineBuilder.toString();
+    }
+    
+    private static Header parseHeader(String line) throws IOException
+    {
+        if (line == null)
+            throw new IOException("Null line.");
+        
+        String[] keys = line.split(",");
+        String primaryKey = null;
+        
+        for (int i = 0; i < keys.length; i++)
+        {
+            if (keys[i].startsWith(PRIMARY_KEY_MARKER))
+            {
+                keys[i] = unescapeValue(
+                        keys[i].substring(PRIMARY_KEY_MARKER.length())
+                );
+                primaryKey = keys[i];
+            }
+            else
+            {
+                keys[i] = unescapeValue(keys[i]);
+            }
+        }
+        
+        return new Header(keys, primaryKey);
+    }
+    
+    private static String formatHeader(Header header)
+    {
+        StringBuilder sb = new StringBuilder();
+        
+        for (String key : header.keys)
+        {
+            if (sb.length() > 0)
+                sb.append(",");
+            
+            if (key.equals(header.primaryKey))
+                sb.append(PRIMARY_KEY_MARKER);
+            
+            sb.append(escapeValue(key));
+        }
+        
+        sb.append("\r\n");
+        
+        return sb.toString();
+    }
+    
+    private static String formatRecord(Header header, StorageEntry entry)
+    {
+        StringBuilder sb = new StringBuilder();
+        
+        for (String key : header.keys)
+        {
+            if (sb.length() > 0)
+            {
+                sb.append(",");
+            }
+            
+            sb.append(escapeValue(nullToEmpty(entry.get(key))));
+        }
+        
+        sb.append("\r\n");
+        
+        return sb.toString();
+    }
+    
+    private static String formatPatch(long ordinal, StorageEntry patch)
+    {
+        StringBuilder sb = new StringBuilder();
+        
+        sb.append(PATCH_PREFIX);
+        sb.append(ordinal);
+        
+        for (StorageDatum datum : patch)
+        {
+            sb.append(",");
+            sb.append(escapeValue(datum.getKey()));
+            sb.append(",");
+            sb.append(escapeValue(nullToEmpty(datum.getValue())));
+        }
+        
+        sb.append("\r\n");
+        
+        return sb.toString();
+    }
+    
+    private static String nullToEmpty(String s)
+    {
+        return (s == null) ? "" : s;
+    }
+    
+    private static String escapeValue(String s)
     {
         s = s.replace(",", "\\,");
         
         return "\"" + s + "\"";
     }
     
-    private String unescapeValue(String s)
+    private static String unescapeValue(String s)
     {
         if (s == null)
             throw new IllegalArgumentException();
@@ -448,6 +1077,62 @@ public final class CsvStorage implements Storage
         return s;
     }
     
+    private interface RecordVisitor
+    {
+        public void visit(long ordinal, StorageEntry entry) throws IOException;
+    }
+    
+    private static final class Header
+    {
+        public Header(String[] keys, String primaryKey)
+        {
+            this.keys = keys;
+            this.primaryKey = primaryKey;
+        }
+        
+        public final String[] keys;
+        public final String primaryKey;
+    }
+    
+    private static final class UnitIndex
+    {
+        public UnitIndex(Header header)
+        {
+            this.header = header;
+        }
+        
+        public boolean needsCompaction(double threshold)
+        {
+            long lineCount = recordCount + pendingCount;
+            long garbageCount = lineCount - liveCount;
+            
+            return lineCount >= MIN_COMPACTION_LINES
+                    && garbageCount > threshold * lineCount;
+        }
+        
+        public final Header header;
+        
+        /**
+         * Maps primary-key values to ordinals of live records;
+         * left empty if the unit has no primary key.
+         */
+        public final Map<String, Long> ordinals = new HashMap<>();
+        
+        public long recordCount = 0;
+        public long liveCount = 0;
+        public long pendingCount = 0;
+    }
+    
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+    
+    private static final long MIN_COMPACTION_LINES = 64;
+    private static final String PRIMARY_KEY_MARKER = "*";
+    private static final String PATCH_PREFIX = "~";
+    private static final String TOMBSTONE_PREFIX = "-";
+    private static final String COMPACTION_SUFFIX = ".compacting";
+    
     private final File dir;
+    private final double compactionThreshold;
     private boolean connected = false;
+    private final Map<String, UnitIndex> indexes = new HashMap<>();
 }
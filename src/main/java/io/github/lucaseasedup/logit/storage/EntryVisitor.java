@@ -0,0 +1,11 @@
+package io.github.lucaseasedup.logit.storage;
+
+import java.io.IOException;
+
+/**
+ * Receives entries one at a time from {@link Storage#forEachEntry}.
+ */
+public interface EntryVisitor
+{
+    public void visit(StorageEntry entry) throws IOException;
+}
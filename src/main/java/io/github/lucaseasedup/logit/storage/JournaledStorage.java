@@ -0,0 +1,1061 @@
+package io.github.lucaseasedup.logit.storage;
+
+import io.github.lucaseasedup.logit.LogItCore;
+import io.github.lucaseasedup.logit.logging.CustomLevel;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+ * Passes every call on to another storage, and keeps accepting writes
+ * while that storage is unreachable by recording them in a
+ * {@link StorageJournal}.
+ * 
+ * <p> The storage is considered unreachable once a call to it fails
+ * and a ping right after that fails as well. From then on, every
+ * mutating call is appended to the journal and reported as successful,
+ * while reads fail straight away so that callers can fall back on
+ * whatever they have cached. No more than once per retry interval,
+ * a call on this storage tries to reconnect. Once that succeeds,
+ * the journal is replayed in order, in batches, and only then
+ * does this storage go back online.
+ * 
+ * <p> Writes queued by autobatch when the storage goes away are moved
+ * to the journal as well, since the batch they were in is lost.
+ * 
+ * <p> Reads are not synchronized, so they may run concurrently
+ * if the underlying storage allows it.
+ */
+public final class JournaledStorage implements Storage
+{
+    public JournaledStorage(
+            Storage storage, StorageJournal journal, long retryInterval
+    )
+    {
+        if (storage == null || journal == null || retryInterval < 0)
+            throw new IllegalArgumentException();
+        
+        this.storage = storage;
+        this.journal = journal;
+        this.retryInterval = retryInterval;
+    }
+    
+    /**
+     * Connects to the underlying storage and replays
+     * any records left in the journal by a previous session.
+     */
+    @Override
+    public synchronized void connect() throws IOException
+    {
+        storage.connect();
+        journal.open();
+        
+        if (journal.getPendingCount() > 0)
+        {
+            log(Level.INFO, "Replaying " + journal.getPendingCount()
+                    + " journaled storage operations...");
+            
+            replay();
+        }
+    }
+    
+    @Override
+    public boolean isConnected() throws IOException
+    {
+        if (offline)
+            return false;
+        
+        return storage.isConnected();
+    }
+    
+    /**
+     * Pings the underlying storage or, if it is offline,
+     * tries to bring it back online.
+     * 
+     * @throws IOException if the storage could not be reached.
+     */
+    @Override
+    public synchronized void ping() throws IOException
+    {
+        if (offline)
+        {
+            lastRetry = 0L;
+            
+            if (!tryRecover())
+            {
+                throw new IOException("Storage is offline; "
+                        + journal.getPendingCount()
+                        + " operations are waiting in the journal.");
+            }
+            
+            return;
+        }
+        
+        try
+        {
+            storage.ping();
+        }
+        catch (IOException ex)
+        {
+            goOffline(ex);
+            
+            throw ex;
+        }
+    }
+    
+    @Override
+    public synchronized void close() throws IOException
+    {
+        try
+        {
+            journal.close();
+        }
+        finally
+        {
+            storage.close();
+        }
+    }
+    
+    @Override
+    public List<String> getUnitNames() throws IOException
+    {
+        ensureOnline();
+        
+        try
+        {
+            return storage.getUnitNames();
+        }
+        catch (IOException ex)
+        {
+            throw checkReachable(ex);
+        }
+    }
+    
+    @Override
+    public UnitKeys getKeys(String unit) throws IOException
+    {
+        ensureOnline();
+        
+        try
+        {
+            return storage.getKeys(unit);
+        }
+        catch (IOException ex)
+        {
+            throw checkReachable(ex);
+        }
+    }
+    
+    @Override
+    public String getPrimaryKey(String unit) throws IOException
+    {
+        ensureOnline();
+        
+        try
+        {
+            return storage.getPrimaryKey(unit);
+        }
+        catch (IOException ex)
+        {
+            throw checkReachable(ex);
+        }
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(String unit) throws IOException
+    {
+        ensureOnline();
+        
+        try
+        {
+            return storage.selectEntries(unit);
+        }
+        catch (IOException ex)
+        {
+            throw checkReachable(ex);
+        }
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(String unit, Selector selector)
+            throws IOException
+    {
+        ensureOnline();
+        
+        try
+        {
+            return storage.selectEntries(unit, selector);
+        }
+        catch (IOException ex)
+        {
+            throw checkReachable(ex);
+        }
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(String unit, List<String> keys)
+            throws IOException
+    {
+        ensureOnline();
+        
+        try
+        {
+            return storage.selectEntries(unit, keys);
+        }
+        catch (IOException ex)
+        {
+            throw checkReachable(ex);
+        }
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(
+            String unit, List<String> keys, Selector selector
+    ) throws IOException
+    {
+        ensureOnline();
+        
+        try
+        {
+            return storage.selectEntries(unit, keys, selector);
+        }
+        catch (IOException ex)
+        {
+            throw checkReachable(ex);
+        }
+    }
+    
+    @Override
+    public void forEachEntry(String unit, EntryVisitor visitor)
+            throws IOException
+    {
+        ensureOnline();
+        
+        try
+        {
+            storage.forEachEntry(unit, visitor);
+        }
+        catch (IOException ex)
+        {
+            throw checkReachable(ex);
+        }
+    }
+    
+    @Override
+    public void forEachEntry(
+            String unit, List<String> keys, Selector selector,
+            EntryVisitor visitor
+    ) throws IOException
+    {
+        ensureOnline();
+        
+        try
+        {
+            storage.forEachEntry(unit, keys, selector, visitor);
+        }
+        catch (IOException ex)
+        {
+            throw checkReachable(ex);
+        }
+    }
+    
+    @Override
+    public synchronized void createUnit(
+            String unit, UnitKeys keys, String primaryKey
+    ) throws IOException
+    {
+        List<String> arguments = new ArrayList<>();
+        
+        arguments.add(unit);
+        arguments.add(primaryKey);
+        encodeKeys(keys, arguments);
+        
+        write(OP_CREATE_UNIT, arguments);
+    }
+    
+    @Override
+    public synchronized void renameUnit(String unit, String newName)
+            throws IOException
+    {
+        write(OP_RENAME_UNIT, Arrays.asList(unit, newName));
+    }
+    
+    @Override
+    public synchronized void eraseUnit(String unit) throws IOException
+    {
+        write(OP_ERASE_UNIT, Arrays.asList(unit));
+    }
+    
+    @Override
+    public synchronized void removeUnit(String unit) throws IOException
+    {
+        write(OP_REMOVE_UNIT, Arrays.asList(unit));
+    }
+    
+    @Override
+    public List<String> getIndexes(String unit) throws IOException
+    {
+        ensureOnline();
+        
+        try
+        {
+            return storage.getIndexes(unit);
+        }
+        catch (IOException ex)
+        {
+            throw checkReachable(ex);
+        }
+    }
+    
+    @Override
+    public synchronized void createIndex(String unit, String key)
+            throws IOException
+    {
+        write(OP_CREATE_INDEX, Arrays.asList(unit, key));
+    }
+    
+    @Override
+    public synchronized void dropIndex(String unit, String key)
+            throws IOException
+    {
+        write(OP_DROP_INDEX, Arrays.asList(unit, key));
+    }
+    
+    @Override
+    public synchronized void addKey(String unit, String key, DataType type)
+            throws IOException
+    {
+        if (type == null)
+            throw new IllegalArgumentException();
+        
+        write(OP_ADD_KEY, Arrays.asList(unit, key, type.name()));
+    }
+    
+    @Override
+    public synchronized void addEntry(String unit, StorageEntry entry)
+            throws DuplicateEntryException, IOException
+    {
+        List<String> arguments = new ArrayList<>();
+        
+        arguments.add(unit);
+        encodeEntry(entry, arguments);
+        
+        write(OP_ADD_ENTRY, arguments);
+    }
+    
+    @Override
+    public synchronized void addEntries(
+            String unit, Iterable<StorageEntry> entries
+    ) throws DuplicateEntryException, IOException
+    {
+        if (entries == null)
+            throw new IllegalArgumentException();
+        
+        List<String> arguments = new ArrayList<>();
+        List<String> encodedEntries = new ArrayList<>();
+        int count = 0;
+        
+        for (StorageEntry entry : entries)
+        {
+            encodeEntry(entry, encodedEntries);
+            count++;
+        }
+        
+        arguments.add(unit);
+        arguments.add(String.valueOf(count));
+        arguments.addAll(encodedEntries);
+        
+        write(OP_ADD_ENTRIES, arguments);
+    }
+    
+    @Override
+    public synchronized void updateEntries(
+            String unit, StorageEntry entrySubset, Selector selector
+    ) throws IOException
+    {
+        List<String> arguments = new ArrayList<>();
+        
+        arguments.add(unit);
+        encodeEntry(entrySubset, arguments);
+        encodeSelector(selector, arguments);
+        
+        write(OP_UPDATE_ENTRIES, arguments);
+    }
+    
+    @Override
+    public synchronized void removeEntries(String unit, Selector selector)
+            throws IOException
+    {
+        List<String> arguments = new ArrayList<>();
+        
+        arguments.add(unit);
+        encodeSelector(selector, arguments);
+        
+        write(OP_REMOVE_ENTRIES, arguments);
+    }
+    
+    @Override
+    public synchronized void removeEntries(
+            String unit, Collection<String> primaryKeys
+    ) throws IOException
+    {
+        if (primaryKeys == null)
+            throw new IllegalArgumentException();
+        
+        List<String> arguments = new ArrayList<>();
+        
+        arguments.add(unit);
+        arguments.add(String.valueOf(primaryKeys.size()));
+        arguments.addAll(primaryKeys);
+        
+        write(OP_REMOVE_ENTRIES_BY_PK, arguments);
+    }
+    
+    @Override
+    public boolean isAutobatchEnabled()
+    {
+        return storage.isAutobatchEnabled();
+    }
+    
+    @Override
+    public synchronized void setAutobatchEnabled(boolean status)
+    {
+        storage.setAutobatchEnabled(status);
+    }
+    
+    @Override
+    public synchronized void executeBatch() throws IOException
+    {
+        if (!offline)
+        {
+            try
+            {
+                storage.executeBatch();
+                batchedRecords.clear();
+                
+                return;
+            }
+            catch (IOException ex)
+            {
+                if (isReachable())
+                {
+                    batchedRecords.clear();
+                    
+                    throw ex;
+                }
+                
+                goOffline(ex);
+            }
+        }
+        
+        journal.sync();
+    }
+    
+    @Override
+    public synchronized void clearBatch() throws IOException
+    {
+        batchedRecords.clear();
+        
+        if (!offline)
+        {
+            storage.clearBatch();
+        }
+    }
+    
+    public Storage getStorage()
+    {
+        return storage;
+    }
+    
+    public StorageJournal getJournal()
+    {
+        return journal;
+    }
+    
+    /**
+     * Checks whether the underlying storage is considered unreachable
+     * and writes to it are being journaled.
+     */
+    public boolean isOffline()
+    {
+        return offline;
+    }
+    
+    /**
+     * Returns the time the storage went offline, in milliseconds
+     * since the epoch, or {@code 0} if it is online.
+     */
+    public long getOfflineSince()
+    {
+        return offlineSince;
+    }
+    
+    /**
+     * Returns the number of records replayed
+     * when the storage last came back online.
+     */
+    public int getLastReplayCount()
+    {
+        return lastReplayCount;
+    }
+    
+    /**
+     * Returns the time the journal was last replayed, in milliseconds
+     * since the epoch, or {@code 0} if it has not been replayed yet.
+     */
+    public long getLastReplayTime()
+    {
+        return lastReplayTime;
+    }
+    
+    /**
+     * Runs a mutating operation on the underlying storage,
+     * or appends it to the journal if the storage is unreachable.
+     */
+    private void write(String operation, List<String> arguments)
+            throws IOException
+    {
+        if (!offline || tryRecover())
+        {
+            try
+            {
+                apply(operation, arguments.iterator());
+                
+                if (storage.isAutobatchEnabled())
+                {
+                    batchedRecords.add(new PendingRecord(operation, arguments));
+                }
+                
+                return;
+            }
+            catch (DuplicateEntryException ex)
+            {
+                throw ex;
+            }
+            catch (IOException ex)
+            {
+                if (isReachable())
+                    throw ex;
+                
+                goOffline(ex);
+            }
+        }
+        
+        journal.append(operation, arguments, !storage.isAutobatchEnabled());
+    }
+    
+    private void ensureOnline() throws IOException
+    {
+        if (offline && !tryRecover())
+            throw new IOException("Storage is offline.");
+    }
+    
+    /**
+     * Takes the storage offline if it cannot be pinged,
+     * and returns the exception so it can be rethrown.
+     */
+    private IOException checkReachable(IOException ex)
+    {
+        synchronized (this)
+        {
+            if (!offline && !isReachable())
+            {
+                goOffline(ex);
+            }
+        }
+        
+        return ex;
+    }
+    
+    private boolean isReachable()
+    {
+        try
+        {
+            storage.ping();
+            
+            return true;
+        }
+        catch (IOException ex)
+        {
+            return false;
+        }
+    }
+    
+    private void goOffline(IOException cause)
+    {
+        if (offline)
+            return;
+        
+        offline = true;
+        offlineSince = System.currentTimeMillis();
+        lastRetry = offlineSince;
+        
+        log(Level.WARNING, "Storage is unreachable, journaling writes to "
+                + journal.getFile() + " until it comes back", cause);
+        
+        // The batch was lost along with the connection.
+        try
+        {
+            for (PendingRecord record : batchedRecords)
+            {
+                journal.append(record.operation, record.arguments, false);
+            }
+            
+            journal.sync();
+        }
+        catch (IOException ex)
+        {
+            log(Level.SEVERE, "Could not journal batched storage operations", ex);
+        }
+        finally
+        {
+            batchedRecords.clear();
+        }
+        
+        try
+        {
+            storage.clearBatch();
+        }
+        catch (IOException ex)
+        {
+            log(CustomLevel.INTERNAL, "Could not clear the storage batch");
+        }
+    }
+    
+    /**
+     * Tries to reconnect to the underlying storage and replay the journal,
+     * unless the last attempt was made less than a retry interval ago.
+     * 
+     * @return {@code true} if the storage is online.
+     */
+    private synchronized boolean tryRecover()
+    {
+        if (!offline)
+            return true;
+        
+        long now = System.currentTimeMillis();
+        
+        if (now - lastRetry < retryInterval)
+            return false;
+        
+        lastRetry = now;
+        
+        if (!isReachable())
+        {
+            try
+            {
+                storage.close();
+            }
+            catch (IOException ex)
+            {
+                log(CustomLevel.INTERNAL, "Could not close the storage");
+            }
+            
+            try
+            {
+                storage.connect();
+                storage.ping();
+            }
+            catch (IOException ex)
+            {
+                log(CustomLevel.INTERNAL, "Storage is still unreachable");
+                
+                return false;
+            }
+        }
+        
+        log(Level.INFO, "Storage is reachable again, replaying "
+                + journal.getPendingCount() + " journaled operations...");
+        
+        try
+        {
+            replay();
+        }
+        catch (IOException ex)
+        {
+            log(Level.WARNING, "Could not replay the storage journal", ex);
+            
+            return false;
+        }
+        
+        offline = false;
+        offlineSince = 0L;
+        
+        return true;
+    }
+    
+    /**
+     * Runs the records in the journal on the underlying storage in order,
+     * in batches of {@link #REPLAY_BATCH_SIZE}, and truncates the journal.
+     * 
+     * <p> A record the storage rejects while still being reachable,
+     * such as an entry that has been added in the meantime, is logged
+     * and skipped.
+     */
+    private void replay() throws IOException
+    {
+        List<StorageJournal.Record> records = journal.readPending();
+        boolean autobatch = storage.isAutobatchEnabled();
+        int replayed = 0;
+        
+        if (journal.getCorruptCount() > 0)
+        {
+            log(Level.WARNING, "Skipping " + journal.getCorruptCount()
+                    + " corrupt records in " + journal.getFile());
+        }
+        
+        try
+        {
+            for (int i = 0; i < records.size(); i += REPLAY_BATCH_SIZE)
+            {
+                List<StorageJournal.Record> chunk = records.subList(
+                        i, Math.min(records.size(), i + REPLAY_BATCH_SIZE)
+                );
+                
+                replayChunk(chunk);
+                journal.checkpoint(
+                        chunk.get(chunk.size() - 1).getSequence(), chunk.size()
+                );
+                replayed += chunk.size();
+            }
+            
+            journal.truncate();
+        }
+        finally
+        {
+            storage.setAutobatchEnabled(autobatch);
+        }
+        
+        lastReplayCount = replayed;
+        lastReplayTime = System.currentTimeMillis();
+        
+        log(Level.INFO, "Replayed " + replayed + " journaled storage operations.");
+    }
+    
+    private void replayChunk(List<StorageJournal.Record> chunk)
+            throws IOException
+    {
+        storage.setAutobatchEnabled(true);
+        
+        try
+        {
+            for (StorageJournal.Record record : chunk)
+            {
+                apply(record.getOperation(), record.getArguments().iterator());
+            }
+            
+            storage.executeBatch();
+            
+            return;
+        }
+        catch (IOException ex)
+        {
+            storage.clearBatch();
+            
+            if (!isReachable())
+                throw ex;
+        }
+        
+        // Something in the batch was rejected; find out what, one by one.
+        storage.setAutobatchEnabled(false);
+        
+        for (StorageJournal.Record record : chunk)
+        {
+            try
+            {
+                apply(record.getOperation(), record.getArguments().iterator());
+            }
+            catch (IOException ex)
+            {
+                if (!isReachable())
+                    throw ex;
+                
+                log(Level.WARNING, "Skipping journaled storage operation #"
+                        + record.getSequence() + " (" + record.getOperation()
+                        + ")", ex);
+            }
+        }
+    }
+    
+    private void apply(String operation, Iterator<String> it)
+            throws IOException
+    {
+        switch (operation)
+        {
+        case OP_CREATE_UNIT:
+        {
+            String unit = it.next();
+            String primaryKey = it.next();
+            
+            storage.createUnit(unit, decodeKeys(it), primaryKey);
+            
+            break;
+        }
+        case OP_RENAME_UNIT:
+            storage.renameUnit(it.next(), it.next());
+            break;
+        
+        case OP_ERASE_UNIT:
+            storage.eraseUnit(it.next());
+            break;
+        
+        case OP_REMOVE_UNIT:
+            storage.removeUnit(it.next());
+            break;
+        
+        case OP_CREATE_INDEX:
+            storage.createIndex(it.next(), it.next());
+            break;
+        
+        case OP_DROP_INDEX:
+            storage.dropIndex(it.next(), it.next());
+            break;
+        
+        case OP_ADD_KEY:
+            storage.addKey(it.next(), it.next(), DataType.valueOf(it.next()));
+            break;
+        
+        case OP_ADD_ENTRY:
+            storage.addEntry(it.next(), decodeEntry(it));
+            break;
+        
+        case OP_ADD_ENTRIES:
+        {
+            String unit = it.next();
+            int count = Integer.parseInt(it.next());
+            List<StorageEntry> entries = new ArrayList<>(count);
+            
+            for (int i = 0; i < count; i++)
+            {
+                entries.add(decodeEntry(it));
+            }
+            
+            storage.addEntries(unit, entries);
+            
+            break;
+        }
+        case OP_UPDATE_ENTRIES:
+        {
+            String unit = it.next();
+            StorageEntry entrySubset = decodeEntry(it);
+            
+            storage.updateEntries(unit, entrySubset, decodeSelector(it));
+            
+            break;
+        }
+        case OP_REMOVE_ENTRIES:
+            storage.removeEntries(it.next(), decodeSelector(it));
+            break;
+        
+        case OP_REMOVE_ENTRIES_BY_PK:
+        {
+            String unit = it.next();
+            int count = Integer.parseInt(it.next());
+            List<String> primaryKeys = new ArrayList<>(count);
+            
+            for (int i = 0; i < count; i++)
+            {
+                primaryKeys.add(it.next());
+            }
+            
+            storage.removeEntries(unit, primaryKeys);
+            
+            break;
+        }
+        default:
+            throw new IOException("Unknown journaled operation: " + operation);
+        }
+    }
+    
+    private static void encodeKeys(UnitKeys keys, List<String> arguments)
+    {
+        if (keys == null)
+            throw new IllegalArgumentException();
+        
+        arguments.add(String.valueOf(keys.size()));
+        
+        for (Map.Entry<String, DataType> e : keys.entrySet())
+        {
+            arguments.add(e.getKey());
+            arguments.add(e.getValue().name());
+        }
+    }
+    
+    private static UnitKeys decodeKeys(Iterator<String> it)
+    {
+        UnitKeys keys = new UnitKeys();
+        int count = Integer.parseInt(it.next());
+        
+        for (int i = 0; i < count; i++)
+        {
+            keys.put(it.next(), DataType.valueOf(it.next()));
+        }
+        
+        return keys;
+    }
+    
+    private static void encodeEntry(StorageEntry entry, List<String> arguments)
+    {
+        if (entry == null)
+            throw new IllegalArgumentException();
+        
+        arguments.add(String.valueOf(entry.getKeys().size()));
+        
+        for (StorageDatum datum : entry)
+        {
+            arguments.add(datum.getKey());
+            arguments.add(datum.getValue());
+        }
+    }
+    
+    private static StorageEntry decodeEntry(Iterator<String> it)
+    {
+        StorageEntry.Builder entryBuilder = new StorageEntry.Builder();
+        int count = Integer.parseInt(it.next());
+        
+        for (int i = 0; i < count; i++)
+        {
+            entryBuilder.put(it.next(), it.next());
+        }
+        
+        return entryBuilder.build();
+    }
+    
+    /**
+     * Writes a selector in prefix notation.
+     */
+    private static void encodeSelector(Selector selector, List<String> arguments)
+    {
+        if (selector instanceof SelectorConstant)
+        {
+            arguments.add(SELECTOR_CONSTANT);
+            arguments.add(String.valueOf(
+                    ((SelectorConstant) selector).getValue()
+            ));
+        }
+        else if (selector instanceof SelectorCondition)
+        {
+            SelectorCondition condition = (SelectorCondition) selector;
+            
+            arguments.add(SELECTOR_CONDITION);
+            arguments.add(condition.getKey());
+            arguments.add(condition.getRelation().name());
+            arguments.add(condition.getValue());
+        }
+        else if (selector instanceof SelectorNegation)
+        {
+            SelectorCondition condition =
+                    ((SelectorNegation) selector).getOperand();
+            
+            arguments.add(SELECTOR_NEGATION);
+            arguments.add(condition.getKey());
+            arguments.add(condition.getRelation().name());
+            arguments.add(condition.getValue());
+        }
+        else if (selector instanceof SelectorBinary)
+        {
+            SelectorBinary binary = (SelectorBinary) selector;
+            
+            arguments.add(SELECTOR_BINARY);
+            arguments.add(binary.getRelation().name());
+            encodeSelector(binary.getLeftOperand(), arguments);
+            encodeSelector(binary.getRightOperand(), arguments);
+        }
+        else
+        {
+            throw new IllegalArgumentException("Unsupported selector: "
+                    + selector);
+        }
+    }
+    
+    private static Selector decodeSelector(Iterator<String> it)
+            throws IOException
+    {
+        String type = it.next();
+        
+        switch (type)
+        {
+        case SELECTOR_CONSTANT:
+            return new SelectorConstant(Boolean.parseBoolean(it.next()));
+        
+        case SELECTOR_CONDITION:
+            return new SelectorCondition(it.next(),
+                    SelectorCondition.Relation.valueOf(it.next()), it.next());
+        
+        case SELECTOR_NEGATION:
+            return new SelectorNegation(new SelectorCondition(it.next(),
+                    SelectorCondition.Relation.valueOf(it.next()), it.next()));
+        
+        case SELECTOR_BINARY:
+        {
+            SelectorBinary.Relation relation =
+                    SelectorBinary.Relation.valueOf(it.next());
+            Selector leftOperand = decodeSelector(it);
+            
+            return new SelectorBinary(leftOperand, relation, decodeSelector(it));
+        }
+        default:
+            throw new IOException("Unknown journaled selector: " + type);
+        }
+    }
+    
+    private void log(Level level, String message)
+    {
+        LogItCore.getInstance().log(level, message);
+    }
+    
+    private void log(Level level, String message, Throwable throwable)
+    {
+        LogItCore.getInstance().log(level, message, throwable);
+    }
+    
+    private static final class PendingRecord
+    {
+        public PendingRecord(String operation, List<String> arguments)
+        {
+            this.operation = operation;
+            this.arguments = arguments;
+        }
+        
+        private final String operation;
+        private final List<String> arguments;
+    }
+    
+    /**
+     * The number of journal records sent to the storage in a single batch.
+     */
+    public static final int REPLAY_BATCH_SIZE = 200;
+    
+    private static final String OP_CREATE_UNIT = "createUnit";
+    private static final String OP_RENAME_UNIT = "renameUnit";
+    private static final String OP_ERASE_UNIT = "eraseUnit";
+    private static final String OP_REMOVE_UNIT = "removeUnit";
+    private static final String OP_CREATE_INDEX = "createIndex";
+    private static final String OP_DROP_INDEX = "dropIndex";
+    private static final String OP_ADD_KEY = "addKey";
+    private static final String OP_ADD_ENTRY = "addEntry";
+    private static final String OP_ADD_ENTRIES = "addEntries";
+    private static final String OP_UPDATE_ENTRIES = "updateEntries";
+    private static final String OP_REMOVE_ENTRIES = "removeEntries";
+    private static final String OP_REMOVE_ENTRIES_BY_PK = "removeEntriesByPk";
+    
+    private static final String SELECTOR_CONSTANT = "const";
+    private static final String SELECTOR_CONDITION = "cond";
+    private static final String SELECTOR_NEGATION = "not";
+    private static final String SELECTOR_BINARY = "binary";
+    
+    private final Storage storage;
+    private final StorageJournal journal;
+    private final long retryInterval;
+    private final List<PendingRecord> batchedRecords = new ArrayList<>();
+    private volatile boolean offline = false;
+    private volatile long offlineSince = 0L;
+    private volatile int lastReplayCount = 0;
+    private volatile long lastReplayTime = 0L;
+    private long lastRetry = 0L;
+}
@@ -0,0 +1,135 @@
+package io.github.lucaseasedup.logit.storage;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An ordered set of keys shared by all {@link StorageEntry} objects
+ * holding the same keys in the same order.
+ * 
+ * <p> Schemas are interned: every schema is derived from {@link #EMPTY}
+ * by appending keys one at a time, and appending a key to a schema always
+ * yields the same instance. Entries read from one unit therefore share
+ * a single schema, which maps each key to the slot of its value.
+ * 
+ * <p> This class is thread-safe.
+ */
+final class KeySchema
+{
+    private KeySchema(String[] keys)
+    {
+        this.keys = keys;
+        
+        Map<String, Integer> slots = new HashMap<>(keys.length * 2);
+        
+        for (int i = 0; i < keys.length; i++)
+        {
+            slots.put(keys[i], i);
+        }
+        
+        this.slots = slots;
+        this.keySet = Collections.unmodifiableSet(
+                new LinkedHashSet<>(Arrays.asList(keys))
+        );
+    }
+    
+    public int size()
+    {
+        return keys.length;
+    }
+    
+    public String getKey(int slot)
+    {
+        return keys[slot];
+    }
+    
+    /**
+     * Returns the slot of a key.
+     * 
+     * @param key the key.
+     * 
+     * @return the slot, or {@code -1} if this schema does not contain the key.
+     */
+    public int getSlot(String key)
+    {
+        Integer slot = slots.get(key);
+        
+        return (slot != null) ? slot : -1;
+    }
+    
+    /**
+     * Returns an unmodifiable set of the keys in this schema, in slot order.
+     */
+    public Set<String> getKeys()
+    {
+        return keySet;
+    }
+    
+    /**
+     * Returns the schema made of the keys of this schema
+     * followed by the given key.
+     * 
+     * @param key the key to be appended; must not be in this schema.
+     * 
+     * @return the interned schema.
+     */
+    public KeySchema withKey(String key)
+    {
+        KeySchema schema = transitions.get(key);
+        
+        if (schema == null)
+        {
+            String[] extendedKeys = Arrays.copyOf(keys, keys.length + 1);
+            
+            extendedKeys[keys.length] = key;
+            
+            KeySchema newSchema = new KeySchema(extendedKeys);
+            
+            schema = transitions.putIfAbsent(key, newSchema);
+            
+            if (schema == null)
+            {
+                schema = newSchema;
+            }
+        }
+        
+        return schema;
+    }
+    
+    /**
+     * Returns the schema made of the keys of this schema
+     * except for the given one.
+     * 
+     * @param key the key to be left out.
+     * 
+     * @return the interned schema.
+     */
+    public KeySchema withoutKey(String key)
+    {
+        KeySchema schema = EMPTY;
+        
+        for (String k : keys)
+        {
+            if (!k.equals(key))
+            {
+                schema = schema.withKey(k);
+            }
+        }
+        
+        return schema;
+    }
+    
+    public static final KeySchema EMPTY = new KeySchema(new String[0]);
+    
+    private final String[] keys;
+    private final Map<String, Integer> slots;
+    private final Set<String> keySet;
+    private final ConcurrentMap<String, KeySchema> transitions =
+            new ConcurrentHashMap<>(4);
+}
@@ -0,0 +1,498 @@
+package io.github.lucaseasedup.logit.storage;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Embedded storage keeping every unit in a separate memory-mapped file
+ * with a hash index on the primary key.
+ * 
+ * <p> Conditions testing the primary key for equality are answered
+ * from the index; any other selector is resolved by scanning the unit.
+ */
+public final class MappedStorage implements Storage
+{
+    public MappedStorage(File dir)
+    {
+        if (dir == null)
+            throw new IllegalArgumentException();
+        
+        this.dir = dir;
+    }
+    
+    @Override
+    public synchronized void connect() throws IOException
+    {
+        if (!dir.isDirectory())
+        {
+            throw new IOException(
+                    "Mapped storage path is not a directory: " + dir
+            );
+        }
+        
+        connected = true;
+    }
+    
+    @Override
+    public synchronized boolean isConnected() throws IOException
+    {
+        return connected;
+    }
+    
+    /**
+     * Flushes open units to disk and compacts those
+     * holding too much garbage.
+     */
+    @Override
+    public synchronized void ping() throws IOException
+    {
+        if (!dir.isDirectory())
+        {
+            throw new IOException(
+                    "Mapped storage path is not a directory: " + dir
+            );
+        }
+        
+        for (MappedUnitFile unitFile : units.values())
+        {
+            if (unitFile.needsCompaction())
+            {
+                unitFile.compact();
+            }
+            
+            unitFile.force();
+        }
+    }
+    
+    @Override
+    public synchronized void close() throws IOException
+    {
+        try
+        {
+            for (MappedUnitFile unitFile : units.values())
+            {
+                unitFile.close();
+            }
+        }
+        finally
+        {
+            units.clear();
+            connected = false;
+        }
+    }
+    
+    @Override
+    public synchronized List<String> getUnitNames() throws IOException
+    {
+        File[] files = dir.listFiles(new FileFilter()
+        {
+            @Override
+            public boolean accept(File pathname)
+            {
+                return pathname.isFile()
+                        && pathname.getName().endsWith(UNIT_FILE_EXTENSION);
+            }
+        });
+        
+        List<String> unitNames = new LinkedList<>();
+        
+        for (File file : files)
+        {
+            String name = file.getName();
+            
+            unitNames.add(name.substring(
+                    0, name.length() - UNIT_FILE_EXTENSION.length()
+            ));
+        }
+        
+        return unitNames;
+    }
+    
+    @Override
+    public synchronized UnitKeys getKeys(String unit) throws IOException
+    {
+        return getUnitFile(unit).getKeys();
+    }
+    
+    @Override
+    public synchronized String getPrimaryKey(String unit) throws IOException
+    {
+        return getUnitFile(unit).getPrimaryKey();
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(String unit) throws IOException
+    {
+        return selectEntries(unit, null, new SelectorConstant(true));
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(String unit, Selector selector)
+            throws IOException
+    {
+        return selectEntries(unit, null, selector);
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(String unit, List<String> keys)
+            throws IOException
+    {
+        return selectEntries(unit, keys, new SelectorConstant(true));
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(
+            String unit, List<String> keys, Selector selector
+    ) throws IOException
+    {
+        final List<StorageEntry> entries = new ArrayList<>();
+        
+        forEachEntry(unit, keys, selector, new EntryVisitor()
+        {
+            @Override
+            public void visit(StorageEntry entry)
+            {
+                entries.add(entry);
+            }
+        });
+        
+        return entries;
+    }
+    
+    @Override
+    public void forEachEntry(String unit, EntryVisitor visitor)
+            throws IOException
+    {
+        forEachEntry(unit, null, new SelectorConstant(true), visitor);
+    }
+    
+    @Override
+    public synchronized void forEachEntry(
+            String unit, final List<String> keys, Selector selector,
+            final EntryVisitor visitor
+    ) throws IOException
+    {
+        forEachMatch(getUnitFile(unit), selector,
+                new MappedUnitFile.RowVisitor()
+        {
+            @Override
+            public void visit(int offset, StorageEntry row) throws IOException
+            {
+                if (keys == null)
+                {
+                    visitor.visit(row);
+                }
+                else
+                {
+                    StorageEntry.Builder entryBuilder =
+                            new StorageEntry.Builder();
+                    
+                    for (StorageDatum datum : row)
+                    {
+                        if (keys.contains(datum.getKey()))
+                        {
+                            entryBuilder.put(datum.getKey(), datum.getValue());
+                        }
+                    }
+                    
+                    visitor.visit(entryBuilder.build());
+                }
+            }
+        });
+    }
+    
+    @Override
+    public synchronized void createUnit(
+            String unit, UnitKeys keys, String primaryKey
+    ) throws IOException
+    {
+        if (!connected)
+            throw new IOException("Database closed.");
+        
+        if (primaryKey != null && !keys.containsKey(primaryKey))
+        {
+            throw new IllegalArgumentException(
+                    "Cannot create index on a non-existing key"
+            );
+        }
+        
+        File file = getFile(unit);
+        
+        if (file.exists())
+            return;
+        
+        units.put(unit, MappedUnitFile.create(file, keys, primaryKey));
+    }
+    
+    @Override
+    public synchronized void renameUnit(String unit, String newName)
+            throws IOException
+    {
+        if (!connected)
+            throw new IOException("Database closed.");
+        
+        closeUnitFile(unit);
+        
+        if (!getFile(unit).renameTo(getFile(newName)))
+            throw new IOException("Could not rename unit: " + unit);
+    }
+    
+    @Override
+    public synchronized void eraseUnit(String unit) throws IOException
+    {
+        getUnitFile(unit).erase();
+    }
+    
+    @Override
+    public synchronized void removeUnit(String unit) throws IOException
+    {
+        if (!connected)
+            throw new IOException("Database closed.");
+        
+        closeUnitFile(unit);
+        getFile(unit).delete();
+    }
+    
+    /**
+     * Returns an empty list, as mapped units are only indexed
+     * by their primary key.
+     */
+    @Override
+    public synchronized List<String> getIndexes(String unit)
+    {
+        return new ArrayList<>();
+    }
+    
+    @Override
+    public synchronized void createIndex(String unit, String key)
+    {
+        // Secondary indexes are not supported.
+    }
+    
+    @Override
+    public synchronized void dropIndex(String unit, String key)
+    {
+        // Secondary indexes are not supported.
+    }
+    
+    @Override
+    public synchronized void addKey(String unit, String key, DataType type)
+            throws IOException
+    {
+        MappedUnitFile unitFile = getUnitFile(unit);
+        UnitKeys keys = unitFile.getKeys();
+        
+        if (keys.containsKey(key))
+            throw new IOException("Key with this name already exists: " + key);
+        
+        keys.put(key, type);
+        unitFile.rebuild(keys, 0);
+    }
+    
+    @Override
+    public synchronized void addEntry(String unit, StorageEntry entry)
+            throws IOException
+    {
+        getUnitFile(unit).insert(entry);
+    }
+    
+    @Override
+    public synchronized void addEntries(
+            String unit, Iterable<StorageEntry> entries
+    ) throws IOException
+    {
+        MappedUnitFile unitFile = getUnitFile(unit);
+        
+        for (StorageEntry entry : entries)
+        {
+            unitFile.insert(entry);
+        }
+    }
+    
+    @Override
+    public synchronized void updateEntries(
+            String unit, StorageEntry entrySubset, Selector selector
+    ) throws IOException
+    {
+        MappedUnitFile unitFile = getUnitFile(unit);
+        
+        for (int offset : findOffsets(unitFile, selector))
+        {
+            unitFile.update(offset, entrySubset);
+        }
+    }
+    
+    @Override
+    public synchronized void removeEntries(String unit, Selector selector)
+            throws IOException
+    {
+        MappedUnitFile unitFile = getUnitFile(unit);
+        
+        for (int offset : findOffsets(unitFile, selector))
+        {
+            unitFile.remove(offset);
+        }
+    }
+    
+    @Override
+    public synchronized void removeEntries(
+            String unit, Collection<String> primaryKeys
+    ) throws IOException
+    {
+        MappedUnitFile unitFile = getUnitFile(unit);
+        
+        if (unitFile.getPrimaryKey() == null)
+            throw new IOException("Unit has no primary key: " + unit);
+        
+        for (String primaryKey : primaryKeys)
+        {
+            int offset = unitFile.find(primaryKey);
+            
+            if (offset >= 0)
+            {
+                unitFile.remove(offset);
+            }
+        }
+    }
+    
+    @Override
+    public boolean isAutobatchEnabled()
+    {
+        return false;
+    }
+    
+    @Override
+    public void setAutobatchEnabled(boolean status)
+    {
+        // Batching is not supported.
+    }
+    
+    @Override
+    public void executeBatch() throws IOException
+    {
+        // Batching is not supported.
+    }
+    
+    @Override
+    public void clearBatch() throws IOException
+    {
+        // Batching is not supported.
+    }
+    
+    private File getFile(String unit)
+    {
+        return new File(dir, unit + UNIT_FILE_EXTENSION);
+    }
+    
+    private MappedUnitFile getUnitFile(String unit) throws IOException
+    {
+        if (!connected)
+            throw new IOException("Database closed.");
+        
+        MappedUnitFile unitFile = units.get(unit);
+        
+        if (unitFile == null)
+        {
+            File file = getFile(unit);
+            
+            if (!file.isFile())
+                throw new IOException("Unit does not exist: " + unit);
+            
+            unitFile = MappedUnitFile.open(file);
+            units.put(unit, unitFile);
+        }
+        
+        return unitFile;
+    }
+    
+    private void closeUnitFile(String unit) throws IOException
+    {
+        MappedUnitFile unitFile = units.remove(unit);
+        
+        if (unitFile != null)
+        {
+            unitFile.close();
+        }
+    }
+    
+    /**
+     * Passes every row matched by the selector to the visitor, using
+     * the hash index when the selector tests the primary key for equality.
+     */
+    private void forEachMatch(
+            MappedUnitFile unitFile,
+            Selector selector,
+            final MappedUnitFile.RowVisitor visitor
+    ) throws IOException
+    {
+        final CompiledSelector compiledSelector =
+                CompiledSelector.compile(selector);
+        String primaryKey = unitFile.getPrimaryKey();
+        
+        if (primaryKey != null && selector instanceof SelectorCondition)
+        {
+            SelectorCondition condition = (SelectorCondition) selector;
+            
+            if (condition.getRelation() == SelectorCondition.Relation.EQUALS
+                    && primaryKey.equals(condition.getKey()))
+            {
+                int offset = unitFile.find(condition.getValue());
+                
+                if (offset >= 0)
+                {
+                    StorageEntry row = unitFile.readRow(offset);
+                    
+                    if (compiledSelector.test(row))
+                    {
+                        visitor.visit(offset, row);
+                    }
+                }
+                
+                return;
+            }
+        }
+        
+        unitFile.forEachRow(new MappedUnitFile.RowVisitor()
+        {
+            @Override
+            public void visit(int offset, StorageEntry row) throws IOException
+            {
+                if (compiledSelector.test(row))
+                {
+                    visitor.visit(offset, row);
+                }
+            }
+        });
+    }
+    
+    private List<Integer> findOffsets(
+            MappedUnitFile unitFile, Selector selector
+    ) throws IOException
+    {
+        final List<Integer> offsets = new ArrayList<>();
+        
+        forEachMatch(unitFile, selector, new MappedUnitFile.RowVisitor()
+        {
+            @Override
+            public void visit(int offset, StorageEntry row)
+            {
+                offsets.add(offset);
+            }
+        });
+        
+        return offsets;
+    }
+    
+    private static final String UNIT_FILE_EXTENSION = ".mapped";
+    
+    private final File dir;
+    private boolean connected = false;
+    private final Map<String, MappedUnitFile> units = new HashMap<>();
+}
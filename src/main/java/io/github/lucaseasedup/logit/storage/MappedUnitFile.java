@@ -0,0 +1,725 @@
+package io.github.lucaseasedup.logit.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single unit kept in a memory-mapped file.
+ * 
+ * <p> The file starts with a header holding counters and the schema,
+ * followed by an open-addressing hash index on the primary key and a heap
+ * of rows. Index slots hold heap offsets of rows. Every row is laid out as
+ * {@code [capacity][status][length, bytes]...}, with one length-prefixed
+ * UTF-8 value per key and a length of {@code -1} standing for {@code null}.
+ * 
+ * <p> Rows are rewritten in place as long as they fit their capacity;
+ * otherwise they are moved to the end of the heap and the space they
+ * occupied is counted as garbage until the unit gets compacted.
+ */
+final class MappedUnitFile
+{
+    private MappedUnitFile(File file) throws IOException
+    {
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+    }
+    
+    public static MappedUnitFile create(
+            File file, UnitKeys keys, String primaryKey
+    ) throws IOException
+    {
+        if (file == null || keys == null || keys.isEmpty())
+            throw new IllegalArgumentException();
+        
+        MappedUnitFile unitFile = new MappedUnitFile(file);
+        
+        unitFile.buffer = unitFile.channel.map(
+                FileChannel.MapMode.READ_WRITE, 0, INITIAL_HEAP_SIZE
+        );
+        unitFile.format(keys, primaryKey, INITIAL_BUCKET_COUNT,
+                new ArrayList<StorageEntry>());
+        
+        return unitFile;
+    }
+    
+    public static MappedUnitFile open(File file) throws IOException
+    {
+        if (file == null)
+            throw new IllegalArgumentException();
+        
+        MappedUnitFile unitFile = new MappedUnitFile(file);
+        
+        try
+        {
+            unitFile.buffer = unitFile.channel.map(
+                    FileChannel.MapMode.READ_WRITE, 0, unitFile.channel.size()
+            );
+            unitFile.readHeader();
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            unitFile.close();
+            
+            throw ex;
+        }
+        
+        return unitFile;
+    }
+    
+    public UnitKeys getKeys()
+    {
+        UnitKeys keysCopy = new UnitKeys();
+        
+        keysCopy.putAll(keys);
+        
+        return keysCopy;
+    }
+    
+    public String getPrimaryKey()
+    {
+        return primaryKey;
+    }
+    
+    /**
+     * Looks up a row by the value of its primary key.
+     * 
+     * @return the heap offset of the row, or {@code -1} if the unit has
+     *         no primary key or no row has the given value.
+     */
+    public int find(String primaryValue)
+    {
+        if (primaryKeyIndex < 0)
+            return -1;
+        
+        int slot = findSlot(nullToEmpty(primaryValue));
+        
+        if (slot < 0)
+            return -1;
+        
+        return buffer.getInt(indexOffset + slot * SLOT_SIZE);
+    }
+    
+    public StorageEntry readRow(int offset)
+    {
+        ByteBuffer view = buffer.duplicate();
+        StorageEntry.Builder entryBuilder = new StorageEntry.Builder();
+        
+        view.position(offset + ROW_HEADER_SIZE);
+        
+        for (String key : keyNames)
+        {
+            entryBuilder.put(key, readValue(view));
+        }
+        
+        return entryBuilder.build();
+    }
+    
+    /**
+     * Visits every live row in the order they appear on the heap.
+     * 
+     * <p> Rows added or moved by the visitor are not visited.
+     */
+    public void forEachRow(RowVisitor visitor) throws IOException
+    {
+        int end = heapEnd;
+        int offset = heapStart;
+        
+        while (offset < end)
+        {
+            int capacity = buffer.getInt(offset);
+            
+            if (buffer.get(offset + 4) == ROW_LIVE)
+            {
+                visitor.visit(offset, readRow(offset));
+            }
+            
+            offset += ROW_HEADER_SIZE + capacity;
+        }
+    }
+    
+    public void insert(StorageEntry entry) throws IOException
+    {
+        String primaryValue = null;
+        
+        if (primaryKeyIndex >= 0)
+        {
+            primaryValue = nullToEmpty(entry.get(primaryKey));
+            
+            if (findSlot(primaryValue) >= 0)
+            {
+                throw new DuplicateEntryException(
+                        "Duplicate primary key: " + primaryValue
+                );
+            }
+            
+            if ((usedBuckets + 1) * 4L > bucketCount * 3L)
+            {
+                rebuild(keys, bucketCount * 2);
+            }
+        }
+        
+        int offset = writeRow(encode(entry));
+        
+        if (primaryKeyIndex >= 0)
+        {
+            putSlot(primaryValue, offset);
+        }
+        
+        liveCount++;
+        writeCounters();
+    }
+    
+    /**
+     * Applies the entry subset to the row at the given offset.
+     * 
+     * <p> Offsets of other rows remain valid; the updated row itself may be
+     * moved if it no longer fits its capacity.
+     */
+    public void update(int offset, StorageEntry entrySubset) throws IOException
+    {
+        StorageEntry row = readRow(offset);
+        String oldPrimaryValue = null;
+        String newPrimaryValue = null;
+        int slot = -1;
+        
+        if (primaryKeyIndex >= 0)
+        {
+            oldPrimaryValue = nullToEmpty(row.get(primaryKey));
+            slot = findSlot(oldPrimaryValue);
+        }
+        
+        for (StorageDatum datum : entrySubset)
+        {
+            if (keys.containsKey(datum.getKey()))
+            {
+                row.put(datum.getKey(), datum.getValue());
+            }
+        }
+        
+        if (primaryKeyIndex >= 0)
+        {
+            newPrimaryValue = nullToEmpty(row.get(primaryKey));
+            
+            if (!newPrimaryValue.equals(oldPrimaryValue)
+                    && findSlot(newPrimaryValue) >= 0)
+            {
+                throw new DuplicateEntryException(
+                        "Duplicate primary key: " + newPrimaryValue
+                );
+            }
+        }
+        
+        byte[][] values = encode(row);
+        int newOffset = offset;
+        
+        if (payloadSize(values) <= buffer.getInt(offset))
+        {
+            writePayload(offset, values);
+        }
+        else
+        {
+            markDead(offset);
+            newOffset = writeRow(values);
+        }
+        
+        if (primaryKeyIndex >= 0)
+        {
+            if (!newPrimaryValue.equals(oldPrimaryValue))
+            {
+                // Freeing the old slot first guarantees the new value
+                // finds a slot without growing the index.
+                buffer.putInt(indexOffset + slot * SLOT_SIZE, REMOVED_SLOT);
+                putSlot(newPrimaryValue, newOffset);
+            }
+            else if (newOffset != offset)
+            {
+                buffer.putInt(indexOffset + slot * SLOT_SIZE, newOffset);
+            }
+        }
+        
+        writeCounters();
+    }
+    
+    public void remove(int offset)
+    {
+        if (primaryKeyIndex >= 0)
+        {
+            ByteBuffer view = buffer.duplicate();
+            
+            view.position(offset + ROW_HEADER_SIZE);
+            skipValues(view, primaryKeyIndex);
+            
+            int slot = findSlot(nullToEmpty(readValue(view)));
+            
+            buffer.putInt(indexOffset + slot * SLOT_SIZE, REMOVED_SLOT);
+        }
+        
+        markDead(offset);
+        liveCount--;
+        writeCounters();
+    }
+    
+    public void erase() throws IOException
+    {
+        format(keys, primaryKey, bucketCount, new ArrayList<StorageEntry>());
+    }
+    
+    /**
+     * Rewrites the unit under a new schema, dropping garbage
+     * and removed index slots.
+     */
+    public void rebuild(UnitKeys newKeys, int newBucketCount)
+            throws IOException
+    {
+        final List<StorageEntry> rows = new ArrayList<>(liveCount);
+        
+        forEachRow(new RowVisitor()
+        {
+            @Override
+            public void visit(int offset, StorageEntry row)
+            {
+                rows.add(row);
+            }
+        });
+        
+        // The mapping cannot be released on demand, so the file
+        // is rebuilt in place instead of being replaced.
+        format(newKeys, primaryKey, newBucketCount, rows);
+    }
+    
+    public boolean needsCompaction()
+    {
+        return garbageBytes >= MIN_COMPACTION_GARBAGE
+                && garbageBytes * 2L > heapEnd - heapStart;
+    }
+    
+    public void compact() throws IOException
+    {
+        rebuild(keys, bucketCount);
+    }
+    
+    public void force()
+    {
+        buffer.force();
+    }
+    
+    public void close() throws IOException
+    {
+        if (buffer != null)
+        {
+            buffer.force();
+            buffer = null;
+        }
+        
+        channel.close();
+        raf.close();
+    }
+    
+    private void format(
+            UnitKeys newKeys, String newPrimaryKey,
+            int newBucketCount, List<StorageEntry> rows
+    ) throws IOException
+    {
+        keys = new UnitKeys();
+        keys.putAll(newKeys);
+        keyNames = keys.keySet().toArray(new String[keys.size()]);
+        primaryKey = newPrimaryKey;
+        primaryKeyIndex = -1;
+        
+        for (int i = 0; i < keyNames.length; i++)
+        {
+            if (keyNames[i].equals(primaryKey))
+            {
+                primaryKeyIndex = i;
+            }
+        }
+        
+        bucketCount = 0;
+        
+        if (primaryKeyIndex >= 0)
+        {
+            bucketCount = Math.max(INITIAL_BUCKET_COUNT, newBucketCount);
+            
+            while (rows.size() * 4L > bucketCount * 3L)
+            {
+                bucketCount *= 2;
+            }
+        }
+        
+        byte[] schema = encodeSchema();
+        
+        indexOffset = align(SCHEMA_OFFSET + schema.length);
+        heapStart = indexOffset + bucketCount * SLOT_SIZE;
+        heapEnd = heapStart;
+        usedBuckets = 0;
+        liveCount = 0;
+        garbageBytes = 0;
+        
+        ensureCapacity(heapStart);
+        
+        ByteBuffer view = buffer.duplicate();
+        
+        view.position(SCHEMA_OFFSET);
+        view.put(schema);
+        
+        for (int i = 0; i < bucketCount; i++)
+        {
+            buffer.putInt(indexOffset + i * SLOT_SIZE, EMPTY_SLOT);
+        }
+        
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        buffer.putInt(VERSION_OFFSET, VERSION);
+        buffer.putInt(BUCKET_COUNT_OFFSET, bucketCount);
+        buffer.putInt(HEAP_START_OFFSET, heapStart);
+        buffer.putInt(PRIMARY_KEY_INDEX_OFFSET, primaryKeyIndex);
+        buffer.putInt(KEY_COUNT_OFFSET, keyNames.length);
+        
+        for (StorageEntry row : rows)
+        {
+            int offset = writeRow(encode(row));
+            
+            if (primaryKeyIndex >= 0)
+            {
+                putSlot(nullToEmpty(row.get(primaryKey)), offset);
+            }
+            
+            liveCount++;
+        }
+        
+        writeCounters();
+    }
+    
+    private void readHeader() throws IOException
+    {
+        if (buffer.capacity() < SCHEMA_OFFSET
+                || buffer.getInt(MAGIC_OFFSET) != MAGIC)
+        {
+            throw new IOException("Not a mapped unit file: " + file);
+        }
+        
+        if (buffer.getInt(VERSION_OFFSET) != VERSION)
+        {
+            throw new IOException("Unsupported mapped unit file version: "
+                    + buffer.getInt(VERSION_OFFSET));
+        }
+        
+        bucketCount = buffer.getInt(BUCKET_COUNT_OFFSET);
+        usedBuckets = buffer.getInt(USED_BUCKETS_OFFSET);
+        liveCount = buffer.getInt(LIVE_COUNT_OFFSET);
+        heapStart = buffer.getInt(HEAP_START_OFFSET);
+        heapEnd = buffer.getInt(HEAP_END_OFFSET);
+        garbageBytes = buffer.getInt(GARBAGE_BYTES_OFFSET);
+        primaryKeyIndex = buffer.getInt(PRIMARY_KEY_INDEX_OFFSET);
+        
+        ByteBuffer view = buffer.duplicate();
+        int keyCount = buffer.getInt(KEY_COUNT_OFFSET);
+        
+        view.position(SCHEMA_OFFSET);
+        keys = new UnitKeys();
+        
+        for (int i = 0; i < keyCount; i++)
+        {
+            String key = readShortString(view);
+            DataType type = DataType.valueOf(readShortString(view));
+            
+            keys.put(key, type);
+        }
+        
+        keyNames = keys.keySet().toArray(new String[keys.size()]);
+        primaryKey = (primaryKeyIndex >= 0) ? keyNames[primaryKeyIndex] : null;
+        indexOffset = heapStart - bucketCount * SLOT_SIZE;
+    }
+    
+    private void writeCounters()
+    {
+        buffer.putInt(USED_BUCKETS_OFFSET, usedBuckets);
+        buffer.putInt(LIVE_COUNT_OFFSET, liveCount);
+        buffer.putInt(HEAP_END_OFFSET, heapEnd);
+        buffer.putInt(GARBAGE_BYTES_OFFSET, garbageBytes);
+    }
+    
+    private int bucketOf(String primaryValue)
+    {
+        int hash = primaryValue.hashCode();
+        
+        hash ^= (hash >>> 16);
+        
+        return hash & (bucketCount - 1);
+    }
+    
+    /**
+     * @return the index slot holding the given primary-key value,
+     *         or {@code -1} if there is none.
+     */
+    private int findSlot(String primaryValue)
+    {
+        int bucket = bucketOf(primaryValue);
+        
+        for (int i = 0; i < bucketCount; i++)
+        {
+            int slot = (bucket + i) & (bucketCount - 1);
+            int offset = buffer.getInt(indexOffset + slot * SLOT_SIZE);
+            
+            if (offset == EMPTY_SLOT)
+                return -1;
+            
+            if (offset != REMOVED_SLOT)
+            {
+                ByteBuffer view = buffer.duplicate();
+                
+                view.position(offset + ROW_HEADER_SIZE);
+                skipValues(view, primaryKeyIndex);
+                
+                if (primaryValue.equals(nullToEmpty(readValue(view))))
+                    return slot;
+            }
+        }
+        
+        return -1;
+    }
+    
+    private void putSlot(String primaryValue, int offset)
+    {
+        int bucket = bucketOf(primaryValue);
+        
+        for (int i = 0; i < bucketCount; i++)
+        {
+            int slot = (bucket + i) & (bucketCount - 1);
+            int slotOffset = indexOffset + slot * SLOT_SIZE;
+            int current = buffer.getInt(slotOffset);
+            
+            if (current == EMPTY_SLOT || current == REMOVED_SLOT)
+            {
+                if (current == EMPTY_SLOT)
+                {
+                    usedBuckets++;
+                }
+                
+                buffer.putInt(slotOffset, offset);
+                
+                return;
+            }
+        }
+        
+        throw new IllegalStateException("Hash index full.");
+    }
+    
+    private int writeRow(byte[][] values) throws IOException
+    {
+        int payloadSize = payloadSize(values);
+        
+        // Leave some room so that rows growing slightly
+        // can still be updated in place.
+        int capacity = payloadSize + payloadSize / 4;
+        int offset = heapEnd;
+        
+        ensureCapacity((long) offset + ROW_HEADER_SIZE + capacity);
+        
+        buffer.putInt(offset, capacity);
+        buffer.put(offset + 4, ROW_LIVE);
+        writePayload(offset, values);
+        
+        heapEnd = offset + ROW_HEADER_SIZE + capacity;
+        
+        return offset;
+    }
+    
+    private void writePayload(int offset, byte[][] values)
+    {
+        ByteBuffer view = buffer.duplicate();
+        
+        view.position(offset + ROW_HEADER_SIZE);
+        
+        for (byte[] value : values)
+        {
+            if (value == null)
+            {
+                view.putInt(-1);
+            }
+            else
+            {
+                view.putInt(value.length);
+                view.put(value);
+            }
+        }
+    }
+    
+    private void markDead(int offset)
+    {
+        buffer.put(offset + 4, ROW_DEAD);
+        garbageBytes += ROW_HEADER_SIZE + buffer.getInt(offset);
+    }
+    
+    private void ensureCapacity(long required) throws IOException
+    {
+        if (required <= buffer.capacity())
+            return;
+        
+        if (required > Integer.MAX_VALUE)
+            throw new IOException("Mapped unit file too large: " + file);
+        
+        long newSize = Math.min(Integer.MAX_VALUE,
+                Math.max(required, buffer.capacity() * 2L));
+        
+        buffer.force();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+    }
+    
+    private byte[][] encode(StorageEntry entry)
+    {
+        byte[][] values = new byte[keyNames.length][];
+        
+        for (int i = 0; i < keyNames.length; i++)
+        {
+            String value = entry.get(keyNames[i]);
+            
+            if (value != null)
+            {
+                values[i] = value.getBytes(StandardCharsets.UTF_8);
+            }
+        }
+        
+        return values;
+    }
+    
+    private byte[] encodeSchema()
+    {
+        ByteBuffer schema = ByteBuffer.allocate(keyNames.length * 1024);
+        
+        for (String key : keyNames)
+        {
+            writeShortString(schema, key);
+            writeShortString(schema, keys.get(key).name());
+        }
+        
+        byte[] bytes = new byte[schema.position()];
+        
+        schema.flip();
+        schema.get(bytes);
+        
+        return bytes;
+    }
+    
+    private static int payloadSize(byte[][] values)
+    {
+        int size = 0;
+        
+        for (byte[] value : values)
+        {
+            size += 4 + ((value == null) ? 0 : value.length);
+        }
+        
+        return size;
+    }
+    
+    private static String readValue(ByteBuffer view)
+    {
+        int length = view.getInt();
+        
+        if (length < 0)
+            return null;
+        
+        byte[] bytes = new byte[length];
+        
+        view.get(bytes);
+        
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    private static void skipValues(ByteBuffer view, int count)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            int length = view.getInt();
+            
+            if (length > 0)
+            {
+                view.position(view.position() + length);
+            }
+        }
+    }
+    
+    private static void writeShortString(ByteBuffer view, String s)
+    {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        
+        view.putShort((short) bytes.length);
+        view.put(bytes);
+    }
+    
+    private static String readShortString(ByteBuffer view)
+    {
+        byte[] bytes = new byte[view.getShort()];
+        
+        view.get(bytes);
+        
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    private static String nullToEmpty(String s)
+    {
+        return (s == null) ? "" : s;
+    }
+    
+    private static int align(int offset)
+    {
+        return (offset + 7) & ~7;
+    }
+    
+    public interface RowVisitor
+    {
+        public void visit(int offset, StorageEntry row) throws IOException;
+    }
+    
+    private static final int MAGIC = 0x4C474D55;
+    private static final int VERSION = 1;
+    
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int BUCKET_COUNT_OFFSET = 8;
+    private static final int USED_BUCKETS_OFFSET = 12;
+    private static final int LIVE_COUNT_OFFSET = 16;
+    private static final int HEAP_START_OFFSET = 20;
+    private static final int HEAP_END_OFFSET = 24;
+    private static final int GARBAGE_BYTES_OFFSET = 28;
+    private static final int PRIMARY_KEY_INDEX_OFFSET = 32;
+    private static final int KEY_COUNT_OFFSET = 36;
+    private static final int SCHEMA_OFFSET = 40;
+    
+    private static final int SLOT_SIZE = 4;
+    private static final int EMPTY_SLOT = 0;
+    private static final int REMOVED_SLOT = -1;
+    private static final int INITIAL_BUCKET_COUNT = 1024;
+    
+    private static final int ROW_HEADER_SIZE = 5;
+    private static final byte ROW_LIVE = 1;
+    private static final byte ROW_DEAD = 0;
+    
+    private static final int INITIAL_HEAP_SIZE = 64 * 1024;
+    private static final int MIN_COMPACTION_GARBAGE = 64 * 1024;
+    
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private MappedByteBuffer buffer;
+    
+    private UnitKeys keys;
+    private String[] keyNames;
+    private String primaryKey;
+    private int primaryKeyIndex;
+    private int bucketCount;
+    private int usedBuckets;
+    private int liveCount;
+    private int indexOffset;
+    private int heapStart;
+    private int heapEnd;
+    private int garbageBytes;
+}
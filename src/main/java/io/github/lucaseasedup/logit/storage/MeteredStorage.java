@@ -0,0 +1,481 @@
+package io.github.lucaseasedup.logit.storage;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Passes every call on to another storage and records how long it took
+ * in a {@link StorageMetrics} object.
+ * 
+ * <p> The time of a {@code forEachEntry} call includes the time spent
+ * in the visitor.
+ */
+public final class MeteredStorage implements Storage
+{
+    public MeteredStorage(
+            Storage storage, StorageMetrics metrics, StorageMetrics.Role role
+    )
+    {
+        if (storage == null || metrics == null || role == null)
+            throw new IllegalArgumentException();
+        
+        this.storage = storage;
+        this.metrics = metrics;
+        this.role = role;
+    }
+    
+    @Override
+    public void connect() throws IOException
+    {
+        long start = System.nanoTime();
+        
+        try
+        {
+            storage.connect();
+        }
+        finally
+        {
+            metrics.record(role, "connect", null, start);
+        }
+    }
+    
+    @Override
+    public boolean isConnected() throws IOException
+    {
+        long start = System.nanoTime();
+        
+        try
+        {
+            return storage.isConnected();
+        }
+        finally
+        {
+            metrics.record(role, "isConnected", null, start);
+        }
+    }
+    
+    @Override
+    public void ping() throws IOException
+    {
+        long start = System.nanoTime();
+        
+        try
+        {
+            storage.ping();
+        }
+        finally
+        {
+            metrics.record(role, "ping", null, start);
+        }
+    }
+    
+    @Override
+    public void close() throws IOException
+    {
+        long start = System.nanoTime();
+        
+        try
+        {
+            storage.close();
+        }
+        finally
+        {
+            metrics.record(role, "close", null, start);
+        }
+    }
+    
+    @Override
+    public List<String> getUnitNames() throws IOException
+    {
+        long start = System.nanoTime();
+        
+        try
+        {
+            return storage.getUnitNames();
+        }
+        finally
+        {
+            metrics.record(role, "getUnitNames", null, start);
+        }
+    }
+    
+    @Override
+    public UnitKeys getKeys(String unit) throws IOException
+    {
+        long start = System.nanoTime();
+        
+        try
+        {
+            return storage.getKeys(unit);
+        }
+        finally
+        {
+            metrics.record(role, "getKeys", unit, start);
+        }
+    }
+    
+    @Override
+    public String getPrimaryKey(String unit) throws IOException
+    {
+        long start = System.nanoTime();
+        
+        try
+        {
+            return storage.getPrimaryKey(unit);
+        }
+        finally
+        {
+            metrics.record(role, "getPrimaryKey", unit, start);
+        }
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(String unit) throws IOException
+    {
+        long start = System.nanoTime();
+        
+        try
+        {
+            return storage.selectEntries(unit);
+        }
+        finally
+        {
+            metrics.record(role, "selectEntries", unit, start);
+        }
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(String unit, Selector selector)
+            throws IOException
+    {
+        long start = System.nanoTime();
+        
+        try
+        {
+            return storage.selectEntries(unit, selector);
+        }
+        finally
+        {
+            metrics.record(role, "selectEntries", unit, start);
+        }
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(String unit, List<String> keys)
+            throws IOException
+    {
+        long start = System.nanoTime();
+        
+        try
+        {
+            return storage.selectEntries(unit, keys);
+        }
+        finally
+        {
+            metrics.record(role, "selectEntries", unit, start);
+        }
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(
+            String unit, List<String> keys, Selector selector
+    ) throws IOException
+    {
+        long start = System.nanoTime();
+        
+        try
+        {
+            return storage.selectEntries(unit, keys, selector);
+        }
+        finally
+        {
+            metrics.record(role, "selectEntries", unit, start);
+        }
+    }
+    
+    @Override
+    public void forEachEntry(String unit, EntryVisitor visitor)
+            throws IOException
+    {
+        long start = System.nanoTime();
+        
+        try
+        {
+            storage.forEachEntry(unit, visitor);
+        }
+        finally
+        {
+            metrics.record(role, "forEachEntry", unit, start);
+        }
+    }
+    
+    @Override
+    public void forEachEntry(
+            String unit, List<String> keys, Selector selector,
+            EntryVisitor visitor
+    ) throws IOException
+    {
+        long start = System.nanoTime();
+        
+        try
+        {
+            storage.forEachEntry(unit, keys, selector, visitor);
+        }
+        finally
+        {
+            metrics.record(role, "forEachEntry", unit, start);
+        }
+    }
+    
+    @Override
+    public void createUnit(String unit, UnitKeys keys, String primaryKey)
+            throws IOException
+    {
+        long start = System.nanoTime();
+        
+        try
+        {
+            storage.createUnit(unit, keys, primaryKey);
+        }
+        finally
+        {
+            metrics.record(role, "createUnit", unit, start);
+        }
+    }
+    
+    @Override
+    public void renameUnit(String unit, String newName)
+            throws IOException
+    {
+        long start = System.nanoTime();
+        
+        try
+        {
+            storage.renameUnit(unit, newName);
+        }
+        finally
+        {
+            metrics.record(role, "renameUnit", unit, start);
+        }
+    }
+    
+    @Override
+    public void eraseUnit(String unit) throws IOException
+    {
+        long start = System.nanoTime();
+        
+        try
+        {
+            storage.eraseUnit(unit);
+        }
+        finally
+        {
+            metrics.record(role, "eraseUnit", unit, start);
+        }
+    }
+    
+    @Override
+    public void removeUnit(String unit) throws IOException
+    {
+        long start = System.nanoTime();
+        
+        try
+        {
+            storage.removeUnit(unit);
+        }
+        finally
+        {
+            metrics.record(role, "removeUnit", unit, start);
+        }
+    }
+    
+    @Override
+    public List<String> getIndexes(String unit) throws IOException
+    {
+        long start = System.nanoTime();
+        
+        try
+        {
+            return storage.getIndexes(unit);
+        }
+        finally
+        {
+            metrics.record(role, "getIndexes", unit, start);
+        }
+    }
+    
+    @Override
+    public void createIndex(String unit, String key)
+            throws IOException
+    {
+        long start = System.nanoTime();
+        
+        try
+        {
+            storage.createIndex(unit, key);
+        }
+        finally
+        {
+            metrics.record(role, "createIndex", unit, start);
+        }
+    }
+    
+    @Override
+    public void dropIndex(String unit, String key)
+            throws IOException
+    {
+        long start = System.nanoTime();
+        
+        try
+        {
+            storage.dropIndex(unit, key);
+        }
+        finally
+        {
+            metrics.record(role, "dropIndex", unit, start);
+        }
+    }
+    
+    @Override
+    public void addKey(String unit, String key, DataType type)
+            throws IOException
+    {
+        long start = System.nanoTime();
+        
+        try
+        {
+            storage.addKey(unit, key, type);
+        }
+        finally
+        {
+            metrics.record(role, "addKey", unit, start);
+        }
+    }
+    
+    @Override
+    public void addEntry(String unit, StorageEntry entry)
+            throws DuplicateEntryException, IOException
+    {
+        long start = System.nanoTime();
+        
+        try
+        {
+            storage.addEntry(unit, entry);
+        }
+        finally
+        {
+            metrics.record(role, "addEntry", unit, start);
+        }
+    }
+    
+    @Override
+    public void addEntries(String unit, Iterable<StorageEntry> entries)
+            throws DuplicateEntryException, IOException
+    {
+        long start = System.nanoTime();
+        
+        try
+        {
+            storage.addEntries(unit, entries);
+        }
+        finally
+        {
+            metrics.record(role, "addEntries", unit, start);
+        }
+    }
+    
+    @Override
+    public void updateEntries(
+            String unit, StorageEntry entrySubset, Selector selector
+    ) throws IOException
+    {
+        long start = System.nanoTime();
+        
+        try
+        {
+            storage.updateEntries(unit, entrySubset, selector);
+        }
+        finally
+        {
+            metrics.record(role, "updateEntries", unit, start);
+        }
+    }
+    
+    @Override
+    public void removeEntries(String unit, Selector selector)
+            throws IOException
+    {
+        long start = System.nanoTime();
+        
+        try
+        {
+            storage.removeEntries(unit, selector);
+        }
+        finally
+        {
+            metrics.record(role, "removeEntries", unit, start);
+        }
+    }
+    
+    @Override
+    public void removeEntries(String unit, Collection<String> primaryKeys)
+            throws IOException
+    {
+        long start = System.nanoTime();
+        
+        try
+        {
+            storage.removeEntries(unit, primaryKeys);
+        }
+        finally
+        {
+            metrics.record(role, "removeEntries", unit, start);
+        }
+    }
+    
+    @Override
+    public boolean isAutobatchEnabled()
+    {
+        return storage.isAutobatchEnabled();
+    }
+    
+    @Override
+    public void setAutobatchEnabled(boolean status)
+    {
+        storage.setAutobatchEnabled(status);
+    }
+    
+    @Override
+    public void executeBatch() throws IOException
+    {
+        long start = System.nanoTime();
+        
+        try
+        {
+            storage.executeBatch();
+        }
+        finally
+        {
+            metrics.record(role, "executeBatch", null, start);
+        }
+    }
+    
+    @Override
+    public void clearBatch() throws IOException
+    {
+        storage.clearBatch();
+    }
+    
+    /**
+     * Returns the storage this {@code MeteredStorage} passes calls on to.
+     */
+    public Storage getStorage()
+    {
+        return storage;
+    }
+    
+    private final Storage storage;
+    private final StorageMetrics metrics;
+    private final StorageMetrics.Role role;
+}
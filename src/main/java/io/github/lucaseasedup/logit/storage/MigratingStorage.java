@@ -0,0 +1,678 @@
+package io.github.lucaseasedup.logit.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Passes every call on to another storage, and pretends that keys
+ * which are still being added to a unit exist already.
+ * 
+ * <p> A key is declared pending with {@link #addPendingKeys} and stays so
+ * until it is added through {@link #addKey}. In the meantime:
+ * <ul>
+ *  <li>{@link #getKeys} reports the key along with the existing ones;</li>
+ *  <li>entries read from the unit carry the key with an empty value,
+ *      which is also what existing entries end up with once
+ *      the key has been added;</li>
+ *  <li>non-empty values written to the key are held back in memory
+ *      and written once the key exists.</li>
+ * </ul>
+ * 
+ * <p> Values held back are not journaled, so they are lost if the server
+ * goes down before the key has been added. Selectors that test
+ * a pending key are passed on as they are and will most likely fail.
+ * 
+ * <p> Reads are not synchronized, so they may run concurrently
+ * if the underlying storage allows it.
+ */
+public final class MigratingStorage implements Storage
+{
+    public MigratingStorage(Storage storage)
+    {
+        if (storage == null)
+            throw new IllegalArgumentException();
+        
+        this.storage = storage;
+    }
+    
+    @Override
+    public void connect() throws IOException
+    {
+        storage.connect();
+    }
+    
+    @Override
+    public boolean isConnected() throws IOException
+    {
+        return storage.isConnected();
+    }
+    
+    @Override
+    public void ping() throws IOException
+    {
+        storage.ping();
+    }
+    
+    @Override
+    public void close() throws IOException
+    {
+        storage.close();
+    }
+    
+    @Override
+    public List<String> getUnitNames() throws IOException
+    {
+        return storage.getUnitNames();
+    }
+    
+    @Override
+    public UnitKeys getKeys(String unit) throws IOException
+    {
+        UnitKeys keys = storage.getKeys(unit);
+        UnitKeys pending = pendingKeys.get(unit);
+        
+        if (pending == null)
+            return keys;
+        
+        UnitKeys allKeys = new UnitKeys();
+        
+        allKeys.putAll(keys);
+        allKeys.putAll(pending);
+        
+        return allKeys;
+    }
+    
+    @Override
+    public String getPrimaryKey(String unit) throws IOException
+    {
+        return storage.getPrimaryKey(unit);
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(String unit) throws IOException
+    {
+        return fillPending(unit, storage.selectEntries(unit), null);
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(String unit, Selector selector)
+            throws IOException
+    {
+        return fillPending(unit, storage.selectEntries(unit, selector), null);
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(String unit, List<String> keys)
+            throws IOException
+    {
+        UnitKeys pending = pendingKeys.get(unit);
+        
+        if (pending == null)
+            return storage.selectEntries(unit, keys);
+        
+        List<StorageEntry> entries = storage.selectEntries(
+                unit, existingKeys(unit, keys, pending)
+        );
+        
+        return fillPending(unit, entries, keys);
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(
+            String unit, List<String> keys, Selector selector
+    ) throws IOException
+    {
+        UnitKeys pending = pendingKeys.get(unit);
+        
+        if (pending == null)
+            return storage.selectEntries(unit, keys, selector);
+        
+        List<StorageEntry> entries = storage.selectEntries(
+                unit, existingKeys(unit, keys, pending), selector
+        );
+        
+        return fillPending(unit, entries, keys);
+    }
+    
+    @Override
+    public void forEachEntry(String unit, EntryVisitor visitor)
+            throws IOException
+    {
+        if (!pendingKeys.containsKey(unit))
+        {
+            storage.forEachEntry(unit, visitor);
+            
+            return;
+        }
+        
+        storage.forEachEntry(unit, new PendingKeyVisitor(unit, null, visitor));
+    }
+    
+    @Override
+    public void forEachEntry(
+            String unit, List<String> keys, Selector selector,
+            EntryVisitor visitor
+    ) throws IOException
+    {
+        UnitKeys pending = pendingKeys.get(unit);
+        
+        if (pending == null)
+        {
+            storage.forEachEntry(unit, keys, selector, visitor);
+            
+            return;
+        }
+        
+        storage.forEachEntry(unit, existingKeys(unit, keys, pending), selector,
+                new PendingKeyVisitor(unit, keys, visitor));
+    }
+    
+    @Override
+    public synchronized void createUnit(
+            String unit, UnitKeys keys, String primaryKey
+    ) throws IOException
+    {
+        storage.createUnit(unit, keys, primaryKey);
+    }
+    
+    @Override
+    public synchronized void renameUnit(String unit, String newName)
+            throws IOException
+    {
+        storage.renameUnit(unit, newName);
+        
+        UnitKeys pending = pendingKeys.remove(unit);
+        
+        if (pending != null)
+        {
+            pendingKeys.put(newName, pending);
+        }
+        
+        for (int i = 0; i < deferredWrites.size(); i++)
+        {
+            DeferredWrite write = deferredWrites.get(i);
+            
+            if (write.unit.equals(unit))
+            {
+                deferredWrites.set(i, new DeferredWrite(
+                        newName, write.values, write.selector
+                ));
+            }
+        }
+    }
+    
+    @Override
+    public synchronized void eraseUnit(String unit) throws IOException
+    {
+        storage.eraseUnit(unit);
+        discardDeferredWrites(unit);
+    }
+    
+    @Override
+    public synchronized void removeUnit(String unit) throws IOException
+    {
+        storage.removeUnit(unit);
+        discardDeferredWrites(unit);
+        pendingKeys.remove(unit);
+    }
+    
+    @Override
+    public List<String> getIndexes(String unit) throws IOException
+    {
+        return storage.getIndexes(unit);
+    }
+    
+    @Override
+    public synchronized void createIndex(String unit, String key)
+            throws IOException
+    {
+        storage.createIndex(unit, key);
+    }
+    
+    @Override
+    public synchronized void dropIndex(String unit, String key)
+            throws IOException
+    {
+        storage.dropIndex(unit, key);
+    }
+    
+    /**
+     * Adds a key to a unit. If the key is pending, the values held back
+     * for it are written right away.
+     * 
+     * <p> The lock on this storage is not held while the key is being added,
+     * so that other calls are not held up by a long-running schema change.
+     * Callers must make sure that is safe for the underlying storage.
+     */
+    @Override
+    public void addKey(String unit, String key, DataType type)
+            throws IOException
+    {
+        storage.addKey(unit, key, type);
+        completeKey(unit, key);
+    }
+    
+    @Override
+    public synchronized void addEntry(String unit, StorageEntry entry)
+            throws DuplicateEntryException, IOException
+    {
+        UnitKeys pending = pendingKeys.get(unit);
+        
+        if (pending == null)
+        {
+            storage.addEntry(unit, entry);
+            
+            return;
+        }
+        
+        storage.addEntry(unit, withoutKeys(entry, pending));
+        deferEntry(unit, entry, pending);
+    }
+    
+    @Override
+    public synchronized void addEntries(
+            String unit, Iterable<StorageEntry> entries
+    ) throws DuplicateEntryException, IOException
+    {
+        if (entries == null)
+            throw new IllegalArgumentException();
+        
+        UnitKeys pending = pendingKeys.get(unit);
+        
+        if (pending == null)
+        {
+            storage.addEntries(unit, entries);
+            
+            return;
+        }
+        
+        List<StorageEntry> existingEntries = new ArrayList<>();
+        
+        for (StorageEntry entry : entries)
+        {
+            existingEntries.add(withoutKeys(entry, pending));
+        }
+        
+        storage.addEntries(unit, existingEntries);
+        
+        for (StorageEntry entry : entries)
+        {
+            deferEntry(unit, entry, pending);
+        }
+    }
+    
+    @Override
+    public synchronized void updateEntries(
+            String unit, StorageEntry entrySubset, Selector selector
+    ) throws IOException
+    {
+        UnitKeys pending = pendingKeys.get(unit);
+        
+        if (pending == null)
+        {
+            storage.updateEntries(unit, entrySubset, selector);
+            
+            return;
+        }
+        
+        StorageEntry existingSubset = withoutKeys(entrySubset, pending);
+        
+        if (!existingSubset.getKeys().isEmpty())
+        {
+            storage.updateEntries(unit, existingSubset, selector);
+        }
+        
+        // Unlike new entries, existing ones may hold a non-empty value
+        // by the time the key is added, so empty values are kept too.
+        StorageEntry pendingSubset = onlyKeys(entrySubset, pending, false);
+        
+        if (!pendingSubset.getKeys().isEmpty())
+        {
+            deferredWrites.add(new DeferredWrite(unit, pendingSubset, selector));
+        }
+    }
+    
+    @Override
+    public synchronized void removeEntries(String unit, Selector selector)
+            throws IOException
+    {
+        storage.removeEntries(unit, selector);
+    }
+    
+    @Override
+    public synchronized void removeEntries(
+            String unit, Collection<String> primaryKeys
+    ) throws IOException
+    {
+        storage.removeEntries(unit, primaryKeys);
+    }
+    
+    @Override
+    public boolean isAutobatchEnabled()
+    {
+        return storage.isAutobatchEnabled();
+    }
+    
+    @Override
+    public synchronized void setAutobatchEnabled(boolean status)
+    {
+        storage.setAutobatchEnabled(status);
+    }
+    
+    @Override
+    public synchronized void executeBatch() throws IOException
+    {
+        storage.executeBatch();
+    }
+    
+    @Override
+    public synchronized void clearBatch() throws IOException
+    {
+        storage.clearBatch();
+    }
+    
+    /**
+     * Declares keys of a unit as pending, that is, about to be added
+     * to the underlying storage.
+     * 
+     * @param unit the unit name.
+     * @param keys the keys.
+     * 
+     * @throws IllegalArgumentException if {@code unit} or {@code keys}
+     *                                  is {@code null}.
+     */
+    public synchronized void addPendingKeys(String unit, UnitKeys keys)
+    {
+        if (unit == null || keys == null)
+            throw new IllegalArgumentException();
+        
+        if (keys.isEmpty())
+            return;
+        
+        UnitKeys pending = new UnitKeys();
+        
+        if (pendingKeys.containsKey(unit))
+        {
+            pending.putAll(pendingKeys.get(unit));
+        }
+        
+        pending.putAll(keys);
+        pendingKeys.put(unit, pending);
+    }
+    
+    /**
+     * Writes the values held back for a pending key that has just been
+     * added to the underlying storage, and stops treating the key
+     * as pending. If the values could not be written,
+     * the key stays pending.
+     */
+    private synchronized void completeKey(String unit, String key)
+            throws IOException
+    {
+        if (!isKeyPending(unit, key))
+            return;
+        
+        Iterator<DeferredWrite> it = deferredWrites.iterator();
+        
+        while (it.hasNext())
+        {
+            DeferredWrite write = it.next();
+            
+            if (!write.unit.equals(unit) || !write.values.containsKey(key))
+                continue;
+            
+            storage.updateEntries(unit, new StorageEntry.Builder()
+                    .put(key, write.values.get(key))
+                    .build(), write.selector);
+            
+            write.values.remove(key);
+            
+            if (write.values.isEmpty())
+            {
+                it.remove();
+            }
+        }
+        
+        UnitKeys pending = new UnitKeys();
+        
+        pending.putAll(pendingKeys.get(unit));
+        pending.remove(key);
+        
+        if (pending.isEmpty())
+        {
+            pendingKeys.remove(unit);
+        }
+        else
+        {
+            pendingKeys.put(unit, pending);
+        }
+    }
+    
+    public boolean isKeyPending(String unit, String key)
+    {
+        UnitKeys pending = pendingKeys.get(unit);
+        
+        return pending != null && pending.containsKey(key);
+    }
+    
+    /**
+     * Returns the number of writes waiting for a pending key to be added.
+     */
+    public synchronized int getDeferredWriteCount()
+    {
+        return deferredWrites.size();
+    }
+    
+    public Storage getStorage()
+    {
+        return storage;
+    }
+    
+    private List<String> existingKeys(
+            String unit, List<String> keys, UnitKeys pending
+    ) throws IOException
+    {
+        if (keys == null)
+            throw new IllegalArgumentException();
+        
+        List<String> existingKeys = new ArrayList<>(keys.size());
+        
+        for (String key : keys)
+        {
+            if (!pending.containsKey(key))
+            {
+                existingKeys.add(key);
+            }
+        }
+        
+        // Storages cannot select no keys at all.
+        if (existingKeys.isEmpty())
+        {
+            existingKeys.add(storage.getPrimaryKey(unit));
+        }
+        
+        return existingKeys;
+    }
+    
+    private List<StorageEntry> fillPending(
+            String unit, List<StorageEntry> entries, List<String> keys
+    )
+    {
+        UnitKeys pending = pendingKeys.get(unit);
+        
+        if (pending == null)
+            return entries;
+        
+        List<StorageEntry> filledEntries = new ArrayList<>(entries.size());
+        
+        for (StorageEntry entry : entries)
+        {
+            filledEntries.add(fillPending(entry, keys, pending));
+        }
+        
+        return filledEntries;
+    }
+    
+    /**
+     * Gives an entry an empty value for every pending key,
+     * and drops any key that was not asked for.
+     */
+    private static StorageEntry fillPending(
+            StorageEntry entry, List<String> keys, UnitKeys pending
+    )
+    {
+        StorageEntry.Builder entryBuilder = new StorageEntry.Builder();
+        
+        for (StorageDatum datum : entry)
+        {
+            if (keys == null || keys.contains(datum.getKey()))
+            {
+                entryBuilder.put(datum.getKey(), datum.getValue());
+            }
+        }
+        
+        for (String key : pending.keySet())
+        {
+            if (keys == null || keys.contains(key))
+            {
+                entryBuilder.put(key, "");
+            }
+        }
+        
+        return entryBuilder.build();
+    }
+    
+    private void deferEntry(String unit, StorageEntry entry, UnitKeys pending)
+            throws IOException
+    {
+        // Keys added to a unit start off empty for every entry,
+        // so only non-empty values need to be written afterwards.
+        StorageEntry pendingSubset = onlyKeys(entry, pending, true);
+        
+        if (pendingSubset.getKeys().isEmpty())
+            return;
+        
+        String primaryKey = storage.getPrimaryKey(unit);
+        
+        deferredWrites.add(new DeferredWrite(unit, pendingSubset,
+                new SelectorCondition(primaryKey, Infix.EQUALS,
+                        entry.get(primaryKey))));
+    }
+    
+    private void discardDeferredWrites(String unit)
+    {
+        Iterator<DeferredWrite> it = deferredWrites.iterator();
+        
+        while (it.hasNext())
+        {
+            if (it.next().unit.equals(unit))
+            {
+                it.remove();
+            }
+        }
+    }
+    
+    private static StorageEntry withoutKeys(StorageEntry entry, UnitKeys keys)
+    {
+        StorageEntry.Builder entryBuilder = new StorageEntry.Builder();
+        
+        for (StorageDatum datum : entry)
+        {
+            if (!keys.containsKey(datum.getKey()))
+            {
+                entryBuilder.put(datum.getKey(), datum.getValue());
+            }
+        }
+        
+        return entryBuilder.build();
+    }
+    
+    private static StorageEntry onlyKeys(
+            StorageEntry entry, UnitKeys keys, boolean skipEmpty
+    )
+    {
+        StorageEntry.Builder entryBuilder = new StorageEntry.Builder();
+        
+        for (StorageDatum datum : entry)
+        {
+            if (!keys.containsKey(datum.getKey()))
+                continue;
+            
+            if (skipEmpty && datum.getValue().isEmpty())
+                continue;
+            
+            entryBuilder.put(datum.getKey(), datum.getValue());
+        }
+        
+        return entryBuilder.build();
+    }
+    
+    private final class PendingKeyVisitor implements EntryVisitor
+    {
+        public PendingKeyVisitor(
+                String unit, List<String> keys, EntryVisitor visitor
+        )
+        {
+            this.unit = unit;
+            this.keys = keys;
+            this.visitor = visitor;
+        }
+        
+        @Override
+        public void visit(StorageEntry entry) throws IOException
+        {
+            UnitKeys pending = pendingKeys.get(unit);
+            
+            visitor.visit((pending == null)
+                    ? entry : fillPending(entry, keys, pending));
+        }
+        
+        private final String unit;
+        private final List<String> keys;
+        private final EntryVisitor visitor;
+    }
+    
+    private static final class DeferredWrite
+    {
+        public DeferredWrite(String unit, StorageEntry values, Selector selector)
+        {
+            this.unit = unit;
+            this.values = new HashMap<>();
+            this.selector = selector;
+            
+            for (StorageDatum datum : values)
+            {
+                this.values.put(datum.getKey(), datum.getValue());
+            }
+        }
+        
+        public DeferredWrite(
+                String unit, Map<String, String> values, Selector selector
+        )
+        {
+            this.unit = unit;
+            this.values = values;
+            this.selector = selector;
+        }
+        
+        private final String unit;
+        private final Map<String, String> values;
+        private final Selector selector;
+    }
+    
+    private final Storage storage;
+    
+    /**
+     * Read without holding the lock on this storage,
+     * hence replaced rather than modified.
+     */
+    private final Map<String, UnitKeys> pendingKeys = new ConcurrentHashMap<>();
+    
+    private final List<DeferredWrite> deferredWrites = new ArrayList<>();
+}
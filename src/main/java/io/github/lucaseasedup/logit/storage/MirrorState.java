@@ -0,0 +1,270 @@
+package io.github.lucaseasedup.logit.storage;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of a storage mirrored by a {@link WrapperStorage}:
+ * the unit names it uses, how far behind the leading storage it is
+ * in every unit, and how well it has been answering reads.
+ * 
+ * <p> A mirror lags behind in a unit from the moment a write to that unit
+ * is queued for it until the write has been applied, or, if the mirror
+ * was in autobatch mode, until the batch has been executed. The lag of
+ * a unit is the age of its oldest write that has not been applied yet.
+ * A unit becomes diverged once a write to it fails on the mirror,
+ * and stays so for as long as the storage is mirrored.
+ * 
+ * <p> This class is thread-safe. Calls to the mirrored storage itself
+ * must be synchronized on the storage, unless it is a {@link PooledStorage}.
+ */
+final class MirrorState
+{
+    public MirrorState(
+            Storage source, Storage storage, Map<String, String> unitMappings
+    )
+    {
+        if (source == null || storage == null || unitMappings == null)
+            throw new IllegalArgumentException();
+        
+        this.source = source;
+        this.storage = storage;
+        this.unitMappings = unitMappings;
+    }
+    
+    /**
+     * Returns the storage as it was passed to
+     * {@link WrapperStorage#mirrorStorage(Storage, Map)}.
+     */
+    public Storage getSource()
+    {
+        return source;
+    }
+    
+    /**
+     * Returns the storage that operations should be run on,
+     * which may wrap the source storage.
+     */
+    public Storage getStorage()
+    {
+        return storage;
+    }
+    
+    /**
+     * Returns the name of the mirror unit
+     * corresponding to the given leading unit.
+     */
+    public synchronized String mapUnit(String unit)
+    {
+        String unitMapping = unitMappings.get(unit);
+        
+        return (unitMapping != null) ? unitMapping : unit;
+    }
+    
+    public synchronized void renameUnit(String unit, String newName)
+    {
+        String unitMapping = mapUnit(unit);
+        
+        unitMappings.remove(unit);
+        unitMappings.put(newName, unitMapping);
+        
+        Deque<Long> unitPending = pending.remove(unit);
+        Deque<Long> unitBatched = batched.remove(unit);
+        
+        if (unitPending != null)
+        {
+            pending.put(newName, unitPending);
+        }
+        
+        if (unitBatched != null)
+        {
+            batched.put(newName, unitBatched);
+        }
+        
+        if (diverged.remove(unit))
+        {
+            diverged.add(newName);
+        }
+        
+        renamedUnits.put(unit, newName);
+    }
+    
+    /**
+     * Records that a write to a unit has been queued for this mirror.
+     */
+    public synchronized void writeQueued(String unit)
+    {
+        getDeque(pending, unit).addLast(System.currentTimeMillis());
+    }
+    
+    /**
+     * Records that the oldest write queued for a unit has been run.
+     * 
+     * @param unit      the leading unit name.
+     * @param succeeded whether the write succeeded.
+     * @param batched   whether the write was only added to a batch.
+     */
+    public synchronized void writeApplied(
+            String unit, boolean succeeded, boolean batched
+    )
+    {
+        // The unit may have been renamed since the write was queued.
+        for (int i = 0; i < renamedUnits.size(); i++)
+        {
+            if (pending.containsKey(unit) || !renamedUnits.containsKey(unit))
+                break;
+            
+            unit = renamedUnits.get(unit);
+        }
+        
+        Long queuedAt = getDeque(pending, unit).pollFirst();
+        
+        if (!succeeded)
+        {
+            diverged.add(unit);
+        }
+        else if (batched && queuedAt != null)
+        {
+            getDeque(this.batched, unit).addLast(queuedAt);
+        }
+    }
+    
+    /**
+     * Records that the batch of this mirror has been executed
+     * or, if {@code succeeded} is {@code false}, discarded.
+     */
+    public synchronized void batchFinished(boolean succeeded)
+    {
+        for (Map.Entry<String, Deque<Long>> e : batched.entrySet())
+        {
+            if (!succeeded && !e.getValue().isEmpty())
+            {
+                diverged.add(e.getKey());
+            }
+            
+            e.getValue().clear();
+        }
+    }
+    
+    /**
+     * Returns how far behind the leading storage this mirror is in a unit.
+     * 
+     * @param unit the leading unit name.
+     * 
+     * @return the lag in milliseconds, or {@link Long#MAX_VALUE}
+     *         if the unit has diverged.
+     */
+    public synchronized long getLag(String unit)
+    {
+        if (diverged.contains(unit))
+            return Long.MAX_VALUE;
+        
+        long oldest = Long.MAX_VALUE;
+        Deque<Long> unitPending = pending.get(unit);
+        Deque<Long> unitBatched = batched.get(unit);
+        
+        if (unitPending != null && !unitPending.isEmpty())
+        {
+            oldest = Math.min(oldest, unitPending.peekFirst());
+        }
+        
+        if (unitBatched != null && !unitBatched.isEmpty())
+        {
+            oldest = Math.min(oldest, unitBatched.peekFirst());
+        }
+        
+        if (oldest == Long.MAX_VALUE)
+            return 0L;
+        
+        return Math.max(0L, System.currentTimeMillis() - oldest);
+    }
+    
+    /**
+     * Checks whether reads from a unit may be routed to this mirror.
+     * 
+     * @param unit   the leading unit name.
+     * @param maxLag the maximum acceptable lag in milliseconds.
+     * 
+     * @return {@code true} if the unit has not diverged, lags behind by no
+     *         more than {@code maxLag} and the last read from this mirror
+     *         did not fail recently; {@code false} otherwise.
+     */
+    public synchronized boolean isReadable(String unit, long maxLag)
+    {
+        if (System.currentTimeMillis() < readBackoffUntil)
+            return false;
+        
+        return getLag(unit) <= maxLag;
+    }
+    
+    public synchronized void readSucceeded(long elapsedNanos)
+    {
+        readLatency = updateLatencyEstimate(readLatency, elapsedNanos);
+    }
+    
+    public synchronized void readFailed()
+    {
+        readBackoffUntil = System.currentTimeMillis() + READ_RETRY_INTERVAL;
+    }
+    
+    /**
+     * Returns the moving average of the time reads from this mirror took,
+     * or {@code 0} if none has been made yet.
+     */
+    public synchronized long getReadLatency()
+    {
+        return readLatency;
+    }
+    
+    /**
+     * Folds a new sample into an exponentially weighted moving average
+     * of latencies.
+     * 
+     * @param estimate the current estimate, or {@code 0} if there is none.
+     * @param sample   the new sample.
+     * 
+     * @return the new estimate.
+     */
+    public static long updateLatencyEstimate(long estimate, long sample)
+    {
+        if (estimate == 0)
+            return Math.max(1L, sample);
+        
+        return Math.max(1L, estimate - estimate / 5 + sample / 5);
+    }
+    
+    private static Deque<Long> getDeque(
+            Map<String, Deque<Long>> map, String unit
+    )
+    {
+        Deque<Long> deque = map.get(unit);
+        
+        if (deque == null)
+        {
+            deque = new ArrayDeque<>();
+            map.put(unit, deque);
+        }
+        
+        return deque;
+    }
+    
+    /**
+     * How long, in milliseconds, reads are kept away from a mirror
+     * after a read from it has failed.
+     */
+    public static final long READ_RETRY_INTERVAL = 30000L;
+    
+    private final Storage source;
+    private final Storage storage;
+    private final Map<String, String> unitMappings;
+    private final Map<String, Deque<Long>> pending = new HashMap<>();
+    private final Map<String, Deque<Long>> batched = new HashMap<>();
+    private final Set<String> diverged = new HashSet<>();
+    private final Map<String, String> renamedUnits = new HashMap<>();
+    private long readLatency = 0L;
+    private long readBackoffUntil = 0L;
+}
@@ -8,8 +8,11 @@ import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Properties;
 
 public final class MySqlStorage implements Storage
 {
@@ -39,11 +42,23 @@ public final class MySqlStorage implements Storage
     {
         try
         {
-            connection = DriverManager.getConnection(host, user, password);
-            statement = connection.createStatement();
-            statement.execute(
-                    "USE `" + SqlUtils.escapeQuotes(database, "`", true) + "`;"
-            );
+            Properties properties = new Properties();
+            properties.setProperty("user", user);
+            properties.setProperty("password", password);
+            properties.setProperty("useServerPrepStmts", "true");
+            properties.setProperty("cachePrepStmts", "true");
+            properties.setProperty("rewriteBatchedStatements", "true");
+            properties.setProperty("useCursorFetch", "true");
+            
+            connection = DriverManager.getConnection(host, properties);
+            statements = new PreparedStatementCache(connection);
+            
+            try (Statement statement = connection.createStatement())
+            {
+                statement.execute(
+                        "USE `" + SqlUtils.escapeQuotes(database, "`", true) + "`;"
+                );
+            }
         }
         catch (SQLException ex)
         {
@@ -69,7 +84,7 @@ public final class MySqlStorage implements Storage
     {
         try
         {
-            statement.execute("SELECT 1");
+            statements.execute("SELECT 1", new ArrayList<String>(0));
         }
         catch (SQLException ex)
         {
@@ -80,11 +95,11 @@ public final class MySqlStorage implements Storage
     @Override
     public void close() throws IOException
     {
-        if (connection != null)
+        if (statements != null)
         {
             try
             {
-                connection.close();
+                statements.close();
             }
             catch (SQLException ex)
             {
@@ -92,15 +107,15 @@ public final class MySqlStorage implements Storage
             }
             finally
             {
-                connection = null;
+                statements = null;
             }
         }
         
-        if (statement != null)
+        if (connection != null)
         {
             try
             {
-                statement.close();
+                connection.close();
             }
             catch (SQLException ex)
             {
@@ -108,7 +123,7 @@ public final class MySqlStorage implements Storage
             }
             finally
             {
-                statement = null;
+                connection = null;
             }
         }
     }
@@ -202,12 +217,13 @@ public final class MySqlStorage implements Storage
     public List<StorageEntry> selectEntries(String unit, Selector selector)
             throws IOException
     {
+        List<String> params = new ArrayList<>();
         String sql = "SELECT * FROM `" + SqlUtils.escapeQuotes(unit, "`", true) + "`"
-                   + " WHERE " + SqlUtils.translateSelector(selector, "`", "'") + ";";
+                   + " WHERE " + SqlUtils.translateSelector(selector, "`", params) + ";";
         
         try
         {
-            return SqlUtils.copyResultSet(executeQuery(sql));
+            return SqlUtils.copyResultSet(executeQuery(sql, params));
         }
         catch (SQLException ex)
         {
@@ -237,13 +253,14 @@ public final class MySqlStorage implements Storage
             String unit, List<String> keys, Selector selector
     ) throws IOException
     {
+        List<String> params = new ArrayList<>();
         String sql = "SELECT " + SqlUtils.translateKeyList(keys, "`")
                    + " FROM `" + SqlUtils.escapeQuotes(unit, "`", true) + "`"
-                   + " WHERE " + SqlUtils.translateSelector(selector, "`", "'") + ";";
+                   + " WHERE " + SqlUtils.translateSelector(selector, "`", params) + ";";
         
         try
         {
-            return SqlUtils.copyResultSet(executeQuery(sql));
+            return SqlUtils.copyResultSet(executeQuery(sql, params));
         }
         catch (SQLException ex)
         {
@@ -251,6 +268,29 @@ public final class MySqlStorage implements Storage
         }
     }
     
+    @Override
+    public void forEachEntry(String unit, EntryVisitor visitor)
+            throws IOException
+    {
+        String sql = "SELECT * FROM `" + SqlUtils.escapeQuotes(unit, "`", true) + "`;";
+        
+        streamQuery(sql, new ArrayList<String>(0), visitor);
+    }
+    
+    @Override
+    public void forEachEntry(
+            String unit, List<String> keys, Selector selector,
+            EntryVisitor visitor
+    ) throws IOException
+    {
+        List<String> params = new ArrayList<>();
+        String sql = "SELECT " + SqlUtils.translateKeyList(keys, "`")
+                   + " FROM `" + SqlUtils.escapeQuotes(unit, "`", true) + "`"
+                   + " WHERE " + SqlUtils.translateSelector(selector, "`", params) + ";";
+        
+        streamQuery(sql, params, visitor);
+    }
+    
     @Override
     public void createUnit(String unit, UnitKeys keys, String primaryKey)
             throws IOException
@@ -314,6 +354,78 @@ public final class MySqlStorage implements Storage
         }
     }
     
+    @Override
+    public List<String> getIndexes(String unit) throws IOException
+    {
+        try
+        {
+            return new ArrayList<>(SqlUtils.getIndexes(
+                    connection, unit, getPrimaryKey(unit)
+            ).keySet());
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+    }
+    
+    @Override
+    public void createIndex(String unit, String key) throws IOException
+    {
+        try
+        {
+            String primaryKey = getPrimaryKey(unit);
+            
+            // The primary key is indexed already.
+            if (key.equals(primaryKey)
+                    || SqlUtils.getIndexes(connection, unit, primaryKey).containsKey(key))
+            {
+                return;
+            }
+            
+            DataType type = getKeys(unit).get(key);
+            
+            if (type == null)
+                throw new IOException("Key does not exist: " + key);
+            
+            // Text columns can only be indexed by a prefix in MySQL.
+            String prefix = (type == DataType.INTEGER || type == DataType.REAL)
+                    ? "" : "(" + INDEX_PREFIX_LENGTH + ")";
+            String sql = "CREATE INDEX `" + SqlUtils.escapeQuotes(SqlUtils.getIndexName(unit, key), "`", true) + "`"
+                       + " ON `" + SqlUtils.escapeQuotes(unit, "`", true) + "`"
+                       + " (`" + SqlUtils.escapeQuotes(key, "`", true) + "`" + prefix + ");";
+            
+            executeStatement(sql);
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+    }
+    
+    @Override
+    public void dropIndex(String unit, String key) throws IOException
+    {
+        try
+        {
+            String indexName = SqlUtils.getIndexes(
+                    connection, unit, getPrimaryKey(unit)
+            ).get(key);
+            
+            if (indexName == null)
+                return;
+            
+            String sql = "DROP INDEX `" + SqlUtils.escapeQuotes(indexName, "`", true) + "`"
+                       + " ON `" + SqlUtils.escapeQuotes(unit, "`", true) + "`;";
+            
+            executeStatement(sql);
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+    }
+    
     @Override
     public void addKey(String unit, String key, DataType type)
             throws IOException
@@ -336,16 +448,61 @@ public final class MySqlStorage implements Storage
     public void addEntry(String unit, StorageEntry entry)
             throws DuplicateEntryException, IOException
     {
+        List<String> params = new ArrayList<>();
         String sql = "INSERT INTO `" + SqlUtils.escapeQuotes(unit, "`", true) + "`"
                    + " (" + SqlUtils.translateEntryNames(entry, "`") + ")"
-                   + " VALUES (" + SqlUtils.translateEntryValues(entry, "'") + ");";
+                   + " VALUES (" + SqlUtils.translateEntryValues(entry, params) + ");";
         
         try
         {
-            executeStatement(sql);
+            executeStatement(sql, params);
+        }
+        catch (SQLException ex)
+        {
+            if ("23000".equals(ex.getSQLState()))
+            {
+                throw new DuplicateEntryException();
+            }
+            else
+            {
+                throw new IOException(ex);
+            }
+        }
+    }
+    
+    /**
+     * Inserts entries with multi-row {@code INSERT} statements,
+     * in a single transaction unless autobatch is enabled.
+     */
+    @Override
+    public void addEntries(String unit, Iterable<StorageEntry> entries)
+            throws DuplicateEntryException, IOException
+    {
+        boolean transaction = false;
+        
+        try
+        {
+            transaction = !isAutobatchEnabled()
+                    && SqlUtils.beginTransaction(connection);
+            
+            for (List<StorageEntry> rows : SqlUtils.chunkEntries(
+                    entries, SqlUtils.MAX_ROWS_PER_STATEMENT, MAX_PARAMS))
+            {
+                List<String> keys = new ArrayList<>(rows.get(0).getKeys());
+                List<String> params = new ArrayList<>();
+                String sql = "INSERT INTO `" + SqlUtils.escapeQuotes(unit, "`", true) + "`"
+                           + " (" + SqlUtils.translateKeyList(keys, "`") + ")"
+                           + " VALUES " + SqlUtils.translateEntryRows(keys, rows, params) + ";";
+                
+                executeStatement(sql, params);
+            }
+            
+            SqlUtils.commitTransaction(connection, transaction);
         }
         catch (SQLException ex)
         {
+            SqlUtils.rollbackTransaction(connection, transaction);
+            
             if ("23000".equals(ex.getSQLState()))
             {
                 throw new DuplicateEntryException();
@@ -363,13 +520,14 @@ public final class MySqlStorage implements Storage
     )
             throws IOException
     {
+        List<String> params = new ArrayList<>();
         String sql = "UPDATE `" + SqlUtils.escapeQuotes(unit, "`", true) + "`"
-                   + " SET " + SqlUtils.translateEntrySubset(entrySubset, "`", "'")
-                   + " WHERE " + SqlUtils.translateSelector(selector, "`", "'") + ";";
+                   + " SET " + SqlUtils.translateEntrySubset(entrySubset, "`", params)
+                   + " WHERE " + SqlUtils.translateSelector(selector, "`", params) + ";";
         
         try
         {
-            executeStatement(sql);
+            executeStatement(sql, params);
         }
         catch (SQLException ex)
         {
@@ -380,12 +538,13 @@ public final class MySqlStorage implements Storage
     @Override
     public void removeEntries(String unit, Selector selector) throws IOException
     {
+        List<String> params = new ArrayList<>();
         String sql = "DELETE FROM `" + SqlUtils.escapeQuotes(unit, "`", true) + "`"
-                   + " WHERE " + SqlUtils.translateSelector(selector, "`", "'") + ";";
+                   + " WHERE " + SqlUtils.translateSelector(selector, "`", params) + ";";
         
         try
         {
-            executeStatement(sql);
+            executeStatement(sql, params);
         }
         catch (SQLException ex)
         {
@@ -393,6 +552,47 @@ public final class MySqlStorage implements Storage
         }
     }
     
+    /**
+     * Removes entries by primary key with {@code DELETE ... IN} statements,
+     * in a single transaction unless autobatch is enabled.
+     */
+    @Override
+    public void removeEntries(String unit, Collection<String> primaryKeys)
+            throws IOException
+    {
+        String primaryKey = getPrimaryKey(unit);
+        
+        if (primaryKey == null)
+            throw new IOException("Unit has no primary key: " + unit);
+        
+        boolean transaction = false;
+        
+        try
+        {
+            transaction = !isAutobatchEnabled()
+                    && SqlUtils.beginTransaction(connection);
+            
+            for (List<String> values : SqlUtils.chunkValues(
+                    primaryKeys, SqlUtils.MAX_ROWS_PER_STATEMENT))
+            {
+                List<String> params = new ArrayList<>();
+                String sql = "DELETE FROM `" + SqlUtils.escapeQuotes(unit, "`", true) + "`"
+                           + " WHERE `" + SqlUtils.escapeQuotes(primaryKey, "`", true) + "`"
+                           + " IN (" + SqlUtils.translateValueList(values, params) + ");";
+                
+                executeStatement(sql, params);
+            }
+            
+            SqlUtils.commitTransaction(connection, transaction);
+        }
+        catch (SQLException ex)
+        {
+            SqlUtils.rollbackTransaction(connection, transaction);
+            
+            throw new IOException(ex);
+        }
+    }
+    
     @Override
     public boolean isAutobatchEnabled()
     {
@@ -410,8 +610,7 @@ public final class MySqlStorage implements Storage
     {
         try
         {
-            statement.executeBatch();
-            statement.clearBatch();
+            statements.executeBatch();
         }
         catch (SQLException ex)
         {
@@ -422,9 +621,19 @@ public final class MySqlStorage implements Storage
     @Override
     public void clearBatch() throws IOException
     {
+        statements.clearBatch();
+    }
+    
+    private void streamQuery(
+            String sql, List<String> params, EntryVisitor visitor
+    ) throws IOException
+    {
+        LogItCore.getInstance().log(CustomLevel.INTERNAL,
+                "(SQ) " + sql + " " + params);
+        
         try
         {
-            statement.clearBatch();
+            SqlUtils.streamQuery(connection, sql, params, visitor);
         }
         catch (SQLException ex)
         {
@@ -434,38 +643,64 @@ public final class MySqlStorage implements Storage
     
     private ResultSet executeQuery(String sql) throws SQLException
     {
-        LogItCore.getInstance().log(CustomLevel.INTERNAL, "(Q) " + sql);
+        return executeQuery(sql, new ArrayList<String>(0));
+    }
+    
+    private ResultSet executeQuery(String sql, List<String> params)
+            throws SQLException
+    {
+        LogItCore.getInstance().log(CustomLevel.INTERNAL,
+                "(Q) " + sql + " " + params);
         
-        return statement.executeQuery(sql);
+        return statements.executeQuery(sql, params);
     }
     
     private boolean executeStatement(String sql) throws SQLException
+    {
+        return executeStatement(sql, new ArrayList<String>(0));
+    }
+    
+    private boolean executeStatement(String sql, List<String> params)
+            throws SQLException
     {
         if (!isAutobatchEnabled())
         {
-            LogItCore.getInstance().log(CustomLevel.INTERNAL, "(S) " + sql);
+            LogItCore.getInstance().log(CustomLevel.INTERNAL,
+                    "(S) " + sql + " " + params);
             
-            return statement.execute(sql);
+            return statements.execute(sql, params);
         }
         
-        addBatch(sql);
+        addBatch(sql, params);
         
         return false;
     }
     
-    private void addBatch(String sql) throws SQLException
+    private void addBatch(String sql, List<String> params)
     {
-        LogItCore.getInstance().log(CustomLevel.INTERNAL, "(BS) " + sql);
+        LogItCore.getInstance().log(CustomLevel.INTERNAL,
+                "(BS) " + sql + " " + params);
         
-        statement.addBatch(sql);
+        statements.addBatch(sql, params);
     }
     
+    /**
+     * MySQL limits a prepared statement to 65535 placeholders.
+     */
+    private static final int MAX_PARAMS = 65535;
+    
+    /**
+     * The number of leading characters of a text key that are indexed;
+     * 191 four-byte characters fit within InnoDB's 767-byte key limit.
+     */
+    private static final int INDEX_PREFIX_LENGTH = 191;
+    
     private final String host;
     private final String user;
     private final String password;
     private final String database;
     
     private Connection connection;
-    private Statement statement;
+    private PreparedStatementCache statements;
     private boolean autobatch = false;
 }
@@ -1,6 +1,7 @@
 package io.github.lucaseasedup.logit.storage;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 public final class NullStorage implements Storage
@@ -70,6 +71,19 @@ public final class NullStorage implements Storage
         return new ArrayList<>();
     }
     
+    @Override
+    public void forEachEntry(String unit, EntryVisitor visitor)
+    {
+    }
+    
+    @Override
+    public void forEachEntry(
+            String unit, List<String> keys, Selector selector,
+            EntryVisitor visitor
+    )
+    {
+    }
+    
     @Override
     public void createUnit(String unit, UnitKeys keys, String primaryKey)
     {
@@ -90,6 +104,22 @@ public final class NullStorage implements Storage
     {
     }
     
+    @Override
+    public List<String> getIndexes(String unit)
+    {
+        return new ArrayList<>();
+    }
+    
+    @Override
+    public void createIndex(String unit, String key)
+    {
+    }
+    
+    @Override
+    public void dropIndex(String unit, String key)
+    {
+    }
+    
     @Override
     public void addKey(String unit, String key, DataType type)
     {
@@ -100,6 +130,11 @@ public final class NullStorage implements Storage
     {
     }
     
+    @Override
+    public void addEntries(String unit, Iterable<StorageEntry> entries)
+    {
+    }
+    
     @Override
     public void updateEntries(
             String unit, StorageEntry entrySubset, Selector selector
@@ -112,6 +147,11 @@ public final class NullStorage implements Storage
     {
     }
     
+    @Override
+    public void removeEntries(String unit, Collection<String> primaryKeys)
+    {
+    }
+    
     @Override
     public boolean isAutobatchEnabled()
     {
@@ -0,0 +1,982 @@
+package io.github.lucaseasedup.logit.storage;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Keeps a bounded pool of storages of the same kind, each holding
+ * its own connection, and lends them out for the duration of a single call.
+ * 
+ * <p> Calls made from different threads are run on different pooled
+ * storages, so a slow query on one thread does not block the others.
+ * A pooled storage is validated before it is lent out if it has been idle
+ * for longer than {@link #VALIDATION_INTERVAL}, and closed once it has been
+ * idle for longer than the idle timeout, as long as the pool holds
+ * more storages than its minimum size.
+ * 
+ * <p> While autobatch is enabled, all write operations are queued
+ * on a single pooled storage, which is held until autobatch is disabled.
+ * 
+ * <p> This class is thread-safe.
+ */
+public final class PooledStorage implements Storage
+{
+    private PooledStorage(
+            Factory factory,
+            int minSize,
+            int maxSize,
+            long idleTimeout,
+            long borrowTimeout
+    )
+    {
+        if (factory == null || minSize < 0 || maxSize <= 0
+                || minSize > maxSize || idleTimeout < 0 || borrowTimeout < 0)
+        {
+            throw new IllegalArgumentException();
+        }
+        
+        this.factory = factory;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.idleTimeout = idleTimeout;
+        this.borrowTimeout = borrowTimeout;
+    }
+    
+    @Override
+    public void connect() throws IOException
+    {
+        synchronized (this)
+        {
+            if (connected)
+                return;
+            
+            connected = true;
+        }
+        
+        List<Member> initialMembers = new ArrayList<>();
+        
+        try
+        {
+            for (int i = 0, n = Math.max(1, minSize); i < n; i++)
+            {
+                initialMembers.add(borrow());
+            }
+        }
+        catch (IOException ex)
+        {
+            close();
+            
+            throw ex;
+        }
+        finally
+        {
+            for (Member member : initialMembers)
+            {
+                release(member);
+            }
+        }
+    }
+    
+    @Override
+    public synchronized boolean isConnected() throws IOException
+    {
+        return connected;
+    }
+    
+    /**
+     * Closes storages that have been idle for too long
+     * and pings the remaining idle ones, discarding those that fail.
+     * 
+     * @throws IOException if the pool is not connected.
+     */
+    @Override
+    public void ping() throws IOException
+    {
+        Deque<Member> membersToPing;
+        
+        synchronized (this)
+        {
+            if (!connected)
+                throw new IOException("Pool is not connected.");
+            
+            evictIdle(System.currentTimeMillis());
+            
+            membersToPing = idle;
+            idle = new ArrayDeque<>();
+            notifyAll();
+        }
+        
+        for (Member member : membersToPing)
+        {
+            if (validate(member))
+            {
+                release(member);
+            }
+            else
+            {
+                discard(member);
+            }
+        }
+    }
+    
+    @Override
+    public void close() throws IOException
+    {
+        Deque<Member> membersToClose;
+        
+        synchronized (this)
+        {
+            connected = false;
+            
+            membersToClose = idle;
+            idle = new ArrayDeque<>();
+            
+            if (batchMember != null)
+            {
+                membersToClose.add(batchMember);
+                batchMember = null;
+            }
+            
+            autobatch = false;
+            notifyAll();
+        }
+        
+        IOException closeException = null;
+        
+        for (Member member : membersToClose)
+        {
+            try
+            {
+                member.getStorage().close();
+            }
+            catch (IOException ex)
+            {
+                closeException = ex;
+            }
+            
+            synchronized (this)
+            {
+                size--;
+            }
+        }
+        
+        if (closeException != null)
+            throw closeException;
+    }
+    
+    @Override
+    public List<String> getUnitNames() throws IOException
+    {
+        Member member = borrow();
+        
+        try
+        {
+            return member.getStorage().getUnitNames();
+        }
+        finally
+        {
+            release(member);
+        }
+    }
+    
+    @Override
+    public UnitKeys getKeys(String unit) throws IOException
+    {
+        Member member = borrow();
+        
+        try
+        {
+            return member.getStorage().getKeys(unit);
+        }
+        finally
+        {
+            release(member);
+        }
+    }
+    
+    @Override
+    public String getPrimaryKey(String unit) throws IOException
+    {
+        Member member = borrow();
+        
+        try
+        {
+            return member.getStorage().getPrimaryKey(unit);
+        }
+        finally
+        {
+            release(member);
+        }
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(String unit) throws IOException
+    {
+        Member member = borrow();
+        
+        try
+        {
+            return member.getStorage().selectEntries(unit);
+        }
+        finally
+        {
+            release(member);
+        }
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(String unit, Selector selector)
+            throws IOException
+    {
+        Member member = borrow();
+        
+        try
+        {
+            return member.getStorage().selectEntries(unit, selector);
+        }
+        finally
+        {
+            release(member);
+        }
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(String unit, List<String> keys)
+            throws IOException
+    {
+        Member member = borrow();
+        
+        try
+        {
+            return member.getStorage().selectEntries(unit, keys);
+        }
+        finally
+        {
+            release(member);
+        }
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(
+            String unit, List<String> keys, Selector selector
+    ) throws IOException
+    {
+        Member member = borrow();
+        
+        try
+        {
+            return member.getStorage().selectEntries(unit, keys, selector);
+        }
+        finally
+        {
+            release(member);
+        }
+    }
+    
+    @Override
+    public void forEachEntry(String unit, EntryVisitor visitor)
+            throws IOException
+    {
+        Member member = borrow();
+        
+        try
+        {
+            member.getStorage().forEachEntry(unit, visitor);
+        }
+        finally
+        {
+            release(member);
+        }
+    }
+    
+    @Override
+    public void forEachEntry(
+            String unit, List<String> keys, Selector selector,
+            EntryVisitor visitor
+    ) throws IOException
+    {
+        Member member = borrow();
+        
+        try
+        {
+            member.getStorage().forEachEntry(unit, keys, selector, visitor);
+        }
+        finally
+        {
+            release(member);
+        }
+    }
+    
+    @Override
+    public void createUnit(String unit, UnitKeys keys, String primaryKey)
+            throws IOException
+    {
+        Member member = borrowWriter();
+        
+        try
+        {
+            member.getStorage().createUnit(unit, keys, primaryKey);
+        }
+        finally
+        {
+            releaseWriter(member);
+        }
+    }
+    
+    @Override
+    public void renameUnit(String unit, String newName) throws IOException
+    {
+        Member member = borrowWriter();
+        
+        try
+        {
+            member.getStorage().renameUnit(unit, newName);
+        }
+        finally
+        {
+            releaseWriter(member);
+        }
+    }
+    
+    @Override
+    public void eraseUnit(String unit) throws IOException
+    {
+        Member member = borrowWriter();
+        
+        try
+        {
+            member.getStorage().eraseUnit(unit);
+        }
+        finally
+        {
+            releaseWriter(member);
+        }
+    }
+    
+    @Override
+    public void removeUnit(String unit) throws IOException
+    {
+        Member member = borrowWriter();
+        
+        try
+        {
+            member.getStorage().removeUnit(unit);
+        }
+        finally
+        {
+            releaseWriter(member);
+        }
+    }
+    
+    @Override
+    public List<String> getIndexes(String unit) throws IOException
+    {
+        Member member = borrow();
+        
+        try
+        {
+            return member.getStorage().getIndexes(unit);
+        }
+        finally
+        {
+            release(member);
+        }
+    }
+    
+    @Override
+    public void createIndex(String unit, String key) throws IOException
+    {
+        Member member = borrowWriter();
+        
+        try
+        {
+            member.getStorage().createIndex(unit, key);
+        }
+        finally
+        {
+            releaseWriter(member);
+        }
+    }
+    
+    @Override
+    public void dropIndex(String unit, String key) throws IOException
+    {
+        Member member = borrowWriter();
+        
+        try
+        {
+            member.getStorage().dropIndex(unit, key);
+        }
+        finally
+        {
+            releaseWriter(member);
+        }
+    }
+    
+    @Override
+    public void addKey(String unit, String key, DataType type)
+            throws IOException
+    {
+        Member member = borrowWriter();
+        
+        try
+        {
+            member.getStorage().addKey(unit, key, type);
+        }
+        finally
+        {
+            releaseWriter(member);
+        }
+    }
+    
+    @Override
+    public void addEntry(String unit, StorageEntry entry)
+            throws DuplicateEntryException, IOException
+    {
+        Member member = borrowWriter();
+        
+        try
+        {
+            member.getStorage().addEntry(unit, entry);
+        }
+        finally
+        {
+            releaseWriter(member);
+        }
+    }
+    
+    @Override
+    public void addEntries(String unit, Iterable<StorageEntry> entries)
+            throws DuplicateEntryException, IOException
+    {
+        Member member = borrowWriter();
+        
+        try
+        {
+            member.getStorage().addEntries(unit, entries);
+        }
+        finally
+        {
+            releaseWriter(member);
+        }
+    }
+    
+    @Override
+    public void updateEntries(
+            String unit, StorageEntry entrySubset, Selector selector
+    ) throws IOException
+    {
+        Member member = borrowWriter();
+        
+        try
+        {
+            member.getStorage().updateEntries(unit, entrySubset, selector);
+        }
+        finally
+        {
+            releaseWriter(member);
+        }
+    }
+    
+    @Override
+    public void removeEntries(String unit, Selector selector) throws IOException
+    {
+        Member member = borrowWriter();
+        
+        try
+        {
+            member.getStorage().removeEntries(unit, selector);
+        }
+        finally
+        {
+            releaseWriter(member);
+        }
+    }
+    
+    @Override
+    public void removeEntries(String unit, Collection<String> primaryKeys)
+            throws IOException
+    {
+        Member member = borrowWriter();
+        
+        try
+        {
+            member.getStorage().removeEntries(unit, primaryKeys);
+        }
+        finally
+        {
+            releaseWriter(member);
+        }
+    }
+    
+    @Override
+    public synchronized boolean isAutobatchEnabled()
+    {
+        return autobatch;
+    }
+    
+    /**
+     * Enables or disables autobatch.
+     * 
+     * <p> Enabling autobatch takes a storage out of the pool; if none
+     * can be obtained, the failure surfaces on the next write operation.
+     * 
+     * @param status the new autobatch status.
+     */
+    @Override
+    public void setAutobatchEnabled(boolean status)
+    {
+        Member memberToRelease = null;
+        
+        synchronized (this)
+        {
+            if (autobatch == status)
+                return;
+            
+            autobatch = status;
+            
+            if (!status && batchMember != null)
+            {
+                batchMember.getStorage().setAutobatchEnabled(false);
+                memberToRelease = batchMember;
+                batchMember = null;
+            }
+        }
+        
+        if (memberToRelease != null)
+        {
+            release(memberToRelease);
+        }
+    }
+    
+    @Override
+    public void executeBatch() throws IOException
+    {
+        Member member;
+        
+        synchronized (this)
+        {
+            member = batchMember;
+        }
+        
+        if (member != null)
+        {
+            member.getStorage().executeBatch();
+        }
+    }
+    
+    @Override
+    public void clearBatch() throws IOException
+    {
+        Member member;
+        
+        synchronized (this)
+        {
+            member = batchMember;
+        }
+        
+        if (member != null)
+        {
+            member.getStorage().clearBatch();
+        }
+    }
+    
+    public int getMinSize()
+    {
+        return minSize;
+    }
+    
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+    
+    /**
+     * Returns the number of storages currently held by this pool,
+     * both idle and lent out.
+     * 
+     * @return the pool size.
+     */
+    public synchronized int getSize()
+    {
+        return size;
+    }
+    
+    public synchronized int getIdleCount()
+    {
+        return idle.size();
+    }
+    
+    /**
+     * Takes a storage out of the pool, creating a new one if none is idle
+     * and the pool is not full, or waiting for one to be released otherwise.
+     * 
+     * @return a connected storage.
+     * 
+     * @throws IOException if the pool is not connected, no storage became
+     *                     available within the borrow timeout or a new
+     *                     storage could not be connected.
+     */
+    private Member borrow() throws IOException
+    {
+        while (true)
+        {
+            Member member = null;
+            
+            synchronized (this)
+            {
+                long deadline = System.currentTimeMillis() + borrowTimeout;
+                
+                while (true)
+                {
+                    if (!connected)
+                        throw new IOException("Pool is not connected.");
+                    
+                    long now = System.currentTimeMillis();
+                    
+                    evictIdle(now);
+                    
+                    if (!idle.isEmpty())
+                    {
+                        member = idle.pop();
+                        
+                        break;
+                    }
+                    
+                    if (size < maxSize)
+                    {
+                        size++;
+                        
+                        break;
+                    }
+                    
+                    if (now >= deadline)
+                    {
+                        throw new IOException(
+                                "Timed out waiting for a pooled storage."
+                        );
+                    }
+                    
+                    try
+                    {
+                        wait(deadline - now);
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        Thread.currentThread().interrupt();
+                        
+                        throw new IOException(ex);
+                    }
+                }
+            }
+            
+            if (member == null)
+            {
+                return createMember();
+            }
+            
+            if (System.currentTimeMillis() - member.getReleasedAt()
+                    <= VALIDATION_INTERVAL || validate(member))
+            {
+                return member;
+            }
+            
+            discard(member);
+        }
+    }
+    
+    private void release(Member member)
+    {
+        boolean closeMember;
+        
+        synchronized (this)
+        {
+            closeMember = !connected;
+            
+            if (!closeMember)
+            {
+                member.setReleasedAt(System.currentTimeMillis());
+                idle.push(member);
+                notifyAll();
+            }
+        }
+        
+        if (closeMember)
+        {
+            discard(member);
+        }
+    }
+    
+    private Member borrowWriter() throws IOException
+    {
+        while (true)
+        {
+            boolean batching;
+            
+            synchronized (this)
+            {
+                batching = autobatch;
+                
+                if (batching && batchMember != null)
+                    return batchMember;
+            }
+            
+            Member member = borrow();
+            
+            if (!batching)
+                return member;
+            
+            synchronized (this)
+            {
+                if (autobatch && batchMember == null)
+                {
+                    member.getStorage().setAutobatchEnabled(true);
+                    batchMember = member;
+                    
+                    return member;
+                }
+            }
+            
+            release(member);
+        }
+    }
+    
+    private void releaseWriter(Member member)
+    {
+        synchronized (this)
+        {
+            if (member == batchMember)
+                return;
+        }
+        
+        release(member);
+    }
+    
+    private Member createMember() throws IOException
+    {
+        try
+        {
+            Storage storage = factory.produceStorage();
+            
+            storage.connect();
+            
+            return new Member(storage);
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            synchronized (this)
+            {
+                size--;
+                notifyAll();
+            }
+            
+            throw ex;
+        }
+    }
+    
+    private boolean validate(Member member)
+    {
+        try
+        {
+            if (!member.getStorage().isConnected())
+                return false;
+            
+            member.getStorage().ping();
+            
+            return true;
+        }
+        catch (IOException ex)
+        {
+            return false;
+        }
+    }
+    
+    private void discard(Member member)
+    {
+        try
+        {
+            member.getStorage().close();
+        }
+        catch (IOException ex)
+        {
+            // The storage is being discarded anyway.
+        }
+        
+        synchronized (this)
+        {
+            size--;
+            notifyAll();
+        }
+    }
+    
+    /**
+     * Closes the storages that have been idle for longer than
+     * the idle timeout, leaving at least {@code minSize} storages in the pool.
+     * Must be called while holding the lock on this pool.
+     */
+    private void evictIdle(long now)
+    {
+        if (idleTimeout == 0)
+            return;
+        
+        Iterator<Member> it = idle.descendingIterator();
+        
+        while (it.hasNext() && size > minSize)
+        {
+            Member member = it.next();
+            
+            if (now - member.getReleasedAt() <= idleTimeout)
+                break;
+            
+            it.remove();
+            size--;
+            
+            try
+            {
+                member.getStorage().close();
+            }
+            catch (IOException ex)
+            {
+                // The storage is being evicted anyway.
+            }
+        }
+    }
+    
+    public static interface Factory
+    {
+        public Storage produceStorage();
+    }
+    
+    public static final class Builder
+    {
+        public PooledStorage build()
+        {
+            return new PooledStorage(
+                    factory, minSize, maxSize, idleTimeout, borrowTimeout
+            );
+        }
+        
+        public Builder factory(Factory factory)
+        {
+            if (factory == null)
+                throw new IllegalArgumentException();
+            
+            this.factory = factory;
+            
+            return this;
+        }
+        
+        public Builder minSize(int minSize)
+        {
+            if (minSize < 0)
+                throw new IllegalArgumentException();
+            
+            this.minSize = minSize;
+            
+            return this;
+        }
+        
+        public Builder maxSize(int maxSize)
+        {
+            if (maxSize <= 0)
+                throw new IllegalArgumentException();
+            
+            this.maxSize = maxSize;
+            
+            return this;
+        }
+        
+        /**
+         * Sets the time after which an idle storage is closed.
+         * 
+         * @param idleTimeout the idle timeout in milliseconds,
+         *                    or {@code 0} if idle storages should never
+         *                    be closed.
+         * 
+         * @return this {@code Builder}.
+         */
+        public Builder idleTimeout(long idleTimeout)
+        {
+            if (idleTimeout < 0)
+                throw new IllegalArgumentException();
+            
+            this.idleTimeout = idleTimeout;
+            
+            return this;
+        }
+        
+        /**
+         * Sets the maximum time to wait for a storage to become available
+         * when the pool is full.
+         * 
+         * @param borrowTimeout the borrow timeout in milliseconds.
+         * 
+         * @return this {@code Builder}.
+         */
+        public Builder borrowTimeout(long borrowTimeout)
+        {
+            if (borrowTimeout < 0)
+                throw new IllegalArgumentException();
+            
+            this.borrowTimeout = borrowTimeout;
+            
+            return this;
+        }
+        
+        private Factory factory;
+        private int minSize = 1;
+        private int maxSize = 4;
+        private long idleTimeout = 600000L;
+        private long borrowTimeout = 30000L;
+    }
+    
+    private static final class Member
+    {
+        public Member(Storage storage)
+        {
+            this.storage = storage;
+            this.releasedAt = System.currentTimeMillis();
+        }
+        
+        public Storage getStorage()
+        {
+            return storage;
+        }
+        
+        public long getReleasedAt()
+        {
+            return releasedAt;
+        }
+        
+        public void setReleasedAt(long releasedAt)
+        {
+            this.releasedAt = releasedAt;
+        }
+        
+        private final Storage storage;
+        private long releasedAt;
+    }
+    
+    /**
+     * Storages released no longer than this many milliseconds ago
+     * are lent out again without being validated.
+     */
+    public static final long VALIDATION_INTERVAL = 1000L;
+    
+    private final Factory factory;
+    private final int minSize;
+    private final int maxSize;
+    private final long idleTimeout;
+    private final long borrowTimeout;
+    
+    private Deque<Member> idle = new ArrayDeque<>();
+    private int size = 0;
+    private boolean connected = false;
+    private boolean autobatch = false;
+    private Member batchMember;
+}
@@ -1,7 +1,26 @@
 package io.github.lucaseasedup.logit.storage;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
 
+/**
+ * Holds all entries of a preloaded unit in memory.
+ * 
+ * <p> Entries are indexed by their primary key. Secondary indexes can be
+ * added for other keys using {@link #addIndex(String)}; equality conditions
+ * on such keys, as well as {@code LESS_THAN} and {@code GREATER_THAN}
+ * conditions on {@code INTEGER} keys, are then answered from the index
+ * instead of scanning the whole unit.
+ */
 public final class PreloadedUnitCache
 {
     public PreloadedUnitCache(
@@ -13,7 +32,11 @@ public final class PreloadedUnitCache
         
         this.keys = keys;
         this.primaryKey = primaryKey;
-        this.entries = entries;
+        
+        for (StorageEntry entry : entries)
+        {
+            addEntry(entry);
+        }
     }
     
     public UnitKeys getKeys()
@@ -26,12 +49,504 @@ public final class PreloadedUnitCache
         return primaryKey;
     }
     
-    public List<StorageEntry> getEntryList()
+    /**
+     * Returns an unmodifiable view of all the cached entries.
+     * 
+     * @return the cached entries, in insertion order.
+     */
+    public Collection<StorageEntry> getEntries()
+    {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+    
+    public int size()
+    {
+        return entries.size();
+    }
+    
+    /**
+     * Creates a secondary index on the given key.
+     * 
+     * <p> If an index on this key already exists, or the key is
+     * the primary key, this method does nothing.
+     * 
+     * @param key the key to be indexed.
+     * 
+     * @throws IllegalArgumentException if {@code key} is {@code null}.
+     */
+    public void addIndex(String key)
+    {
+        if (key == null)
+            throw new IllegalArgumentException();
+        
+        if (key.equals(primaryKey) || indexes.containsKey(key))
+            return;
+        
+        KeyIndex index = new KeyIndex(key);
+        
+        for (StorageEntry entry : entries.values())
+        {
+            index.add(entry);
+        }
+        
+        indexes.put(key, index);
+    }
+    
+    public void removeIndex(String key)
+    {
+        if (key == null)
+            throw new IllegalArgumentException();
+        
+        indexes.remove(key);
+    }
+    
+    public boolean isIndexed(String key)
+    {
+        return primaryKey.equals(key) || indexes.containsKey(key);
+    }
+    
+    /**
+     * Returns the cached entries matching the given selector.
+     * 
+     * <p> The returned entries are not copies; they must not be modified
+     * by the caller.
+     * 
+     * @param selector the selector.
+     * 
+     * @return a list of matching entries.
+     */
+    public List<StorageEntry> selectEntries(Selector selector)
+    {
+        if (selector == null)
+            throw new IllegalArgumentException();
+        
+        Collection<StorageEntry> candidates = findCandidates(selector);
+        
+        if (candidates == null)
+        {
+            candidates = entries.values();
+        }
+        
+        CompiledSelector compiledSelector = CompiledSelector.compile(selector);
+        List<StorageEntry> result = new ArrayList<>(candidates.size());
+        
+        for (StorageEntry entry : candidates)
+        {
+            if (compiledSelector.test(entry))
+            {
+                result.add(entry);
+            }
+        }
+        
+        return result;
+    }
+    
+    public void addEntry(StorageEntry entry)
+    {
+        if (entry == null)
+            throw new IllegalArgumentException();
+        
+        entries.put(entry.get(primaryKey), entry);
+        
+        for (KeyIndex index : indexes.values())
+        {
+            index.add(entry);
+        }
+    }
+    
+    public void updateEntries(StorageEntry entrySubset, Selector selector)
+    {
+        if (entrySubset == null || selector == null)
+            throw new IllegalArgumentException();
+        
+        boolean primaryKeyChanged = entrySubset.containsKey(primaryKey);
+        List<KeyIndex> affectedIndexes = new ArrayList<>();
+        
+        for (KeyIndex index : indexes.values())
+        {
+            if (entrySubset.containsKey(index.getKey()))
+            {
+                affectedIndexes.add(index);
+            }
+        }
+        
+        for (StorageEntry entry : selectEntries(selector))
+        {
+            if (primaryKeyChanged)
+            {
+                entries.remove(entry.get(primaryKey));
+            }
+            
+            for (KeyIndex index : affectedIndexes)
+            {
+                index.remove(entry);
+            }
+            
+            for (StorageDatum datum : entrySubset)
+            {
+                entry.put(datum.getKey(), datum.getValue());
+            }
+            
+            if (primaryKeyChanged)
+            {
+                entries.put(entry.get(primaryKey), entry);
+            }
+            
+            for (KeyIndex index : affectedIndexes)
+            {
+                index.add(entry);
+            }
+        }
+    }
+    
+    public void removeEntries(Selector selector)
+    {
+        if (selector == null)
+            throw new IllegalArgumentException();
+        
+        for (StorageEntry entry : selectEntries(selector))
+        {
+            entries.remove(entry.get(primaryKey));
+            
+            for (KeyIndex index : indexes.values())
+            {
+                index.remove(entry);
+            }
+        }
+    }
+    
+    public void removeEntries(Collection<String> primaryKeys)
+    {
+        if (primaryKeys == null)
+            throw new IllegalArgumentException();
+        
+        for (String primaryKeyValue : primaryKeys)
+        {
+            StorageEntry entry = entries.remove(primaryKeyValue);
+            
+            if (entry == null)
+                continue;
+            
+            for (KeyIndex index : indexes.values())
+            {
+                index.remove(entry);
+            }
+        }
+    }
+    
+    public void addKey(String key, DataType type)
+    {
+        if (key == null || type == null)
+            throw new IllegalArgumentException();
+        
+        for (StorageEntry entry : entries.values())
+        {
+            entry.put(key, "");
+        }
+        
+        keys.put(key, type);
+        
+        if (indexes.containsKey(key))
+        {
+            indexes.remove(key);
+            addIndex(key);
+        }
+    }
+    
+    public void clear()
+    {
+        entries.clear();
+        
+        for (KeyIndex index : indexes.values())
+        {
+            index.clear();
+        }
+    }
+    
+    /**
+     * Narrows down the set of entries that may match the given selector
+     * using the available indexes.
+     * 
+     * @param selector the selector.
+     * 
+     * @return a superset of the entries matching {@code selector},
+     *         or {@code null} if the indexes could not help
+     *         and the whole unit has to be scanned.
+     */
+    private Collection<StorageEntry> findCandidates(Selector selector)
     {
-        return entries;
+        if (selector instanceof SelectorConstant)
+        {
+            if (!((SelectorConstant) selector).getValue())
+            {
+                return Collections.emptyList();
+            }
+            
+            return null;
+        }
+        else if (selector instanceof SelectorBinary)
+        {
+            SelectorBinary selectorBinary = (SelectorBinary) selector;
+            Collection<StorageEntry> left =
+                    findCandidates(selectorBinary.getLeftOperand());
+            Collection<StorageEntry> right =
+                    findCandidates(selectorBinary.getRightOperand());
+            
+            switch (selectorBinary.getRelation())
+            {
+            case AND:
+                if (left == null)
+                    return right;
+                
+                if (right == null)
+                    return left;
+                
+                return (left.size() <= right.size()) ? left : right;
+            
+            case OR:
+                if (left == null || right == null)
+                    return null;
+                
+                Set<StorageEntry> union = new LinkedHashSet<>(left);
+                union.addAll(right);
+                
+                return union;
+            
+            default:
+                return null;
+            }
+        }
+        else if (selector instanceof SelectorCondition)
+        {
+            SelectorCondition selectorCondition = (SelectorCondition) selector;
+            String key = selectorCondition.getKey();
+            String value = selectorCondition.getValue();
+            
+            switch (selectorCondition.getRelation())
+            {
+            case EQUALS:
+            {
+                if (value == null)
+                    return null;
+                
+                if (key.equals(primaryKey))
+                {
+                    StorageEntry entry = entries.get(value);
+                    
+                    if (entry == null)
+                        return Collections.emptyList();
+                    
+                    return Collections.singletonList(entry);
+                }
+                
+                KeyIndex index = indexes.get(key);
+                
+                if (index == null)
+                    return null;
+                
+                return index.getEqualTo(value);
+            }
+            case LESS_THAN:
+            case GREATER_THAN:
+            {
+                KeyIndex index = indexes.get(key);
+                
+                if (index == null || !index.isRanged())
+                    return null;
+                
+                long operand;
+                
+                try
+                {
+                    operand = Long.parseLong(value);
+                }
+                catch (NumberFormatException ex)
+                {
+                    return Collections.emptyList();
+                }
+                
+                if (selectorCondition.getRelation() == Infix.LESS_THAN)
+                {
+                    return index.getLessThan(operand);
+                }
+                else
+                {
+                    return index.getGreaterThan(operand);
+                }
+            }
+            default:
+                return null;
+            }
+        }
+        else
+        {
+            return null;
+        }
+    }
+    
+    private final class KeyIndex
+    {
+        public KeyIndex(String key)
+        {
+            this.key = key;
+            this.ranged = keys.get(key) == DataType.INTEGER;
+            
+            if (ranged)
+            {
+                byNumber = new TreeMap<>();
+            }
+        }
+        
+        public String getKey()
+        {
+            return key;
+        }
+        
+        public boolean isRanged()
+        {
+            return ranged;
+        }
+        
+        public void add(StorageEntry entry)
+        {
+            String value = entry.get(key);
+            
+            if (value == null)
+                return;
+            
+            Set<StorageEntry> bucket = byValue.get(value);
+            
+            if (bucket == null)
+            {
+                bucket = new LinkedHashSet<>();
+                byValue.put(value, bucket);
+            }
+            
+            bucket.add(entry);
+            
+            if (ranged)
+            {
+                Long number = parseNumber(value);
+                
+                if (number != null)
+                {
+                    Set<StorageEntry> numberBucket = byNumber.get(number);
+                    
+                    if (numberBucket == null)
+                    {
+                        numberBucket = new LinkedHashSet<>();
+                        byNumber.put(number, numberBucket);
+                    }
+                    
+                    numberBucket.add(entry);
+                }
+            }
+        }
+        
+        public void remove(StorageEntry entry)
+        {
+            String value = entry.get(key);
+            
+            if (value == null)
+                return;
+            
+            Set<StorageEntry> bucket = byValue.get(value);
+            
+            if (bucket != null)
+            {
+                bucket.remove(entry);
+                
+                if (bucket.isEmpty())
+                {
+                    byValue.remove(value);
+                }
+            }
+            
+            if (ranged)
+            {
+                Long number = parseNumber(value);
+                
+                if (number != null)
+                {
+                    Set<StorageEntry> numberBucket = byNumber.get(number);
+                    
+                    if (numberBucket != null)
+                    {
+                        numberBucket.remove(entry);
+                        
+                        if (numberBucket.isEmpty())
+                        {
+                            byNumber.remove(number);
+                        }
+                    }
+                }
+            }
+        }
+        
+        public Collection<StorageEntry> getEqualTo(String value)
+        {
+            Set<StorageEntry> bucket = byValue.get(value);
+            
+            if (bucket == null)
+                return Collections.emptyList();
+            
+            return bucket;
+        }
+        
+        public Collection<StorageEntry> getLessThan(long operand)
+        {
+            return flatten(byNumber.headMap(operand, false));
+        }
+        
+        public Collection<StorageEntry> getGreaterThan(long operand)
+        {
+            return flatten(byNumber.tailMap(operand, false));
+        }
+        
+        public void clear()
+        {
+            byValue.clear();
+            
+            if (ranged)
+            {
+                byNumber.clear();
+            }
+        }
+        
+        private Collection<StorageEntry> flatten(
+                NavigableMap<Long, Set<StorageEntry>> range
+        )
+        {
+            List<StorageEntry> result = new ArrayList<>();
+            
+            for (Set<StorageEntry> bucket : range.values())
+            {
+                result.addAll(bucket);
+            }
+            
+            return result;
+        }
+        
+        private Long parseNumber(String value)
+        {
+            try
+            {
+                return Long.parseLong(value);
+            }
+            catch (NumberFormatException ex)
+            {
+                return null;
+            }
+        }
+        
+        private final String key;
+        private final boolean ranged;
+        private final Map<String, Set<StorageEntry>> byValue = new HashMap<>();
+        private NavigableMap<Long, Set<StorageEntry>> byNumber;
     }
     
     private final UnitKeys keys;
     private final String primaryKey;
-    private final List<StorageEntry> entries;
+    private final Map<String, StorageEntry> entries = new LinkedHashMap<>();
+    private final Map<String, KeyIndex> indexes = new HashMap<>();
 }
@@ -0,0 +1,221 @@
+package io.github.lucaseasedup.logit.storage;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Executes parameterized SQL on a single connection, reusing one
+ * {@code PreparedStatement} for every statement of the same shape.
+ * 
+ * <p> Batched statements are queued and sent on {@link #executeBatch()}.
+ * Consecutive statements of the same shape are bound to a single
+ * {@code PreparedStatement} and sent as one JDBC batch, while the order
+ * of all queued statements is preserved.
+ * 
+ * <p> This class is not thread-safe.
+ */
+public final class PreparedStatementCache implements AutoCloseable
+{
+    /**
+     * Constructs a new {@code PreparedStatementCache}.
+     * 
+     * @param connection the connection to prepare statements on.
+     * @param capacity   the maximum number of statements kept open.
+     */
+    public PreparedStatementCache(Connection connection, int capacity)
+    {
+        if (connection == null || capacity <= 0)
+            throw new IllegalArgumentException();
+        
+        this.connection = connection;
+        this.capacity = capacity;
+    }
+    
+    public PreparedStatementCache(Connection connection)
+    {
+        this(connection, DEFAULT_CAPACITY);
+    }
+    
+    public ResultSet executeQuery(String sql, List<String> params)
+            throws SQLException
+    {
+        return bind(prepare(sql), params).executeQuery();
+    }
+    
+    public boolean execute(String sql, List<String> params)
+            throws SQLException
+    {
+        return bind(prepare(sql), params).execute();
+    }
+    
+    public void addBatch(String sql, List<String> params)
+    {
+        if (sql == null || params == null)
+            throw new IllegalArgumentException();
+        
+        batch.add(new BatchedStatement(sql, params));
+    }
+    
+    /**
+     * Sends all the queued statements to the database, in order.
+     * 
+     * <p> The queue is cleared even if this method fails.
+     * 
+     * @throws SQLException if a database error occurred.
+     */
+    public void executeBatch() throws SQLException
+    {
+        List<BatchedStatement> pending = batch;
+        
+        batch = new ArrayList<>();
+        
+        int i = 0;
+        
+        while (i < pending.size())
+        {
+            String sql = pending.get(i).getSql();
+            PreparedStatement statement = prepare(sql);
+            
+            while (i < pending.size() && pending.get(i).getSql().equals(sql))
+            {
+                bind(statement, pending.get(i).getParams()).addBatch();
+                i++;
+            }
+            
+            try
+            {
+                statement.executeBatch();
+            }
+            finally
+            {
+                statement.clearBatch();
+            }
+        }
+    }
+    
+    public void clearBatch()
+    {
+        batch.clear();
+    }
+    
+    public int getBatchSize()
+    {
+        return batch.size();
+    }
+    
+    @Override
+    public void close() throws SQLException
+    {
+        SQLException closeException = null;
+        
+        for (PreparedStatement statement : statements.values())
+        {
+            try
+            {
+                statement.close();
+            }
+            catch (SQLException ex)
+            {
+                closeException = ex;
+            }
+        }
+        
+        statements.clear();
+        batch.clear();
+        
+        if (closeException != null)
+            throw closeException;
+    }
+    
+    private PreparedStatement prepare(String sql) throws SQLException
+    {
+        if (sql == null)
+            throw new IllegalArgumentException();
+        
+        PreparedStatement statement = statements.get(sql);
+        
+        if (statement == null || statement.isClosed())
+        {
+            statement = connection.prepareStatement(sql);
+            statements.put(sql, statement);
+        }
+        
+        return statement;
+    }
+    
+    private static PreparedStatement bind(
+            PreparedStatement statement, List<String> params
+    ) throws SQLException
+    {
+        if (params == null)
+            throw new IllegalArgumentException();
+        
+        for (int i = 0; i < params.size(); i++)
+        {
+            statement.setString(i + 1, params.get(i));
+        }
+        
+        return statement;
+    }
+    
+    private static final class BatchedStatement
+    {
+        public BatchedStatement(String sql, List<String> params)
+        {
+            this.sql = sql;
+            this.params = params;
+        }
+        
+        public String getSql()
+        {
+            return sql;
+        }
+        
+        public List<String> getParams()
+        {
+            return params;
+        }
+        
+        private final String sql;
+        private final List<String> params;
+    }
+    
+    public static final int DEFAULT_CAPACITY = 64;
+    
+    private final Connection connection;
+    private final int capacity;
+    
+    private final Map<String, PreparedStatement> statements =
+            new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<String, PreparedStatement> eldest
+        )
+        {
+            if (size() <= capacity)
+                return false;
+            
+            try
+            {
+                eldest.getValue().close();
+            }
+            catch (SQLException ex)
+            {
+                // The statement is being discarded anyway.
+            }
+            
+            return true;
+        }
+        
+        private static final long serialVersionUID = 1L;
+    };
+    
+    private List<BatchedStatement> batch = new ArrayList<>();
+}
@@ -0,0 +1,653 @@
+package io.github.lucaseasedup.logit.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the results of recent selector queries in memory.
+ * 
+ * <p> Results are keyed by the unit, the requested keys and a normalized
+ * form of the selector, so that equivalent queries share one result.
+ * Writes reported to this cache invalidate only the results containing
+ * or possibly gaining an affected entry; when that cannot be decided
+ * from a cached result, the result is invalidated.
+ * 
+ * <p> Every write also advances the generation of its unit. A result
+ * read from the storage is only cached if the generation has not changed
+ * since the read began, so that a result racing with a write is never
+ * cached stale.
+ * 
+ * <p> This class is not thread-safe.
+ */
+public final class QueryResultCache
+{
+    /**
+     * Constructs a new {@code QueryResultCache}.
+     * 
+     * @param capacity the maximum number of results held at a time.
+     * @param ttl      the time in milliseconds after which a cached result
+     *                 expires, or {@code 0} if results never expire.
+     * 
+     * @throws IllegalArgumentException if {@code capacity} is not positive
+     *                                  or {@code ttl} is negative.
+     */
+    public QueryResultCache(int capacity, long ttl)
+    {
+        if (capacity <= 0 || ttl < 0)
+            throw new IllegalArgumentException();
+        
+        this.capacity = capacity;
+        this.ttl = ttl;
+    }
+    
+    /**
+     * Returns the cached result of a query.
+     * 
+     * <p> The returned entries are not copies; they must not be modified
+     * by the caller.
+     * 
+     * @param unit     the unit name.
+     * @param keys     the requested keys, or {@code null} for all keys.
+     * @param selector the selector.
+     * 
+     * @return the cached entries, or {@code null} if the result is not cached
+     *         or has expired.
+     */
+    public List<StorageEntry> get(
+            String unit, List<String> keys, Selector selector
+    )
+    {
+        if (unit == null || selector == null)
+            throw new IllegalArgumentException();
+        
+        QueryKey queryKey = new QueryKey(unit, keys, selector);
+        CachedResult cachedResult = results.get(queryKey);
+        
+        if (cachedResult != null && cachedResult.isExpired())
+        {
+            results.remove(queryKey);
+            evictionCount++;
+            
+            cachedResult = null;
+        }
+        
+        if (cachedResult == null)
+        {
+            missCount++;
+            
+            return null;
+        }
+        
+        hitCount++;
+        
+        return cachedResult.getEntries();
+    }
+    
+    /**
+     * Caches the result of a query, unless the unit has been written to
+     * since the given generation or the result is too large to be cached.
+     * 
+     * @param unit       the unit name.
+     * @param keys       the requested keys, or {@code null} for all keys.
+     * @param selector   the selector.
+     * @param entries    the entries returned by the query; they are copied.
+     * @param generation the generation of the unit obtained with
+     *                   {@link #getGeneration(String)} before the query
+     *                   was issued.
+     */
+    public void put(
+            String unit, List<String> keys, Selector selector,
+            List<StorageEntry> entries, long generation
+    )
+    {
+        if (unit == null || selector == null || entries == null)
+            throw new IllegalArgumentException();
+        
+        if (generation != getGeneration(unit))
+            return;
+        
+        if (entries.size() > MAX_RESULT_SIZE)
+            return;
+        
+        results.put(new QueryKey(unit, keys, selector), new CachedResult(
+                unit, keys, selector, StorageEntry.copyList(entries)
+        ));
+    }
+    
+    /**
+     * Returns the number of writes reported for a unit so far.
+     * 
+     * @param unit the unit name.
+     * 
+     * @return the generation of the unit.
+     */
+    public long getGeneration(String unit)
+    {
+        if (unit == null)
+            throw new IllegalArgumentException();
+        
+        Long generation = generations.get(unit);
+        
+        return (generation != null) ? generation : 0L;
+    }
+    
+    /**
+     * Invalidates the results an added entry could belong to.
+     * 
+     * @param unit  the unit name.
+     * @param entry the added entry.
+     */
+    public void entryAdded(String unit, StorageEntry entry)
+    {
+        if (unit == null || entry == null)
+            throw new IllegalArgumentException();
+        
+        advanceGeneration(unit);
+        
+        Iterator<CachedResult> it = results.values().iterator();
+        
+        while (it.hasNext())
+        {
+            CachedResult cachedResult = it.next();
+            
+            if (!cachedResult.getUnit().equals(unit))
+                continue;
+            
+            // A key missing from the entry gets its default value
+            // in the storage, which the selector might match.
+            if (!entry.getKeys().containsAll(cachedResult.getSelectorKeys())
+                    || mayMatch(cachedResult.getCompiledSelector(), entry))
+            {
+                it.remove();
+                invalidationCount++;
+            }
+        }
+    }
+    
+    /**
+     * Invalidates the results that an update could have changed.
+     * 
+     * <p> A result is affected if one of its entries matches the update
+     * selector, or if its own selector tests any of the updated keys
+     * and could thus gain new entries.
+     * 
+     * @param unit        the unit name.
+     * @param entrySubset the updated data.
+     * @param selector    the selector of the updated entries.
+     */
+    public void entriesUpdated(
+            String unit, StorageEntry entrySubset, Selector selector
+    )
+    {
+        if (unit == null || entrySubset == null || selector == null)
+            throw new IllegalArgumentException();
+        
+        advanceGeneration(unit);
+        
+        Set<String> selectorKeys = collectKeys(selector);
+        CompiledSelector compiledSelector = CompiledSelector.compile(selector);
+        Iterator<CachedResult> it = results.values().iterator();
+        
+        while (it.hasNext())
+        {
+            CachedResult cachedResult = it.next();
+            
+            if (!cachedResult.getUnit().equals(unit))
+                continue;
+            
+            if (!Collections.disjoint(cachedResult.getSelectorKeys(),
+                    entrySubset.getKeys())
+                    || containsMatch(cachedResult, selectorKeys, compiledSelector))
+            {
+                it.remove();
+                invalidationCount++;
+            }
+        }
+    }
+    
+    /**
+     * Invalidates the results containing an entry matching the selector.
+     * 
+     * @param unit     the unit name.
+     * @param selector the selector of the removed entries.
+     */
+    public void entriesRemoved(String unit, Selector selector)
+    {
+        if (unit == null || selector == null)
+            throw new IllegalArgumentException();
+        
+        advanceGeneration(unit);
+        
+        Set<String> selectorKeys = collectKeys(selector);
+        CompiledSelector compiledSelector = CompiledSelector.compile(selector);
+        Iterator<CachedResult> it = results.values().iterator();
+        
+        while (it.hasNext())
+        {
+            CachedResult cachedResult = it.next();
+            
+            if (cachedResult.getUnit().equals(unit)
+                    && containsMatch(cachedResult, selectorKeys, compiledSelector))
+            {
+                it.remove();
+                invalidationCount++;
+            }
+        }
+    }
+    
+    /**
+     * Invalidates the results containing an entry with one of
+     * the given primary key values.
+     * 
+     * @param unit             the unit name.
+     * @param primaryKey       the primary key of the unit, or {@code null}
+     *                         if it is not known.
+     * @param primaryKeyValues the primary key values of the removed entries.
+     */
+    public void entriesRemoved(
+            String unit, String primaryKey, Collection<String> primaryKeyValues
+    )
+    {
+        if (unit == null || primaryKeyValues == null)
+            throw new IllegalArgumentException();
+        
+        if (primaryKey == null)
+        {
+            invalidate(unit);
+            
+            return;
+        }
+        
+        advanceGeneration(unit);
+        
+        Set<String> valueSet = new HashSet<>(primaryKeyValues);
+        Iterator<CachedResult> it = results.values().iterator();
+        
+        while (it.hasNext())
+        {
+            CachedResult cachedResult = it.next();
+            
+            if (!cachedResult.getUnit().equals(unit))
+                continue;
+            
+            boolean affected = !cachedResult.containsKey(primaryKey);
+            
+            if (!affected)
+            {
+                for (StorageEntry entry : cachedResult.getEntries())
+                {
+                    if (valueSet.contains(entry.get(primaryKey)))
+                    {
+                        affected = true;
+                        
+                        break;
+                    }
+                }
+            }
+            
+            if (affected)
+            {
+                it.remove();
+                invalidationCount++;
+            }
+        }
+    }
+    
+    /**
+     * Invalidates all results of a unit.
+     * 
+     * @param unit the unit name.
+     */
+    public void invalidate(String unit)
+    {
+        if (unit == null)
+            throw new IllegalArgumentException();
+        
+        advanceGeneration(unit);
+        
+        Iterator<CachedResult> it = results.values().iterator();
+        
+        while (it.hasNext())
+        {
+            if (it.next().getUnit().equals(unit))
+            {
+                it.remove();
+                invalidationCount++;
+            }
+        }
+    }
+    
+    public void clear()
+    {
+        for (CachedResult cachedResult : results.values())
+        {
+            advanceGeneration(cachedResult.getUnit());
+        }
+        
+        results.clear();
+    }
+    
+    public int size()
+    {
+        return results.size();
+    }
+    
+    public int getCapacity()
+    {
+        return capacity;
+    }
+    
+    public long getHitCount()
+    {
+        return hitCount;
+    }
+    
+    public long getMissCount()
+    {
+        return missCount;
+    }
+    
+    /**
+     * Returns the number of results removed from this cache
+     * because it was full or because they expired.
+     * 
+     * @return the eviction count.
+     */
+    public long getEvictionCount()
+    {
+        return evictionCount;
+    }
+    
+    /**
+     * Returns the number of results removed from this cache
+     * because of a write.
+     * 
+     * @return the invalidation count.
+     */
+    public long getInvalidationCount()
+    {
+        return invalidationCount;
+    }
+    
+    private void advanceGeneration(String unit)
+    {
+        generations.put(unit, getGeneration(unit) + 1);
+    }
+    
+    /**
+     * Checks whether any entry of a cached result matches a selector.
+     * If the result lacks a key tested by the selector,
+     * a match is assumed.
+     */
+    private static boolean containsMatch(
+            CachedResult cachedResult,
+            Set<String> selectorKeys,
+            CompiledSelector compiledSelector
+    )
+    {
+        for (String key : selectorKeys)
+        {
+            if (!cachedResult.containsKey(key))
+                return true;
+        }
+        
+        for (StorageEntry entry : cachedResult.getEntries())
+        {
+            if (mayMatch(compiledSelector, entry))
+                return true;
+        }
+        
+        return false;
+    }
+    
+    private static boolean mayMatch(
+            CompiledSelector compiledSelector, StorageEntry entry
+    )
+    {
+        try
+        {
+            return compiledSelector.matches(entry);
+        }
+        catch (RuntimeException ex)
+        {
+            // Substring conditions cannot be tested on a missing value.
+            return true;
+        }
+    }
+    
+    private static Set<String> collectKeys(Selector selector)
+    {
+        Set<String> keys = new HashSet<>();
+        
+        collectKeys(selector, keys);
+        
+        return keys;
+    }
+    
+    private static void collectKeys(Selector selector, Set<String> keys)
+    {
+        if (selector instanceof SelectorNegation)
+        {
+            collectKeys(((SelectorNegation) selector).getOperand(), keys);
+        }
+        else if (selector instanceof SelectorBinary)
+        {
+            collectKeys(((SelectorBinary) selector).getLeftOperand(), keys);
+            collectKeys(((SelectorBinary) selector).getRightOperand(), keys);
+        }
+        else if (selector instanceof SelectorCondition)
+        {
+            keys.add(((SelectorCondition) selector).getKey());
+        }
+    }
+    
+    /**
+     * Returns a textual form of a selector in which the operands
+     * of {@code AND} and {@code OR} are ordered, so that selectors
+     * differing only in operand order are normalized to the same string.
+     */
+    private static String normalizeSelector(Selector selector)
+    {
+        if (selector instanceof SelectorConstant)
+        {
+            return ((SelectorConstant) selector).getValue() ? "TRUE" : "FALSE";
+        }
+        else if (selector instanceof SelectorNegation)
+        {
+            return "NOT(" + normalizeSelector(
+                    ((SelectorNegation) selector).getOperand()
+            ) + ")";
+        }
+        else if (selector instanceof SelectorBinary)
+        {
+            SelectorBinary selectorBinary = (SelectorBinary) selector;
+            String left = normalizeSelector(selectorBinary.getLeftOperand());
+            String right = normalizeSelector(selectorBinary.getRightOperand());
+            
+            if (left.compareTo(right) > 0)
+            {
+                String tmp = left;
+                
+                left = right;
+                right = tmp;
+            }
+            
+            return selectorBinary.getRelation() + "(" + left + "," + right + ")";
+        }
+        else if (selector instanceof SelectorCondition)
+        {
+            SelectorCondition selectorCondition = (SelectorCondition) selector;
+            
+            return selectorCondition.getRelation() + "("
+                    + quote(selectorCondition.getKey()) + ","
+                    + quote(selectorCondition.getValue()) + ")";
+        }
+        else
+        {
+            throw new IllegalArgumentException(
+                    "Unsupported selector: " + selector.getClass().getName()
+            );
+        }
+    }
+    
+    private static String quote(String string)
+    {
+        if (string == null)
+            return "NULL";
+        
+        return "\"" + string.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+    
+    private static final class QueryKey
+    {
+        public QueryKey(String unit, List<String> keys, Selector selector)
+        {
+            this.unit = unit;
+            
+            if (keys == null)
+            {
+                this.keys = null;
+            }
+            else
+            {
+                List<String> sortedKeys = new ArrayList<>(keys);
+                
+                Collections.sort(sortedKeys);
+                
+                this.keys = sortedKeys;
+            }
+            
+            this.selector = normalizeSelector(selector);
+        }
+        
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj)
+                return true;
+            
+            if (!(obj instanceof QueryKey))
+                return false;
+            
+            QueryKey other = (QueryKey) obj;
+            
+            return unit.equals(other.unit)
+                    && ((keys == null) ? other.keys == null
+                                       : keys.equals(other.keys))
+                    && selector.equals(other.selector);
+        }
+        
+        @Override
+        public int hashCode()
+        {
+            int hash = unit.hashCode();
+            
+            hash = 31 * hash + ((keys == null) ? 0 : keys.hashCode());
+            hash = 31 * hash + selector.hashCode();
+            
+            return hash;
+        }
+        
+        private final String unit;
+        private final List<String> keys;
+        private final String selector;
+    }
+    
+    private final class CachedResult
+    {
+        public CachedResult(
+                String unit, List<String> keys, Selector selector,
+                List<StorageEntry> entries
+        )
+        {
+            this.unit = unit;
+            this.keys = (keys == null) ? null : new HashSet<>(keys);
+            this.compiledSelector = CompiledSelector.compile(selector);
+            this.selectorKeys = collectKeys(selector);
+            this.entries = entries;
+            this.createdAt = System.currentTimeMillis();
+        }
+        
+        public String getUnit()
+        {
+            return unit;
+        }
+        
+        /**
+         * Checks whether the entries of this result hold the given key.
+         */
+        public boolean containsKey(String key)
+        {
+            return keys == null || keys.contains(key);
+        }
+        
+        public CompiledSelector getCompiledSelector()
+        {
+            return compiledSelector;
+        }
+        
+        public Set<String> getSelectorKeys()
+        {
+            return selectorKeys;
+        }
+        
+        public List<StorageEntry> getEntries()
+        {
+            return entries;
+        }
+        
+        public boolean isExpired()
+        {
+            return ttl > 0 && System.currentTimeMillis() - createdAt >= ttl;
+        }
+        
+        private final String unit;
+        private final Set<String> keys;
+        private final CompiledSelector compiledSelector;
+        private final Set<String> selectorKeys;
+        private final List<StorageEntry> entries;
+        private final long createdAt;
+    }
+    
+    /**
+     * The maximum number of entries in a result for it to be cached.
+     */
+    private static final int MAX_RESULT_SIZE = 1000;
+    
+    private final int capacity;
+    private final long ttl;
+    
+    private final Map<QueryKey, CachedResult> results =
+            new LinkedHashMap<QueryKey, CachedResult>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<QueryKey, CachedResult> eldest
+        )
+        {
+            if (size() > capacity)
+            {
+                evictionCount++;
+                
+                return true;
+            }
+            
+            return false;
+        }
+    };
+    
+    private final Map<String, Long> generations = new HashMap<>();
+    
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+    private long invalidationCount = 0;
+}
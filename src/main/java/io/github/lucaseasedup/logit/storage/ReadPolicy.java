@@ -0,0 +1,67 @@
+package io.github.lucaseasedup.logit.storage;
+
+/**
+ * Decides which storage a {@link WrapperStorage} reads entries from.
+ */
+public enum ReadPolicy
+{
+    /**
+     * All reads go to the leading storage.
+     */
+    LEADING_ONLY("leading-only"),
+    
+    /**
+     * Reads go to whichever of the leading storage and the mirrors
+     * that are fully caught up in the unit has been answering
+     * the fastest.
+     */
+    NEAREST_HEALTHY("nearest-healthy"),
+    
+    /**
+     * Reads go to the first mirror that lags behind the leading storage
+     * in the unit by no more than the maximum mirror lag,
+     * or to the leading storage if there is no such mirror.
+     */
+    MIRROR_FIRST("mirror-first");
+    
+    private ReadPolicy(String name)
+    {
+        if (name == null)
+            throw new IllegalArgumentException();
+        
+        this.name = name;
+    }
+    
+    /**
+     * Returns a string representation of this {@code ReadPolicy}.
+     * 
+     * @return the string representation of this {@code ReadPolicy}.
+     */
+    public String encode()
+    {
+        return name;
+    }
+    
+    /**
+     * Decodes a string into a {@code ReadPolicy}.
+     * 
+     * @param name string representation of a {@code ReadPolicy}.
+     * 
+     * @return the corresponding {@code ReadPolicy}, or {@code null}
+     *         if no {@code ReadPolicy} was found for the given string.
+     */
+    public static ReadPolicy decode(String name)
+    {
+        for (ReadPolicy value : values())
+        {
+            if (value.encode().equals(name))
+            {
+                return value;
+            }
+        }
+        
+        return null;
+    }
+    
+    private final String name;
+}
@@ -0,0 +1,239 @@
+package io.github.lucaseasedup.logit.storage;
+
+import io.github.lucaseasedup.logit.LogItCore;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Adds keys missing from a unit of a {@link WrapperStorage}
+ * on a background thread, one key at a time.
+ * 
+ * <p> Until a key has been added, the storage serves an empty value for it
+ * (see {@link MigratingStorage}), so nothing has to wait for the migration
+ * to finish. A key that could not be added is retried every
+ * {@link #RETRY_INTERVAL} milliseconds until it succeeds
+ * or the migration is closed.
+ * 
+ * <p> Migrations are planned and started with
+ * {@link WrapperStorage#migrate(String, UnitKeys)}.
+ * 
+ * <p> This class is thread-safe.
+ */
+public final class SchemaMigration implements Runnable, AutoCloseable
+{
+    SchemaMigration(WrapperStorage storage, String unit, UnitKeys keys)
+    {
+        if (storage == null || unit == null || keys == null)
+            throw new IllegalArgumentException();
+        
+        this.storage = storage;
+        this.unit = unit;
+        this.keys = keys;
+    }
+    
+    /**
+     * Starts adding the keys on a new thread.
+     * If there are no keys to add, the migration finishes straight away.
+     */
+    synchronized void start()
+    {
+        if (startTime != 0L)
+            throw new IllegalStateException("Migration already started");
+        
+        startTime = System.currentTimeMillis();
+        
+        if (keys.isEmpty())
+        {
+            finishTime = startTime;
+            
+            return;
+        }
+        
+        log(Level.INFO, "Adding " + keys.size() + " missing keys to unit \""
+                + unit + "\" in the background: " + keys.keySet());
+        
+        thread = new Thread(this, "LogIt Schema Migration");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    @Override
+    public void run()
+    {
+        for (Map.Entry<String, DataType> e : keys.entrySet())
+        {
+            currentKey = e.getKey();
+            
+            if (!migrateKey(e.getKey(), e.getValue()))
+                return;
+            
+            completedCount++;
+            
+            log(Level.INFO, "Added key \"" + e.getKey() + "\" to unit \""
+                    + unit + "\" (" + completedCount + "/" + keys.size() + ")");
+        }
+        
+        currentKey = null;
+        finishTime = System.currentTimeMillis();
+        
+        log(Level.INFO, "Schema migration of unit \"" + unit + "\" finished in "
+                + (finishTime - startTime) + " ms");
+    }
+    
+    /**
+     * Stops the migration after the key that is being added.
+     * Keys that have not been added yet stay pending.
+     */
+    @Override
+    public synchronized void close()
+    {
+        closed = true;
+        
+        if (thread != null)
+        {
+            thread.interrupt();
+        }
+    }
+    
+    public String getUnit()
+    {
+        return unit;
+    }
+    
+    /**
+     * Returns the keys this migration adds, in the order they are added.
+     */
+    public UnitKeys getKeys()
+    {
+        return keys;
+    }
+    
+    /**
+     * Returns the number of keys that have been added so far.
+     */
+    public int getCompletedCount()
+    {
+        return completedCount;
+    }
+    
+    /**
+     * Returns the key that is being added,
+     * or {@code null} if none is.
+     */
+    public String getCurrentKey()
+    {
+        return currentKey;
+    }
+    
+    public boolean isFinished()
+    {
+        return finishTime != 0L;
+    }
+    
+    /**
+     * Returns the number of failed attempts to add the current key.
+     */
+    public int getFailedAttempts()
+    {
+        return failedAttempts;
+    }
+    
+    /**
+     * Returns the error that made the last attempt to add a key fail,
+     * or {@code null} if no attempt has failed.
+     */
+    public IOException getLastError()
+    {
+        return lastError;
+    }
+    
+    /**
+     * Returns the time the migration started, in milliseconds
+     * since the epoch.
+     */
+    public long getStartTime()
+    {
+        return startTime;
+    }
+    
+    /**
+     * Returns the time the migration finished, in milliseconds
+     * since the epoch, or {@code 0} if it has not finished yet.
+     */
+    public long getFinishTime()
+    {
+        return finishTime;
+    }
+    
+    /**
+     * Adds a key, retrying until it succeeds.
+     * 
+     * @return {@code false} if the migration was closed in the meantime.
+     */
+    private boolean migrateKey(String key, DataType type)
+    {
+        failedAttempts = 0;
+        
+        while (!closed)
+        {
+            try
+            {
+                storage.migrateKey(unit, key, type);
+                
+                return true;
+            }
+            catch (IOException ex)
+            {
+                failedAttempts++;
+                lastError = ex;
+                
+                log(Level.WARNING, "Could not add key \"" + key + "\" to unit \""
+                        + unit + "\"; retrying in "
+                        + TimeUnit.MILLISECONDS.toSeconds(RETRY_INTERVAL)
+                        + " seconds", ex);
+            }
+            
+            try
+            {
+                Thread.sleep(RETRY_INTERVAL);
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                
+                return false;
+            }
+        }
+        
+        return false;
+    }
+    
+    private void log(Level level, String message)
+    {
+        LogItCore.getInstance().log(level, message);
+    }
+    
+    private void log(Level level, String message, Throwable throwable)
+    {
+        LogItCore.getInstance().log(level, message, throwable);
+    }
+    
+    /**
+     * The time between attempts to add a key, in milliseconds.
+     */
+    public static final long RETRY_INTERVAL = 30000L;
+    
+    private final WrapperStorage storage;
+    private final String unit;
+    private final UnitKeys keys;
+    private Thread thread;
+    private volatile boolean closed = false;
+    private volatile String currentKey;
+    private volatile int completedCount = 0;
+    private volatile int failedAttempts = 0;
+    private volatile IOException lastError;
+    private volatile long startTime = 0L;
+    private volatile long finishTime = 0L;
+}
@@ -0,0 +1,909 @@
+package io.github.lucaseasedup.logit.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Partitions every unit across several storages, called shards,
+ * by a hash of the primary key value of each entry.
+ * 
+ * <p> Operations on a single entry, as well as selector queries pinning
+ * the primary key to a single value, are routed straight to the shard
+ * holding that value. Other queries are run on all shards in parallel,
+ * and their results are concatenated in shard order. Entries without
+ * a primary key value are kept in the first shard.
+ * 
+ * <p> All shards must hold units with the same keys; unit metadata
+ * is read from the first shard. The number and order of shards must not
+ * change once entries have been added, since that would move the home
+ * shard of most primary key values.
+ * 
+ * <p> Updates changing the primary key value move the affected entries
+ * to their new shard by adding them there before removing them from
+ * the old one. This is not atomic: if it fails halfway, an entry
+ * may be left in both shards.
+ * 
+ * <p> This class is thread-safe as long as every shard is.
+ */
+public final class ShardedStorage implements Storage
+{
+    private ShardedStorage(List<Storage> shards)
+    {
+        if (shards == null || shards.isEmpty())
+            throw new IllegalArgumentException();
+        
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        
+        boolean threadSafe = true;
+        
+        for (Storage shard : shards)
+        {
+            if (!(shard instanceof PooledStorage))
+            {
+                threadSafe = false;
+            }
+        }
+        
+        this.threadSafe = threadSafe;
+    }
+    
+    @Override
+    public void connect() throws IOException
+    {
+        synchronized (this)
+        {
+            if (executorService == null)
+            {
+                executorService = Executors.newFixedThreadPool(shards.size());
+            }
+        }
+        
+        for (Storage shard : shards)
+        {
+            shard.connect();
+        }
+    }
+    
+    @Override
+    public boolean isConnected() throws IOException
+    {
+        for (Storage shard : shards)
+        {
+            if (!shard.isConnected())
+                return false;
+        }
+        
+        return true;
+    }
+    
+    @Override
+    public void ping() throws IOException
+    {
+        for (Storage shard : shards)
+        {
+            shard.ping();
+        }
+    }
+    
+    @Override
+    public void close() throws IOException
+    {
+        IOException closeException = null;
+        
+        for (Storage shard : shards)
+        {
+            try
+            {
+                shard.close();
+            }
+            catch (IOException ex)
+            {
+                closeException = ex;
+            }
+        }
+        
+        synchronized (this)
+        {
+            if (executorService != null)
+            {
+                executorService.shutdown();
+                executorService = null;
+            }
+        }
+        
+        primaryKeys.clear();
+        
+        if (closeException != null)
+            throw closeException;
+    }
+    
+    @Override
+    public List<String> getUnitNames() throws IOException
+    {
+        return shards.get(0).getUnitNames();
+    }
+    
+    @Override
+    public UnitKeys getKeys(String unit) throws IOException
+    {
+        return shards.get(0).getKeys(unit);
+    }
+    
+    @Override
+    public String getPrimaryKey(String unit) throws IOException
+    {
+        if (unit == null)
+            throw new IllegalArgumentException();
+        
+        String primaryKey = primaryKeys.get(unit);
+        
+        if (primaryKey == null)
+        {
+            primaryKey = shards.get(0).getPrimaryKey(unit);
+            
+            if (primaryKey == null)
+                return null;
+            
+            primaryKeys.put(unit, primaryKey);
+        }
+        
+        return primaryKey;
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(final String unit)
+            throws IOException
+    {
+        return concat(fanOut(new ShardTask<List<StorageEntry>>()
+        {
+            @Override
+            public List<StorageEntry> run(int index, Storage shard)
+                    throws IOException
+            {
+                return shard.selectEntries(unit);
+            }
+        }));
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(
+            final String unit, final Selector selector
+    ) throws IOException
+    {
+        int shardIndex = routeSelector(unit, selector);
+        
+        if (shardIndex >= 0)
+            return shards.get(shardIndex).selectEntries(unit, selector);
+        
+        return concat(fanOut(new ShardTask<List<StorageEntry>>()
+        {
+            @Override
+            public List<StorageEntry> run(int index, Storage shard)
+                    throws IOException
+            {
+                return shard.selectEntries(unit, selector);
+            }
+        }));
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(
+            final String unit, final List<String> keys
+    ) throws IOException
+    {
+        return concat(fanOut(new ShardTask<List<StorageEntry>>()
+        {
+            @Override
+            public List<StorageEntry> run(int index, Storage shard)
+                    throws IOException
+            {
+                return shard.selectEntries(unit, keys);
+            }
+        }));
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(
+            final String unit, final List<String> keys, final Selector selector
+    ) throws IOException
+    {
+        int shardIndex = routeSelector(unit, selector);
+        
+        if (shardIndex >= 0)
+            return shards.get(shardIndex).selectEntries(unit, keys, selector);
+        
+        return concat(fanOut(new ShardTask<List<StorageEntry>>()
+        {
+            @Override
+            public List<StorageEntry> run(int index, Storage shard)
+                    throws IOException
+            {
+                return shard.selectEntries(unit, keys, selector);
+            }
+        }));
+    }
+    
+    /**
+     * Passes the entries of a unit to a visitor, one shard after another,
+     * so that the visitor is never called from more than one thread.
+     */
+    @Override
+    public void forEachEntry(String unit, EntryVisitor visitor)
+            throws IOException
+    {
+        for (Storage shard : shards)
+        {
+            shard.forEachEntry(unit, visitor);
+        }
+    }
+    
+    @Override
+    public void forEachEntry(
+            String unit, List<String> keys, Selector selector,
+            EntryVisitor visitor
+    ) throws IOException
+    {
+        int shardIndex = routeSelector(unit, selector);
+        
+        if (shardIndex >= 0)
+        {
+            shards.get(shardIndex).forEachEntry(unit, keys, selector, visitor);
+            
+            return;
+        }
+        
+        for (Storage shard : shards)
+        {
+            shard.forEachEntry(unit, keys, selector, visitor);
+        }
+    }
+    
+    @Override
+    public void createUnit(
+            final String unit, final UnitKeys keys, final String primaryKey
+    ) throws IOException
+    {
+        fanOut(new ShardTask<Void>()
+        {
+            @Override
+            public Void run(int index, Storage shard) throws IOException
+            {
+                shard.createUnit(unit, keys, primaryKey);
+                
+                return null;
+            }
+        });
+        
+        if (primaryKey != null)
+        {
+            primaryKeys.put(unit, primaryKey);
+        }
+    }
+    
+    @Override
+    public void renameUnit(final String unit, final String newName)
+            throws IOException
+    {
+        fanOut(new ShardTask<Void>()
+        {
+            @Override
+            public Void run(int index, Storage shard) throws IOException
+            {
+                shard.renameUnit(unit, newName);
+                
+                return null;
+            }
+        });
+        
+        primaryKeys.remove(unit);
+        primaryKeys.remove(newName);
+    }
+    
+    @Override
+    public void eraseUnit(final String unit) throws IOException
+    {
+        fanOut(new ShardTask<Void>()
+        {
+            @Override
+            public Void run(int index, Storage shard) throws IOException
+            {
+                shard.eraseUnit(unit);
+                
+                return null;
+            }
+        });
+    }
+    
+    @Override
+    public void removeUnit(final String unit) throws IOException
+    {
+        fanOut(new ShardTask<Void>()
+        {
+            @Override
+            public Void run(int index, Storage shard) throws IOException
+            {
+                shard.removeUnit(unit);
+                
+                return null;
+            }
+        });
+        
+        primaryKeys.remove(unit);
+    }
+    
+    @Override
+    public List<String> getIndexes(String unit) throws IOException
+    {
+        return shards.get(0).getIndexes(unit);
+    }
+    
+    @Override
+    public void createIndex(final String unit, final String key)
+            throws IOException
+    {
+        fanOut(new ShardTask<Void>()
+        {
+            @Override
+            public Void run(int index, Storage shard) throws IOException
+            {
+                shard.createIndex(unit, key);
+                
+                return null;
+            }
+        });
+    }
+    
+    @Override
+    public void dropIndex(final String unit, final String key)
+            throws IOException
+    {
+        fanOut(new ShardTask<Void>()
+        {
+            @Override
+            public Void run(int index, Storage shard) throws IOException
+            {
+                shard.dropIndex(unit, key);
+                
+                return null;
+            }
+        });
+    }
+    
+    @Override
+    public void addKey(final String unit, final String key, final DataType type)
+            throws IOException
+    {
+        fanOut(new ShardTask<Void>()
+        {
+            @Override
+            public Void run(int index, Storage shard) throws IOException
+            {
+                shard.addKey(unit, key, type);
+                
+                return null;
+            }
+        });
+    }
+    
+    @Override
+    public void addEntry(String unit, StorageEntry entry)
+            throws DuplicateEntryException, IOException
+    {
+        if (entry == null)
+            throw new IllegalArgumentException();
+        
+        String primaryKey = getPrimaryKey(unit);
+        String primaryKeyValue = (primaryKey != null)
+                ? entry.get(primaryKey) : null;
+        
+        shards.get(getShardIndex(primaryKeyValue)).addEntry(unit, entry);
+    }
+    
+    @Override
+    public void addEntries(final String unit, Iterable<StorageEntry> entries)
+            throws DuplicateEntryException, IOException
+    {
+        if (entries == null)
+            throw new IllegalArgumentException();
+        
+        String primaryKey = getPrimaryKey(unit);
+        final List<List<StorageEntry>> entriesByShard = createBuckets();
+        
+        for (StorageEntry entry : entries)
+        {
+            String primaryKeyValue = (primaryKey != null)
+                    ? entry.get(primaryKey) : null;
+            
+            entriesByShard.get(getShardIndex(primaryKeyValue)).add(entry);
+        }
+        
+        fanOut(new ShardTask<Void>()
+        {
+            @Override
+            public Void run(int index, Storage shard) throws IOException
+            {
+                if (!entriesByShard.get(index).isEmpty())
+                {
+                    shard.addEntries(unit, entriesByShard.get(index));
+                }
+                
+                return null;
+            }
+        });
+    }
+    
+    @Override
+    public void updateEntries(
+            final String unit,
+            final StorageEntry entrySubset,
+            final Selector selector
+    ) throws IOException
+    {
+        if (entrySubset == null)
+            throw new IllegalArgumentException();
+        
+        String primaryKey = getPrimaryKey(unit);
+        
+        if (primaryKey != null && entrySubset.containsKey(primaryKey))
+        {
+            updatePrimaryKeys(unit, primaryKey, entrySubset, selector);
+            
+            return;
+        }
+        
+        int shardIndex = routeSelector(unit, selector);
+        
+        if (shardIndex >= 0)
+        {
+            shards.get(shardIndex).updateEntries(unit, entrySubset, selector);
+            
+            return;
+        }
+        
+        fanOut(new ShardTask<Void>()
+        {
+            @Override
+            public Void run(int index, Storage shard) throws IOException
+            {
+                shard.updateEntries(unit, entrySubset, selector);
+                
+                return null;
+            }
+        });
+    }
+    
+    @Override
+    public void removeEntries(final String unit, final Selector selector)
+            throws IOException
+    {
+        int shardIndex = routeSelector(unit, selector);
+        
+        if (shardIndex >= 0)
+        {
+            shards.get(shardIndex).removeEntries(unit, selector);
+            
+            return;
+        }
+        
+        fanOut(new ShardTask<Void>()
+        {
+            @Override
+            public Void run(int index, Storage shard) throws IOException
+            {
+                shard.removeEntries(unit, selector);
+                
+                return null;
+            }
+        });
+    }
+    
+    @Override
+    public void removeEntries(
+            final String unit, Collection<String> primaryKeys
+    ) throws IOException
+    {
+        if (primaryKeys == null)
+            throw new IllegalArgumentException();
+        
+        final List<List<String>> primaryKeysByShard = createBuckets();
+        
+        for (String primaryKeyValue : primaryKeys)
+        {
+            primaryKeysByShard.get(getShardIndex(primaryKeyValue))
+                    .add(primaryKeyValue);
+        }
+        
+        fanOut(new ShardTask<Void>()
+        {
+            @Override
+            public Void run(int index, Storage shard) throws IOException
+            {
+                if (!primaryKeysByShard.get(index).isEmpty())
+                {
+                    shard.removeEntries(unit, primaryKeysByShard.get(index));
+                }
+                
+                return null;
+            }
+        });
+    }
+    
+    @Override
+    public synchronized boolean isAutobatchEnabled()
+    {
+        return autobatch;
+    }
+    
+    @Override
+    public synchronized void setAutobatchEnabled(boolean status)
+    {
+        autobatch = status;
+        
+        for (Storage shard : shards)
+        {
+            shard.setAutobatchEnabled(status);
+        }
+    }
+    
+    @Override
+    public void executeBatch() throws IOException
+    {
+        fanOut(new ShardTask<Void>()
+        {
+            @Override
+            public Void run(int index, Storage shard) throws IOException
+            {
+                shard.executeBatch();
+                
+                return null;
+            }
+        });
+    }
+    
+    @Override
+    public void clearBatch() throws IOException
+    {
+        for (Storage shard : shards)
+        {
+            shard.clearBatch();
+        }
+    }
+    
+    public List<Storage> getShards()
+    {
+        return shards;
+    }
+    
+    /**
+     * Checks whether every shard is thread-safe, so that this storage
+     * can be used from several threads at once.
+     * 
+     * @return {@code true} if every shard is a {@link PooledStorage};
+     *         {@code false} otherwise.
+     */
+    public boolean isThreadSafe()
+    {
+        return threadSafe;
+    }
+    
+    /**
+     * Returns the index of the shard holding entries
+     * with the given primary key value.
+     * 
+     * @param primaryKeyValue the primary key value, or {@code null}.
+     * 
+     * @return the shard index.
+     */
+    public int getShardIndex(String primaryKeyValue)
+    {
+        if (primaryKeyValue == null)
+            return 0;
+        
+        int hash = primaryKeyValue.hashCode();
+        
+        // Spread the bits of String#hashCode(),
+        // whose low bits vary little between similar strings.
+        hash ^= (hash >>> 16);
+        hash *= 0x85ebca6b;
+        hash ^= (hash >>> 13);
+        
+        return (hash & Integer.MAX_VALUE) % shards.size();
+    }
+    
+    /**
+     * Moves the entries matched by a selector to the shard of the new
+     * primary key value, updating them in place if they are there already.
+     * Shards are processed one at a time, since several of them may need
+     * to add entries to the same target shard.
+     */
+    private void updatePrimaryKeys(
+            String unit, String primaryKey,
+            StorageEntry entrySubset, Selector selector
+    ) throws IOException
+    {
+        int targetIndex = getShardIndex(entrySubset.get(primaryKey));
+        Storage target = shards.get(targetIndex);
+        
+        for (int i = 0; i < shards.size(); i++)
+        {
+            Storage shard = shards.get(i);
+            
+            if (i == targetIndex)
+            {
+                shard.updateEntries(unit, entrySubset, selector);
+                
+                continue;
+            }
+            
+            List<StorageEntry> entries = shard.selectEntries(unit, selector);
+            
+            if (entries.isEmpty())
+                continue;
+            
+            List<StorageEntry> movedEntries = new ArrayList<>(entries.size());
+            List<String> oldPrimaryKeys = new ArrayList<>(entries.size());
+            
+            for (StorageEntry entry : entries)
+            {
+                StorageEntry movedEntry = entry.copy();
+                
+                for (StorageDatum datum : entrySubset)
+                {
+                    movedEntry.put(datum.getKey(), datum.getValue());
+                }
+                
+                movedEntries.add(movedEntry);
+                oldPrimaryKeys.add(entry.get(primaryKey));
+            }
+            
+            target.addEntries(unit, movedEntries);
+            shard.removeEntries(unit, oldPrimaryKeys);
+        }
+    }
+    
+    /**
+     * Returns the index of the only shard that can hold entries
+     * matching a selector, or {@code -1} if every shard has to be queried.
+     */
+    private int routeSelector(String unit, Selector selector)
+            throws IOException
+    {
+        if (selector == null)
+            throw new IllegalArgumentException();
+        
+        if (shards.size() == 1)
+            return 0;
+        
+        String primaryKey = getPrimaryKey(unit);
+        
+        if (primaryKey == null)
+            return -1;
+        
+        String primaryKeyValue = extractPrimaryKeyValue(selector, primaryKey);
+        
+        if (primaryKeyValue == null)
+            return -1;
+        
+        return getShardIndex(primaryKeyValue);
+    }
+    
+    /**
+     * Finds the value a selector requires the primary key to be equal to,
+     * looking into conjunctions.
+     */
+    private static String extractPrimaryKeyValue(
+            Selector selector, String primaryKey
+    )
+    {
+        if (selector instanceof SelectorCondition)
+        {
+            SelectorCondition selectorCondition = (SelectorCondition) selector;
+            
+            if (selectorCondition.getRelation() != Infix.EQUALS
+                    || !primaryKey.equals(selectorCondition.getKey()))
+            {
+                return null;
+            }
+            
+            return selectorCondition.getValue();
+        }
+        else if (selector instanceof SelectorBinary)
+        {
+            SelectorBinary selectorBinary = (SelectorBinary) selector;
+            
+            if (selectorBinary.getRelation() != Infix.AND)
+                return null;
+            
+            String value = extractPrimaryKeyValue(
+                    selectorBinary.getLeftOperand(), primaryKey
+            );
+            
+            if (value == null)
+            {
+                value = extractPrimaryKeyValue(
+                        selectorBinary.getRightOperand(), primaryKey
+                );
+            }
+            
+            return value;
+        }
+        
+        return null;
+    }
+    
+    private <T> List<List<T>> createBuckets()
+    {
+        List<List<T>> buckets = new ArrayList<>(shards.size());
+        
+        for (int i = 0; i < shards.size(); i++)
+        {
+            buckets.add(new ArrayList<T>());
+        }
+        
+        return buckets;
+    }
+    
+    /**
+     * Runs a task on every shard, the first one on the calling thread
+     * and the others in parallel, and waits for all of them to finish.
+     * 
+     * @return the results, in shard order.
+     * 
+     * @throws IOException if this storage is not connected,
+     *                     or any of the tasks failed.
+     */
+    private <T> List<T> fanOut(final ShardTask<T> task) throws IOException
+    {
+        if (shards.size() == 1)
+            return Collections.singletonList(task.run(0, shards.get(0)));
+        
+        ExecutorService executorService;
+        
+        synchronized (this)
+        {
+            executorService = this.executorService;
+        }
+        
+        if (executorService == null)
+            throw new IOException("Sharded storage is not connected.");
+        
+        List<Future<T>> futures = new ArrayList<>(shards.size() - 1);
+        
+        for (int i = 1; i < shards.size(); i++)
+        {
+            final int index = i;
+            
+            futures.add(executorService.submit(new Callable<T>()
+            {
+                @Override
+                public T call() throws IOException
+                {
+                    return task.run(index, shards.get(index));
+                }
+            }));
+        }
+        
+        List<T> results = new ArrayList<>(shards.size());
+        Throwable failure = null;
+        
+        try
+        {
+            results.add(task.run(0, shards.get(0)));
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            failure = ex;
+        }
+        
+        // Every task is waited for, so that no shard is still being
+        // written to once the caller has been told about a failure.
+        for (Future<T> future : futures)
+        {
+            try
+            {
+                results.add(future.get());
+            }
+            catch (ExecutionException ex)
+            {
+                if (failure == null)
+                {
+                    failure = ex.getCause();
+                }
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                
+                throw new IOException(ex);
+            }
+        }
+        
+        if (failure instanceof IOException)
+            throw (IOException) failure;
+        
+        if (failure instanceof RuntimeException)
+            throw (RuntimeException) failure;
+        
+        if (failure instanceof Error)
+            throw (Error) failure;
+        
+        if (failure != null)
+            throw new IOException(failure);
+        
+        return results;
+    }
+    
+    private static List<StorageEntry> concat(List<List<StorageEntry>> lists)
+    {
+        int size = 0;
+        
+        for (List<StorageEntry> list : lists)
+        {
+            size += list.size();
+        }
+        
+        List<StorageEntry> result = new ArrayList<>(size);
+        
+        for (List<StorageEntry> list : lists)
+        {
+            result.addAll(list);
+        }
+        
+        return result;
+    }
+    
+    public static final class Builder
+    {
+        public ShardedStorage build()
+        {
+            return new ShardedStorage(shards);
+        }
+        
+        /**
+         * Appends a shard.
+         * 
+         * @param shard the storage holding the next shard.
+         * 
+         * @return this {@code Builder}.
+         */
+        public Builder shard(Storage shard)
+        {
+            if (shard == null)
+                throw new IllegalArgumentException();
+            
+            shards.add(shard);
+            
+            return this;
+        }
+        
+        private final List<Storage> shards = new ArrayList<>();
+    }
+    
+    private static interface ShardTask<T>
+    {
+        public T run(int index, Storage shard) throws IOException;
+    }
+    
+    private final List<Storage> shards;
+    private final boolean threadSafe;
+    
+    /**
+     * Primary keys of units, which do not change
+     * for as long as a unit exists.
+     */
+    private final ConcurrentMap<String, String> primaryKeys =
+            new ConcurrentHashMap<>();
+    
+    private ExecutorService executorService;
+    private boolean autobatch = false;
+}
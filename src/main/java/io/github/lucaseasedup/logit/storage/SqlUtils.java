@@ -1,7 +1,15 @@
 package io.github.lucaseasedup.logit.storage;
 
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -29,109 +37,19 @@ public final class SqlUtils
         return string;
     }
     
+    /**
+     * Checks whether an entry matches a selector.
+     * 
+     * <p> The selector is compiled on every call; code testing
+     * many entries should compile it once with
+     * {@link CompiledSelector#compile(Selector)} instead.
+     */
     public static boolean resolveSelector(Selector selector, StorageEntry entry)
     {
         if (selector == null || entry == null)
             throw new IllegalArgumentException();
         
-        if (selector instanceof SelectorConstant)
-        {
-            return ((SelectorConstant) selector).getValue();
-        }
-        else if (selector instanceof SelectorNegation)
-        {
-            return !resolveSelector(
-                    ((SelectorNegation) selector).getOperand(),
-                    entry
-            );
-        }
-        else if (selector instanceof SelectorBinary)
-        {
-            SelectorBinary selectorBinary = (SelectorBinary) selector;
-            
-            switch (selectorBinary.getRelation())
-            {
-            case AND:
-                return resolveSelector(selectorBinary.getLeftOperand(), entry)
-                        && resolveSelector(selectorBinary.getRightOperand(), entry);
-            
-            case OR:
-                return resolveSelector(selectorBinary.getLeftOperand(), entry)
-                        || resolveSelector(selectorBinary.getRightOperand(), entry);
-            
-            default:
-                throw new IllegalArgumentException(
-                        "Unsupported relation: " + selectorBinary.getRelation()
-                );
-            }
-        }
-        else if (selector instanceof SelectorCondition)
-        {
-            SelectorCondition selectorCondition = (SelectorCondition) selector;
-            String key = selectorCondition.getKey();
-            String operandValue = selectorCondition.getValue();
-            String actualValue = entry.get(key);
-            
-            switch (selectorCondition.getRelation())
-            {
-            case EQUALS:
-                if (actualValue == null)
-                {
-                    return operandValue == null;
-                }
-                else
-                {
-                    return actualValue.equals(operandValue);
-                }
-                
-            case LESS_THAN:
-                try
-                {
-                    long actualLong = Long.parseLong(actualValue);
-                    long operandLong = Long.parseLong(operandValue);
-
-                    return actualLong < operandLong;
-                }
-                catch (NumberFormatException ex)
-                {
-                    return false;
-                }
-                
-            case GREATER_THAN:
-                try
-                {
-                    long actualLong = Long.parseLong(actualValue);
-                    long operandLong = Long.parseLong(operandValue);
-
-                    return actualLong > operandLong;
-                }
-                catch (NumberFormatException ex)
-                {
-                    return false;
-                }
-                
-            case STARTS_WITH:
-                return actualValue.startsWith(operandValue);
-            
-            case ENDS_WITH:
-                return actualValue.endsWith(operandValue);
-            
-            case CONTAINS:
-                return actualValue.contains(operandValue);
-                
-            default:
-                throw new IllegalArgumentException(
-                        "Unsupported relation: "
-                                + selectorCondition.getRelation()
-                );
-            }
-        }
-        else
-        {
-            throw new IllegalArgumentException(
-                    "Unsupported selector: " + selector.getClass().getName()
-            );
-        }
+        return CompiledSelector.compile(selector).matches(entry);
     }
     
     public static List<StorageEntry> copyResultSet(ResultSet rs)
@@ -164,6 +82,71 @@ public final class SqlUtils
         return entries;
     }
     
+    /**
+     * Runs a parameterized query and passes the resulting rows to a visitor
+     * one at a time, without holding the whole result in memory.
+     * 
+     * <p> The query is run on its own forward-only statement
+     * with a fetch size of {@link #STREAMING_FETCH_SIZE}, so that drivers
+     * supporting it can fetch rows from the database in chunks.
+     * 
+     * @param connection the connection.
+     * @param sql        the query.
+     * @param params     the query parameters.
+     * @param visitor    the visitor.
+     * 
+     * @throws SQLException if a database error occurred.
+     * @throws IOException  if the visitor failed.
+     */
+    public static void streamQuery(
+            Connection connection,
+            String sql,
+            List<String> params,
+            EntryVisitor visitor
+    ) throws SQLException, IOException
+    {
+        if (connection == null || sql == null
+                || params == null || visitor == null)
+        {
+            throw new IllegalArgumentException();
+        }
+        
+        try (PreparedStatement statement = connection.prepareStatement(
+                sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY
+        ))
+        {
+            statement.setFetchSize(STREAMING_FETCH_SIZE);
+            
+            for (int i = 0; i < params.size(); i++)
+            {
+                statement.setString(i + 1, params.get(i));
+            }
+            
+            try (ResultSet rs = statement.executeQuery())
+            {
+                ResultSetMetaData metaData = rs.getMetaData();
+                String[] labels = new String[metaData.getColumnCount()];
+                
+                for (int i = 0; i < labels.length; i++)
+                {
+                    labels[i] = metaData.getColumnLabel(i + 1);
+                }
+                
+                while (rs.next())
+                {
+                    StorageEntry.Builder entryBuilder = new StorageEntry.Builder();
+                    
+                    for (int i = 0; i < labels.length; i++)
+                    {
+                        entryBuilder.put(labels[i], rs.getString(i + 1));
+                    }
+                    
+                    visitor.visit(entryBuilder.build());
+                }
+            }
+        }
+    }
+    
     public static String translateSelector(
             Selector selector, String columnQuote, String valueQuote
     )
@@ -293,6 +276,143 @@ public final class SqlUtils
         }
     }
     
+    /**
+     * Translates a selector into an SQL condition with {@code ?} placeholders
+     * in place of values.
+     * 
+     * @param selector    the selector.
+     * @param columnQuote the quote used for column names.
+     * @param params      the list to which the values will be appended,
+     *                    in the order of their placeholders.
+     * 
+     * @return the SQL condition.
+     */
+    public static String translateSelector(
+            Selector selector, String columnQuote, List<String> params
+    )
+    {
+        if (selector == null || columnQuote == null || params == null)
+            throw new IllegalArgumentException();
+        
+        StringBuilder sb = new StringBuilder();
+        
+        appendSelector(sb, selector, columnQuote, params);
+        
+        return sb.toString();
+    }
+    
+    private static void appendSelector(
+            StringBuilder sb,
+            Selector selector,
+            String columnQuote,
+            List<String> params
+    )
+    {
+        if (selector instanceof SelectorConstant)
+        {
+            SelectorConstant selectorConstant = (SelectorConstant) selector;
+            
+            sb.append((selectorConstant.getValue()) ? "1 = 1" : "1 = 0");
+        }
+        else if (selector instanceof SelectorNegation)
+        {
+            SelectorNegation selectorNegation = (SelectorNegation) selector;
+            
+            sb.append("NOT (");
+            appendSelector(sb, selectorNegation.getOperand(), columnQuote, params);
+            sb.append(")");
+        }
+        else if (selector instanceof SelectorBinary)
+        {
+            SelectorBinary selectorBinary = (SelectorBinary) selector;
+            
+            sb.append("(");
+            appendSelector(sb, selectorBinary.getLeftOperand(), columnQuote, params);
+            sb.append(") ");
+            
+            switch (selectorBinary.getRelation())
+            {
+            case AND:
+                sb.append("AND");
+                break;
+            
+            case OR:
+                sb.append("OR");
+                break;
+            
+            default:
+                throw new IllegalArgumentException(
+                        "Unsupported relation: " + selectorBinary.getRelation()
+                );
+            }
+            
+            sb.append(" (");
+            appendSelector(sb, selectorBinary.getRightOperand(), columnQuote, params);
+            sb.append(")");
+        }
+        else if (selector instanceof SelectorCondition)
+        {
+            SelectorCondition selectorCondition = (SelectorCondition) selector;
+            String value = selectorCondition.getValue();
+            
+            if (value == null)
+                throw new IllegalArgumentException();
+            
+            sb.append("(");
+            sb.append(columnQuote);
+            sb.append(escapeQuotes(
+                    selectorCondition.getKey(), columnQuote, true
+            ));
+            sb.append(columnQuote);
+            sb.append(") ");
+            
+            switch (selectorCondition.getRelation())
+            {
+            case EQUALS:
+                sb.append("=");
+                break;
+            
+            case LESS_THAN:
+                sb.append("<");
+                break;
+            
+            case GREATER_THAN:
+                sb.append(">");
+                break;
+            
+            case STARTS_WITH:
+                sb.append("LIKE");
+                value = value + "%";
+                break;
+            
+            case ENDS_WITH:
+                sb.append("LIKE");
+                value = "%" + value;
+                break;
+            
+            case CONTAINS:
+                sb.append("LIKE");
+                value = "%" + value + "%";
+                break;
+            
+            default:
+                throw new IllegalArgumentException(
+                        "Unsupported relation: "
+                                + selectorCondition.getRelation()
+                );
+            }
+            
+            sb.append(" (?)");
+            params.add(value);
+        }
+        else
+        {
+            throw new IllegalArgumentException(
+                    "Unsupported selector: " + selector.getClass().getName()
+            );
+        }
+    }
+    
     public static String encodeType(DataType type)
     {
         if (type == null)
@@ -498,4 +618,404 @@ public final class SqlUtils
         
         return sb.toString();
     }
+    
+    /**
+     * Translates entry values into a list of {@code ?} placeholders.
+     * 
+     * @param entry  the entry.
+     * @param params the list to which the values will be appended,
+     *               in the order of their placeholders.
+     * 
+     * @return the placeholder list.
+     */
+    public static String translateEntryValues(
+            StorageEntry entry, List<String> params
+    )
+    {
+        if (entry == null || params == null)
+            throw new IllegalArgumentException();
+        
+        StringBuilder sb = new StringBuilder();
+        
+        for (StorageDatum datum : entry)
+        {
+            if (sb.length() > 0)
+            {
+                sb.append(", ");
+            }
+            
+            sb.append("?");
+            params.add(datum.getValue());
+        }
+        
+        return sb.toString();
+    }
+    
+    /**
+     * Translates an entry subset into an SQL assignment list
+     * with {@code ?} placeholders in place of values.
+     * 
+     * @param entrySubset the entry subset.
+     * @param columnQuote the quote used for column names.
+     * @param params      the list to which the values will be appended,
+     *                    in the order of their placeholders.
+     * 
+     * @return the assignment list.
+     */
+    public static String translateEntrySubset(
+            StorageEntry entrySubset, String columnQuote, List<String> params
+    )
+    {
+        if (entrySubset == null || columnQuote == null || params == null)
+            throw new IllegalArgumentException();
+        
+        StringBuilder sb = new StringBuilder();
+        
+        for (StorageDatum datum : entrySubset)
+        {
+            if (sb.length() > 0)
+            {
+                sb.append(", ");
+            }
+            
+            sb.append(columnQuote);
+            sb.append(escapeQuotes(datum.getKey(), columnQuote, true));
+            sb.append(columnQuote);
+            sb.append(" = ?");
+            params.add(datum.getValue());
+        }
+        
+        return sb.toString();
+    }
+    
+    /**
+     * Translates values into a list of {@code ?} placeholders.
+     * 
+     * @param values the values.
+     * @param params the list to which the values will be appended,
+     *               in the order of their placeholders.
+     * 
+     * @return the placeholder list.
+     */
+    public static String translateValueList(
+            Collection<String> values, List<String> params
+    )
+    {
+        if (values == null || params == null)
+            throw new IllegalArgumentException();
+        
+        StringBuilder sb = new StringBuilder();
+        
+        for (String value : values)
+        {
+            if (sb.length() > 0)
+            {
+                sb.append(", ");
+            }
+            
+            sb.append("?");
+            params.add(value);
+        }
+        
+        return sb.toString();
+    }
+    
+    /**
+     * Translates rows into parenthesized {@code ?} placeholder lists
+     * suitable for a multi-row {@code INSERT ... VALUES} statement.
+     * 
+     * @param keys   the keys whose values will be bound, in column order.
+     * @param rows   the rows.
+     * @param params the list to which the values will be appended,
+     *               in the order of their placeholders.
+     * 
+     * @return the row list.
+     */
+    public static String translateEntryRows(
+            List<String> keys, List<StorageEntry> rows, List<String> params
+    )
+    {
+        if (keys == null || rows == null || params == null)
+            throw new IllegalArgumentException();
+        
+        StringBuilder sb = new StringBuilder();
+        
+        for (StorageEntry row : rows)
+        {
+            if (sb.length() > 0)
+            {
+                sb.append(", ");
+            }
+            
+            sb.append("(");
+            sb.append(translateValueList(getValues(row, keys), params));
+            sb.append(")");
+        }
+        
+        return sb.toString();
+    }
+    
+    /**
+     * Returns the values of the given keys in an entry, in key order.
+     */
+    public static List<String> getValues(StorageEntry entry, List<String> keys)
+    {
+        if (entry == null || keys == null)
+            throw new IllegalArgumentException();
+        
+        List<String> values = new ArrayList<>(keys.size());
+        
+        for (String key : keys)
+        {
+            values.add(entry.get(key));
+        }
+        
+        return values;
+    }
+    
+    /**
+     * Splits entries into chunks that can each be inserted
+     * with a single multi-row statement.
+     * 
+     * <p> Every chunk holds consecutive entries sharing the same set of keys,
+     * with no more than {@code maxRows} entries
+     * and {@code maxParams} values in total.
+     * 
+     * @param entries   the entries.
+     * @param maxRows   the maximum number of entries in a chunk.
+     * @param maxParams the maximum number of values in a chunk.
+     * 
+     * @return the chunks, in the order of the entries.
+     */
+    public static List<List<StorageEntry>> chunkEntries(
+            Iterable<StorageEntry> entries, int maxRows, int maxParams
+    )
+    {
+        if (entries == null || maxRows <= 0 || maxParams <= 0)
+            throw new IllegalArgumentException();
+        
+        List<List<StorageEntry>> chunks = new ArrayList<>();
+        List<StorageEntry> chunk = new ArrayList<>();
+        int chunkParams = 0;
+        
+        for (StorageEntry entry : entries)
+        {
+            int entryParams = entry.getKeys().size();
+            
+            if (!chunk.isEmpty() && (chunk.size() >= maxRows
+                    || chunkParams + entryParams > maxParams
+                    || !chunk.get(0).getKeys().equals(entry.getKeys())))
+            {
+                chunks.add(chunk);
+                chunk = new ArrayList<>();
+                chunkParams = 0;
+            }
+            
+            chunk.add(entry);
+            chunkParams += entryParams;
+        }
+        
+        if (!chunk.isEmpty())
+        {
+            chunks.add(chunk);
+        }
+        
+        return chunks;
+    }
+    
+    /**
+     * Splits values into chunks of at most {@code maxSize} values.
+     */
+    public static List<List<String>> chunkValues(
+            Collection<String> values, int maxSize
+    )
+    {
+        if (values == null || maxSize <= 0)
+            throw new IllegalArgumentException();
+        
+        List<List<String>> chunks = new ArrayList<>();
+        List<String> chunk = new ArrayList<>();
+        
+        for (String value : values)
+        {
+            if (chunk.size() >= maxSize)
+            {
+                chunks.add(chunk);
+                chunk = new ArrayList<>();
+            }
+            
+            chunk.add(value);
+        }
+        
+        if (!chunk.isEmpty())
+        {
+            chunks.add(chunk);
+        }
+        
+        return chunks;
+    }
+    
+    /**
+     * Returns the name given to the index created on a key of a unit.
+     */
+    public static String getIndexName(String unit, String key)
+    {
+        if (unit == null || key == null)
+            throw new IllegalArgumentException();
+        
+        return "idx_" + unit + "_" + key;
+    }
+    
+    /**
+     * Reads the single-key indexes of a table from the database metadata.
+     * 
+     * <p> Indexes spanning more than one key and indexes
+     * on the primary key are left out.
+     * 
+     * @param connection the database connection.
+     * @param table      the table name.
+     * @param primaryKey the primary key of the table, or {@code null}.
+     * 
+     * @return a map of indexed keys to the names of their indexes.
+     * 
+     * @throws SQLException if a database error occurred.
+     */
+    public static Map<String, String> getIndexes(
+            Connection connection, String table, String primaryKey
+    ) throws SQLException
+    {
+        if (connection == null || table == null)
+            throw new IllegalArgumentException();
+        
+        Map<String, List<String>> indexColumns = new LinkedHashMap<>();
+        DatabaseMetaData metaData = connection.getMetaData();
+        
+        try (ResultSet rs = metaData.getIndexInfo(
+                connection.getCatalog(), null, table, false, false))
+        {
+            while (rs.next())
+            {
+                String indexName = rs.getString("INDEX_NAME");
+                String columnName = rs.getString("COLUMN_NAME");
+                
+                // Table statistics are reported as rows without an index.
+                if (indexName == null || columnName == null)
+                    continue;
+                
+                List<String> columns = indexColumns.get(indexName);
+                
+                if (columns == null)
+                {
+                    columns = new ArrayList<>(1);
+                    indexColumns.put(indexName, columns);
+                }
+                
+                columns.add(columnName);
+            }
+        }
+        
+        Map<String, String> indexes = new LinkedHashMap<>();
+        
+        for (Map.Entry<String, List<String>> e : indexColumns.entrySet())
+        {
+            if (e.getValue().size() != 1)
+                continue;
+            
+            String key = e.getValue().get(0);
+            
+            if (key.equals(primaryKey) || indexes.containsKey(key))
+                continue;
+            
+            indexes.put(key, e.getKey());
+        }
+        
+        return indexes;
+    }
+    
+    /**
+     * Starts a transaction on the given connection by turning off
+     * auto-commit, unless a transaction is already in progress.
+     * 
+     * @return {@code true} if a transaction was started; the result should be
+     *         passed to {@link #commitTransaction} or
+     *         {@link #rollbackTransaction}.
+     * 
+     * @throws SQLException if a database error occurred.
+     */
+    public static boolean beginTransaction(Connection connection)
+            throws SQLException
+    {
+        if (connection == null)
+            throw new IllegalArgumentException();
+        
+        if (!connection.getAutoCommit())
+            return false;
+        
+        connection.setAutoCommit(false);
+        
+        return true;
+    }
+    
+    public static void commitTransaction(Connection connection, boolean started)
+            throws SQLException
+    {
+        if (connection == null)
+            throw new IllegalArgumentException();
+        
+        if (!started)
+            return;
+        
+        try
+        {
+            connection.commit();
+        }
+        finally
+        {
+            connection.setAutoCommit(true);
+        }
+    }
+    
+    /**
+     * Rolls back a transaction started by {@link #beginTransaction}.
+     * 
+     * <p> Failures are ignored so that they do not hide the error
+     * that caused the rollback.
+     */
+    public static void rollbackTransaction(Connection connection, boolean started)
+    {
+        if (connection == null)
+            throw new IllegalArgumentException();
+        
+        if (!started)
+            return;
+        
+        try
+        {
+            connection.rollback();
+        }
+        catch (SQLException ex)
+        {
+            // The original failure is what gets reported.
+        }
+        
+        try
+        {
+            connection.setAutoCommit(true);
+        }
+        catch (SQLException ex)
+        {
+            // The original failure is what gets reported.
+        }
+    }
+    
+    /**
+     * The maximum number of rows sent in a single multi-row statement.
+     */
+    public static final int MAX_ROWS_PER_STATEMENT = 500;
+    
+    /**
+     * The number of rows fetched from the database at a time
+     * by {@link #streamQuery}.
+     */
+    public static final int STREAMING_FETCH_SIZE = 500;
 }
@@ -4,7 +4,8 @@ import java.io.IOException;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Properties;
@@ -27,7 +28,7 @@ public final class SqliteStorage implements Storage
             connection = org.sqlite.JDBC.createConnection(
                     host, new Properties()
             );
-            statement = connection.createStatement();
+            statements = new PreparedStatementCache(connection);
         }
         catch (SQLException ex)
         {
@@ -53,7 +54,7 @@ public final class SqliteStorage implements Storage
     {
         try
         {
-            statement.execute("SELECT 1");
+            statements.execute("SELECT 1", new ArrayList<String>(0));
         }
         catch (SQLException ex)
         {
@@ -64,11 +65,11 @@ public final class SqliteStorage implements Storage
     @Override
     public void close() throws IOException
     {
-        if (connection != null)
+        if (statements != null)
         {
             try
             {
-                connection.close();
+                statements.close();
             }
             catch (SQLException ex)
             {
@@ -76,15 +77,15 @@ public final class SqliteStorage implements Storage
             }
             finally
             {
-                connection = null;
+                statements = null;
             }
         }
         
-        if (statement != null)
+        if (connection != null)
         {
             try
             {
-                statement.close();
+                connection.close();
             }
             catch (SQLException ex)
             {
@@ -92,7 +93,7 @@ public final class SqliteStorage implements Storage
             }
             finally
             {
-                statement = null;
+                connection = null;
             }
         }
     }
@@ -184,12 +185,13 @@ public final class SqliteStorage implements Storage
     public List<StorageEntry> selectEntries(String unit, Selector selector)
             throws IOException
     {
+        List<String> params = new ArrayList<>();
         String sql = "SELECT * FROM `" + SqlUtils.escapeQuotes(unit, "`", true) + "`"
-                   + " WHERE " + SqlUtils.translateSelector(selector, "`", "'") + ";";
+                   + " WHERE " + SqlUtils.translateSelector(selector, "`", params) + ";";
         
         try
         {
-            return SqlUtils.copyResultSet(executeQuery(sql));
+            return SqlUtils.copyResultSet(executeQuery(sql, params));
         }
         catch (SQLException ex)
         {
@@ -219,13 +221,14 @@ public final class SqliteStorage implements Storage
             String unit, List<String> keys, Selector selector
     ) throws IOException
     {
+        List<String> params = new ArrayList<>();
         String sql = "SELECT " + SqlUtils.translateKeyList(keys, "`")
                    + " FROM `" + SqlUtils.escapeQuotes(unit, "`", true) + "`"
-                   + " WHERE " + SqlUtils.translateSelector(selector, "`", "'") + ";";
+                   + " WHERE " + SqlUtils.translateSelector(selector, "`", params) + ";";
         
         try
         {
-            return SqlUtils.copyResultSet(executeQuery(sql));
+            return SqlUtils.copyResultSet(executeQuery(sql, params));
         }
         catch (SQLException ex)
         {
@@ -233,6 +236,29 @@ public final class SqliteStorage implements Storage
         }
     }
     
+    @Override
+    public void forEachEntry(String unit, EntryVisitor visitor)
+            throws IOException
+    {
+        String sql = "SELECT * FROM `" + SqlUtils.escapeQuotes(unit, "`", true) + "`;";
+        
+        streamQuery(sql, new ArrayList<String>(0), visitor);
+    }
+    
+    @Override
+    public void forEachEntry(
+            String unit, List<String> keys, Selector selector,
+            EntryVisitor visitor
+    ) throws IOException
+    {
+        List<String> params = new ArrayList<>();
+        String sql = "SELECT " + SqlUtils.translateKeyList(keys, "`")
+                   + " FROM `" + SqlUtils.escapeQuotes(unit, "`", true) + "`"
+                   + " WHERE " + SqlUtils.translateSelector(selector, "`", params) + ";";
+        
+        streamQuery(sql, params, visitor);
+    }
+    
     @Override
     public void createUnit(String unit, UnitKeys keys, String primaryKey)
             throws IOException
@@ -296,6 +322,69 @@ public final class SqliteStorage implements Storage
         }
     }
     
+    @Override
+    public List<String> getIndexes(String unit) throws IOException
+    {
+        try
+        {
+            return new ArrayList<>(SqlUtils.getIndexes(
+                    connection, unit, getPrimaryKey(unit)
+            ).keySet());
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+    }
+    
+    @Override
+    public void createIndex(String unit, String key) throws IOException
+    {
+        try
+        {
+            String primaryKey = getPrimaryKey(unit);
+            
+            // The primary key is indexed already.
+            if (key.equals(primaryKey)
+                    || SqlUtils.getIndexes(connection, unit, primaryKey).containsKey(key))
+            {
+                return;
+            }
+            
+            String sql = "CREATE INDEX `" + SqlUtils.escapeQuotes(SqlUtils.getIndexName(unit, key), "`", true) + "`"
+                       + " ON `" + SqlUtils.escapeQuotes(unit, "`", true) + "`"
+                       + " (`" + SqlUtils.escapeQuotes(key, "`", true) + "`);";
+            
+            executeStatement(sql);
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+    }
+    
+    @Override
+    public void dropIndex(String unit, String key) throws IOException
+    {
+        try
+        {
+            String indexName = SqlUtils.getIndexes(
+                    connection, unit, getPrimaryKey(unit)
+            ).get(key);
+            
+            if (indexName == null)
+                return;
+            
+            String sql = "DROP INDEX `" + SqlUtils.escapeQuotes(indexName, "`", true) + "`;";
+            
+            executeStatement(sql);
+        }
+        catch (SQLException ex)
+        {
+            throw new IOException(ex);
+        }
+    }
+    
     @Override
     public void addKey(String unit, String key, DataType type)
             throws IOException
@@ -318,13 +407,14 @@ public final class SqliteStorage implements Storage
     public void addEntry(String unit, StorageEntry entry)
             throws DuplicateEntryException, IOException
     {
+        List<String> params = new ArrayList<>();
         String sql = "INSERT INTO `" + SqlUtils.escapeQuotes(unit, "`", true) + "`"
                    + " (" + SqlUtils.translateEntryNames(entry, "`") + ")"
-                   + " VALUES (" + SqlUtils.translateEntryValues(entry, "'") + ");";
+                   + " VALUES (" + SqlUtils.translateEntryValues(entry, params) + ");";
         
         try
         {
-            executeStatement(sql);
+            executeStatement(sql, params);
         }
         catch (SQLException ex)
         {
@@ -339,18 +429,63 @@ public final class SqliteStorage implements Storage
         }
     }
     
+    /**
+     * Inserts entries with multi-row {@code INSERT} statements,
+     * in a single transaction unless autobatch is enabled.
+     */
+    @Override
+    public void addEntries(String unit, Iterable<StorageEntry> entries)
+            throws DuplicateEntryException, IOException
+    {
+        boolean transaction = false;
+        
+        try
+        {
+            transaction = !isAutobatchEnabled()
+                    && SqlUtils.beginTransaction(connection);
+            
+            for (List<StorageEntry> rows : SqlUtils.chunkEntries(
+                    entries, SqlUtils.MAX_ROWS_PER_STATEMENT, MAX_PARAMS))
+            {
+                List<String> keys = new ArrayList<>(rows.get(0).getKeys());
+                List<String> params = new ArrayList<>();
+                String sql = "INSERT INTO `" + SqlUtils.escapeQuotes(unit, "`", true) + "`"
+                           + " (" + SqlUtils.translateKeyList(keys, "`") + ")"
+                           + " " + translateUnionRows(keys, rows, params) + ";";
+                
+                executeStatement(sql, params);
+            }
+            
+            SqlUtils.commitTransaction(connection, transaction);
+        }
+        catch (SQLException ex)
+        {
+            SqlUtils.rollbackTransaction(connection, transaction);
+            
+            if ("23000".equals(ex.getSQLState()))
+            {
+                throw new DuplicateEntryException();
+            }
+            else
+            {
+                throw new IOException(ex);
+            }
+        }
+    }
+    
     @Override
     public void updateEntries(
             String unit, StorageEntry entrySubset, Selector selector
     ) throws IOException
     {
+        List<String> params = new ArrayList<>();
         String sql = "UPDATE `" + SqlUtils.escapeQuotes(unit, "`", true) + "`"
-                   + " SET " + SqlUtils.translateEntrySubset(entrySubset, "`", "'")
-                   + " WHERE " + SqlUtils.translateSelector(selector, "`", "'") + ";";
+                   + " SET " + SqlUtils.translateEntrySubset(entrySubset, "`", params)
+                   + " WHERE " + SqlUtils.translateSelector(selector, "`", params) + ";";
         
         try
         {
-            executeStatement(sql);
+            executeStatement(sql, params);
         }
         catch (SQLException ex)
         {
@@ -361,12 +496,13 @@ public final class SqliteStorage implements Storage
     @Override
     public void removeEntries(String unit, Selector selector) throws IOException
     {
+        List<String> params = new ArrayList<>();
         String sql = "DELETE FROM `" + SqlUtils.escapeQuotes(unit, "`", true) + "`"
-                   + " WHERE " + SqlUtils.translateSelector(selector, "`", "'") + ";";
+                   + " WHERE " + SqlUtils.translateSelector(selector, "`", params) + ";";
         
         try
         {
-            executeStatement(sql);
+            executeStatement(sql, params);
         }
         catch (SQLException ex)
         {
@@ -374,6 +510,47 @@ public final class SqliteStorage implements Storage
         }
     }
     
+    /**
+     * Removes entries by primary key with {@code DELETE ... IN} statements,
+     * in a single transaction unless autobatch is enabled.
+     */
+    @Override
+    public void removeEntries(String unit, Collection<String> primaryKeys)
+            throws IOException
+    {
+        String primaryKey = getPrimaryKey(unit);
+        
+        if (primaryKey == null)
+            throw new IOException("Unit has no primary key: " + unit);
+        
+        boolean transaction = false;
+        
+        try
+        {
+            transaction = !isAutobatchEnabled()
+                    && SqlUtils.beginTransaction(connection);
+            
+            for (List<String> values : SqlUtils.chunkValues(
+                    primaryKeys, SqlUtils.MAX_ROWS_PER_STATEMENT))
+            {
+                List<String> params = new ArrayList<>();
+                String sql = "DELETE FROM `" + SqlUtils.escapeQuotes(unit, "`", true) + "`"
+                           + " WHERE `" + SqlUtils.escapeQuotes(primaryKey, "`", true) + "`"
+                           + " IN (" + SqlUtils.translateValueList(values, params) + ");";
+                
+                executeStatement(sql, params);
+            }
+            
+            SqlUtils.commitTransaction(connection, transaction);
+        }
+        catch (SQLException ex)
+        {
+            SqlUtils.rollbackTransaction(connection, transaction);
+            
+            throw new IOException(ex);
+        }
+    }
+    
     @Override
     public boolean isAutobatchEnabled()
     {
@@ -391,8 +568,7 @@ public final class SqliteStorage implements Storage
     {
         try
         {
-            statement.executeBatch();
-            statement.clearBatch();
+            statements.executeBatch();
         }
         catch (SQLException ex)
         {
@@ -402,10 +578,17 @@ public final class SqliteStorage implements Storage
     
     @Override
     public void clearBatch() throws IOException
+    {
+        statements.clearBatch();
+    }
+    
+    private void streamQuery(
+            String sql, List<String> params, EntryVisitor visitor
+    ) throws IOException
     {
         try
         {
-            statement.clearBatch();
+            SqlUtils.streamQuery(connection, sql, params, visitor);
         }
         catch (SQLException ex)
         {
@@ -415,29 +598,68 @@ public final class SqliteStorage implements Storage
     
     private ResultSet executeQuery(String sql) throws SQLException
     {
-        return statement.executeQuery(sql);
+        return executeQuery(sql, new ArrayList<String>(0));
+    }
+    
+    private ResultSet executeQuery(String sql, List<String> params)
+            throws SQLException
+    {
+        return statements.executeQuery(sql, params);
     }
     
     private boolean executeStatement(String sql) throws SQLException
+    {
+        return executeStatement(sql, new ArrayList<String>(0));
+    }
+    
+    private boolean executeStatement(String sql, List<String> params)
+            throws SQLException
     {
         if (!isAutobatchEnabled())
         {
-            return statement.execute(sql);
+            return statements.execute(sql, params);
         }
         
-        addBatch(sql);
+        addBatch(sql, params);
         
         return false;
     }
     
-    private void addBatch(String sql) throws SQLException
+    private void addBatch(String sql, List<String> params)
     {
-        statement.addBatch(sql);
+        statements.addBatch(sql, params);
     }
     
+    /**
+     * Translates rows into {@code SELECT ... UNION ALL SELECT ...} form,
+     * since multi-row {@code VALUES} lists are not understood by the
+     * SQLite versions bundled with older servers.
+     */
+    private static String translateUnionRows(
+            List<String> keys, List<StorageEntry> rows, List<String> params
+    )
+    {
+        StringBuilder sb = new StringBuilder();
+        
+        for (StorageEntry row : rows)
+        {
+            sb.append((sb.length() > 0) ? " UNION ALL SELECT " : "SELECT ");
+            sb.append(SqlUtils.translateValueList(
+                    SqlUtils.getValues(row, keys), params
+            ));
+        }
+        
+        return sb.toString();
+    }
+    
+    /**
+     * SQLite limits a prepared statement to 999 placeholders by default.
+     */
+    private static final int MAX_PARAMS = 999;
+    
     private final String host;
     
     private Connection connection;
-    private Statement statement;
+    private PreparedStatementCache statements;
     private boolean autobatch = false;
 }
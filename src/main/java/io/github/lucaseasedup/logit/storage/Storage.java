@@ -1,6 +1,7 @@
 package io.github.lucaseasedup.logit.storage;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
 
 public interface Storage extends AutoCloseable
@@ -30,6 +31,12 @@ public interface Storage extends AutoCloseable
     public List<StorageEntry> selectEntries(
             String unit, List<String> keys, Selector selector
     ) throws IOException;
+    public void forEachEntry(String unit, EntryVisitor visitor)
+            throws IOException;
+    public void forEachEntry(
+            String unit, List<String> keys, Selector selector,
+            EntryVisitor visitor
+    ) throws IOException;
     
     public void createUnit(String unit, UnitKeys keys, String primaryKey)
             throws IOException;
@@ -40,15 +47,26 @@ public interface Storage extends AutoCloseable
     public void removeUnit(String unit)
             throws IOException;
     
+    public List<String> getIndexes(String unit)
+            throws IOException;
+    public void createIndex(String unit, String key)
+            throws IOException;
+    public void dropIndex(String unit, String key)
+            throws IOException;
+    
     public void addKey(String unit, String key, DataType type)
             throws IOException;
     public void addEntry(String unit, StorageEntry entry)
             throws DuplicateEntryException, IOException;
+    public void addEntries(String unit, Iterable<StorageEntry> entries)
+            throws DuplicateEntryException, IOException;
     public void updateEntries(
             String unit, StorageEntry entrySubset, Selector selector
     ) throws IOException;
     public void removeEntries(String unit, Selector selector)
             throws IOException;
+    public void removeEntries(String unit, Collection<String> primaryKeys)
+            throws IOException;
     
     public boolean isAutobatchEnabled();
     public void setAutobatchEnabled(boolean status);
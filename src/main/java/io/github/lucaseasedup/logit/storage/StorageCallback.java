@@ -0,0 +1,19 @@
+package io.github.lucaseasedup.logit.storage;
+
+/**
+ * Receives the outcome of an operation submitted to an {@link AsyncStorage}.
+ * 
+ * @param <T> the result type.
+ */
+public interface StorageCallback<T>
+{
+    public void onSuccess(T result);
+    
+    /**
+     * Called when the operation has failed.
+     * 
+     * @param ex the {@code IOException} thrown by the storage,
+     *           or the unchecked exception it failed with unexpectedly.
+     */
+    public void onFailure(Exception ex);
+}
@@ -1,22 +1,38 @@
 package io.github.lucaseasedup.logit.storage;
 
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import org.apache.commons.lang.StringUtils;
 
+/**
+ * A set of key-value pairs read from or written to a unit.
+ * 
+ * <p> Keys are kept in a {@link KeySchema} shared with every other entry
+ * holding the same keys in the same order, and values in an array indexed
+ * by the schema's slots. A copy shares the value array with its source
+ * until either of them is modified.
+ * 
+ * <p> Modifications and copies are synchronized on the entry, so that
+ * dirty keys can be snapshotted with {@link #copyDirty()} on one thread
+ * while the entry is being modified on another. Reads do not lock:
+ * the schema and the value array are published together through
+ * a volatile field, so a reader always sees a matching pair.
+ */
 public final class StorageEntry implements Iterable<StorageDatum>
 {
     @Override
     public String toString()
     {
+        Layout layout = this.layout;
         StringBuilder sb = new StringBuilder();
         
-        for (StorageDatum datum : this)
+        for (int slot = 0; slot < layout.schema.size(); slot++)
         {
             if (sb.length() > 0)
             {
@@ -24,9 +40,9 @@ public final class StorageEntry implements Iterable<StorageDatum>
             }
             
             sb.append("\"");
-            sb.append(datum.getKey());
+            sb.append(layout.schema.getKey(slot));
             sb.append("\": \"");
-            sb.append(datum.getValue());
+            sb.append(layout.values[slot]);
             sb.append("\"");
         }
         
@@ -38,34 +54,89 @@ public final class StorageEntry implements Iterable<StorageDatum>
         if (StringUtils.isBlank(key))
             throw new IllegalArgumentException();
         
-        return backend.get(key);
+        Layout layout = this.layout;
+        int slot = layout.schema.getSlot(key);
+        
+        return (slot >= 0) ? layout.values[slot] : null;
+    }
+    
+    KeySchema getSchema()
+    {
+        return layout.schema;
+    }
+    
+    /**
+     * Returns the value in a slot of a schema previously returned
+     * by {@link #getSchema()}. If the entry has changed its schema since,
+     * the key in that slot is looked up again.
+     */
+    String getValueAt(KeySchema schema, int slot)
+    {
+        Layout layout = this.layout;
+        
+        if (layout.schema != schema)
+        {
+            slot = layout.schema.getSlot(schema.getKey(slot));
+            
+            if (slot < 0)
+                return null;
+        }
+        
+        return layout.values[slot];
     }
     
-    public void put(String key, String value)
+    public synchronized void put(String key, String value)
     {
         if (StringUtils.isBlank(key))
             throw new IllegalArgumentException();
         
-        String oldValue;
+        String newValue = (value == null) ? "" : value;
+        KeySchema schema = layout.schema;
+        int slot = schema.getSlot(key);
+        String oldValue = null;
         
-        if (value == null)
+        if (slot < 0)
         {
-            oldValue = backend.put(key, "");
+            schema = schema.withKey(key);
+            slot = schema.size() - 1;
+            
+            String[] values = ensureWritable(slot + 1);
+            
+            values[slot] = newValue;
+            layout = new Layout(schema, values);
         }
         else
         {
-            oldValue = backend.put(key, value);
+            oldValue = layout.values[slot];
+            
+            if (!oldValue.equals(newValue))
+            {
+                String[] values = ensureWritable(layout.values.length);
+                
+                values[slot] = newValue;
+                
+                // Published again, so that readers see the new value.
+                layout = new Layout(schema, values);
+            }
         }
         
         if (oldValue == null || !oldValue.equals(value))
         {
-            dirtyKeys.add(key);
+            if (dirtySlots == null)
+            {
+                dirtySlots = new BitSet(schema.size());
+            }
+            
+            dirtySlots.set(slot);
         }
     }
     
+    /**
+     * Returns an unmodifiable set of the keys in this entry.
+     */
     public Set<String> getKeys()
     {
-        return backend.keySet();
+        return layout.schema.getKeys();
     }
     
     public boolean containsKey(String key)
@@ -73,44 +144,81 @@ public final class StorageEntry implements Iterable<StorageDatum>
         return get(key) != null;
     }
     
-    public StorageEntry copy()
+    /**
+     * Returns a copy of this entry with no dirty keys.
+     * 
+     * <p> The copy shares its values with this entry until either
+     * of them is modified.
+     */
+    public synchronized StorageEntry copy()
     {
         StorageEntry copy = new StorageEntry();
         
-        copy.backend = new LinkedHashMap<>(backend);
+        copy.layout = layout;
+        copy.valuesShared = true;
+        valuesShared = true;
         
         return copy;
     }
     
-    public StorageEntry copyDirty()
+    public synchronized StorageEntry copyDirty()
     {
         StorageEntry copy = new StorageEntry();
+        Layout layout = this.layout;
+        
+        if (dirtySlots == null)
+            return copy;
         
-        for (Map.Entry<String, String> e : backend.entrySet())
+        for (int slot = 0; slot < layout.schema.size(); slot++)
         {
-            if (isKeyDirty(e.getKey()))
+            if (dirtySlots.get(slot))
             {
-                copy.backend.put(e.getKey(), e.getValue());
+                copy.put(layout.schema.getKey(slot), layout.values[slot]);
             }
         }
         
+        copy.dirtySlots = null;
+        
+        return copy;
+    }
+    
+    /**
+     * Returns a copy of the dirty keys of this entry and marks them
+     * as clean, in one step, so that a modification made meanwhile
+     * is neither lost nor taken twice.
+     * 
+     * @return a new entry holding the dirty keys and their values.
+     */
+    public synchronized StorageEntry takeDirty()
+    {
+        StorageEntry copy = copyDirty();
+        
+        dirtySlots = null;
+        
         return copy;
     }
     
-    public boolean isKeyDirty(String key)
+    public synchronized boolean isKeyDirty(String key)
     {
         if (key == null)
             throw new IllegalArgumentException();
         
-        return dirtyKeys.contains(key);
+        int slot = layout.schema.getSlot(key);
+        
+        return slot >= 0 && dirtySlots != null && dirtySlots.get(slot);
     }
     
-    public void clearKeyDirty(String key)
+    public synchronized void clearKeyDirty(String key)
     {
         if (key == null)
             throw new IllegalArgumentException();
         
-        dirtyKeys.remove(key);
+        int slot = layout.schema.getSlot(key);
+        
+        if (slot >= 0 && dirtySlots != null)
+        {
+            dirtySlots.clear(slot);
+        }
     }
     
     @Override
@@ -119,7 +227,9 @@ public final class StorageEntry implements Iterable<StorageDatum>
         return new DatumIterator();
     }
     
-    public static List<StorageEntry> copyList(List<StorageEntry> entries)
+    public static List<StorageEntry> copyList(
+            Collection<StorageEntry> entries
+    )
     {
         if (entries == null)
             throw new IllegalArgumentException();
@@ -128,27 +238,29 @@ public final class StorageEntry implements Iterable<StorageDatum>
     }
     
     public static List<StorageEntry> copyList(
-            List<StorageEntry> entries, Selector selector
+            Collection<StorageEntry> entries, Selector selector
     )
     {
         if (entries == null || selector == null)
             throw new IllegalArgumentException();
         
-        List<StorageEntry> copies = new LinkedList<>();
-        
-        for (StorageEntry entry : entries)
-        {
-            if (SqlUtils.resolveSelector(selector, entry))
-            {
-                copies.add(entry.copy());
-            }
-        }
+        return copyList(entries, null, CompiledSelector.compile(selector));
+    }
+    
+    public static List<StorageEntry> copyList(
+            Collection<StorageEntry> entries, List<String> keys,
+            Selector selector
+    )
+    {
+        if (entries == null || selector == null)
+            throw new IllegalArgumentException();
         
-        return copies;
+        return copyList(entries, keys, CompiledSelector.compile(selector));
     }
     
     public static List<StorageEntry> copyList(
-            List<StorageEntry> entries, List<String> keys, Selector selector
+            Collection<StorageEntry> entries, List<String> keys,
+            CompiledSelector selector
     )
     {
         if (entries == null || selector == null)
@@ -158,16 +270,26 @@ public final class StorageEntry implements Iterable<StorageDatum>
         
         for (StorageEntry entry : entries)
         {
-            if (SqlUtils.resolveSelector(selector, entry))
+            if (!selector.test(entry))
+                continue;
+            
+            if (keys == null)
+            {
+                copies.add(entry.copy());
+            }
+            else
             {
                 StorageEntry.Builder copyBuilder =
                         new StorageEntry.Builder();
+                Layout layout = entry.layout;
                 
-                for (StorageDatum datum : entry)
+                for (int slot = 0; slot < layout.schema.size(); slot++)
                 {
-                    if (keys == null || keys.contains(datum.getKey()))
+                    String key = layout.schema.getKey(slot);
+                    
+                    if (keys.contains(key))
                     {
-                        copyBuilder.put(datum.getKey(), datum.getValue());
+                        copyBuilder.put(key, layout.values[slot]);
                     }
                 }
                 
@@ -180,32 +302,43 @@ public final class StorageEntry implements Iterable<StorageDatum>
     
     public final class DatumIterator implements Iterator<StorageDatum>
     {
-        public DatumIterator()
-        {
-            it = backend.entrySet().iterator();
-        }
-        
         @Override
         public boolean hasNext()
         {
-            return it.hasNext();
+            return nextSlot < layout.schema.size();
         }
         
         @Override
         public StorageDatum next()
         {
-            Map.Entry<String, String> el = it.next();
+            if (!hasNext())
+                throw new NoSuchElementException();
+            
+            lastSlot = nextSlot++;
             
-            return new StorageDatum(el.getKey(), el.getValue());
+            return new StorageDatum(
+                    layout.schema.getKey(lastSlot), layout.values[lastSlot]
+            );
         }
         
         @Override
         public void remove()
         {
-            it.remove();
+            if (lastSlot < 0)
+                throw new IllegalStateException();
+            
+            removeKey(layout.schema.getKey(lastSlot));
+            
+            lastSlot = -1;
         }
         
-        private final Iterator<Map.Entry<String, String>> it;
+        /**
+         * The keys and values this iterator walks through, as they were
+         * when it was created.
+         */
+        private final Layout layout = StorageEntry.this.layout;
+        private int nextSlot = 0;
+        private int lastSlot = -1;
     }
     
     public static final class Builder
@@ -219,9 +352,11 @@ public final class StorageEntry implements Iterable<StorageDatum>
         
         public Builder putAll(StorageEntry sourceEntry)
         {
-            for (StorageDatum datum : sourceEntry)
+            Layout layout = sourceEntry.layout;
+            
+            for (int slot = 0; slot < layout.schema.size(); slot++)
             {
-                put(datum.getKey(), datum.getValue());
+                put(layout.schema.getKey(slot), layout.values[slot]);
             }
             
             return this;
@@ -233,7 +368,8 @@ public final class StorageEntry implements Iterable<StorageDatum>
             
             entry = new StorageEntry();
             
-            builtEntry.dirtyKeys.clear();
+            builtEntry.trim();
+            builtEntry.dirtySlots = null;
             
             return builtEntry;
         }
@@ -241,6 +377,119 @@ public final class StorageEntry implements Iterable<StorageDatum>
         private StorageEntry entry = new StorageEntry();
     }
     
-    private Map<String, String> backend = new LinkedHashMap<>();
-    private final Set<String> dirtyKeys = new HashSet<>();
+    /**
+     * Returns a value array private to this entry and large enough
+     * to hold the given number of values, holding the current values.
+     * It is the current array if that one already is.
+     */
+    private String[] ensureWritable(int minLength)
+    {
+        String[] values = layout.values;
+        
+        if (valuesShared || values.length < minLength)
+        {
+            int length = values.length;
+            
+            if (length < minLength)
+            {
+                length = Math.max(minLength, length * 2);
+            }
+            
+            values = Arrays.copyOf(values, length);
+            valuesShared = false;
+        }
+        
+        return values;
+    }
+    
+    /**
+     * Drops the unused capacity of the value array.
+     */
+    private void trim()
+    {
+        Layout layout = this.layout;
+        
+        if (!valuesShared && layout.values.length > layout.schema.size())
+        {
+            this.layout = new Layout(layout.schema,
+                    Arrays.copyOf(layout.values, layout.schema.size()));
+        }
+    }
+    
+    private synchronized void removeKey(String key)
+    {
+        int slot = layout.schema.getSlot(key);
+        
+        if (slot >= 0)
+        {
+            removeSlot(slot);
+        }
+    }
+    
+    private synchronized void removeSlot(int slot)
+    {
+        KeySchema schema = layout.schema;
+        String[] values = layout.values;
+        int size = schema.size();
+        String[] newValues = new String[size - 1];
+        
+        System.arraycopy(values, 0, newValues, 0, slot);
+        System.arraycopy(values, slot + 1, newValues, slot, size - slot - 1);
+        
+        if (dirtySlots != null)
+        {
+            BitSet newDirtySlots = dirtySlots.get(0, slot);
+            
+            for (int i = dirtySlots.nextSetBit(slot + 1); i >= 0;
+                    i = dirtySlots.nextSetBit(i + 1))
+            {
+                newDirtySlots.set(i - 1);
+            }
+            
+            dirtySlots = newDirtySlots;
+        }
+        
+        layout = new Layout(schema.withoutKey(schema.getKey(slot)), newValues);
+        valuesShared = false;
+    }
+    
+    /**
+     * A schema and the value array indexed by its slots.
+     * 
+     * <p> The array may be longer than the schema. A value in a slot
+     * of the schema may be overwritten in place, and the slots past it
+     * may be filled, but the array always stays long enough for the schema
+     * it is paired with.
+     */
+    private static final class Layout
+    {
+        public Layout(KeySchema schema, String[] values)
+        {
+            this.schema = schema;
+            this.values = values;
+        }
+        
+        private final KeySchema schema;
+        private final String[] values;
+    }
+    
+    private static final Layout EMPTY_LAYOUT =
+            new Layout(KeySchema.EMPTY, new String[0]);
+    
+    /**
+     * Replaced after every modification, so that reads need no lock.
+     */
+    private volatile Layout layout = EMPTY_LAYOUT;
+    
+    /**
+     * Whether {@link #values} may be referenced by another entry
+     * and has to be copied before being modified.
+     */
+    private boolean valuesShared = false;
+    
+    /**
+     * The slots of the keys modified since this entry was built,
+     * or {@code null} if there are none.
+     */
+    private BitSet dirtySlots = null;
 }
@@ -2,6 +2,7 @@ package io.github.lucaseasedup.logit.storage;
 
 import io.github.lucaseasedup.logit.LogItCore;
 import io.github.lucaseasedup.logit.config.PredefinedConfiguration;
+import io.github.lucaseasedup.logit.config.TimeUnit;
 import java.io.File;
 
 public final class StorageFactory
@@ -13,6 +14,24 @@ public final class StorageFactory
     }
     
     public Storage produceStorage(StorageType type)
+    {
+        return produceStorage(type, -1);
+    }
+    
+    /**
+     * Produces a storage of the given type holding one shard.
+     * 
+     * <p> The configured file name, directory or database name
+     * is suffixed with the shard number, so that every shard
+     * is kept in a separate place.
+     * 
+     * @param type  the storage type.
+     * @param shard the shard number, or {@code -1} if the storage
+     *              is not a shard.
+     * 
+     * @return the new storage.
+     */
+    private Storage produceStorage(StorageType type, int shard)
     {
         LogItCore core = LogItCore.getInstance();
         
@@ -25,7 +44,7 @@ public final class StorageFactory
         case SQLITE:
         {
             return new SqliteStorage("jdbc:sqlite:" + core.getDataFolder() + "/"
-                    + configuration.getString(path + ".sqlite.filename"));
+                    + getShardName(".sqlite.filename", shard));
         }
         case MYSQL:
         {
@@ -33,14 +52,14 @@ public final class StorageFactory
                     configuration.getString(path + ".mysql.host"),
                     configuration.getString(path + ".mysql.user"),
                     configuration.getString(path + ".mysql.password"),
-                    configuration.getString(path + ".mysql.database")
+                    getShardName(".mysql.database", shard)
             );
         }
         case H2:
         {
             File file = new File(
                     core.getDataFolder(),
-                    configuration.getString(path + ".h2.filename")
+                    getShardName(".h2.filename", shard)
             );
             
             return new H2Storage("jdbc:h2:" + file.getAbsolutePath());
@@ -48,7 +67,7 @@ public final class StorageFactory
         case POSTGRESQL:
         {
             return new PostgreSqlStorage(
-                    configuration.getString(path + ".postgresql.host"),
+                    getShardName(".postgresql.host", shard),
                     configuration.getString(path + ".postgresql.user"),
                     configuration.getString(path + ".postgresql.password")
             );
@@ -56,7 +75,7 @@ public final class StorageFactory
         case CSV:
         {
             File dir = core.getDataFile(
-                    configuration.getString(path + ".csv.dir")
+                    getShardName(".csv.dir", shard)
             );
             
             if (!dir.exists())
@@ -65,7 +84,22 @@ public final class StorageFactory
                 dir.mkdir();
             }
             
-            return new CsvStorage(dir);
+            return new CsvStorage(dir, configuration.getDouble(
+                    path + ".csv.compactionThreshold"
+            ));
+        }
+        case MAPPED:
+        {
+            File dir = core.getDataFile(
+                    getShardName(".mapped.dir", shard)
+            );
+            
+            if (!dir.exists())
+            {
+                dir.mkdirs();
+            }
+            
+            return new MappedStorage(dir);
         }
         default:
             throw new IllegalArgumentException(
@@ -74,6 +108,110 @@ public final class StorageFactory
         }
     }
     
+    /**
+     * Produces a storage of the given type backed by a pool of connections
+     * configured under {@code <path>.pool}.
+     * 
+     * <p> Storage types that do not support concurrent connections
+     * are produced as by {@link #produceStorage(StorageType)}.
+     * 
+     * @param type the storage type.
+     * 
+     * @return the new storage.
+     */
+    public Storage producePooledStorage(StorageType type)
+    {
+        return producePooledStorage(type, -1);
+    }
+    
+    /**
+     * Produces a storage of the given type split into the number of shards
+     * configured under {@code <path>.shards}, each of them produced
+     * as by {@link #producePooledStorage(StorageType)}.
+     * 
+     * <p> If fewer than two shards are configured, or the storage type
+     * is {@code NONE}, the storage is produced as by
+     * {@link #producePooledStorage(StorageType)}.
+     * 
+     * @param type the storage type.
+     * 
+     * @return the new storage.
+     */
+    public Storage produceShardedStorage(StorageType type)
+    {
+        int shardCount = configuration.getInt(path + ".shards");
+        
+        if (shardCount < 2 || type == StorageType.NONE)
+            return producePooledStorage(type);
+        
+        ShardedStorage.Builder builder = new ShardedStorage.Builder();
+        
+        for (int i = 0; i < shardCount; i++)
+        {
+            builder.shard(producePooledStorage(type, i));
+        }
+        
+        return builder.build();
+    }
+    
+    private Storage producePooledStorage(final StorageType type, final int shard)
+    {
+        if (type != StorageType.MYSQL && type != StorageType.POSTGRESQL
+                && type != StorageType.H2)
+        {
+            return produceStorage(type, shard);
+        }
+        
+        int maxSize = Math.max(1, configuration.getInt(path + ".pool.maxSize"));
+        int minSize = Math.min(maxSize, configuration.getInt(path + ".pool.minSize"));
+        
+        return new PooledStorage.Builder()
+                .factory(new PooledStorage.Factory()
+                {
+                    @Override
+                    public Storage produceStorage()
+                    {
+                        return StorageFactory.this.produceStorage(type, shard);
+                    }
+                })
+                .minSize(minSize)
+                .maxSize(maxSize)
+                .idleTimeout(configuration.getTime(
+                        path + ".pool.idleTimeout", TimeUnit.MILLISECONDS
+                ))
+                .borrowTimeout(configuration.getTime(
+                        path + ".pool.borrowTimeout", TimeUnit.MILLISECONDS
+                ))
+                .build();
+    }
+    
+    /**
+     * Returns the configured name under the given property,
+     * with {@code "_<shard>"} inserted before the file extension, if any.
+     * 
+     * <p> A PostgreSQL host is a JDBC URL ending with the database name,
+     * which is therefore the part that gets suffixed.
+     */
+    private String getShardName(String property, int shard)
+    {
+        String name = configuration.getString(path + property);
+        
+        if (shard < 0)
+            return name;
+        
+        int extensionStart = name.lastIndexOf('.');
+        
+        if (extensionStart <= Math.max(name.lastIndexOf('/'), 0)
+                || property.endsWith(".host")
+                || property.endsWith(".database"))
+        {
+            return name + "_" + shard;
+        }
+        
+        return name.substring(0, extensionStart) + "_" + shard
+                + name.substring(extensionStart);
+    }
+    
     private final PredefinedConfiguration configuration;
     private final String path;
 }
@@ -0,0 +1,24 @@
+package io.github.lucaseasedup.logit.storage;
+
+/**
+ * The state of a storage as seen by a {@link StorageHealthMonitor}.
+ */
+public enum StorageHealth
+{
+    /**
+     * The storage answers pings within the latency threshold.
+     */
+    HEALTHY,
+    
+    /**
+     * The storage answers pings, but slower than the latency threshold,
+     * or a single ping has just failed.
+     */
+    DEGRADED,
+    
+    /**
+     * The storage has failed consecutive pings
+     * and is being reconnected to.
+     */
+    DOWN;
+}
@@ -0,0 +1,230 @@
+package io.github.lucaseasedup.logit.storage;
+
+import io.github.lucaseasedup.logit.LogItCore;
+import io.github.lucaseasedup.logit.logging.CustomLevel;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Pings the leading storage of a {@link WrapperStorage} on its own thread,
+ * keeping a moving average of the round-trip time and reconnecting
+ * with exponential backoff when pings fail.
+ * 
+ * <p> The outcome is published as a {@link StorageHealth}, which other
+ * code can check to skip storage calls that would only hang,
+ * and use whatever it has cached instead.
+ * 
+ * <p> This class is thread-safe.
+ */
+public final class StorageHealthMonitor implements AutoCloseable
+{
+    /**
+     * Constructs a new {@code StorageHealthMonitor}.
+     * 
+     * @param storage          the storage whose leading storage
+     *                         is to be monitored.
+     * @param interval         the time between pings of a storage that is up,
+     *                         in milliseconds.
+     * @param degradedLatency  the average round-trip time above which
+     *                         the storage is considered degraded,
+     *                         in milliseconds.
+     * 
+     * @throws IllegalArgumentException if {@code storage} is {@code null},
+     *                                  {@code interval} is not positive
+     *                                  or {@code degradedLatency}
+     *                                  is negative.
+     */
+    public StorageHealthMonitor(
+            WrapperStorage storage, long interval, long degradedLatency
+    )
+    {
+        if (storage == null || interval <= 0 || degradedLatency < 0)
+            throw new IllegalArgumentException();
+        
+        this.storage = storage;
+        this.interval = interval;
+        this.degradedLatency = degradedLatency;
+    }
+    
+    /**
+     * Starts pinging the storage.
+     */
+    public synchronized void start()
+    {
+        if (executorService != null)
+            throw new IllegalStateException("Monitor already started");
+        
+        executorService = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "LogIt Storage Health Monitor");
+                thread.setDaemon(true);
+                
+                return thread;
+            }
+        });
+        
+        schedule(interval);
+    }
+    
+    @Override
+    public synchronized void close()
+    {
+        if (executorService != null)
+        {
+            executorService.shutdownNow();
+            executorService = null;
+        }
+    }
+    
+    public StorageHealth getHealth()
+    {
+        return health;
+    }
+    
+    /**
+     * Checks whether calls to the storage are expected to succeed,
+     * i.e. whether it is not {@code DOWN}.
+     */
+    public boolean isAvailable()
+    {
+        return health != StorageHealth.DOWN;
+    }
+    
+    /**
+     * Returns the moving average of the round-trip time of pings,
+     * in nanoseconds, or {@code 0} if no ping has succeeded yet.
+     */
+    public long getLatency()
+    {
+        return latency;
+    }
+    
+    /**
+     * Returns the number of pings or reconnection attempts
+     * that have failed in a row.
+     */
+    public int getConsecutiveFailures()
+    {
+        return consecutiveFailures;
+    }
+    
+    private void check()
+    {
+        long start = System.nanoTime();
+        
+        try
+        {
+            if (consecutiveFailures >= DOWN_THRESHOLD)
+            {
+                storage.reconnectLeading();
+            }
+            else
+            {
+                storage.pingLeading();
+            }
+            
+            storage.pingMirrors();
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            consecutiveFailures++;
+            
+            setHealth((consecutiveFailures >= DOWN_THRESHOLD)
+                    ? StorageHealth.DOWN : StorageHealth.DEGRADED, ex);
+            
+            long backoff = RECONNECT_BACKOFF_MIN << Math.min(
+                    consecutiveFailures - 1, 16
+            );
+            
+            schedule(Math.min(backoff, Math.max(interval, RECONNECT_BACKOFF_MAX)));
+            
+            return;
+        }
+        
+        latency = MirrorState.updateLatencyEstimate(
+                latency, System.nanoTime() - start
+        );
+        consecutiveFailures = 0;
+        
+        setHealth((TimeUnit.NANOSECONDS.toMillis(latency) > degradedLatency)
+                ? StorageHealth.DEGRADED : StorageHealth.HEALTHY, null);
+        
+        schedule(interval);
+    }
+    
+    private void setHealth(StorageHealth newHealth, Exception cause)
+    {
+        StorageHealth oldHealth = health;
+        
+        health = newHealth;
+        
+        if (oldHealth == newHealth)
+            return;
+        
+        String message = "Storage health changed from " + oldHealth
+                + " to " + newHealth + " (average ping: "
+                + StorageMetrics.formatMillis(latency) + " ms)";
+        
+        if (newHealth == StorageHealth.DOWN)
+        {
+            LogItCore.getInstance().log(Level.WARNING, message, cause);
+        }
+        else if (oldHealth == StorageHealth.DOWN)
+        {
+            LogItCore.getInstance().log(Level.INFO, message);
+        }
+        else
+        {
+            LogItCore.getInstance().log(CustomLevel.INTERNAL, message);
+        }
+    }
+    
+    private synchronized void schedule(long delay)
+    {
+        if (executorService == null || executorService.isShutdown())
+            return;
+        
+        executorService.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                check();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * The number of failures in a row after which the storage
+     * is considered {@code DOWN} and reconnected to.
+     */
+    public static final int DOWN_THRESHOLD = 2;
+    
+    /**
+     * The delay, in milliseconds, before the first retry after a failure;
+     * doubled with every subsequent failure.
+     */
+    public static final long RECONNECT_BACKOFF_MIN = 1000L;
+    
+    /**
+     * The longest delay, in milliseconds, between retries,
+     * unless the ping interval is longer.
+     */
+    public static final long RECONNECT_BACKOFF_MAX = 60000L;
+    
+    private final WrapperStorage storage;
+    private final long interval;
+    private final long degradedLatency;
+    private ScheduledExecutorService executorService;
+    private volatile StorageHealth health = StorageHealth.HEALTHY;
+    private volatile long latency = 0L;
+    private volatile int consecutiveFailures = 0;
+}
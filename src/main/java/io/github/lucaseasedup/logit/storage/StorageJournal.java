@@ -0,0 +1,399 @@
+package io.github.lucaseasedup.logit.storage;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only file of storage operations waiting to be replayed.
+ * 
+ * <p> Every record takes up one line: the CRC32 checksum of the rest
+ * of the line, a sequence number, the operation name and its arguments,
+ * all separated by single spaces. Arguments are URL-encoded,
+ * with {@code ~} standing for {@code null}. A record whose checksum
+ * does not match, such as one torn by a crash halfway through writing it,
+ * is skipped and counted as corrupt.
+ * 
+ * <p> Replayed records are marked with {@code checkpoint} records,
+ * so a replay interrupted halfway through can be resumed
+ * without running any operation twice.
+ * 
+ * <p> This class is thread-safe.
+ */
+public final class StorageJournal implements AutoCloseable
+{
+    public StorageJournal(File file)
+    {
+        if (file == null)
+            throw new IllegalArgumentException();
+        
+        this.file = file;
+    }
+    
+    /**
+     * Opens this journal for appending, reading any records
+     * left over in the file from a previous session.
+     * 
+     * @throws IOException if an I/O error occurred.
+     */
+    public synchronized void open() throws IOException
+    {
+        if (out != null)
+            return;
+        
+        if (file.getParentFile() != null)
+        {
+            file.getParentFile().mkdirs();
+        }
+        
+        pendingCount = readPending().size();
+        out = new FileOutputStream(file, true);
+    }
+    
+    public synchronized boolean isOpen()
+    {
+        return out != null;
+    }
+    
+    /**
+     * Appends a record to this journal.
+     * 
+     * @param operation the operation name.
+     * @param arguments the operation arguments; may contain {@code null}s.
+     * @param sync      whether to force the record to the disk
+     *                  before returning.
+     * 
+     * @return the sequence number of the record.
+     * 
+     * @throws IllegalArgumentException if {@code operation}
+     *                                  or {@code arguments} is {@code null}.
+     * 
+     * @throws IOException              if an I/O error occurred.
+     */
+    public synchronized long append(
+            String operation, List<String> arguments, boolean sync
+    ) throws IOException
+    {
+        if (operation == null || arguments == null)
+            throw new IllegalArgumentException();
+        
+        long sequence = write(operation, arguments);
+        
+        if (sync)
+        {
+            sync();
+        }
+        
+        pendingCount++;
+        
+        return sequence;
+    }
+    
+    /**
+     * Forces every record appended so far to the disk.
+     * 
+     * @throws IOException if an I/O error occurred.
+     */
+    public synchronized void sync() throws IOException
+    {
+        ensureOpen();
+        
+        out.flush();
+        out.getChannel().force(false);
+    }
+    
+    /**
+     * Reads the records that have been appended but not replayed yet.
+     * 
+     * @return the records, in the order they were appended.
+     * 
+     * @throws IOException if an I/O error occurred.
+     */
+    public synchronized List<Record> readPending() throws IOException
+    {
+        List<Record> records = new ArrayList<>();
+        
+        corruptCount = 0;
+        
+        if (!file.exists())
+            return records;
+        
+        try (BufferedReader br = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), CHARSET)))
+        {
+            String line;
+            
+            while ((line = br.readLine()) != null)
+            {
+                if (line.isEmpty())
+                    continue;
+                
+                Record record = parse(line);
+                
+                if (record == null)
+                {
+                    corruptCount++;
+                    
+                    continue;
+                }
+                
+                lastSequence = Math.max(lastSequence, record.getSequence());
+                
+                if (record.getOperation().equals(CHECKPOINT))
+                {
+                    long replayedSequence =
+                            Long.parseLong(record.getArguments().get(0));
+                    
+                    while (!records.isEmpty() && records.get(0)
+                            .getSequence() <= replayedSequence)
+                    {
+                        records.remove(0);
+                    }
+                }
+                else
+                {
+                    records.add(record);
+                }
+            }
+        }
+        
+        return records;
+    }
+    
+    /**
+     * Marks records as replayed.
+     * 
+     * @param sequence the sequence number of the last replayed record.
+     * @param count    the number of records replayed since the last call
+     *                 to this method.
+     * 
+     * @throws IOException if an I/O error occurred.
+     */
+    public synchronized void checkpoint(long sequence, int count)
+            throws IOException
+    {
+        write(CHECKPOINT, Arrays.asList(String.valueOf(sequence)));
+        sync();
+        
+        pendingCount = Math.max(0, pendingCount - count);
+    }
+    
+    /**
+     * Discards every record in this journal.
+     * 
+     * @throws IOException if an I/O error occurred.
+     */
+    public synchronized void truncate() throws IOException
+    {
+        ensureOpen();
+        
+        out.flush();
+        out.getChannel().truncate(0);
+        out.getChannel().force(true);
+        
+        pendingCount = 0;
+    }
+    
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if (out == null)
+            return;
+        
+        try
+        {
+            sync();
+        }
+        finally
+        {
+            out.close();
+            out = null;
+        }
+    }
+    
+    public File getFile()
+    {
+        return file;
+    }
+    
+    /**
+     * Returns the number of records waiting to be replayed.
+     */
+    public synchronized int getPendingCount()
+    {
+        return pendingCount;
+    }
+    
+    /**
+     * Returns the number of corrupt records skipped
+     * when this journal was last read.
+     */
+    public synchronized int getCorruptCount()
+    {
+        return corruptCount;
+    }
+    
+    /**
+     * Returns the size of the journal file in bytes.
+     */
+    public long getSize()
+    {
+        return file.length();
+    }
+    
+    private long write(String operation, List<String> arguments)
+            throws IOException
+    {
+        ensureOpen();
+        
+        long sequence = ++lastSequence;
+        StringBuilder sb = new StringBuilder();
+        
+        sb.append(sequence);
+        sb.append(' ');
+        sb.append(operation);
+        
+        for (String argument : arguments)
+        {
+            sb.append(' ');
+            sb.append(encode(argument));
+        }
+        
+        String body = sb.toString();
+        String line = checksum(body) + " " + body + "\n";
+        
+        out.write(line.getBytes(CHARSET));
+        
+        return sequence;
+    }
+    
+    private void ensureOpen() throws IOException
+    {
+        if (out == null)
+            throw new IOException("Journal is not open: " + file);
+    }
+    
+    private static Record parse(String line)
+    {
+        int separator = line.indexOf(' ');
+        
+        if (separator < 0)
+            return null;
+        
+        String body = line.substring(separator + 1);
+        
+        if (!line.substring(0, separator).equals(checksum(body)))
+            return null;
+        
+        String[] tokens = body.split(" ", -1);
+        
+        if (tokens.length < 2)
+            return null;
+        
+        List<String> arguments = new ArrayList<>(tokens.length - 2);
+        
+        try
+        {
+            for (int i = 2; i < tokens.length; i++)
+            {
+                arguments.add(decode(tokens[i]));
+            }
+            
+            return new Record(Long.parseLong(tokens[0]), tokens[1], arguments);
+        }
+        catch (IllegalArgumentException ex)
+        {
+            return null;
+        }
+    }
+    
+    private static String checksum(String body)
+    {
+        CRC32 crc = new CRC32();
+        
+        crc.update(body.getBytes(CHARSET));
+        
+        return String.format("%08x", crc.getValue());
+    }
+    
+    private static String encode(String argument)
+    {
+        if (argument == null)
+            return NULL_ARGUMENT;
+        
+        try
+        {
+            return URLEncoder.encode(argument, CHARSET.name());
+        }
+        catch (UnsupportedEncodingException ex)
+        {
+            throw new RuntimeException(ex);
+        }
+    }
+    
+    private static String decode(String token)
+    {
+        if (token.equals(NULL_ARGUMENT))
+            return null;
+        
+        try
+        {
+            return URLDecoder.decode(token, CHARSET.name());
+        }
+        catch (UnsupportedEncodingException ex)
+        {
+            throw new RuntimeException(ex);
+        }
+    }
+    
+    public static final class Record
+    {
+        private Record(long sequence, String operation, List<String> arguments)
+        {
+            this.sequence = sequence;
+            this.operation = operation;
+            this.arguments = Collections.unmodifiableList(arguments);
+        }
+        
+        public long getSequence()
+        {
+            return sequence;
+        }
+        
+        public String getOperation()
+        {
+            return operation;
+        }
+        
+        public List<String> getArguments()
+        {
+            return arguments;
+        }
+        
+        private final long sequence;
+        private final String operation;
+        private final List<String> arguments;
+    }
+    
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final String NULL_ARGUMENT = "~";
+    private static final String CHECKPOINT = "checkpoint";
+    
+    private final File file;
+    private FileOutputStream out;
+    private long lastSequence = 0L;
+    private int pendingCount = 0;
+    private int corruptCount = 0;
+}
@@ -0,0 +1,423 @@
+package io.github.lucaseasedup.logit.storage;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects latencies of storage operations, kept separately
+ * for every combination of storage role, operation and unit.
+ * 
+ * <p> Latencies are counted in a histogram of logarithmic buckets,
+ * four per power of two microseconds, so percentiles are estimated
+ * to within about 20% while recording costs a few atomic increments.
+ * 
+ * <p> This class is thread-safe.
+ */
+public final class StorageMetrics
+{
+    public StorageMetrics()
+    {
+        this.since = System.nanoTime();
+    }
+    
+    /**
+     * Records an operation that started at the given time and has just ended.
+     * 
+     * @param role       the role of the storage the operation was run on.
+     * @param operation  the operation name.
+     * @param unit       the unit name, or {@code null} if the operation
+     *                   does not concern any particular unit.
+     * @param startNanos the value of {@link System#nanoTime()}
+     *                   when the operation started.
+     * 
+     * @throws IllegalArgumentException if {@code role} or
+     *                                  {@code operation} is {@code null}.
+     */
+    public void record(
+            Role role, String operation, String unit, long startNanos
+    )
+    {
+        if (role == null || operation == null)
+            throw new IllegalArgumentException();
+        
+        long elapsedNanos = System.nanoTime() - startNanos;
+        MetricKey key = new MetricKey(role, operation,
+                (unit != null) ? unit : NO_UNIT);
+        LatencyHistogram histogram = histograms.get(key);
+        
+        if (histogram == null)
+        {
+            LatencyHistogram newHistogram = new LatencyHistogram();
+            
+            histogram = histograms.putIfAbsent(key, newHistogram);
+            
+            if (histogram == null)
+            {
+                histogram = newHistogram;
+            }
+        }
+        
+        histogram.record(elapsedNanos);
+    }
+    
+    /**
+     * Takes a snapshot of every recorded combination
+     * of storage role, operation and unit.
+     * 
+     * @return the snapshots, sorted by role, operation and unit.
+     */
+    public List<Snapshot> getSnapshots()
+    {
+        long elapsedNanos = System.nanoTime() - since;
+        List<Snapshot> snapshots = new ArrayList<>(histograms.size());
+        
+        for (Map.Entry<MetricKey, LatencyHistogram> e : histograms.entrySet())
+        {
+            snapshots.add(e.getValue().snapshot(e.getKey(), elapsedNanos));
+        }
+        
+        Collections.sort(snapshots, new Comparator<Snapshot>()
+        {
+            @Override
+            public int compare(Snapshot o1, Snapshot o2)
+            {
+                int result = o1.getRole().compareTo(o2.getRole());
+                
+                if (result == 0)
+                {
+                    result = o1.getOperation().compareTo(o2.getOperation());
+                }
+                
+                if (result == 0)
+                {
+                    result = o1.getUnit().compareTo(o2.getUnit());
+                }
+                
+                return result;
+            }
+        });
+        
+        return snapshots;
+    }
+    
+    /**
+     * Discards everything recorded so far
+     * and restarts measuring throughput.
+     */
+    public void reset()
+    {
+        histograms.clear();
+        since = System.nanoTime();
+    }
+    
+    /**
+     * Writes the current snapshots to a file in CSV format,
+     * with latencies in milliseconds.
+     * 
+     * @param file the file to be written to; it will be overwritten.
+     * 
+     * @throws IOException if an I/O error occurred.
+     */
+    public void dump(File file) throws IOException
+    {
+        if (file == null)
+            throw new IllegalArgumentException();
+        
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(file)))
+        {
+            bw.write("role,operation,unit,count,ops_per_sec,"
+                    + "mean_ms,p50_ms,p90_ms,p99_ms,max_ms");
+            bw.newLine();
+            
+            for (Snapshot snapshot : getSnapshots())
+            {
+                bw.write(snapshot.getRole() + ","
+                        + snapshot.getOperation() + ","
+                        + snapshot.getUnit() + ","
+                        + snapshot.getCount() + ","
+                        + String.format(Locale.ROOT, "%.2f",
+                                snapshot.getThroughput()) + ","
+                        + formatMillis(snapshot.getMeanNanos()) + ","
+                        + formatMillis(snapshot.getPercentileNanos(50)) + ","
+                        + formatMillis(snapshot.getPercentileNanos(90)) + ","
+                        + formatMillis(snapshot.getPercentileNanos(99)) + ","
+                        + formatMillis(snapshot.getMaxNanos()));
+                bw.newLine();
+            }
+        }
+    }
+    
+    /**
+     * Formats a duration in nanoseconds as milliseconds
+     * with three decimal places.
+     */
+    public static String formatMillis(long nanos)
+    {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1000000.0);
+    }
+    
+    public static enum Role
+    {
+        LEADING, MIRROR;
+    }
+    
+    /**
+     * An immutable view of the latencies recorded for one combination
+     * of storage role, operation and unit.
+     */
+    public static final class Snapshot
+    {
+        private Snapshot(
+                MetricKey key, long[] buckets, long count,
+                long totalNanos, long maxNanos, long elapsedNanos
+        )
+        {
+            this.key = key;
+            this.buckets = buckets;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.elapsedNanos = elapsedNanos;
+        }
+        
+        public Role getRole()
+        {
+            return key.role;
+        }
+        
+        public String getOperation()
+        {
+            return key.operation;
+        }
+        
+        /**
+         * Returns the unit name, or {@code "*"} for operations
+         * that do not concern any particular unit.
+         */
+        public String getUnit()
+        {
+            return key.unit;
+        }
+        
+        public long getCount()
+        {
+            return count;
+        }
+        
+        public long getMeanNanos()
+        {
+            return (count > 0) ? totalNanos / count : 0L;
+        }
+        
+        public long getMaxNanos()
+        {
+            return maxNanos;
+        }
+        
+        /**
+         * Estimates a latency percentile.
+         * 
+         * @param percentile the percentile, between {@code 0} and {@code 100}.
+         * 
+         * @return the upper bound of the histogram bucket the percentile
+         *         falls into, but no more than the maximum latency;
+         *         or {@code 0} if nothing has been recorded.
+         */
+        public long getPercentileNanos(double percentile)
+        {
+            if (percentile < 0 || percentile > 100)
+                throw new IllegalArgumentException();
+            
+            long total = 0;
+            
+            for (long bucketCount : buckets)
+            {
+                total += bucketCount;
+            }
+            
+            if (total == 0)
+                return 0L;
+            
+            long rank = Math.max(1L, (long) Math.ceil(total * percentile / 100));
+            long seen = 0;
+            
+            for (int i = 0; i < buckets.length; i++)
+            {
+                seen += buckets[i];
+                
+                if (seen >= rank)
+                {
+                    long upperBound = TimeUnit.MICROSECONDS.toNanos(
+                            LatencyHistogram.getBucketUpperBound(i)
+                    );
+                    
+                    return Math.min(upperBound, maxNanos);
+                }
+            }
+            
+            return maxNanos;
+        }
+        
+        /**
+         * Returns the average number of operations per second
+         * since the metrics were created or last reset.
+         */
+        public double getThroughput()
+        {
+            if (elapsedNanos <= 0)
+                return 0.0;
+            
+            return count * 1000000000.0 / elapsedNanos;
+        }
+        
+        private final MetricKey key;
+        private final long[] buckets;
+        private final long count;
+        private final long totalNanos;
+        private final long maxNanos;
+        private final long elapsedNanos;
+    }
+    
+    private static final class MetricKey
+    {
+        public MetricKey(Role role, String operation, String unit)
+        {
+            this.role = role;
+            this.operation = operation;
+            this.unit = unit;
+        }
+        
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj)
+                return true;
+            
+            if (!(obj instanceof MetricKey))
+                return false;
+            
+            MetricKey other = (MetricKey) obj;
+            
+            return role == other.role
+                    && operation.equals(other.operation)
+                    && unit.equals(other.unit);
+        }
+        
+        @Override
+        public int hashCode()
+        {
+            int result = role.hashCode();
+            
+            result = 31 * result + operation.hashCode();
+            result = 31 * result + unit.hashCode();
+            
+            return result;
+        }
+        
+        private final Role role;
+        private final String operation;
+        private final String unit;
+    }
+    
+    private static final class LatencyHistogram
+    {
+        public void record(long elapsedNanos)
+        {
+            if (elapsedNanos < 0)
+            {
+                elapsedNanos = 0;
+            }
+            
+            buckets.incrementAndGet(
+                    getBucket(TimeUnit.NANOSECONDS.toMicros(elapsedNanos))
+            );
+            count.incrementAndGet();
+            totalNanos.addAndGet(elapsedNanos);
+            
+            long currentMax = maxNanos.get();
+            
+            while (elapsedNanos > currentMax
+                    && !maxNanos.compareAndSet(currentMax, elapsedNanos))
+            {
+                currentMax = maxNanos.get();
+            }
+        }
+        
+        public Snapshot snapshot(MetricKey key, long elapsedNanos)
+        {
+            long[] bucketCounts = new long[BUCKET_COUNT];
+            
+            for (int i = 0; i < BUCKET_COUNT; i++)
+            {
+                bucketCounts[i] = buckets.get(i);
+            }
+            
+            return new Snapshot(key, bucketCounts, count.get(),
+                    totalNanos.get(), maxNanos.get(), elapsedNanos);
+        }
+        
+        /**
+         * Latencies below {@code SUB_BUCKETS} microseconds get a bucket each.
+         * Above that, every power of two is split into {@code SUB_BUCKETS}
+         * buckets by the two bits following the highest one.
+         */
+        private static int getBucket(long micros)
+        {
+            if (micros < SUB_BUCKETS)
+                return (int) micros;
+            
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            int subBucket = (int) (micros >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+            int bucket = (exponent - 1) * SUB_BUCKETS + subBucket;
+            
+            return Math.min(bucket, BUCKET_COUNT - 1);
+        }
+        
+        /**
+         * Returns the smallest latency in microseconds
+         * that no longer falls into the given bucket.
+         */
+        private static long getBucketUpperBound(int bucket)
+        {
+            if (bucket < SUB_BUCKETS)
+                return bucket + 1;
+            
+            int exponent = bucket / SUB_BUCKETS + 1;
+            int subBucket = bucket % SUB_BUCKETS;
+            
+            return (long) (SUB_BUCKETS + subBucket + 1) << (exponent - 2);
+        }
+        
+        private static final int SUB_BUCKETS = 4;
+        
+        /**
+         * Enough buckets for latencies of up to 2^40 microseconds,
+         * longer ones are counted in the last bucket.
+         */
+        private static final int BUCKET_COUNT = 40 * SUB_BUCKETS;
+        
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+    }
+    
+    private static final String NO_UNIT = "*";
+    
+    private final ConcurrentMap<MetricKey, LatencyHistogram> histograms =
+            new ConcurrentHashMap<>();
+    private volatile long since;
+}
@@ -1,5 +1,7 @@
 package io.github.lucaseasedup.logit.storage;
 
+import java.util.Collection;
+import java.util.List;
 
 public abstract class StorageObserver
 {
@@ -37,6 +39,18 @@ public abstract class StorageObserver
     {
     }
     
+    /**
+     * Called after {@link Storage#addEntries}; by default, passes every entry
+     * to {@link #afterAddEntry}.
+     */
+    public void afterAddEntries(String unit, List<StorageEntry> entries)
+    {
+        for (StorageEntry entry : entries)
+        {
+            afterAddEntry(unit, entry);
+        }
+    }
+    
     @SuppressWarnings("unused")
     public void afterUpdateEntries(String unit, StorageEntry entrySubset, Selector selector)
     {
@@ -46,4 +60,9 @@ public abstract class StorageObserver
     public void afterRemoveEntries(String unit, Selector selector)
     {
     }
+    
+    @SuppressWarnings("unused")
+    public void afterRemoveEntries(String unit, Collection<String> primaryKeys)
+    {
+    }
 }
@@ -2,7 +2,7 @@ package io.github.lucaseasedup.logit.storage;
 
 public enum StorageType
 {
-    UNKNOWN, NONE, SQLITE, MYSQL, H2, POSTGRESQL, CSV;
+    UNKNOWN, NONE, SQLITE, MYSQL, H2, POSTGRESQL, CSV, MAPPED;
     
     public static StorageType decode(String s)
     {
@@ -14,10 +14,32 @@ public enum StorageType
         case "h2":         return H2;
         case "postgresql": return POSTGRESQL;
         case "csv":        return CSV;
+        case "mapped":     return MAPPED;
         default:           return UNKNOWN;
         }
     }
     
+    /**
+     * Checks whether a storage of this type keeps its data in local files
+     * that no other server writes to, as opposed to a database server
+     * that may be shared by a whole network.
+     */
+    public boolean isLocal()
+    {
+        switch (this)
+        {
+        case NONE:
+        case SQLITE:
+        case H2:
+        case CSV:
+        case MAPPED:
+            return true;
+        
+        default:
+            return false;
+        }
+    }
+    
     /**
      * Converts this {@code StorageType} to a string representation.
      * 
@@ -35,6 +57,7 @@ public enum StorageType
         case H2:         return "h2";
         case POSTGRESQL: return "postgresql";
         case CSV:        return "csv";
+        case MAPPED:     return "mapped";
         default:         return null;
         }
     }
@@ -6,30 +6,69 @@ import io.github.lucaseasedup.logit.util.CollectionUtils;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.logging.Level;
 
 public final class WrapperStorage implements Storage
 {
-    private WrapperStorage(Storage leading, CacheType cacheType)
+    private WrapperStorage(
+            Storage leading, CacheType cacheType, int cacheSize, long cacheTtl,
+            int queryCacheSize, StorageMetrics metrics,
+            ReadPolicy readPolicy, long maxMirrorLag,
+            StorageJournal journal, long journalRetryInterval
+    )
     {
-        if (leading == null || cacheType == null)
+        if (leading == null || cacheType == null
+                || cacheSize <= 0 || cacheTtl < 0 || queryCacheSize < 0
+                || readPolicy == null || maxMirrorLag < 0
+                || journalRetryInterval < 0)
+        {
             throw new IllegalArgumentException();
+        }
         
         this.executorService = Executors.newSingleThreadExecutor();
-        this.leading = leading;
+        this.migratingStorage = new MigratingStorage(leading);
+        this.journaledStorage = (journal != null)
+                ? new JournaledStorage(migratingStorage, journal, journalRetryInterval)
+                : null;
+        this.leading = (metrics != null)
+                ? new MeteredStorage(
+                        (journaledStorage != null) ? journaledStorage : migratingStorage,
+                        metrics, StorageMetrics.Role.LEADING)
+                : (journaledStorage != null) ? journaledStorage : migratingStorage;
         this.cacheType = cacheType;
+        this.cacheSize = cacheSize;
+        this.cacheTtl = cacheTtl;
+        this.concurrentReads = leading instanceof PooledStorage
+                || (leading instanceof ShardedStorage
+                        && ((ShardedStorage) leading).isThreadSafe());
+        this.metrics = metrics;
+        this.readPolicy = readPolicy;
+        this.maxMirrorLag = maxMirrorLag;
         
         if (cacheType == CacheType.PRELOADED)
         {
             preloadedCache = new HashMap<>();
         }
+        else if (cacheType == CacheType.BOUNDED)
+        {
+            boundedCache = new HashMap<>();
+        }
+        
+        // Preloaded units answer every query from memory already.
+        if (cacheType != CacheType.PRELOADED && queryCacheSize > 0)
+        {
+            queryCache = new QueryResultCache(queryCacheSize, cacheTtl);
+        }
     }
     
     @Override
@@ -39,9 +78,12 @@ public final class WrapperStorage implements Storage
         
         leading.connect();
         
-        for (Storage mirror : mirrors.keySet())
+        for (MirrorState mirror : mirrors)
         {
-            mirror.connect();
+            synchronized (mirror.getStorage())
+            {
+                mirror.getStorage().connect();
+            }
         }
     }
     
@@ -70,11 +112,55 @@ public final class WrapperStorage implements Storage
                         leading.selectEntries(unit)
                 );
                 
+                applyPreloadedIndexes(unit, unitCache);
                 preloadedCache.put(unit, unitCache);
             }
         }
     }
     
+    /**
+     * Declares a secondary index on the given key of a preloaded unit.
+     * 
+     * <p> Selectors testing this key for equality (or, if the key holds
+     * integers, for being less or greater than a value) will be answered
+     * from the index instead of scanning every cached entry.
+     * The index survives subsequent calls to {@link #preload}.
+     * 
+     * <p> If the cache type is not {@code PRELOADED},
+     * this method does nothing.
+     * 
+     * @param unit the unit name.
+     * @param key  the key to be indexed.
+     */
+    public synchronized void addPreloadedIndex(String unit, String key)
+    {
+        if (unit == null || key == null)
+            throw new IllegalArgumentException();
+        
+        if (cacheType != CacheType.PRELOADED)
+            return;
+        
+        List<String> indexedKeys = preloadedIndexes.get(unit);
+        
+        if (indexedKeys == null)
+        {
+            indexedKeys = new ArrayList<>();
+            preloadedIndexes.put(unit, indexedKeys);
+        }
+        
+        if (!indexedKeys.contains(key))
+        {
+            indexedKeys.add(key);
+        }
+        
+        PreloadedUnitCache unitCache = preloadedCache.get(unit);
+        
+        if (unitCache != null)
+        {
+            unitCache.addIndex(key);
+        }
+    }
+    
     @Override
     public synchronized void ping() throws IOException
     {
@@ -94,21 +180,69 @@ public final class WrapperStorage implements Storage
                     log(Level.WARNING, ex);
                 }
                 
-                for (Storage mirror : mirrors.keySet())
-                {
-                    try
-                    {
-                        mirror.ping();
-                    }
-                    catch (IOException ex)
-                    {
-                        log(Level.WARNING, ex);
-                    }
-                }
+                pingMirrorsNow();
+            }
+        });
+    }
+    
+    /**
+     * Pings the leading storage on the calling thread.
+     * 
+     * @throws IOException if the leading storage could not be pinged.
+     */
+    public synchronized void pingLeading() throws IOException
+    {
+        leading.ping();
+    }
+    
+    /**
+     * Pings the mirrors in the background.
+     */
+    public synchronized void pingMirrors()
+    {
+        executorService.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                pingMirrorsNow();
             }
         });
     }
     
+    /**
+     * Tries to re-establish the connection to the leading storage.
+     * 
+     * <p> If writes to the leading storage are journaled, the journaled
+     * storage is pinged instead, which reconnects and replays
+     * the journal by itself.
+     * 
+     * @throws IOException if the leading storage could not be reached.
+     */
+    public synchronized void reconnectLeading() throws IOException
+    {
+        log(CustomLevel.INTERNAL, "WrapperStorage#reconnectLeading()");
+        
+        if (journaledStorage != null)
+        {
+            journaledStorage.ping();
+            
+            return;
+        }
+        
+        try
+        {
+            leading.close();
+        }
+        catch (IOException ex)
+        {
+            log(CustomLevel.INTERNAL, "Could not close the leading storage");
+        }
+        
+        leading.connect();
+        leading.ping();
+    }
+    
     @Override
     public synchronized void close() throws IOException
     {
@@ -119,100 +253,168 @@ public final class WrapperStorage implements Storage
         
         log(CustomLevel.INTERNAL, "WrapperStorage#close()");
         
+        for (SchemaMigration migration : migrations.values())
+        {
+            migration.close();
+        }
+        
+        if (queryCache != null)
+        {
+            queryCache.clear();
+        }
+        
         leading.close();
         
-        for (Storage mirror : mirrors.keySet())
+        for (MirrorState mirror : mirrors)
         {
-            mirror.close();
+            synchronized (mirror.getStorage())
+            {
+                mirror.getStorage().close();
+            }
         }
     }
     
     @Override
-    public synchronized List<String> getUnitNames() throws IOException
+    public List<String> getUnitNames() throws IOException
     {
         log(CustomLevel.INTERNAL, "WrapperStorage#getUnitNames()");
         
-        if (cacheType == CacheType.DISABLED)
-        {
-            return leading.getUnitNames();
-        }
-        else if (cacheType == CacheType.PRELOADED)
+        if (cacheType == CacheType.DISABLED
+                || cacheType == CacheType.BOUNDED)
         {
-            return new ArrayList<>(preloadedCache.keySet());
+            if (concurrentReads)
+                return leading.getUnitNames();
+            
+            synchronized (this)
+            {
+                return leading.getUnitNames();
+            }
         }
-        else
+        
+        synchronized (this)
         {
-            throw new RuntimeException("Unsupported cache type: " + cacheType);
+            if (cacheType == CacheType.PRELOADED)
+            {
+                return new ArrayList<>(preloadedCache.keySet());
+            }
+            else
+            {
+                throw new RuntimeException("Unsupported cache type: " + cacheType);
+            }
         }
     }
     
     @Override
-    public synchronized UnitKeys getKeys(String unit)
+    public UnitKeys getKeys(String unit)
             throws IOException
     {
         log(CustomLevel.INTERNAL, "WrapperStorage#getKeys(\"" + unit + "\")");
         
-        if (cacheType == CacheType.DISABLED)
-        {
-            return leading.getKeys(unit);
-        }
-        else if (cacheType == CacheType.PRELOADED)
+        if (cacheType == CacheType.DISABLED
+                || cacheType == CacheType.BOUNDED)
         {
-            return preloadedCache.get(unit).getKeys();
+            if (concurrentReads)
+                return leading.getKeys(unit);
+            
+            synchronized (this)
+            {
+                return leading.getKeys(unit);
+            }
         }
-        else
+        
+        synchronized (this)
         {
-            throw new RuntimeException("Unsupported cache type: " + cacheType);
+            if (cacheType == CacheType.PRELOADED)
+            {
+                return preloadedCache.get(unit).getKeys();
+            }
+            else
+            {
+                throw new RuntimeException("Unsupported cache type: " + cacheType);
+            }
         }
     }
     
     @Override
-    public synchronized String getPrimaryKey(String unit) throws IOException
+    public String getPrimaryKey(String unit) throws IOException
     {
         log(CustomLevel.INTERNAL, "WrapperStorage#getPrimaryKey(\"" + unit + "\")");
         
-        if (cacheType == CacheType.DISABLED)
-        {
-            return leading.getPrimaryKey(unit);
-        }
-        else if (cacheType == CacheType.PRELOADED)
+        if (cacheType == CacheType.DISABLED
+                || cacheType == CacheType.BOUNDED)
         {
-            return preloadedCache.get(unit).getPrimaryKey();
+            if (concurrentReads)
+                return leading.getPrimaryKey(unit);
+            
+            synchronized (this)
+            {
+                return leading.getPrimaryKey(unit);
+            }
         }
-        else
+        
+        synchronized (this)
         {
-            throw new RuntimeException("Unsupported cache type: " + cacheType);
+            if (cacheType == CacheType.PRELOADED)
+            {
+                return preloadedCache.get(unit).getPrimaryKey();
+            }
+            else
+            {
+                throw new RuntimeException("Unsupported cache type: " + cacheType);
+            }
         }
     }
     
     @Override
-    public synchronized List<StorageEntry> selectEntries(String unit)
+    public List<StorageEntry> selectEntries(String unit)
             throws IOException
     {
         log(CustomLevel.INTERNAL, "WrapperStorage#selectEntries(\"" + unit + "\")");
         
-        if (cacheType == CacheType.DISABLED)
-        {
-            return leading.selectEntries(unit);
-        }
-        else if (cacheType == CacheType.PRELOADED)
+        if (cacheType == CacheType.DISABLED
+                || cacheType == CacheType.BOUNDED)
         {
-            List<StorageEntry> entries = preloadedCache.get(unit).getEntryList();
+            if (readPolicy != ReadPolicy.LEADING_ONLY)
+            {
+                return readRouted(unit, new ReadTask<List<StorageEntry>>()
+                {
+                    @Override
+                    public List<StorageEntry> read(
+                            Storage storage, String unit
+                    ) throws IOException
+                    {
+                        return storage.selectEntries(unit);
+                    }
+                });
+            }
             
-            if (entries == null)
-                return null;
+            if (concurrentReads)
+                return leading.selectEntries(unit);
             
-            return StorageEntry.copyList(entries);
+            synchronized (this)
+            {
+                return leading.selectEntries(unit);
+            }
         }
-        else
+        
+        synchronized (this)
         {
-            throw new RuntimeException("Unsupported cache type: " + cacheType);
+            if (cacheType == CacheType.PRELOADED)
+            {
+                return StorageEntry.copyList(
+                        preloadedCache.get(unit).getEntries()
+                );
+            }
+            else
+            {
+                throw new RuntimeException("Unsupported cache type: " + cacheType);
+            }
         }
     }
     
     @Override
-    public synchronized List<StorageEntry> selectEntries(
-            String unit, Selector selector
+    public List<StorageEntry> selectEntries(
+            String unit, final Selector selector
     ) throws IOException
     {
         log(CustomLevel.INTERNAL, "WrapperStorage#selectEntries("
@@ -221,48 +423,191 @@ public final class WrapperStorage implements Storage
         
         if (cacheType == CacheType.DISABLED)
         {
-            return leading.selectEntries(unit, selector);
+            if (queryCache != null)
+                return selectThroughQueryCache(unit, null, selector);
+            
+            if (readPolicy != ReadPolicy.LEADING_ONLY)
+            {
+                return readRouted(unit, new ReadTask<List<StorageEntry>>()
+                {
+                    @Override
+                    public List<StorageEntry> read(
+                            Storage storage, String unit
+                    ) throws IOException
+                    {
+                        return storage.selectEntries(unit, selector);
+                    }
+                });
+            }
+            
+            if (concurrentReads)
+                return leading.selectEntries(unit, selector);
+            
+            synchronized (this)
+            {
+                return leading.selectEntries(unit, selector);
+            }
         }
-        else if (cacheType == CacheType.PRELOADED)
+        
+        synchronized (this)
+        {
+            if (cacheType == CacheType.PRELOADED)
+            {
+                return StorageEntry.copyList(
+                        preloadedCache.get(unit).selectEntries(selector)
+                );
+            }
+            else if (cacheType == CacheType.BOUNDED)
+            {
+                return selectThroughBoundedCache(unit, null, selector);
+            }
+            else
+            {
+                throw new RuntimeException("Unsupported cache type: " + cacheType);
+            }
+        }
+    }
+    
+    @Override
+    public List<StorageEntry> selectEntries(
+            String unit, final List<String> keys
+    ) throws IOException
+    {
+        log(CustomLevel.INTERNAL, "WrapperStorage#selectEntries("
+                + "\"" + unit + "\", "
+                + Arrays.toString(keys.toArray()) + ")");
+        
+        if (cacheType == CacheType.DISABLED
+                || cacheType == CacheType.BOUNDED)
         {
-            List<StorageEntry> entries = preloadedCache.get(unit).getEntryList();
+            if (readPolicy != ReadPolicy.LEADING_ONLY)
+            {
+                return readRouted(unit, new ReadTask<List<StorageEntry>>()
+                {
+                    @Override
+                    public List<StorageEntry> read(
+                            Storage storage, String unit
+                    ) throws IOException
+                    {
+                        return storage.selectEntries(unit, keys);
+                    }
+                });
+            }
             
-            if (entries == null)
-                return null;
+            if (concurrentReads)
+                return leading.selectEntries(unit, keys);
             
-            return StorageEntry.copyList(
-                    entries, new SelectorConstant(true)
-            );
+            synchronized (this)
+            {
+                return leading.selectEntries(unit, keys);
+            }
         }
-        else
+        
+        synchronized (this)
         {
-            throw new RuntimeException("Unsupported cache type: " + cacheType);
+            if (cacheType == CacheType.PRELOADED)
+            {
+                return StorageEntry.copyList(
+                        preloadedCache.get(unit).getEntries(),
+                        keys, new SelectorConstant(true)
+                );
+            }
+            else
+            {
+                throw new RuntimeException("Unsupported cache type: " + cacheType);
+            }
         }
     }
     
     @Override
-    public synchronized List<StorageEntry> selectEntries(
-            String unit, List<String> keys
+    public List<StorageEntry> selectEntries(
+            String unit, final List<String> keys, final Selector selector
     ) throws IOException
     {
         log(CustomLevel.INTERNAL, "WrapperStorage#selectEntries("
                 + "\"" + unit + "\", "
-                + Arrays.toString(keys.toArray()) + ")");
+                + Arrays.toString(keys.toArray()) + ", "
+                + SqlUtils.translateSelector(selector, "`", "'") + ")");
         
         if (cacheType == CacheType.DISABLED)
         {
-            return leading.selectEntries(unit, keys);
+            if (queryCache != null)
+                return selectThroughQueryCache(unit, keys, selector);
+            
+            if (readPolicy != ReadPolicy.LEADING_ONLY)
+            {
+                return readRouted(unit, new ReadTask<List<StorageEntry>>()
+                {
+                    @Override
+                    public List<StorageEntry> read(
+                            Storage storage, String unit
+                    ) throws IOException
+                    {
+                        return storage.selectEntries(unit, keys, selector);
+                    }
+                });
+            }
+            
+            if (concurrentReads)
+                return leading.selectEntries(unit, keys, selector);
+            
+            synchronized (this)
+            {
+                return leading.selectEntries(unit, keys, selector);
+            }
         }
-        else if (cacheType == CacheType.PRELOADED)
+        
+        synchronized (this)
         {
-            List<StorageEntry> entries = preloadedCache.get(unit).getEntryList();
-            
-            if (entries == null)
-                return null;
+            if (cacheType == CacheType.PRELOADED)
+            {
+                return StorageEntry.copyList(
+                        preloadedCache.get(unit).selectEntries(selector),
+                        keys, CompiledSelector.ALWAYS
+                );
+            }
+            else if (cacheType == CacheType.BOUNDED)
+            {
+                return selectThroughBoundedCache(unit, keys, selector);
+            }
+            else
+            {
+                throw new RuntimeException("Unsupported cache type: " + cacheType);
+            }
+        }
+    }
+    
+    /**
+     * Passes the entries of a unit to a visitor one at a time.
+     * 
+     * <p> If the unit is preloaded, the visitor receives copies of
+     * the cached entries. Otherwise, the entries are streamed from
+     * the leading storage without being cached.
+     */
+    @Override
+    public void forEachEntry(String unit, EntryVisitor visitor)
+            throws IOException
+    {
+        log(CustomLevel.INTERNAL, "WrapperStorage#forEachEntry(\"" + unit + "\")");
+        
+        if (cacheType == CacheType.DISABLED
+                || cacheType == CacheType.BOUNDED)
+        {
+            if (concurrentReads)
+            {
+                leading.forEachEntry(unit, visitor);
+                
+                return;
+            }
             
-            return StorageEntry.copyList(
-                    entries, keys, new SelectorConstant(true)
-            );
+            synchronized (this)
+            {
+                leading.forEachEntry(unit, visitor);
+            }
+        }
+        else if (cacheType == CacheType.PRELOADED)
+        {
+            visitPreloadedEntries(unit, null, new SelectorConstant(true), visitor);
         }
         else
         {
@@ -271,29 +616,34 @@ public final class WrapperStorage implements Storage
     }
     
     @Override
-    public synchronized List<StorageEntry> selectEntries(
-            String unit, List<String> keys, Selector selector
+    public void forEachEntry(
+            String unit, List<String> keys, Selector selector,
+            EntryVisitor visitor
     ) throws IOException
     {
-        log(CustomLevel.INTERNAL, "WrapperStorage#selectEntries("
+        log(CustomLevel.INTERNAL, "WrapperStorage#forEachEntry("
                 + "\"" + unit + "\", "
                 + Arrays.toString(keys.toArray()) + ", "
                 + SqlUtils.translateSelector(selector, "`", "'") + ")");
         
-        if (cacheType == CacheType.DISABLED)
+        if (cacheType == CacheType.DISABLED
+                || cacheType == CacheType.BOUNDED)
         {
-            return leading.selectEntries(unit, keys, selector);
+            if (concurrentReads)
+            {
+                leading.forEachEntry(unit, keys, selector, visitor);
+                
+                return;
+            }
+            
+            synchronized (this)
+            {
+                leading.forEachEntry(unit, keys, selector, visitor);
+            }
         }
         else if (cacheType == CacheType.PRELOADED)
         {
-            List<StorageEntry> entries = preloadedCache.get(unit).getEntryList();
-            
-            if (entries == null)
-                return null;
-            
-            return StorageEntry.copyList(
-                    entries, keys, selector
-            );
+            visitPreloadedEntries(unit, keys, selector, visitor);
         }
         else
         {
@@ -331,6 +681,7 @@ public final class WrapperStorage implements Storage
                         keys, primaryKey, new LinkedList<StorageEntry>()
                 );
                 
+                applyPreloadedIndexes(unit, unitCache);
                 preloadedCache.put(unit, unitCache);
             }
         }
@@ -354,17 +705,9 @@ public final class WrapperStorage implements Storage
         
         leading.renameUnit(unit, newName);
         
-        for (Map.Entry<Storage, Map<String, String>> e : mirrors.entrySet())
+        for (MirrorState mirror : mirrors)
         {
-            String unitMapping = e.getValue().get(unit);
-            
-            if (unitMapping == null)
-            {
-                unitMapping = unit;
-            }
-            
-            e.getValue().remove(unit);
-            e.getValue().put(newName, unitMapping);
+            mirror.renameUnit(unit, newName);
         }
         
         if (cacheType == CacheType.PRELOADED)
@@ -373,7 +716,23 @@ public final class WrapperStorage implements Storage
             {
                 preloadedCache.put(newName, preloadedCache.remove(unit));
             }
-        }
+            
+            if (preloadedIndexes.containsKey(unit))
+            {
+                preloadedIndexes.put(newName, preloadedIndexes.remove(unit));
+            }
+        }
+        else if (cacheType == CacheType.BOUNDED)
+        {
+            boundedCache.remove(unit);
+            boundedCache.remove(newName);
+        }
+        
+        if (queryCache != null)
+        {
+            queryCache.invalidate(unit);
+            queryCache.invalidate(newName);
+        }
         
         for (StorageObserver observer : observers)
         {
@@ -402,9 +761,18 @@ public final class WrapperStorage implements Storage
         {
             if (preloadedCache.containsKey(unit))
             {
-                preloadedCache.get(unit).getEntryList().clear();
+                preloadedCache.get(unit).clear();
             }
         }
+        else if (cacheType == CacheType.BOUNDED)
+        {
+            boundedCache.remove(unit);
+        }
+        
+        if (queryCache != null)
+        {
+            queryCache.invalidate(unit);
+        }
         
         for (StorageObserver observer : observers)
         {
@@ -436,6 +804,15 @@ public final class WrapperStorage implements Storage
                 preloadedCache.remove(unit);
             }
         }
+        else if (cacheType == CacheType.BOUNDED)
+        {
+            boundedCache.remove(unit);
+        }
+        
+        if (queryCache != null)
+        {
+            queryCache.invalidate(unit);
+        }
         
         for (StorageObserver observer : observers)
         {
@@ -443,6 +820,85 @@ public final class WrapperStorage implements Storage
         }
     }
     
+    @Override
+    public List<String> getIndexes(String unit) throws IOException
+    {
+        log(CustomLevel.INTERNAL, "WrapperStorage#getIndexes(\"" + unit + "\")");
+        
+        if (concurrentReads)
+            return leading.getIndexes(unit);
+        
+        synchronized (this)
+        {
+            return leading.getIndexes(unit);
+        }
+    }
+    
+    /**
+     * Creates an index on a key in the leading storage and in every mirror
+     * that does not have one yet.
+     * 
+     * <p> If the cache type is {@code PRELOADED}, the key is also
+     * indexed in memory, as with {@link #addPreloadedIndex}.
+     */
+    @Override
+    public synchronized void createIndex(String unit, final String key)
+            throws IOException
+    {
+        log(CustomLevel.INTERNAL, "WrapperStorage#createIndex("
+                + "\"" + unit + "\", "
+                + "\"" + key + "\")");
+        
+        leading.createIndex(unit, key);
+        
+        walkMirrors(new UnitWalker()
+        {
+            @Override
+            public void walk(Storage storage, String unit) throws IOException
+            {
+                storage.createIndex(unit, key);
+            }
+        }, unit);
+        
+        if (cacheType == CacheType.PRELOADED)
+        {
+            addPreloadedIndex(unit, key);
+        }
+    }
+    
+    @Override
+    public synchronized void dropIndex(String unit, final String key)
+            throws IOException
+    {
+        log(CustomLevel.INTERNAL, "WrapperStorage#dropIndex("
+                + "\"" + unit + "\", "
+                + "\"" + key + "\")");
+        
+        leading.dropIndex(unit, key);
+        
+        walkMirrors(new UnitWalker()
+        {
+            @Override
+            public void walk(Storage storage, String unit) throws IOException
+            {
+                storage.dropIndex(unit, key);
+            }
+        }, unit);
+        
+        if (cacheType == CacheType.PRELOADED)
+        {
+            if (preloadedIndexes.containsKey(unit))
+            {
+                preloadedIndexes.get(unit).remove(key);
+            }
+            
+            if (preloadedCache.containsKey(unit))
+            {
+                preloadedCache.get(unit).removeIndex(key);
+            }
+        }
+    }
+    
     @Override
     public synchronized void addKey(
             String unit, final String key, final DataType type
@@ -454,18 +910,165 @@ public final class WrapperStorage implements Storage
                 + type + ")");
         
         leading.addKey(unit, key, type);
+        addMirrorKey(unit, key, type);
+        
+        if (cacheType == CacheType.PRELOADED)
+        {
+            if (preloadedCache.containsKey(unit))
+            {
+                preloadedCache.get(unit).addKey(key, type);
+            }
+        }
+        else if (cacheType == CacheType.BOUNDED)
+        {
+            if (boundedCache.containsKey(unit))
+            {
+                boundedCache.get(unit).clear();
+            }
+        }
+        
+        if (queryCache != null)
+        {
+            queryCache.invalidate(unit);
+        }
+        
+        for (StorageObserver observer : observers)
+        {
+            observer.afterAddKey(unit, key, type);
+        }
+    }
+    
+    /**
+     * Plans the keys that have to be added to a unit for it to have
+     * all of the given keys, and starts adding them in the background.
+     * 
+     * <p> Until a key has been added, every entry of the unit carries it
+     * with an empty value, and values written to it are held back until
+     * the key exists. Keys are added to mirrors once they have been added
+     * to the leading storage.
+     * 
+     * <p> Unless the leading storage may be used by several threads at once,
+     * the lock on this {@code WrapperStorage} is held while a key is being
+     * added, and other calls have to wait for it.
+     * 
+     * @param unit the unit name.
+     * @param keys the keys the unit should have.
+     * 
+     * @return the migration, already started.
+     * 
+     * @throws IllegalArgumentException if {@code unit} or {@code keys}
+     *                                  is {@code null}.
+     * 
+     * @throws IOException              if the existing keys
+     *                                  could not be read.
+     */
+    public synchronized SchemaMigration migrate(String unit, UnitKeys keys)
+            throws IOException
+    {
+        if (unit == null || keys == null)
+            throw new IllegalArgumentException();
+        
+        log(CustomLevel.INTERNAL, "WrapperStorage#migrate("
+                + "\"" + unit + "\", "
+                + keys.keySet() + ")");
+        
+        UnitKeys existingKeys = leading.getKeys(unit);
+        UnitKeys missingKeys = new UnitKeys();
+        
+        for (Map.Entry<String, DataType> e : keys.entrySet())
+        {
+            if (!existingKeys.containsKey(e.getKey()))
+            {
+                missingKeys.put(e.getKey(), e.getValue());
+            }
+        }
+        
+        migratingStorage.addPendingKeys(unit, missingKeys);
+        
+        if (cacheType == CacheType.PRELOADED && preloadedCache.containsKey(unit))
+        {
+            for (Map.Entry<String, DataType> e : missingKeys.entrySet())
+            {
+                preloadedCache.get(unit).addKey(e.getKey(), e.getValue());
+            }
+        }
+        
+        SchemaMigration migration = new SchemaMigration(this, unit, missingKeys);
+        
+        migrations.put(unit, migration);
+        migration.start();
+        
+        return migration;
+    }
+    
+    /**
+     * Returns the last migration started for a unit.
+     * 
+     * @param unit the unit name.
+     * 
+     * @return the migration, or {@code null} if none has been started.
+     */
+    public SchemaMigration getMigration(String unit)
+    {
+        return migrations.get(unit);
+    }
+    
+    /**
+     * Adds a pending key to the leading storage and then to the mirrors.
+     * Called by {@link SchemaMigration} on its own thread.
+     */
+    void migrateKey(String unit, String key, DataType type) throws IOException
+    {
+        log(CustomLevel.INTERNAL, "WrapperStorage#migrateKey("
+                + "\"" + unit + "\", "
+                + "\"" + key + "\", "
+                + type + ")");
+        
+        if (concurrentReads)
+        {
+            migratingStorage.addKey(unit, key, type);
+        }
+        else
+        {
+            synchronized (this)
+            {
+                migratingStorage.addKey(unit, key, type);
+            }
+        }
+        
+        synchronized (this)
+        {
+            addMirrorKey(unit, key, type);
+            
+            if (cacheType == CacheType.BOUNDED && boundedCache.containsKey(unit))
+            {
+                boundedCache.get(unit).clear();
+            }
+            
+            if (queryCache != null)
+            {
+                queryCache.invalidate(unit);
+            }
+        }
+    }
+    
+    @Override
+    public synchronized void addEntry(
+            String unit, final StorageEntry entry
+    ) throws IOException
+    {
+        log(CustomLevel.INTERNAL, "WrapperStorage#addEntry("
+                + "\"" + unit + "\", "
+                + entry + ")");
+        
+        leading.addEntry(unit, entry);
         
         walkMirrors(new UnitWalker()
         {
             @Override
             public void walk(Storage storage, String unit) throws IOException
             {
-                UnitKeys keys = storage.getKeys(unit);
-                
-                if (!keys.containsKey(key))
-                {
-                    storage.addKey(unit, key, type);
-                }
+                storage.addEntry(unit, entry);
             }
         }, unit);
         
@@ -473,38 +1076,61 @@ public final class WrapperStorage implements Storage
         {
             if (preloadedCache.containsKey(unit))
             {
-                for (StorageEntry entry : preloadedCache.get(unit).getEntryList())
+                preloadedCache.get(unit).addEntry(entry.copy());
+            }
+        }
+        else if (cacheType == CacheType.BOUNDED)
+        {
+            BoundedUnitCache unitCache = boundedCache.get(unit);
+            
+            if (unitCache != null)
+            {
+                String primaryKeyValue = entry.get(unitCache.getPrimaryKey());
+                
+                if (primaryKeyValue != null)
                 {
-                    entry.put(key, "");
+                    unitCache.invalidate(primaryKeyValue);
                 }
-                
-                preloadedCache.get(unit).getKeys().put(key, type);
             }
         }
         
+        if (queryCache != null)
+        {
+            queryCache.entryAdded(unit, entry);
+        }
+        
         for (StorageObserver observer : observers)
         {
-            observer.afterAddKey(unit, key, type);
+            observer.afterAddEntry(unit, entry);
         }
     }
     
     @Override
-    public synchronized void addEntry(
-            String unit, final StorageEntry entry
+    public synchronized void addEntries(
+            String unit, Iterable<StorageEntry> entries
     ) throws IOException
     {
-        log(CustomLevel.INTERNAL, "WrapperStorage#addEntry("
+        // The entries are passed on several times,
+        // so a one-shot Iterable has to be drained first.
+        final List<StorageEntry> entryList = new ArrayList<>();
+        
+        for (StorageEntry entry : entries)
+        {
+            entryList.add(entry);
+        }
+        
+        log(CustomLevel.INTERNAL, "WrapperStorage#addEntries("
                 + "\"" + unit + "\", "
-                + entry + ")");
+                + entryList.size() + " entries)");
         
-        leading.addEntry(unit, entry);
+        leading.addEntries(unit, entryList);
         
         walkMirrors(new UnitWalker()
         {
             @Override
             public void walk(Storage storage, String unit) throws IOException
             {
-                storage.addEntry(unit, entry);
+                storage.addEntries(unit, entryList);
             }
         }, unit);
         
@@ -512,13 +1138,42 @@ public final class WrapperStorage implements Storage
         {
             if (preloadedCache.containsKey(unit))
             {
-                preloadedCache.get(unit).getEntryList().add(entry.copy());
+                for (StorageEntry entry : entryList)
+                {
+                    preloadedCache.get(unit).addEntry(entry.copy());
+                }
+            }
+        }
+        else if (cacheType == CacheType.BOUNDED)
+        {
+            BoundedUnitCache unitCache = boundedCache.get(unit);
+            
+            if (unitCache != null)
+            {
+                for (StorageEntry entry : entryList)
+                {
+                    String primaryKeyValue =
+                            entry.get(unitCache.getPrimaryKey());
+                    
+                    if (primaryKeyValue != null)
+                    {
+                        unitCache.invalidate(primaryKeyValue);
+                    }
+                }
+            }
+        }
+        
+        if (queryCache != null)
+        {
+            for (StorageEntry entry : entryList)
+            {
+                queryCache.entryAdded(unit, entry);
             }
         }
         
         for (StorageObserver observer : observers)
         {
-            observer.afterAddEntry(unit, entry);
+            observer.afterAddEntries(unit, entryList);
         }
     }
     
@@ -547,19 +1202,22 @@ public final class WrapperStorage implements Storage
         {
             if (preloadedCache.containsKey(unit))
             {
-                for (StorageEntry entry : preloadedCache.get(unit).getEntryList())
-                {
-                    if (SqlUtils.resolveSelector(selector, entry))
-                    {
-                        for (StorageDatum datum : entrySubset)
-                        {
-                            entry.put(datum.getKey(), datum.getValue());
-                        }
-                    }
-                }
+                preloadedCache.get(unit).updateEntries(entrySubset, selector);
+            }
+        }
+        else if (cacheType == CacheType.BOUNDED)
+        {
+            if (boundedCache.containsKey(unit))
+            {
+                boundedCache.get(unit).update(entrySubset, selector);
             }
         }
         
+        if (queryCache != null)
+        {
+            queryCache.entriesUpdated(unit, entrySubset, selector);
+        }
+        
         for (StorageObserver observer : observers)
         {
             observer.afterUpdateEntries(unit, entrySubset, selector);
@@ -590,62 +1248,133 @@ public final class WrapperStorage implements Storage
         {
             if (preloadedCache.containsKey(unit))
             {
-                Iterator<StorageEntry> entryIt =
-                        preloadedCache.get(unit).getEntryList().iterator();
-                
-                while (entryIt.hasNext())
-                {
-                    StorageEntry entry = entryIt.next();
-                    
-                    if (SqlUtils.resolveSelector(selector, entry))
-                    {
-                        entryIt.remove();
-                    }
-                }
+                preloadedCache.get(unit).removeEntries(selector);
+            }
+        }
+        else if (cacheType == CacheType.BOUNDED)
+        {
+            if (boundedCache.containsKey(unit))
+            {
+                boundedCache.get(unit).invalidate(selector);
             }
         }
         
-        for (StorageObserver observer : observers)
+        if (queryCache != null)
         {
-            observer.afterRemoveEntries(unit, selector);
+            queryCache.entriesRemoved(unit, selector);
         }
-    }
-    
-    @Override
-    public boolean isAutobatchEnabled()
-    {
-        return leading.isAutobatchEnabled();
-    }
-    
-    @Override
-    public synchronized void setAutobatchEnabled(boolean status)
-    {
-        leading.setAutobatchEnabled(status);
         
-        for (Storage mirror : mirrors.keySet())
+        for (StorageObserver observer : observers)
         {
-            mirror.setAutobatchEnabled(status);
+            observer.afterRemoveEntries(unit, selector);
         }
     }
     
     @Override
-    public synchronized void executeBatch() throws IOException
+    public synchronized void removeEntries(
+            String unit, Collection<String> primaryKeys
+    ) throws IOException
     {
-        leading.executeBatch();
+        log(CustomLevel.INTERNAL, "WrapperStorage#removeEntries("
+                + "\"" + unit + "\", "
+                + primaryKeys + ")");
         
-        executorService.submit(new Runnable()
+        // Mirrors are written to asynchronously, after the caller
+        // may have already modified its collection.
+        final List<String> primaryKeyList = new ArrayList<>(primaryKeys);
+        
+        leading.removeEntries(unit, primaryKeyList);
+        
+        walkMirrors(new UnitWalker()
         {
             @Override
-            public void run()
+            public void walk(Storage storage, String unit) throws IOException
             {
-                for (Storage mirror : mirrors.keySet())
+                storage.removeEntries(unit, primaryKeyList);
+            }
+        }, unit);
+        
+        if (cacheType == CacheType.PRELOADED)
+        {
+            if (preloadedCache.containsKey(unit))
+            {
+                preloadedCache.get(unit).removeEntries(primaryKeyList);
+            }
+        }
+        else if (cacheType == CacheType.BOUNDED)
+        {
+            BoundedUnitCache unitCache = boundedCache.get(unit);
+            
+            if (unitCache != null)
+            {
+                for (String primaryKeyValue : primaryKeyList)
+                {
+                    unitCache.invalidate(primaryKeyValue);
+                }
+            }
+        }
+        
+        if (queryCache != null)
+        {
+            // Looking up the primary key is only worth it
+            // if there are results that could be kept.
+            String primaryKey = (queryCache.size() > 0)
+                    ? leading.getPrimaryKey(unit) : null;
+            
+            queryCache.entriesRemoved(unit, primaryKey, primaryKeyList);
+        }
+        
+        for (StorageObserver observer : observers)
+        {
+            observer.afterRemoveEntries(unit, primaryKeyList);
+        }
+    }
+    
+    @Override
+    public boolean isAutobatchEnabled()
+    {
+        return leading.isAutobatchEnabled();
+    }
+    
+    @Override
+    public synchronized void setAutobatchEnabled(boolean status)
+    {
+        leading.setAutobatchEnabled(status);
+        
+        for (MirrorState mirror : mirrors)
+        {
+            synchronized (mirror.getStorage())
+            {
+                mirror.getStorage().setAutobatchEnabled(status);
+            }
+        }
+    }
+    
+    @Override
+    public synchronized void executeBatch() throws IOException
+    {
+        leading.executeBatch();
+        
+        executorService.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (MirrorState mirror : mirrors)
                 {
                     try
                     {
-                        mirror.executeBatch();
+                        synchronized (mirror.getStorage())
+                        {
+                            mirror.getStorage().executeBatch();
+                        }
+                        
+                        mirror.batchFinished(true);
                     }
                     catch (IOException ex)
                     {
+                        mirror.batchFinished(false);
+                        
                         log(Level.WARNING, ex);
                     }
                 }
@@ -658,9 +1387,14 @@ public final class WrapperStorage implements Storage
     {
         leading.clearBatch();
         
-        for (Storage mirror : mirrors.keySet())
+        for (MirrorState mirror : mirrors)
         {
-            mirror.clearBatch();
+            synchronized (mirror.getStorage())
+            {
+                mirror.getStorage().clearBatch();
+            }
+            
+            mirror.batchFinished(false);
         }
     }
     
@@ -671,10 +1405,14 @@ public final class WrapperStorage implements Storage
         if (storage == null || unitMappings == null)
             throw new IllegalArgumentException();
         
-        if (!mirrors.containsKey(storage))
-        {
-            mirrors.put(storage, unitMappings);
-        }
+        if (getMirror(storage) != null)
+            return;
+        
+        Storage mirrorStorage = (metrics != null)
+                ? new MeteredStorage(storage, metrics, StorageMetrics.Role.MIRROR)
+                : storage;
+        
+        mirrors.add(new MirrorState(storage, mirrorStorage, unitMappings));
     }
     
     public synchronized void mirrorStorage(Storage storage)
@@ -684,7 +1422,12 @@ public final class WrapperStorage implements Storage
     
     public synchronized void unmirrorStorage(Storage storage)
     {
-        mirrors.remove(storage);
+        MirrorState mirror = getMirror(storage);
+        
+        if (mirror != null)
+        {
+            mirrors.remove(mirror);
+        }
     }
     
     public synchronized void unmirrorAll()
@@ -692,6 +1435,38 @@ public final class WrapperStorage implements Storage
         mirrors.clear();
     }
     
+    /**
+     * Returns how far behind the leading storage a mirror is in a unit,
+     * that is, how long ago the oldest write to the unit that has not been
+     * applied to the mirror yet was made.
+     * 
+     * @param storage the mirrored storage.
+     * @param unit    the unit name in the leading storage.
+     * 
+     * @return the lag in milliseconds, {@code 0} if the mirror is up to date,
+     *         or {@link Long#MAX_VALUE} if a write to the unit has failed
+     *         on the mirror.
+     * 
+     * @throws IllegalArgumentException if {@code storage} is not mirrored.
+     */
+    public long getMirrorLag(Storage storage, String unit)
+    {
+        if (unit == null)
+            throw new IllegalArgumentException();
+        
+        MirrorState mirror = getMirror(storage);
+        
+        if (mirror == null)
+            throw new IllegalArgumentException();
+        
+        return mirror.getLag(unit);
+    }
+    
+    public ReadPolicy getReadPolicy()
+    {
+        return readPolicy;
+    }
+    
     public synchronized void addObserver(StorageObserver observer)
     {
         if (observer == null)
@@ -720,31 +1495,523 @@ public final class WrapperStorage implements Storage
     
     public Storage getLeadingStorage()
     {
-        return leading;
+        return migratingStorage.getStorage();
+    }
+    
+    /**
+     * Returns the storage that serves keys which are still being added
+     * by a {@link SchemaMigration}.
+     */
+    public MigratingStorage getMigratingStorage()
+    {
+        return migratingStorage;
+    }
+    
+    /**
+     * Returns the storage that journals writes to the leading storage
+     * while it is unreachable.
+     * 
+     * @return the journaled storage, or {@code null}
+     *         if journaling is disabled.
+     */
+    public JournaledStorage getJournaledStorage()
+    {
+        return journaledStorage;
+    }
+    
+    /**
+     * Returns the latencies of operations run on the leading storage
+     * and on the mirrors, as well as the time mirror operations
+     * spent waiting in the queue (recorded as the {@code "queue"} operation).
+     * 
+     * @return the storage metrics, or {@code null} if metrics are disabled.
+     */
+    public StorageMetrics getMetrics()
+    {
+        return metrics;
+    }
+    
+    /**
+     * Returns the number of lookups answered by the bounded cache.
+     * 
+     * @return the hit count summed over all units, or {@code 0}
+     *         if the cache type is not {@code BOUNDED}.
+     */
+    public synchronized long getCacheHitCount()
+    {
+        long count = 0;
+        
+        if (boundedCache != null)
+        {
+            for (BoundedUnitCache unitCache : boundedCache.values())
+            {
+                count += unitCache.getHitCount();
+            }
+        }
+        
+        return count;
+    }
+    
+    /**
+     * Returns the number of lookups the bounded cache had to pass
+     * to the leading storage.
+     * 
+     * @return the miss count summed over all units, or {@code 0}
+     *         if the cache type is not {@code BOUNDED}.
+     */
+    public synchronized long getCacheMissCount()
+    {
+        long count = 0;
+        
+        if (boundedCache != null)
+        {
+            for (BoundedUnitCache unitCache : boundedCache.values())
+            {
+                count += unitCache.getMissCount();
+            }
+        }
+        
+        return count;
+    }
+    
+    /**
+     * Returns the number of entries evicted from the bounded cache,
+     * either because it was full or because they expired.
+     * 
+     * @return the eviction count summed over all units, or {@code 0}
+     *         if the cache type is not {@code BOUNDED}.
+     */
+    public synchronized long getCacheEvictionCount()
+    {
+        long count = 0;
+        
+        if (boundedCache != null)
+        {
+            for (BoundedUnitCache unitCache : boundedCache.values())
+            {
+                count += unitCache.getEvictionCount();
+            }
+        }
+        
+        return count;
+    }
+    
+    /**
+     * Returns the number of selector queries answered by the query cache.
+     * 
+     * @return the hit count, or {@code 0} if the query cache is disabled.
+     */
+    public synchronized long getQueryCacheHitCount()
+    {
+        return (queryCache != null) ? queryCache.getHitCount() : 0L;
+    }
+    
+    /**
+     * Returns the number of selector queries the query cache had to pass
+     * to the leading storage.
+     * 
+     * @return the miss count, or {@code 0} if the query cache is disabled.
+     */
+    public synchronized long getQueryCacheMissCount()
+    {
+        return (queryCache != null) ? queryCache.getMissCount() : 0L;
+    }
+    
+    /**
+     * Returns the number of query results dropped from the query cache
+     * because they could have been affected by a write.
+     * 
+     * @return the invalidation count, or {@code 0}
+     *         if the query cache is disabled.
+     */
+    public synchronized long getQueryCacheInvalidationCount()
+    {
+        return (queryCache != null) ? queryCache.getInvalidationCount() : 0L;
+    }
+    
+    /**
+     * Returns the number of query results dropped from the query cache
+     * because it was full or because they expired.
+     * 
+     * @return the eviction count, or {@code 0}
+     *         if the query cache is disabled.
+     */
+    public synchronized long getQueryCacheEvictionCount()
+    {
+        return (queryCache != null) ? queryCache.getEvictionCount() : 0L;
+    }
+    
+    public CacheType getCacheType()
+    {
+        return cacheType;
+    }
+    
+    private void visitPreloadedEntries(
+            String unit, List<String> keys, Selector selector,
+            EntryVisitor visitor
+    ) throws IOException
+    {
+        CompiledSelector compiledSelector = CompiledSelector.compile(selector);
+        List<StorageEntry> matchingEntries;
+        
+        synchronized (this)
+        {
+            matchingEntries = preloadedCache.get(unit).selectEntries(selector);
+        }
+        
+        // Entries are copied one at a time, so that the lock
+        // is not held while the visitor runs.
+        for (StorageEntry entry : matchingEntries)
+        {
+            List<StorageEntry> copies;
+            
+            synchronized (this)
+            {
+                copies = StorageEntry.copyList(
+                        Collections.singletonList(entry), keys, compiledSelector
+                );
+            }
+            
+            // The entry has changed since and no longer matches the selector.
+            if (copies.isEmpty())
+                continue;
+            
+            visitor.visit(copies.get(0));
+        }
+    }
+    
+    private BoundedUnitCache getBoundedCache(String unit) throws IOException
+    {
+        BoundedUnitCache unitCache = boundedCache.get(unit);
+        
+        if (unitCache == null)
+        {
+            String primaryKey = leading.getPrimaryKey(unit);
+            
+            // Entries cannot be cached without a primary key to look them up by.
+            if (primaryKey == null)
+                return null;
+            
+            unitCache = new BoundedUnitCache(primaryKey, cacheSize, cacheTtl);
+            boundedCache.put(unit, unitCache);
+        }
+        
+        return unitCache;
+    }
+    
+    private List<StorageEntry> selectThroughBoundedCache(
+            String unit, List<String> keys, Selector selector
+    ) throws IOException
+    {
+        BoundedUnitCache unitCache = getBoundedCache(unit);
+        String primaryKeyValue = null;
+        
+        if (unitCache != null)
+        {
+            primaryKeyValue = unitCache.extractPrimaryKeyValue(selector);
+        }
+        
+        if (primaryKeyValue == null)
+        {
+            if (queryCache != null)
+            {
+                return selectThroughQueryCache(unit, keys, selector);
+            }
+            else if (keys == null)
+            {
+                return leading.selectEntries(unit, selector);
+            }
+            else
+            {
+                return leading.selectEntries(unit, keys, selector);
+            }
+        }
+        
+        List<StorageEntry> entries = new ArrayList<>(1);
+        StorageEntry cachedEntry = unitCache.get(primaryKeyValue);
+        
+        if (cachedEntry != null)
+        {
+            entries.add(cachedEntry);
+        }
+        else
+        {
+            // Fetch the whole entry so that it can answer
+            // any later query regardless of the requested keys.
+            entries = leading.selectEntries(unit, selector);
+            
+            if (entries.size() == 1)
+            {
+                unitCache.put(entries.get(0).copy());
+            }
+        }
+        
+        if (keys == null)
+        {
+            return StorageEntry.copyList(entries);
+        }
+        else
+        {
+            return StorageEntry.copyList(
+                    entries, keys, new SelectorConstant(true)
+            );
+        }
+    }
+    
+    /**
+     * Answers a selector query from the query cache, or passes it
+     * to the leading storage and caches the result.
+     */
+    private List<StorageEntry> selectThroughQueryCache(
+            String unit, List<String> keys, Selector selector
+    ) throws IOException
+    {
+        long generation;
+        
+        synchronized (this)
+        {
+            List<StorageEntry> cachedEntries =
+                    queryCache.get(unit, keys, selector);
+            
+            if (cachedEntries != null)
+                return StorageEntry.copyList(cachedEntries);
+            
+            generation = queryCache.getGeneration(unit);
+        }
+        
+        List<StorageEntry> entries;
+        
+        if (concurrentReads)
+        {
+            entries = selectFromLeading(unit, keys, selector);
+        }
+        else
+        {
+            synchronized (this)
+            {
+                entries = selectFromLeading(unit, keys, selector);
+            }
+        }
+        
+        synchronized (this)
+        {
+            // Not cached if a write has happened since the query was issued.
+            queryCache.put(unit, keys, selector, entries, generation);
+        }
+        
+        return entries;
+    }
+    
+    private List<StorageEntry> selectFromLeading(
+            String unit, List<String> keys, Selector selector
+    ) throws IOException
+    {
+        if (keys == null)
+        {
+            return leading.selectEntries(unit, selector);
+        }
+        else
+        {
+            return leading.selectEntries(unit, keys, selector);
+        }
+    }
+    
+    /**
+     * Runs a read on the storage chosen by the read policy,
+     * falling back to the leading storage if a mirror fails to answer.
+     */
+    private <T> T readRouted(String unit, ReadTask<T> task) throws IOException
+    {
+        MirrorState mirror = chooseMirror(unit);
+        
+        if (mirror != null)
+        {
+            Storage storage = mirror.getStorage();
+            long start = System.nanoTime();
+            
+            try
+            {
+                T result;
+                
+                if (mirror.getSource() instanceof PooledStorage)
+                {
+                    result = task.read(storage, mirror.mapUnit(unit));
+                }
+                else
+                {
+                    synchronized (storage)
+                    {
+                        result = task.read(storage, mirror.mapUnit(unit));
+                    }
+                }
+                
+                mirror.readSucceeded(System.nanoTime() - start);
+                
+                return result;
+            }
+            catch (IOException ex)
+            {
+                mirror.readFailed();
+                
+                log(Level.WARNING, ex);
+            }
+        }
+        
+        long start = System.nanoTime();
+        T result;
+        
+        if (concurrentReads)
+        {
+            result = task.read(leading, unit);
+        }
+        else
+        {
+            synchronized (this)
+            {
+                result = task.read(leading, unit);
+            }
+        }
+        
+        if (readPolicy == ReadPolicy.NEAREST_HEALTHY)
+        {
+            // A lost update only makes the estimate a little less accurate.
+            leadingReadLatency = MirrorState.updateLatencyEstimate(
+                    leadingReadLatency, System.nanoTime() - start
+            );
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Returns the mirror that reads from a unit should be routed to,
+     * or {@code null} if they should go to the leading storage.
+     */
+    private MirrorState chooseMirror(String unit)
+    {
+        switch (readPolicy)
+        {
+        case MIRROR_FIRST:
+            for (MirrorState mirror : mirrors)
+            {
+                if (mirror.isReadable(unit, maxMirrorLag))
+                    return mirror;
+            }
+            
+            return null;
+        
+        case NEAREST_HEALTHY:
+            MirrorState nearest = null;
+            long nearestLatency = leadingReadLatency;
+            
+            // Mirrors that have not been read from yet report no latency,
+            // so each of them gets tried once the leading storage has been.
+            for (MirrorState mirror : mirrors)
+            {
+                if (mirror.isReadable(unit, 0L)
+                        && mirror.getReadLatency() < nearestLatency)
+                {
+                    nearest = mirror;
+                    nearestLatency = mirror.getReadLatency();
+                }
+            }
+            
+            return nearest;
+        
+        default:
+            return null;
+        }
+    }
+    
+    private MirrorState getMirror(Storage storage)
+    {
+        for (MirrorState mirror : mirrors)
+        {
+            if (mirror.getSource().equals(storage))
+                return mirror;
+        }
+        
+        return null;
+    }
+    
+    private void applyPreloadedIndexes(
+            String unit, PreloadedUnitCache unitCache
+    )
+    {
+        List<String> indexedKeys = preloadedIndexes.get(unit);
+        
+        if (indexedKeys == null)
+            return;
+        
+        for (String key : indexedKeys)
+        {
+            if (unitCache.getKeys().containsKey(key))
+            {
+                unitCache.addIndex(key);
+            }
+        }
+    }
+    
+    private void addMirrorKey(
+            String unit, final String key, final DataType type
+    )
+    {
+        walkMirrors(new UnitWalker()
+        {
+            @Override
+            public void walk(Storage storage, String unit) throws IOException
+            {
+                UnitKeys keys = storage.getKeys(unit);
+                
+                if (!keys.containsKey(key))
+                {
+                    storage.addKey(unit, key, type);
+                }
+            }
+        }, unit);
     }
     
     private void walkMirrors(final UnitWalker walker, final String unit)
     {
+        final long submitTime = System.nanoTime();
+        
+        for (MirrorState mirror : mirrors)
+        {
+            mirror.writeQueued(unit);
+        }
+        
         executorService.submit(new Runnable()
         {
             @Override
             public void run()
             {
-                for (Map.Entry<Storage, Map<String, String>> e : mirrors.entrySet())
+                if (metrics != null)
                 {
-                    String unitMapping = e.getValue().get(unit);
-                    
-                    if (unitMapping == null)
-                    {
-                        unitMapping = unit;
-                    }
+                    metrics.record(
+                            StorageMetrics.Role.MIRROR, "queue", unit, submitTime
+                    );
+                }
+                
+                for (MirrorState mirror : mirrors)
+                {
+                    Storage storage = mirror.getStorage();
                     
                     try
                     {
-                        walker.walk(e.getKey(), unitMapping);
+                        boolean batched;
+                        
+                        synchronized (storage)
+                        {
+                            walker.walk(storage, mirror.mapUnit(unit));
+                            batched = storage.isAutobatchEnabled();
+                        }
+                        
+                        mirror.writeApplied(unit, true, batched);
                     }
                     catch (IOException ex)
                     {
+                        mirror.writeApplied(unit, false, false);
+                        
                         log(Level.WARNING, ex);
                     }
                 }
@@ -752,6 +2019,24 @@ public final class WrapperStorage implements Storage
         });
     }
     
+    private void pingMirrorsNow()
+    {
+        for (MirrorState mirror : mirrors)
+        {
+            try
+            {
+                synchronized (mirror.getStorage())
+                {
+                    mirror.getStorage().ping();
+                }
+            }
+            catch (IOException ex)
+            {
+                log(Level.WARNING, ex);
+            }
+        }
+    }
+    
     private void log(Level level, String message)
     {
         LogItCore.getInstance().log(level, message);
@@ -766,7 +2051,11 @@ public final class WrapperStorage implements Storage
     {
         public WrapperStorage build()
         {
-            return new WrapperStorage(leading, cacheType);
+            return new WrapperStorage(
+                    leading, cacheType, cacheSize, cacheTtl, queryCacheSize,
+                    metrics, readPolicy, maxMirrorLag,
+                    journal, journalRetryInterval
+            );
         }
         
         public Builder leading(Storage leading)
@@ -789,8 +2078,166 @@ public final class WrapperStorage implements Storage
             return this;
         }
         
+        /**
+         * Sets the maximum number of entries per unit
+         * held by a {@code BOUNDED} cache.
+         * 
+         * @param cacheSize the cache size.
+         * 
+         * @return this {@code Builder}.
+         */
+        public Builder cacheSize(int cacheSize)
+        {
+            if (cacheSize <= 0)
+                throw new IllegalArgumentException();
+            
+            this.cacheSize = cacheSize;
+            
+            return this;
+        }
+        
+        /**
+         * Sets the time after which entries in a {@code BOUNDED} cache,
+         * as well as results in the query cache, expire.
+         * 
+         * @param cacheTtl the time-to-live in milliseconds,
+         *                 or {@code 0} if entries should never expire.
+         * 
+         * @return this {@code Builder}.
+         */
+        public Builder cacheTtl(long cacheTtl)
+        {
+            if (cacheTtl < 0)
+                throw new IllegalArgumentException();
+            
+            this.cacheTtl = cacheTtl;
+            
+            return this;
+        }
+        
+        /**
+         * Sets the maximum number of selector query results held by
+         * the query cache. The query cache is not used with
+         * a {@code PRELOADED} cache.
+         * 
+         * @param queryCacheSize the query cache size,
+         *                       or {@code 0} to disable the query cache.
+         * 
+         * @return this {@code Builder}.
+         */
+        public Builder queryCacheSize(int queryCacheSize)
+        {
+            if (queryCacheSize < 0)
+                throw new IllegalArgumentException();
+            
+            this.queryCacheSize = queryCacheSize;
+            
+            return this;
+        }
+        
+        /**
+         * Sets the object in which the latencies of operations
+         * on the leading storage and on the mirrors will be recorded.
+         * 
+         * @param metrics the storage metrics,
+         *                or {@code null} to disable metrics.
+         * 
+         * @return this {@code Builder}.
+         */
+        public Builder metrics(StorageMetrics metrics)
+        {
+            this.metrics = metrics;
+            
+            return this;
+        }
+        
+        /**
+         * Sets the policy deciding whether entries are read from
+         * the leading storage or from one of the mirrors.
+         * 
+         * <p> Mirrors are only written to through this
+         * {@code WrapperStorage}, so reads should be routed to them
+         * only if they held the same entries as the leading storage
+         * when they were mirrored.
+         * 
+         * @param readPolicy the read policy.
+         * 
+         * @return this {@code Builder}.
+         */
+        public Builder readPolicy(ReadPolicy readPolicy)
+        {
+            if (readPolicy == null)
+                throw new IllegalArgumentException();
+            
+            this.readPolicy = readPolicy;
+            
+            return this;
+        }
+        
+        /**
+         * Sets how far behind the leading storage a mirror may be in a unit
+         * for the {@code MIRROR_FIRST} read policy to still read from it.
+         * 
+         * @param maxMirrorLag the maximum lag in milliseconds.
+         * 
+         * @return this {@code Builder}.
+         */
+        public Builder maxMirrorLag(long maxMirrorLag)
+        {
+            if (maxMirrorLag < 0)
+                throw new IllegalArgumentException();
+            
+            this.maxMirrorLag = maxMirrorLag;
+            
+            return this;
+        }
+        
+        /**
+         * Sets the journal to which writes to the leading storage
+         * are appended while it is unreachable.
+         * 
+         * @param journal the journal,
+         *                or {@code null} to disable journaling.
+         * 
+         * @return this {@code Builder}.
+         * 
+         * @see JournaledStorage
+         */
+        public Builder journal(StorageJournal journal)
+        {
+            this.journal = journal;
+            
+            return this;
+        }
+        
+        /**
+         * Sets how often reconnecting to the leading storage
+         * is attempted while it is unreachable.
+         * 
+         * @param journalRetryInterval the interval in milliseconds.
+         * 
+         * @return this {@code Builder}.
+         */
+        public Builder journalRetryInterval(long journalRetryInterval)
+        {
+            if (journalRetryInterval < 0)
+                throw new IllegalArgumentException();
+            
+            this.journalRetryInterval = journalRetryInterval;
+            
+            return this;
+        }
+        
         private Storage leading;
         private CacheType cacheType;
+        private int cacheSize = 10000;
+        private long cacheTtl = 0L;
+        private int queryCacheSize = 0;
+        private StorageMetrics metrics;
+        private ReadPolicy readPolicy = ReadPolicy.LEADING_ONLY;
+        private long maxMirrorLag = 0L;
+        private StorageJournal journal;
+        private long journalRetryInterval = 10000L;
     }
     
     private static interface UnitWalker
@@ -798,16 +2245,50 @@ public final class WrapperStorage implements Storage
         public void walk(Storage storage, String unit) throws IOException;
     }
     
+    private static interface ReadTask<T>
+    {
+        public T read(Storage storage, String unit) throws IOException;
+    }
+    
     /**
      * Used to update mirrors in the background.
      */
     private final ExecutorService executorService;
     
     private final Storage leading;
+    private final MigratingStorage migratingStorage;
+    private final JournaledStorage journaledStorage;
     private final CacheType cacheType;
+    private final int cacheSize;
+    private final long cacheTtl;
+    
+    /**
+     * Whether reads that go straight to the leading storage may run
+     * without holding the lock on this {@code WrapperStorage}.
+     */
+    private final boolean concurrentReads;
+    
+    private final StorageMetrics metrics;
     
-    private final Map<Storage, Map<String, String>> mirrors = new HashMap<>();
+    private final ReadPolicy readPolicy;
+    private final long maxMirrorLag;
+    
+    /**
+     * Iterated over by the background thread without holding the lock
+     * on this {@code WrapperStorage}, hence copy-on-write.
+     */
+    private final List<MirrorState> mirrors = new CopyOnWriteArrayList<>();
+    
+    /**
+     * A moving average of the time reads from the leading storage took,
+     * in nanoseconds. Only tracked for the {@code NEAREST_HEALTHY} policy.
+     */
+    private volatile long leadingReadLatency = 0L;
     private final List<StorageObserver> observers = new ArrayList<>();
     
     private Map<String, PreloadedUnitCache> preloadedCache;
+    private final Map<String, List<String>> preloadedIndexes = new HashMap<>();
+    private Map<String, BoundedUnitCache> boundedCache;
+    private QueryResultCache queryCache;
+    private final Map<String, SchemaMigration> migrations = new ConcurrentHashMap<>();
 }